@@ -55,6 +55,9 @@ DATABASES = [
                 "session-by-device": {
                     "map": "function(doc){if(doc.devices){for(var i in doc.devices){emit(doc.devices[i].uuid, doc);}}}"
                 },
+                "session-id-by-device": {
+                    "map": "function(doc){if(doc.devices){for(var i in doc.devices){emit(doc.devices[i].uuid, null);}}}"
+                },
                 "uuid": {
                     "map": "function(doc){if(doc.uuid){emit(doc.uuid, doc)}}"
                 },
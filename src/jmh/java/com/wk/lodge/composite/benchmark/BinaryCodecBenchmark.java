@@ -0,0 +1,79 @@
+package com.wk.lodge.composite.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.wk.lodge.composite.web.socket.messaging.BinaryCodecInterceptor;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding and encoding an update broadcast as JSON against the same update as Smile, which is the work a
+ * device does for every frame, and measures what the server pays to transcode a broadcast for a device that has
+ * opted in to Smile. The update carries a game state of the given number of entities.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryCodecBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"4", "32"})
+    public int entities;
+
+    private byte[] json;
+    private byte[] smile;
+    private Map<?, ?> update;
+    private ObjectMapper jsonMapper;
+    private ObjectMapper smileMapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder json = new StringBuilder("{\"type\":\"update\",\"serverTime\":1413500000000,\"data\":{\"tick\":1024,\"entities\":[");
+        for (int i = 0; i < this.entities; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format("{\"id\":\"player-%d\",\"x\":%.3f,\"y\":%.3f,\"vx\":%.3f,\"vy\":%.3f,\"alive\":true}",
+                    i, i * 1.5, i * 2.25, 0.125, -0.5));
+        }
+        json.append("]}}");
+        this.json = json.toString().getBytes(UTF_8);
+        this.smile = BinaryCodecInterceptor.toSmile(this.json);
+        this.jsonMapper = new ObjectMapper();
+        this.smileMapper = new ObjectMapper(new SmileFactory());
+        this.update = this.jsonMapper.readValue(this.json, Map.class);
+        System.out.println(String.format("%n%d entities: %d bytes as JSON, %d bytes as Smile",
+                this.entities, this.json.length, this.smile.length));
+    }
+
+    @Benchmark
+    public Object decodeJson() throws Exception {
+        return this.jsonMapper.readValue(this.json, Map.class);
+    }
+
+    @Benchmark
+    public Object decodeSmile() throws Exception {
+        return this.smileMapper.readValue(this.smile, Map.class);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws Exception {
+        return this.jsonMapper.writeValueAsBytes(this.update);
+    }
+
+    @Benchmark
+    public byte[] encodeSmile() throws Exception {
+        return this.smileMapper.writeValueAsBytes(this.update);
+    }
+
+    @Benchmark
+    public byte[] transcode() {
+        return BinaryCodecInterceptor.toSmile(this.json);
+    }
+}
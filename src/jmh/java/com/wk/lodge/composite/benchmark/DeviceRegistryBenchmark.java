@@ -0,0 +1,122 @@
+package com.wk.lodge.composite.benchmark;
+
+import com.wk.lodge.composite.registry.DeviceRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ping throughput from four threads against a DeviceRegistry already tracking every device, and against the
+ * copy-on-write sets DeviceRegistry used to keep. The copy-on-write baseline only runs with 10k devices: filling it
+ * costs O(n^2), which is impractical at 100k and above.
+ *
+ * The pingWhileSweeping group has three threads pinging while a fourth sweeps for unhealthy devices in a loop, against a
+ * registry with a 100ms timeout so that the sweeps find devices to drop and the pings add them back.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class DeviceRegistryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+        @Param({"10000", "100000", "1000000"})
+        public int devices;
+
+        private DeviceRegistry registry;
+        private String[] uuids;
+
+        @Setup
+        public void setUp() {
+            this.registry = new DeviceRegistry();
+            this.uuids = uuids(this.devices);
+            for (String uuid : this.uuids) {
+                this.registry.addHealthyDevice(uuid);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CopyOnWrite {
+        @Param({"10000"})
+        public int devices;
+
+        private final Set<UUID> healthyDevices = new CopyOnWriteArraySet<UUID>();
+        private final Set<UUID> unhealthyDevices = new CopyOnWriteArraySet<UUID>();
+        private final Object lock = new Object();
+        private String[] uuids;
+
+        @Setup
+        public void setUp() {
+            this.uuids = uuids(this.devices);
+            for (String uuid : this.uuids) {
+                addHealthyDevice(uuid);
+            }
+        }
+
+        private void addHealthyDevice(String uuidStr) {
+            UUID uuid = UUID.fromString(uuidStr);
+            synchronized(this.lock) {
+                this.healthyDevices.add(uuid);
+                this.unhealthyDevices.remove(uuid);
+            }
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Sweeping {
+        @Param({"10000", "100000"})
+        public int devices;
+
+        private DeviceRegistry registry;
+        private String[] uuids;
+
+        @Setup
+        public void setUp() {
+            this.registry = new DeviceRegistry(100, 10);
+            this.uuids = uuids(this.devices);
+            for (String uuid : this.uuids) {
+                this.registry.addHealthyDevice(uuid);
+            }
+        }
+    }
+
+    private static String[] uuids(int devices) {
+        String[] uuids = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            uuids[i] = UUID.randomUUID().toString();
+        }
+        return uuids;
+    }
+
+    @Benchmark
+    public void ping(Registry state) {
+        state.registry.addHealthyDevice(state.uuids[ThreadLocalRandom.current().nextInt(state.uuids.length)]);
+    }
+
+    @Benchmark
+    public void copyOnWritePing(CopyOnWrite state) {
+        state.addHealthyDevice(state.uuids[ThreadLocalRandom.current().nextInt(state.uuids.length)]);
+    }
+
+    @Benchmark
+    @Group("pingWhileSweeping")
+    @GroupThreads(3)
+    public void pingDuringSweep(Sweeping state) {
+        state.registry.addHealthyDevice(state.uuids[ThreadLocalRandom.current().nextInt(state.uuids.length)]);
+    }
+
+    @Benchmark
+    @Group("pingWhileSweeping")
+    @GroupThreads(1)
+    public Set<UUID> sweep(Sweeping state) {
+        return state.registry.getUnhealthyDevices();
+    }
+}
@@ -0,0 +1,69 @@
+package com.wk.lodge.composite.benchmark;
+
+import com.javadocmd.simplelatlng.LatLng;
+import com.javadocmd.simplelatlng.LatLngTool;
+import com.javadocmd.simplelatlng.util.LengthUnit;
+import com.wk.lodge.composite.repository.GeoDistance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a full range scan over session geolocations using simplelatlng, as SessionRepository.getSessionInRange used
+ * to, against the GeoDistance kernel with its bounding-box prefilter. Sessions are spread over roughly a 10km square
+ * around the query point, so that only a small fraction of them are within range.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeoDistanceBenchmark {
+    private static final double LAT = 45.5231;
+    private static final double LNG = -122.6765;
+    private static final float RANGE = 33;
+
+    @Param({"10000", "100000", "1000000"})
+    public int sessions;
+
+    private float[][] geos;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        this.geos = new float[this.sessions][];
+        for (int i = 0; i < this.sessions; i++) {
+            this.geos[i] = new float[]{(float) (LAT + (random.nextDouble() - 0.5) * 0.09),
+                    (float) (LNG + (random.nextDouble() - 0.5) * 0.13)};
+        }
+    }
+
+    @Benchmark
+    public int simpleLatLng() {
+        LatLng query = new LatLng(new Double(LAT), new Double(LNG));
+        int inRange = 0;
+        for (float[] geo : this.geos) {
+            LatLng candidate = new LatLng(new Double(geo[0]), new Double(geo[1]));
+            if (LatLngTool.distance(query, candidate, LengthUnit.METER) <= RANGE) {
+                inRange++;
+            }
+        }
+        return inRange;
+    }
+
+    @Benchmark
+    public int kernel() {
+        double latDelta = GeoDistance.latitudeDelta(RANGE);
+        double lngDelta = GeoDistance.longitudeDelta(LAT, RANGE);
+        int inRange = 0;
+        for (float[] geo : this.geos) {
+            if (GeoDistance.inBoundingBox(geo, LAT, LNG, latDelta, lngDelta)
+                    && GeoDistance.distance(geo, LAT, LNG) <= RANGE) {
+                inRange++;
+            }
+        }
+        return inRange;
+    }
+}
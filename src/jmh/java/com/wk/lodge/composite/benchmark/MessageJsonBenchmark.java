@@ -0,0 +1,109 @@
+package com.wk.lodge.composite.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.web.socket.message.codec.MessageCodec;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import com.wk.lodge.composite.web.socket.message.outbound.DevicesResponse;
+import com.wk.lodge.composite.web.socket.message.outbound.JoinResponse;
+import com.wk.lodge.composite.web.socket.message.outbound.UpdateResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the JSON work done per message: writing join, devices and update responses for a full appOne session of 8
+ * devices, and reading a join. The codec benchmarks are what CodecMessageConverter does, straight between bytes and
+ * objects. The gson benchmarks are what CompositeController used to do, serializing each response to a String with a
+ * shared Gson that StringMessageConverter then encoded as UTF-8, and what parseJson used to do, building a Gson on
+ * every call; sharedGsonParse is the same parse with a Gson that is reused. The update data is decoded by Jackson
+ * first, as it was before the codec. Run with -prof gc, as the jmh profile does, to compare allocation per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageJsonBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEVICES = 8;
+    private static final String JOIN = "{\"applicationId\":\"appOne\"," +
+            "\"device\":{\"uuid\":\"" + UUID.randomUUID() + "\",\"width\":1080,\"height\":1920,\"performance\":2}," +
+            "\"geo\":[45.5231,-122.6765],\"point\":[0,0],\"vector\":[1.0,1.0],\"type\":\"exit\"}";
+    private static final String UPDATE = "{\"type\":\"update\",\"data\":{\"device\":\"" + UUID.randomUUID() + "\"," +
+            "\"tick\":1024,\"x\":12.5,\"y\":-3.25,\"vx\":0.125,\"vy\":-0.5,\"alive\":true}}";
+
+    private Gson gson;
+    private String sessionId;
+    private ArrayList<Device> devices;
+    private Object updateData;
+    private byte[] join;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.gson = new Gson();
+        this.sessionId = UUID.randomUUID().toString();
+        this.devices = new ArrayList<Device>();
+        for (int i = 0; i < DEVICES; i++) {
+            Device device = new Device();
+            device.setWidth(1080);
+            device.setHeight(1920);
+            device.setPerformance(2);
+            this.devices.add(device);
+        }
+        this.updateData = new ObjectMapper().readValue(UPDATE, Map.class).get("data");
+        this.join = JOIN.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] codecJoinResponse() throws Exception {
+        return MessageCodec.write(new JoinResponse("appOne", this.sessionId, this.devices, "lobby"));
+    }
+
+    @Benchmark
+    public byte[] codecDevicesResponse() throws Exception {
+        return MessageCodec.write(new DevicesResponse(this.devices));
+    }
+
+    @Benchmark
+    public byte[] codecUpdateResponse() throws Exception {
+        return MessageCodec.write(new UpdateResponse(this.updateData));
+    }
+
+    @Benchmark
+    public JoinMessage codecJoin() throws Exception {
+        return MessageCodec.read(this.join, JoinMessage.class);
+    }
+
+    @Benchmark
+    public byte[] gsonJoinResponse() {
+        return this.gson.toJson(new JoinResponse("appOne", this.sessionId, this.devices, "lobby"), JoinResponse.class)
+                .getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] gsonDevicesResponse() {
+        return this.gson.toJson(new DevicesResponse(this.devices), DevicesResponse.class).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] gsonUpdateResponse() {
+        return this.gson.toJson(new UpdateResponse(this.updateData), UpdateResponse.class).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public JoinMessage gsonParseJson() {
+        return new Gson().fromJson(JOIN, JoinMessage.class);
+    }
+
+    @Benchmark
+    public JoinMessage sharedGsonParse() {
+        return this.gson.fromJson(JOIN, JoinMessage.class);
+    }
+}
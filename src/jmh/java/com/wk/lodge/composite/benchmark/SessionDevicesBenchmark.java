@@ -0,0 +1,60 @@
+package com.wk.lodge.composite.benchmark;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the device lookups a session makes on every join, leave and disconnect, with the session full: 2 devices is
+ * appTwo's maxDevicesPerSession and 8 is appOne's. Lookups are for the last device, which is the worst case for both.
+ * removeDeviceByUuid is measured together with adding the device back, so that every invocation sees a full session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionDevicesBenchmark {
+
+    @Param({"2", "8"})
+    public int devices;
+
+    private Session session;
+    private Device last;
+    private UUID lastUuid;
+    private String lastUuidStr;
+    private UUID absent;
+
+    @Setup
+    public void setUp() {
+        this.session = new Session();
+        for (int i = 0; i < this.devices; i++) {
+            this.last = new Device();
+            this.session.addDevice(this.last);
+        }
+        this.lastUuid = this.last.getUuid();
+        this.lastUuidStr = this.lastUuid.toString();
+        this.absent = UUID.randomUUID();
+    }
+
+    @Benchmark
+    public boolean deviceInSession() {
+        return this.session.deviceInSession(this.lastUuid);
+    }
+
+    @Benchmark
+    public boolean deviceNotInSession() {
+        return this.session.deviceInSession(this.absent);
+    }
+
+    @Benchmark
+    public Session removeDeviceByUuid() {
+        this.session.removeDeviceByUuid(this.lastUuidStr);
+        this.session.addDevice(this.last);
+        return this.session;
+    }
+}
@@ -0,0 +1,77 @@
+package com.wk.lodge.composite.benchmark;
+
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.SessionRepository;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import com.wk.lodge.composite.service.RoomService;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SessionRepository.getSessionInRange, the scan a join makes over the unlocked sessions of its application.
+ * Sessions are spread over roughly a 10km square as in GeoDistanceBenchmark, with one at the center halfway down the
+ * list. A hit, from a device at the center, scans up to that session or to one in range before it; a miss, from a
+ * device 100km away, scans every session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionRangeBenchmark {
+    private static final float LAT = 45.5231f;
+    private static final float LNG = -122.6765f;
+    private static final float RANGE = 33;
+
+    @Param({"100", "10000", "100000"})
+    public int sessions;
+
+    private SessionRepository repository;
+    private List<Session> unlocked;
+    private JoinMessage near;
+    private JoinMessage far;
+
+    @Setup
+    public void setUp() {
+        this.repository = new SessionRepository(new InMemorySessionStore(),
+                new DeviceLimiter(new HashMap<String, Integer>(), 3, RANGE), new RoomService(), null);
+        Random random = new Random(42);
+        this.unlocked = new ArrayList<Session>(this.sessions);
+        for (int i = 0; i < this.sessions; i++) {
+            Session session = new Session();
+            if (i == this.sessions / 2) {
+                session.setGeoLocation(new float[]{LAT, LNG});
+            } else {
+                session.setGeoLocation(new float[]{(float) (LAT + (random.nextDouble() - 0.5) * 0.09),
+                        (float) (LNG + (random.nextDouble() - 0.5) * 0.13)});
+            }
+            this.unlocked.add(session);
+        }
+        this.near = join(LAT, LNG);
+        this.far = join(LAT + 0.9f, LNG);
+    }
+
+    private static JoinMessage join(float lat, float lng) {
+        JoinMessage join = new JoinMessage();
+        join.setGeo(new float[]{lat, lng});
+        return join;
+    }
+
+    @Benchmark
+    public Session hit() {
+        return this.repository.getSessionInRange(this.unlocked, RANGE, this.near);
+    }
+
+    @Benchmark
+    public Session miss() {
+        return this.repository.getSessionInRange(this.unlocked, RANGE, this.far);
+    }
+}
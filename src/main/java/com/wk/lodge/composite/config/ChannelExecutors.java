@@ -0,0 +1,228 @@
+package com.wk.lodge.composite.config;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the executors behind the client inbound, client outbound and broker channels. Each message a channel receives
+ * is handed to its executor as a task, so the mode of the executor bounds how many messages are handled at once:
+ *
+ * <ul>
+ *     <li><b>pool</b>: a fixed pool of core threads with an unbounded queue, as Spring configures the channels by
+ *     default. A handler blocked on a slow session store holds one of the threads until the store answers, and once
+ *     every thread is blocked, messages of every type wait in the queue.</li>
+ *     <li><b>elastic</b>: a thread per message in flight, up to a maximum. Idle threads above the core size retire
+ *     after a minute. Once the maximum is reached, the thread sending the message handles it itself, which slows down
+ *     the sender rather than dropping the message.</li>
+ *     <li><b>virtual</b>: a new virtual thread for every message, if the JVM provides them. Virtual threads cost little
+ *     while they are blocked, so they are neither pooled nor capped, and the sender never handles a message itself. On
+ *     JVMs without virtual threads, platform threads are used as in elastic mode.</li>
+ * </ul>
+ *
+ * None of the modes orders the messages of a channel by itself: as with the default pool, two messages from the same
+ * client can be handled at once, and in elastic and virtual mode a message can overtake one sent before it. The client
+ * outbound and broker channels are therefore OrderedExecutorSubscribableChannels, which hand the executor the frames of
+ * one WebSocket session, and the broadcasts to one destination, one at a time. Inbound changes that must be made in
+ * order are ordered per session by the SessionDispatcher.
+ */
+public final class ChannelExecutors {
+    private static final Log logger = LogFactory.getLog(ChannelExecutors.class);
+    public static final String POOL = "pool";
+    public static final String ELASTIC = "elastic";
+    public static final String VIRTUAL = "virtual";
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    private ChannelExecutors() {}
+
+    /**
+     * @param   threadNamePrefix    the prefix of the names of the executor's threads
+     * @param   mode                pool, elastic or virtual
+     * @param   corePoolSize        the number of threads kept when idle
+     * @param   maxPoolSize         the maximum number of threads in elastic mode, and in virtual mode on JVMs without
+     *                              virtual threads
+     * @return                      an executor configured for the mode, to be initialized by the container
+     */
+    public static ThreadPoolTaskExecutor create(String threadNamePrefix, String mode, int corePoolSize,
+                                                int maxPoolSize) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setCorePoolSize(corePoolSize);
+        switch(mode) {
+            case POOL:
+                // the defaults Spring gives the channel executors
+                executor.setMaxPoolSize(Integer.MAX_VALUE);
+                executor.setQueueCapacity(Integer.MAX_VALUE);
+                executor.setKeepAliveSeconds(KEEP_ALIVE_SECONDS);
+                return executor;
+            case VIRTUAL:
+                ThreadFactory threadFactory = virtualThreadFactory(threadNamePrefix);
+                if(threadFactory != null) {
+                    ThreadPerTaskExecutor virtual = new ThreadPerTaskExecutor();
+                    virtual.setThreadNamePrefix(threadNamePrefix);
+                    virtual.setThreadFactory(threadFactory);
+                    return virtual;
+                }
+                logger.warn(String.format("Virtual threads are not available on Java %s; %s will use platform threads",
+                    System.getProperty("java.version"), threadNamePrefix));
+                return elastic(executor, corePoolSize, maxPoolSize);
+            case ELASTIC:
+                return elastic(executor, corePoolSize, maxPoolSize);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown channel executor mode %s", mode));
+        }
+    }
+
+    private static ThreadPoolTaskExecutor elastic(ThreadPoolTaskExecutor executor, int corePoolSize, int maxPoolSize) {
+        executor.setMaxPoolSize(Math.max(corePoolSize, maxPoolSize));
+        // no queue, so that each message in flight gets a thread of its own
+        executor.setQueueCapacity(0);
+        executor.setKeepAliveSeconds(KEEP_ALIVE_SECONDS);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * @return  a factory of virtual threads named with the prefix, or null if the JVM has no virtual threads
+     */
+    static ThreadFactory virtualThreadFactory(String threadNamePrefix) {
+        try {
+            // Thread.ofVirtual().name(threadNamePrefix, 1).factory(), on Java 21 and later
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 1L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return  an executor that starts a new thread from the factory for every task, or null if the JVM has none
+     */
+    static ExecutorService threadPerTaskExecutor(ThreadFactory threadFactory) {
+        try {
+            // Executors.newThreadPerTaskExecutor(threadFactory), on Java 21 and later
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs every task on a thread of its own, from Executors.newThreadPerTaskExecutor, in place of a pool. The channel
+     * configuration expects a ThreadPoolTaskExecutor, so this is one, but it has no ThreadPoolExecutor, no queue and no
+     * maximum: the pool and active counts it reports are the number of tasks in flight.
+     */
+    static final class ThreadPerTaskExecutor extends ThreadPoolTaskExecutor {
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile ExecutorService executor;
+
+        @Override
+        protected ExecutorService initializeExecutor(ThreadFactory threadFactory,
+                                                     RejectedExecutionHandler rejectedExecutionHandler) {
+            ExecutorService executor = threadPerTaskExecutor(threadFactory);
+            if(executor == null) {
+                throw new IllegalStateException(String.format("Java %s cannot start a thread per task",
+                    System.getProperty("java.version")));
+            }
+            this.executor = executor;
+            return executor;
+        }
+
+        @Override
+        public int getPoolSize() {
+            return this.inFlight.get();
+        }
+
+        @Override
+        public int getActiveCount() {
+            return this.inFlight.get();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            ExecutorService executor = this.executor;
+            if(executor == null) {
+                throw new IllegalStateException("ThreadPerTaskExecutor not initialized");
+            }
+            this.inFlight.incrementAndGet();
+            try {
+                executor.execute(new Counted(task));
+            } catch (RejectedExecutionException e) {
+                this.inFlight.decrementAndGet();
+                throw new TaskRejectedException(String.format("Executor [%s] did not accept task: %s", executor, task),
+                    e);
+            }
+        }
+
+        @Override
+        public void execute(Runnable task, long startTimeout) {
+            execute(task);
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            FutureTask<Object> future = new FutureTask<Object>(task, null);
+            execute(future);
+            return future;
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            FutureTask<T> future = new FutureTask<T>(task);
+            execute(future);
+            return future;
+        }
+
+        @Override
+        public ListenableFuture<?> submitListenable(Runnable task) {
+            ListenableFutureTask<Object> future = new ListenableFutureTask<Object>(task, null);
+            execute(future);
+            return future;
+        }
+
+        @Override
+        public <T> ListenableFuture<T> submitListenable(Callable<T> task) {
+            ListenableFutureTask<T> future = new ListenableFutureTask<T>(task);
+            execute(future);
+            return future;
+        }
+
+        private final class Counted implements Runnable {
+            private final Runnable task;
+
+            private Counted(Runnable task) {
+                this.task = task;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    this.task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package com.wk.lodge.composite.config;
 
 import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.SessionCache;
+import com.wk.lodge.composite.repository.store.CouchDbSessionStore;
+import com.wk.lodge.composite.repository.store.DiskSessionStore;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import com.wk.lodge.composite.repository.store.MeteredSessionStore;
+import com.wk.lodge.composite.repository.store.ReplicatedSessionStore;
+import com.wk.lodge.composite.repository.store.SessionStore;
 import com.wk.lodge.composite.service.RoomService;
 import org.lightcouch.CouchDbClient;
 import org.lightcouch.CouchDbProperties;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.context.annotation.PropertySources;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.HashMap;
 
@@ -25,6 +34,12 @@ public class RootConfig {
     @Value(value = "${appTwo.maxDevicesPerSession}") private int appTwoMaxDevicesPerSession;
     @Value(value = "${minDistanceThresholdBetweenDevices}") private float minDistanceThresholdBetweenDevices;
     @Value(value = "${maxDistanceThresholdBetweenDevices}") private float maxDistanceThresholdBetweenDevices;
+    @Value(value = "${sessionCache.maxSize}") private int sessionCacheMaxSize;
+    @Value(value = "${sessionCache.ttlSeconds}") private long sessionCacheTtlSeconds;
+    @Value(value = "${sessionAsync.poolSize}") private int sessionAsyncPoolSize;
+    @Value(value = "${sessionStore.type}") private String sessionStoreType;
+    @Value(value = "${sessionStore.directory}") private String sessionStoreDirectory;
+    @Value(value = "${sessionStore.replicaMaxLagMillis}") private long sessionStoreReplicaMaxLagMillis;
 
 
     @Value(value = "${couchdb.host}") private String couchDbHostname;
@@ -43,6 +58,7 @@ public class RootConfig {
     }
 
     @Bean(destroyMethod = "shutdown")
+    @Lazy
     public CouchDbClient couchDbSessionClient(){
         CouchDbProperties couchDbProperties = new CouchDbProperties();
         couchDbProperties.setHost(couchDbHostname);
@@ -56,6 +72,39 @@ public class RootConfig {
         return new CouchDbClient(couchDbProperties);
     }
 
+    @Bean
+    public SessionStore sessionStore(){
+        return new MeteredSessionStore(typedSessionStore());
+    }
+
+    private SessionStore typedSessionStore(){
+        switch(sessionStoreType){
+            case "memory":
+                return new InMemorySessionStore();
+            case "disk":
+                return new DiskSessionStore(sessionStoreDirectory);
+            case "couchdb":
+                return new CouchDbSessionStore(couchDbSessionClient());
+            case "replicated":
+                return new ReplicatedSessionStore(couchDbSessionClient(), sessionStoreDirectory,
+                    sessionStoreReplicaMaxLagMillis);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown sessionStore.type %s", sessionStoreType));
+        }
+    }
+
+    /**
+     * the threads the session repository's asynchronous calls block on while the session store answers
+     */
+    @Bean
+    public ThreadPoolTaskExecutor sessionAsyncExecutor(){
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(sessionAsyncPoolSize);
+        executor.setThreadNamePrefix("session-async-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+
     @Bean
     public DeviceLimiter getDeviceLimiter(){
         HashMap<String,Integer> maxDevicesPerSession = new HashMap<>();
@@ -64,6 +113,11 @@ public class RootConfig {
         return new DeviceLimiter(maxDevicesPerSession,minDistanceThresholdBetweenDevices,maxDistanceThresholdBetweenDevices);
     }
 
+    @Bean
+    public SessionCache getSessionCache(){
+        return new SessionCache(sessionCacheMaxSize, sessionCacheTtlSeconds);
+    }
+
     @Bean
     public RoomService getRoomService(){
         HashMap<String,String[]> roomNames = new HashMap<>();
@@ -1,19 +1,38 @@
 package com.wk.lodge.composite.config;
 
 import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.registry.SessionStateRegistry;
+import com.wk.lodge.composite.web.socket.message.codec.CodecMessageConverter;
+import com.wk.lodge.composite.web.socket.messaging.BinaryCodecInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.BinaryFrameWebSocketHandler;
+import com.wk.lodge.composite.web.socket.messaging.DeviceLivenessInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.LatencyInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.OrderedExecutorSubscribableChannel;
+import com.wk.lodge.composite.web.socket.messaging.RawRelayInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.UpdateCoalescer;
 import com.wk.lodge.composite.web.socket.server.support.CompositeHandshakeHandler;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.*;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.support.AbstractSubscribableChannel;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurationSupport;
 import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 @Configuration
 @EnableScheduling
 @PropertySource("classpath:/rabbitmq.properties")
@@ -34,9 +53,17 @@ public class WebSocketConfig extends WebSocketMessageBrokerConfigurationSupport
     private @Value(value = "${rabbitmq.inboundChannelCorePoolSize}") int inboundChannelCorePoolSize;
     private @Value(value = "${rabbitmq.outboundChannelCorePoolSize}") int outboundChannelCorePoolSize;
     private @Value(value = "${rabbitmq.brokerChannelCorePoolSize}") int brokerChannelCorePoolSize;
+    private @Value(value = "${rabbitmq.channelExecutor}") String channelExecutor;
+    private @Value(value = "${rabbitmq.channelMaxPoolSize}") int channelMaxPoolSize;
     private @Value(value = "${rabbitmq.sendTimeLimit}") int sendTimeLimit;
     private @Value(value = "${rabbitmq.sendBufferSizeLimit}") int sendBufferSizeLimit;
     private @Value(value = "${rabbitmq.messageSizeLimit}") int messageSizeLimit;
+    private @Value(value = "${deviceLiveness.timeoutMillis}") long deviceTimeoutMillis;
+    private @Value(value = "${sessionState.idleSeconds}") long sessionStateIdleSeconds;
+    private @Value(value = "${appOne.applicationId}") String appOneApplicationId;
+    private @Value(value = "${appOne.updateTickMillis}") long appOneUpdateTickMillis;
+    private @Value(value = "${appTwo.applicationId}") String appTwoApplicationId;
+    private @Value(value = "${appTwo.updateTickMillis}") long appTwoUpdateTickMillis;
 
     @Bean
     public static PropertySourcesPlaceholderConfigurer
@@ -52,12 +79,13 @@ public class WebSocketConfig extends WebSocketMessageBrokerConfigurationSupport
 
 	@Override
 	public void configureClientInboundChannel(ChannelRegistration registration) {
-        registration.taskExecutor().corePoolSize(inboundChannelCorePoolSize);
+        registration.setInterceptors(latencyInterceptor().getArrivalInterceptor(), binaryCodecInterceptor(),
+                deviceLivenessInterceptor(), rawRelayInterceptor(), latencyInterceptor());
 	}
 
 	@Override
 	public void configureClientOutboundChannel(ChannelRegistration registration) {
-        registration.taskExecutor().corePoolSize(outboundChannelCorePoolSize);
+        registration.setInterceptors(binaryCodecInterceptor());
 	}
 
 	@Override
@@ -69,9 +97,17 @@ public class WebSocketConfig extends WebSocketMessageBrokerConfigurationSupport
                 .setSystemHeartbeatSendInterval(systemHeartbeatSendInterval)
                 .setSystemHeartbeatReceiveInterval(systemHeartbeatReceiveInterval);
 		registry.setApplicationDestinationPrefixes("/app");
+        // without a task executor registration, the broker channel ignores brokerChannelExecutor() and runs on the
+        // sending thread
         registry.configureBrokerChannel().taskExecutor().corePoolSize(brokerChannelCorePoolSize);
 	}
 
+    @Override
+    protected boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        messageConverters.add(new CodecMessageConverter());
+        return true;
+    }
+
     @Override
     public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
         registration.setSendTimeLimit(sendTimeLimit).setSendBufferSizeLimit(sendBufferSizeLimit * 1024);
@@ -79,6 +115,64 @@ public class WebSocketConfig extends WebSocketMessageBrokerConfigurationSupport
     }
 
 
+    @Bean
+    @Override
+    public ThreadPoolTaskExecutor clientInboundChannelExecutor() {
+        return ChannelExecutors.create("clientInboundChannel-", channelExecutor, inboundChannelCorePoolSize,
+                channelMaxPoolSize);
+    }
+
+    @Bean
+    @Override
+    public ThreadPoolTaskExecutor clientOutboundChannelExecutor() {
+        return ChannelExecutors.create("clientOutboundChannel-", channelExecutor, outboundChannelCorePoolSize,
+                channelMaxPoolSize);
+    }
+
+    @Bean
+    @Override
+    public ThreadPoolTaskExecutor brokerChannelExecutor() {
+        return ChannelExecutors.create("brokerChannel-", channelExecutor, brokerChannelCorePoolSize,
+                channelMaxPoolSize);
+    }
+
+    /**
+     * the client outbound channel as Spring configures it, but delivering the messages to each WebSocket session in the
+     * order they were sent
+     */
+    @Bean
+    @Override
+    public AbstractSubscribableChannel clientOutboundChannel() {
+        return ordered(super.clientOutboundChannel(), SimpMessageHeaderAccessor.SESSION_ID_HEADER);
+    }
+
+    /**
+     * the broker channel as Spring configures it, but relaying the messages to each destination in the order they were
+     * sent, e.g. the patches of a session in version order
+     */
+    @Bean
+    @Override
+    public AbstractSubscribableChannel brokerChannel() {
+        return ordered(super.brokerChannel(), SimpMessageHeaderAccessor.DESTINATION_HEADER);
+    }
+
+    private static AbstractSubscribableChannel ordered(AbstractSubscribableChannel channel, String keyHeader) {
+        Executor executor = ((ExecutorSubscribableChannel) channel).getExecutor();
+        if(executor == null) {
+            // a channel without an executor already handles each message as it is sent
+            return channel;
+        }
+        OrderedExecutorSubscribableChannel ordered = new OrderedExecutorSubscribableChannel(executor, keyHeader);
+        ordered.setInterceptors(channel.getInterceptors());
+        return ordered;
+    }
+
+    @Bean
+    @Override
+    public WebSocketHandler subProtocolWebSocketHandler() {
+        return new BinaryFrameWebSocketHandler(clientInboundChannel(), clientOutboundChannel());
+    }
+
     @Bean
     public DefaultHandshakeHandler handshakeHandler() {
         return new CompositeHandshakeHandler();
@@ -86,7 +180,40 @@ public class WebSocketConfig extends WebSocketMessageBrokerConfigurationSupport
 
     @Bean
     public DeviceRegistry deviceRegistry() {
-        return new DeviceRegistry();
+        return new DeviceRegistry(deviceTimeoutMillis);
+    }
+
+    @Bean
+    public SessionStateRegistry sessionStateRegistry() {
+        return new SessionStateRegistry(sessionStateIdleSeconds);
+    }
+
+    @Bean
+    public DeviceLivenessInterceptor deviceLivenessInterceptor() {
+        return new DeviceLivenessInterceptor(deviceRegistry());
+    }
+
+    @Bean
+    public RawRelayInterceptor rawRelayInterceptor() {
+        return new RawRelayInterceptor();
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public UpdateCoalescer updateCoalescer() {
+        HashMap<String,Long> updateTickMillis = new HashMap<>();
+        updateTickMillis.put(appOneApplicationId, appOneUpdateTickMillis);
+        updateTickMillis.put(appTwoApplicationId, appTwoUpdateTickMillis);
+        return new UpdateCoalescer(updateTickMillis);
+    }
+
+    @Bean
+    public LatencyInterceptor latencyInterceptor() {
+        return new LatencyInterceptor();
+    }
+
+    @Bean
+    public BinaryCodecInterceptor binaryCodecInterceptor() {
+        return new BinaryCodecInterceptor();
     }
 
     @Bean
@@ -0,0 +1,103 @@
+package com.wk.lodge.composite.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values in the manner of HdrHistogram: values below 16 are counted exactly, and above
+ * that each power of two is split into 16 buckets, so a value is known to within 1/16th, about 6%, across its whole
+ * range. Recording a value increments a counter in a fixed array and adds to a StripedCounter, and allocates nothing,
+ * so histograms can be updated from every message handled. Counts accumulate for the life of the histogram.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param   value   the value to count; negative values are counted as 0
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(index(value));
+        this.total.add(value);
+        long current = this.max.get();
+        while(value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * @return  the number of values recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return  the sum of the values recorded
+     */
+    public long getTotal() {
+        return this.total.get();
+    }
+
+    /**
+     * @return  the largest value recorded, or 0 if none was
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @param   percentile  a percentile between 0 and 100
+     * @return              the highest value of the bucket holding the percentile, no higher than the largest value
+     *                      recorded, or 0 if no value was recorded
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = getCount();
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if(seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long highestValue(int index) {
+        return index + 1 < BUCKETS ? lowestValue(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,81 @@
+package com.wk.lodge.composite.metrics;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4. Each metric is introduced with
+ * {@link #metric(String, String, String)} and followed by its samples; labels are passed as alternating names and
+ * values.
+ */
+public class PrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * @param   name    the metric's name
+     * @param   type    counter, gauge or summary
+     * @param   help    a description of the metric
+     */
+    public PrometheusWriter metric(String name, String type, String help) {
+        this.out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+            .append('\n');
+        this.out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, double value, String... labels) {
+        this.out.append(name);
+        if(labels.length > 0) {
+            this.out.append('{');
+            for(int i = 0; i + 1 < labels.length; i += 2) {
+                if(i > 0) {
+                    this.out.append(',');
+                }
+                this.out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            this.out.append('}');
+        }
+        this.out.append(' ').append(format(value)).append('\n');
+        return this;
+    }
+
+    /**
+     * writes the quantiles, sum and count of a histogram as the samples of a summary
+     *
+     * @param   name        the summary's name
+     * @param   histogram   the histogram
+     * @param   scale       the factor that converts the histogram's values to the summary's unit
+     * @param   labels      the labels of the samples
+     */
+    public PrometheusWriter summary(String name, LatencyHistogram histogram, double scale, String... labels) {
+        String[] quantileLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+        quantileLabels[labels.length] = "quantile";
+        for(double quantile : QUANTILES) {
+            quantileLabels[labels.length + 1] = format(quantile);
+            sample(name, histogram.valueAtPercentile(quantile * 100) * scale, quantileLabels);
+        }
+        sample(name + "_sum", histogram.getTotal() * scale, labels);
+        sample(name + "_count", histogram.getCount(), labels);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return this.out.toString();
+    }
+
+    private static String escape(String value) {
+        if(value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
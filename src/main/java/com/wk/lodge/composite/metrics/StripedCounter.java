@@ -0,0 +1,48 @@
+package com.wk.lodge.composite.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at once without contending on a single value. The count is split across a
+ * fixed number of cells, each on a cache line of its own, and a thread adds to the cell its id hashes to; reading the
+ * counter sums the cells. Adding allocates nothing.
+ */
+public class StripedCounter {
+    // 8 longs to a 64 byte cache line, so that cells never share a line
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        this.cells.getAndAdd(cell(), delta);
+    }
+
+    /**
+     * @return  the sum of everything added; additions made while it is read may or may not be included
+     */
+    public long get() {
+        long sum = 0;
+        for(int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += this.cells.get(stripe * PADDING);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * @return  the power of two at or above twice the number of processors, so that threads rarely share a cell
+     */
+    private static int stripes(int processors) {
+        return Integer.highestOneBit(Math.max(1, processors * 2 - 1)) << 1;
+    }
+}
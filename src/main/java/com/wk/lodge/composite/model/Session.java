@@ -34,6 +34,28 @@ public class Session {
         this.devices = new ArrayList<Device>();
     }
 
+    /**
+     * copies a session so that in-memory structures can hand out snapshots without sharing mutable state between
+     * threads. The device list and geo location are copied; the devices themselves are shared.
+     *
+     * @param   session     the session to copy
+     */
+    public Session(Session session){
+        this._id = session._id;
+        this._rev = session._rev;
+        this._deleted = session._deleted;
+        this.applicationId = session.applicationId;
+        this.devices = session.devices == null ? new ArrayList<Device>() : new ArrayList<Device>(session.devices);
+        this.geoLocation = session.geoLocation == null ? null : session.geoLocation.clone();
+        this.inserted = session.inserted;
+        this.locked = session.locked;
+        this.room = session.room;
+        this.sessionStarted = session.sessionStarted;
+        this.sessionEnded = session.sessionEnded;
+        this.updated = session.updated;
+        this.uuid = session.uuid;
+    }
+
     public String getApplicationId() {
         return applicationId;
     }
@@ -4,68 +4,242 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.util.Assert;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+/**
+ * Tracks device liveness. Each device that pings the server gets a deadline of one timeout after its latest ping, and
+ * is reported as unhealthy once its deadline has passed.
+ *
+ * Devices are held in a concurrent map and scheduled on a hashed timing wheel: a ring of buckets, one per tick, where
+ * each device sits in the bucket of the tick its deadline falls in. A ping only moves its device's deadline forward,
+ * which costs a single compare-and-set on that device's entry; the device is moved to the bucket of its new deadline
+ * lazily, when the wheel reaches the bucket it is in. Sweeping the wheel therefore only touches the devices whose
+ * bucket has come round since the last sweep, rather than every device.
+ */
 public class DeviceRegistry {
     private static final Log logger = LogFactory.getLog(DeviceRegistry.class);
-    private final Set<UUID> healthyDevices = new CopyOnWriteArraySet<UUID>();
-    private final Set<UUID> unhealthyDevices = new CopyOnWriteArraySet<UUID>();
+    public static final long DEFAULT_TIMEOUT_MILLIS = 4000;
+    private static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 64;
+    private static final long EXPIRED = Long.MIN_VALUE;
+
+    private final ConcurrentMap<UUID, Entry> devices = new ConcurrentHashMap<UUID, Entry>();
+    // filled once in the constructor and never changed, so safely published by the final field
+    private final List<ConcurrentLinkedQueue<Entry>> wheel;
+    private final long timeoutMillis;
+    private final long tickMillis;
     private final Object lock = new Object();
+    private long sweptTick;
+
+    public DeviceRegistry() {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * @param   timeoutMillis   the time after its latest ping at which a device becomes unhealthy, in milliseconds
+     */
+    public DeviceRegistry(long timeoutMillis) {
+        this(timeoutMillis, DEFAULT_TICK_MILLIS);
+    }
 
     /**
-     * returns a set of unhealthy devices every time the scheduled task defined by DeviceService.deleteUnhealthyDevices
-     * runs. All devices formerly considered healthy are added to the unhealthy device registry after unhealthy devices
-     * are added to a temp set, then cleared from the unhealthy device registry. As devices ping the server, they are
-     * added back into the healthy device registry using the below method, addHealthyDevice.
+     * @param   timeoutMillis   the time after its latest ping at which a device becomes unhealthy, in milliseconds
+     * @param   tickMillis      the resolution of device deadlines, in milliseconds
+     */
+    public DeviceRegistry(long timeoutMillis, long tickMillis) {
+        Assert.isTrue(timeoutMillis > 0 && tickMillis > 0, "timeout and tick must be positive");
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = tickMillis;
+        this.wheel = new ArrayList<ConcurrentLinkedQueue<Entry>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel.add(new ConcurrentLinkedQueue<Entry>());
+        }
+        this.sweptTick = now() / tickMillis;
+    }
+
+    /**
+     * returns the devices whose deadline has passed since the last call. Called every time the scheduled task defined
+     * by DeviceService.deleteUnhealthyDevices runs. Returned devices are forgotten; a device that pings again, or that
+     * is added back with addHealthyDevice, is tracked afresh.
      *
      * @return      the set of unhealthy device UUIDs
      *
      * @see         com.wk.lodge.composite.service.DeviceService#deleteUnhealthyDevices()
      */
     public Set<UUID> getUnhealthyDevices() {
+        Set<UUID> unhealthyDevices = new HashSet<UUID>();
         synchronized(this.lock) {
-            if(logger.isDebugEnabled())
-                logger.debug(String.format("UnhealthyDevices: %d, HealthyDevices: %d",
-                        unhealthyDevices.size(), healthyDevices.size()));
-            Set<UUID> tempDevices = new CopyOnWriteArraySet<UUID>();
-            tempDevices.addAll(unhealthyDevices);
-            unhealthyDevices.clear();
-            unhealthyDevices.addAll(healthyDevices);
-            healthyDevices.clear();
-            return tempDevices;
+            long now = now();
+            long tick = now / this.tickMillis;
+            // a full turn of the wheel visits every bucket, however long it has been since the last sweep
+            long from = Math.max(this.sweptTick + 1, tick - WHEEL_SIZE + 1);
+            for (long t = from; t <= tick; t++) {
+                sweep(this.wheel.get((int) (t & (WHEEL_SIZE - 1))), now, unhealthyDevices);
+            }
+            this.sweptTick = tick;
         }
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("UnhealthyDevices: %d, HealthyDevices: %d",
+                    unhealthyDevices.size(), this.devices.size()));
+        return unhealthyDevices;
     }
 
     /**
-     * adds a device UUID to the healthy device registry each time the device pings the server. Devices will always
-     * be added to the healthy device registry unless they fail to ping the server within the periodic window at which
-     * the DeviceService.deleteUnhealthyDevices method is called.
+     * records a ping from a device, moving its deadline to one timeout from now. Devices will always be considered
+     * healthy unless they fail to ping the server within the timeout.
      *
-     * @param   uuidStr     string-form UUID for the device that should be added to the healthy device registry.
+     * @param   uuidStr     string-form UUID for the device that pinged the server
      *
      * @see     com.wk.lodge.composite.service.DeviceService#deleteUnhealthyDevices()
      */
     public void addHealthyDevice(String uuidStr) {
         Assert.notNull(uuidStr, "UUID must not be null");
         UUID uuid = UUID.fromString(uuidStr);
-        synchronized(this.lock) {
-            healthyDevices.add(uuid);
-            unhealthyDevices.remove(uuid);
+        long now = now();
+        Entry entry = this.devices.get(uuid);
+        while (entry == null || !entry.touch(now)) {
+            Entry fresh = new Entry(uuid, now);
+            if (entry == null ? this.devices.putIfAbsent(uuid, fresh) == null : this.devices.replace(uuid, entry, fresh)) {
+                schedule(fresh, now);
+                return;
+            }
+            entry = this.devices.get(uuid);
         }
     }
 
     /**
-     * checks to see whether a device is healthy or not by looking up the device UUID in the healthy device registry
+     * stops tracking a device without reporting it as unhealthy, e.g. because its connection has closed and it is
+     * being removed from its session straight away
+     *
+     * @param   uuidStr     string-form UUID for the device
+     */
+    public void removeDevice(String uuidStr) {
+        Assert.notNull(uuidStr, "UUID must not be null");
+        Entry entry = this.devices.remove(UUID.fromString(uuidStr));
+        if (entry != null) {
+            // the wheel drops expired entries when it reaches them
+            entry.kill();
+        }
+    }
+
+    /**
+     * checks whether a device has pinged the server within the timeout
      *
      * @param   uuidStr     string-form UUID for the device to be checked
      * @return              boolean, whether the device is healthy
      */
     public boolean isHealthyDevice(String uuidStr) {
         Assert.notNull(uuidStr, "UUID must not be null");
-        synchronized(this.lock) {
-            return healthyDevices.contains(UUID.fromString(uuidStr));
+        Entry entry = this.devices.get(UUID.fromString(uuidStr));
+        return entry != null && entry.deadline(this.timeoutMillis) > now();
+    }
+
+    /**
+     * @return  the number of devices being tracked, including unhealthy devices not yet swept
+     */
+    public int size() {
+        return this.devices.size();
+    }
+
+    /**
+     * @return  the number of devices being tracked whose latest ping is within the timeout
+     */
+    public int countHealthy() {
+        long now = now();
+        int healthy = 0;
+        for (Entry entry : this.devices.values()) {
+            if (entry.deadline(this.timeoutMillis) > now) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * @return  the current time in milliseconds, from a monotonic clock
+     */
+    protected long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void sweep(ConcurrentLinkedQueue<Entry> bucket, long now, Set<UUID> unhealthyDevices) {
+        // drain first, since devices that are not yet due may be put straight back into the same bucket
+        List<Entry> due = new ArrayList<Entry>();
+        for (Entry entry = bucket.poll(); entry != null; entry = bucket.poll()) {
+            due.add(entry);
+        }
+        for (Entry entry : due) {
+            if (entry.expire(now, this.timeoutMillis)) {
+                this.devices.remove(entry.uuid, entry);
+                unhealthyDevices.add(entry.uuid);
+            } else if (!entry.isExpired()) {
+                schedule(entry, now);
+            }
+        }
+    }
+
+    private void schedule(Entry entry, long now) {
+        long deadline = entry.deadline(this.timeoutMillis);
+        // never schedule into a bucket the current sweep has already passed
+        long tick = Math.max(deadline / this.tickMillis, now / this.tickMillis + 1);
+        this.wheel.get((int) (tick & (WHEEL_SIZE - 1))).offer(entry);
+    }
+
+    private static final class Entry {
+        private static final AtomicLongFieldUpdater<Entry> LAST_PING =
+                AtomicLongFieldUpdater.newUpdater(Entry.class, "lastPing");
+
+        private final UUID uuid;
+        private volatile long lastPing;
+
+        private Entry(UUID uuid, long lastPing) {
+            this.uuid = uuid;
+            this.lastPing = lastPing;
+        }
+
+        /**
+         * @return  false if the entry has already expired, in which case the device must be tracked afresh
+         */
+        private boolean touch(long now) {
+            for (;;) {
+                long last = this.lastPing;
+                if (last == EXPIRED) {
+                    return false;
+                }
+                if (last >= now || LAST_PING.compareAndSet(this, last, now)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return  true if the entry's deadline has passed and the entry was expired by this call
+         */
+        private boolean expire(long now, long timeoutMillis) {
+            long last = this.lastPing;
+            return last != EXPIRED && last + timeoutMillis <= now && LAST_PING.compareAndSet(this, last, EXPIRED);
+        }
+
+        private void kill() {
+            LAST_PING.set(this, EXPIRED);
+        }
+
+        private boolean isExpired() {
+            return this.lastPing == EXPIRED;
+        }
+
+        private long deadline(long timeoutMillis) {
+            long last = this.lastPing;
+            return last == EXPIRED ? Long.MIN_VALUE : last + timeoutMillis;
         }
     }
 }
@@ -0,0 +1,226 @@
+package com.wk.lodge.composite.registry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the latest shared state of each session, as a map of top-level keys to values, so that devices can send and
+ * receive changes to the state rather than the whole of it. Each change that alters the state moves it to a new
+ * version; a device that misses a version can ask for a snapshot of the whole state instead.
+ *
+ * The state of a session is forgotten once it has not changed for the idle timeout, e.g. because the session has
+ * ended.
+ */
+public class SessionStateRegistry {
+    private static final Log logger = LogFactory.getLog(SessionStateRegistry.class);
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<String, State>();
+    private final long idleMillis;
+
+    /**
+     * @param   idleSeconds     the number of seconds after its last change at which a session's state is forgotten
+     */
+    public SessionStateRegistry(long idleSeconds) {
+        Assert.isTrue(idleSeconds > 0, "idle timeout must be positive");
+        this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+    }
+
+    /**
+     * applies a patch to a session's state. Each key in the patch replaces the value held for that key; a key with a
+     * null value is removed from the state.
+     *
+     * @param   sessionId   the id of the session
+     * @param   patch       the keys to set or remove
+     * @return              the keys the patch actually changed, under the state's new version, or null if the patch
+     *                      left the state as it was
+     */
+    public Change patch(String sessionId, Map<String, Object> patch) {
+        return patch(sessionId, patch, null);
+    }
+
+    /**
+     * applies a patch to a session's state, and publishes the change while no other patch to the session can be
+     * applied, so that changes are published in the order of their versions. The publisher must hand the change on in
+     * the order it is called, e.g. to a channel that delivers each destination's messages in order.
+     *
+     * @param   sessionId   the id of the session
+     * @param   patch       the keys to set or remove
+     * @param   publisher   publishes the change, if the patch changed the state; may be null
+     * @return              the keys the patch actually changed, under the state's new version, or null if the patch
+     *                      left the state as it was
+     */
+    public Change patch(String sessionId, Map<String, Object> patch, Publisher publisher) {
+        Assert.notNull(sessionId, "session id must not be null");
+        State state = this.states.get(sessionId);
+        while(true) {
+            if(state == null) {
+                State fresh = new State(now());
+                state = this.states.putIfAbsent(sessionId, fresh);
+                if(state == null) {
+                    state = fresh;
+                }
+            }
+            synchronized(state) {
+                // the state may have been evicted while this thread was waiting for it
+                if(!state.evicted) {
+                    Change change = state.apply(patch, now());
+                    if(change != null && publisher != null) {
+                        publisher.publish(change);
+                    }
+                    return change;
+                }
+            }
+            state = null;
+        }
+    }
+
+    /**
+     * @param   sessionId   the id of the session
+     * @return              a copy of the session's whole state, or an empty state at version 0 if it has none
+     */
+    public Change snapshot(String sessionId) {
+        Assert.notNull(sessionId, "session id must not be null");
+        State state = this.states.get(sessionId);
+        if(state == null) {
+            return new Change(0, new HashMap<String, Object>(), null);
+        }
+        synchronized(state) {
+            return new Change(state.version, new HashMap<String, Object>(state.values), null);
+        }
+    }
+
+    /**
+     * evicts idle session state
+     * <p>
+     * Scheduled to run every minute
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void run() {
+        evictIdle();
+    }
+
+    /**
+     * forgets the state of every session that has not changed for the idle timeout
+     *
+     * @return  the number of sessions whose state was forgotten
+     */
+    public int evictIdle() {
+        long cutoff = now() - this.idleMillis;
+        int evicted = 0;
+        for(Iterator<State> states = this.states.values().iterator(); states.hasNext(); ) {
+            State state = states.next();
+            synchronized(state) {
+                if(state.lastChanged <= cutoff) {
+                    state.evicted = true;
+                    states.remove();
+                    evicted++;
+                }
+            }
+        }
+        if(evicted > 0 && logger.isDebugEnabled())
+            logger.debug(String.format("Evicted state of %d idle sessions, %d remaining", evicted, this.states.size()));
+        return evicted;
+    }
+
+    /**
+     * @return  the number of sessions whose state is held
+     */
+    public int size() {
+        return this.states.size();
+    }
+
+    /**
+     * @return  the current time in milliseconds, from a monotonic clock
+     */
+    protected long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Publishes the changes to a session's state, e.g. to the session's topic.
+     */
+    public interface Publisher {
+        void publish(Change change);
+    }
+
+    /**
+     * A version of a session's state: either the keys changed to reach it, or the whole of it.
+     */
+    public static class Change {
+        private final long version;
+        private final Map<String, Object> values;
+        private final List<String> removed;
+
+        private Change(long version, Map<String, Object> values, List<String> removed) {
+            this.version = version;
+            this.values = values;
+            this.removed = removed;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return  the keys set, with their new values
+         */
+        public Map<String, Object> getValues() {
+            return values;
+        }
+
+        /**
+         * @return  the keys removed, or null if none were
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+    }
+
+    private static final class State {
+        private final Map<String, Object> values = new HashMap<String, Object>();
+        private long version;
+        private long lastChanged;
+        private boolean evicted;
+
+        private State(long created) {
+            this.lastChanged = created;
+        }
+
+        private Change apply(Map<String, Object> patch, long now) {
+            Map<String, Object> changed = new HashMap<String, Object>();
+            List<String> removed = null;
+            for(Map.Entry<String, Object> entry : patch.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if(value == null) {
+                    if(this.values.containsKey(key)) {
+                        this.values.remove(key);
+                        if(removed == null) {
+                            removed = new ArrayList<String>();
+                        }
+                        removed.add(key);
+                    }
+                }
+                else if(!value.equals(this.values.get(key))) {
+                    this.values.put(key, value);
+                    changed.put(key, value);
+                }
+            }
+            if(changed.isEmpty() && removed == null) {
+                return null;
+            }
+            this.lastChanged = now;
+            return new Change(++this.version, changed, removed);
+        }
+    }
+}
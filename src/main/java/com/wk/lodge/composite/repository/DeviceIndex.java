@@ -0,0 +1,206 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reverse index from the UUID of a device to the session it was last written to by this node, so that a device's
+ * session can be fetched directly by id rather than found with a view query. Unlike the session cache, entries neither
+ * expire nor get evicted: an entry lives until its device leaves the session or the session is deleted.
+ *
+ * The index is only a hint. Sessions changed by other nodes are reflected in it only when the session store follows
+ * the _changes feed, and then only after a delay, so a session found through the index must be checked to still
+ * contain the device.
+ *
+ * The application, room and state of each indexed session are kept as well, so that the live sessions this node
+ * knows of can be counted. Ended sessions are not counted, and sessions that have gone stale are pruned, whether or
+ * not this node sees them deleted.
+ */
+public class DeviceIndex {
+    private final ConcurrentMap<UUID, Entry> sessionsByDevice = new ConcurrentHashMap<UUID, Entry>();
+    private final ConcurrentMap<UUID, UUID[]> devicesBySession = new ConcurrentHashMap<UUID, UUID[]>();
+    private final ConcurrentMap<UUID, Summary> summaries = new ConcurrentHashMap<UUID, Summary>();
+
+    /**
+     * records the devices of a session after it has been read from or written to the document store, replacing what
+     * was recorded for the session before. A deleted session is removed.
+     *
+     * @param   session     the session, carrying its _id
+     */
+    public synchronized void index(Session session) {
+        if (session == null || session.getUuid() == null || session.get_id() == null) {
+            return;
+        }
+        if (session.is_deleted()) {
+            remove(session.getUuid());
+            return;
+        }
+        Entry entry = new Entry(session.getUuid(), session.get_id());
+        List<Device> devices = session.getDevices();
+        UUID[] current = new UUID[devices.size()];
+        for (int i = 0; i < current.length; i++) {
+            current[i] = devices.get(i).getUuid();
+            this.sessionsByDevice.put(current[i], entry);
+        }
+        UUID[] previous = this.devicesBySession.put(session.getUuid(), current);
+        this.summaries.put(session.getUuid(), new Summary(session));
+        if (previous != null) {
+            for (UUID device : previous) {
+                if (!session.deviceInSession(device)) {
+                    unmap(device, session.getUuid());
+                }
+            }
+        }
+    }
+
+    /**
+     * forgets a session and all of its devices, e.g. after it has been deleted
+     *
+     * @param   sessionUuid     the session's UUID
+     */
+    public synchronized void remove(UUID sessionUuid) {
+        if (sessionUuid == null) {
+            return;
+        }
+        this.summaries.remove(sessionUuid);
+        UUID[] devices = this.devicesBySession.remove(sessionUuid);
+        if (devices != null) {
+            for (UUID device : devices) {
+                unmap(device, sessionUuid);
+            }
+        }
+    }
+
+    /**
+     * forgets that a device is in a session, e.g. because the session turned out not to contain it any more
+     *
+     * @param   deviceUuid      the device's UUID
+     * @param   sessionUuid     the UUID of the session the device was indexed in
+     */
+    public synchronized void remove(UUID deviceUuid, UUID sessionUuid) {
+        unmap(deviceUuid, sessionUuid);
+    }
+
+    /**
+     * @param   deviceUuid  the UUID of a device assumed to be in a session
+     * @return              the session the device was last written to, or null if none is known
+     */
+    public Entry get(UUID deviceUuid) {
+        return deviceUuid == null ? null : this.sessionsByDevice.get(deviceUuid);
+    }
+
+    /**
+     * @param   sessionUuid     the UUID of a session
+     * @return                  the application id the session was last indexed with, or null if the session is not
+     *                          indexed or has no application id
+     */
+    public String getApplicationId(UUID sessionUuid) {
+        Summary summary = sessionUuid == null ? null : this.summaries.get(sessionUuid);
+        return summary == null ? null : summary.applicationId;
+    }
+
+    public int size() {
+        return this.sessionsByDevice.size();
+    }
+
+    /**
+     * @param   locked  whether to count the locked sessions, i.e. those being played, or the open ones
+     * @return          the number of indexed sessions that have not ended, by application id and then by room.
+     *                  Sessions without an application id or room are counted under the empty string.
+     */
+    public Map<String, Map<String, Integer>> countSessions(boolean locked) {
+        Map<String, Map<String, Integer>> counts = new TreeMap<String, Map<String, Integer>>();
+        for (Summary summary : this.summaries.values()) {
+            if (summary.ended > 0 || summary.locked != locked) {
+                continue;
+            }
+            String applicationId = summary.applicationId == null ? "" : summary.applicationId;
+            Map<String, Integer> rooms = counts.get(applicationId);
+            if (rooms == null) {
+                rooms = new TreeMap<String, Integer>();
+                counts.put(applicationId, rooms);
+            }
+            String name = summary.room == null ? "" : summary.room;
+            Integer count = rooms.get(name);
+            rooms.put(name, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * forgets the sessions that were last updated, or that ended, before a cutoff, as the session reaper would delete
+     * them, so that sessions deleted by other nodes do not linger in the index
+     *
+     * @param   cutoff  the time, in epoch milliseconds, before which a session is stale
+     * @return          the number of sessions forgotten
+     */
+    public int prune(long cutoff) {
+        int pruned = 0;
+        for (Map.Entry<UUID, Summary> entry : this.summaries.entrySet()) {
+            Summary summary = entry.getValue();
+            if (summary.updated < cutoff || (summary.ended > 0 && summary.ended < cutoff)) {
+                synchronized (this) {
+                    if (this.summaries.get(entry.getKey()) == summary) {
+                        remove(entry.getKey());
+                        pruned++;
+                    }
+                }
+            }
+        }
+        return pruned;
+    }
+
+    private void unmap(UUID deviceUuid, UUID sessionUuid) {
+        Entry entry = this.sessionsByDevice.get(deviceUuid);
+        if (entry != null && entry.getSessionUuid().equals(sessionUuid)) {
+            this.sessionsByDevice.remove(deviceUuid, entry);
+        }
+    }
+
+    /**
+     * what is counted of an indexed session
+     */
+    private static final class Summary {
+        private final String applicationId;
+        private final String room;
+        private final boolean locked;
+        private final long ended;
+        private final long updated;
+
+        private Summary(Session session) {
+            this.applicationId = session.getApplicationId();
+            this.room = session.getRoom();
+            this.locked = session.isLocked();
+            this.ended = session.getSessionEnded();
+            this.updated = session.getUpdated();
+        }
+    }
+
+    /**
+     * identifies an indexed session both by UUID, for the session cache, and by _id, for the document store
+     */
+    public static final class Entry {
+        private final UUID sessionUuid;
+        private final String sessionId;
+
+        private Entry(UUID sessionUuid, String sessionId) {
+            this.sessionUuid = sessionUuid;
+            this.sessionId = sessionId;
+        }
+
+        public UUID getSessionUuid() {
+            return this.sessionUuid;
+        }
+
+        public String getSessionId() {
+            return this.sessionId;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.wk.lodge.composite.repository;
+
+/**
+ * Primitive, allocation-free great-circle distance calculations over [latitude, longitude] pairs such as
+ * Session.geoLocation. Results agree with simplelatlng's LatLngTool.distance, which uses the same haversine formula and
+ * mean earth radius but first rounds coordinates to microdegrees.
+ *
+ * Range queries should first compute a bounding box for the query point with latitudeDelta and longitudeDelta, and
+ * only compute the exact distance for candidates that pass inBoundingBox.
+ */
+public final class GeoDistance {
+    public static final double EARTH_MEAN_RADIUS_METERS = 6371009.0;
+
+    private GeoDistance() {
+    }
+
+    /**
+     * @param   lat1    latitude of the first point, in degrees
+     * @param   lng1    longitude of the first point, in degrees
+     * @param   lat2    latitude of the second point, in degrees
+     * @param   lng2    longitude of the second point, in degrees
+     * @return          the haversine distance between the two points, in meters
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinHalfDeltaLat = Math.sin((phi2 - phi1) / 2);
+        double sinHalfDeltaLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double h = sinHalfDeltaLat * sinHalfDeltaLat
+                + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLng * sinHalfDeltaLng;
+        return 2 * EARTH_MEAN_RADIUS_METERS * Math.asin(Math.min(Math.sqrt(h), 1.0));
+    }
+
+    /**
+     * @param   range   a distance, in meters
+     * @return          the largest difference in latitude, in degrees, between two points within range of each other
+     */
+    public static double latitudeDelta(double range) {
+        return Math.toDegrees(range / EARTH_MEAN_RADIUS_METERS);
+    }
+
+    /**
+     * @param   lat     the latitude of the query point, in degrees
+     * @param   range   a distance, in meters
+     * @return          the largest difference in longitude, in degrees, between the query point and any point within
+     *                  range of it
+     */
+    public static double longitudeDelta(double lat, double range) {
+        double angular = range / EARTH_MEAN_RADIUS_METERS;
+        double ratio = Math.sin(angular) / Math.cos(Math.toRadians(lat));
+        if (angular >= Math.PI / 2 || ratio >= 1.0 || ratio < 0) {
+            return 180.0;
+        }
+        return Math.toDegrees(Math.asin(ratio));
+    }
+
+    /**
+     * @param   candidate   the [latitude, longitude] of the candidate point
+     * @param   lat         the latitude of the query point, in degrees
+     * @param   lng         the longitude of the query point, in degrees
+     * @param   latDelta    the query's latitude delta, from latitudeDelta
+     * @param   lngDelta    the query's longitude delta, from longitudeDelta
+     * @return              false if the candidate is certainly out of range of the query point
+     */
+    public static boolean inBoundingBox(float[] candidate, double lat, double lng, double latDelta, double lngDelta) {
+        if (Math.abs(candidate[0] - lat) > latDelta) {
+            return false;
+        }
+        double deltaLng = Math.abs(candidate[1] - lng);
+        if (deltaLng > 180.0) {
+            deltaLng = 360.0 - deltaLng;
+        }
+        return deltaLng <= lngDelta;
+    }
+
+    /**
+     * @param   candidate   the [latitude, longitude] of the candidate point
+     * @param   lat         the latitude of the query point, in degrees
+     * @param   lng         the longitude of the query point, in degrees
+     * @return              the distance between the two points, in meters
+     */
+    public static double distance(float[] candidate, double lat, double lng) {
+        return distance(lat, lng, candidate[0], candidate[1]);
+    }
+}
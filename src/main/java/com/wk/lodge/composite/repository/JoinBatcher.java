@@ -0,0 +1,191 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects join messages per application over a short window and hands each window's joins to a Placement in one
+ * call, so that a burst of devices joining at once is placed and persisted together instead of racing each other
+ * into conflicts. The first join for an application opens a batch; the batch is placed once the window has elapsed,
+ * and every join in it is completed from the result.
+ *
+ * Batches are placed one at a time on a single background thread, so a Placement never runs concurrently with itself.
+ * Threads calling join block until their batch has been placed; submit returns at once, so joins waiting for their
+ * batch hold no thread.
+ */
+public class JoinBatcher {
+    private static final Log logger = LogFactory.getLog(JoinBatcher.class);
+
+    /**
+     * places a batch of joins for one application
+     */
+    public interface Placement {
+        /**
+         * @param   applicationId   the application the joins are for
+         * @param   joins           the joins, in the order they arrived
+         * @return                  the session each join was placed in, in the same order as the joins
+         */
+        List<Session> place(String applicationId, List<JoinMessage> joins);
+    }
+
+    private final long windowMillis;
+    private final Placement placement;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong placements = new AtomicLong();
+
+    /**
+     * @param   windowMillis    the number of milliseconds to collect joins for before placing them
+     * @param   placement       places each batch of joins
+     */
+    public JoinBatcher(long windowMillis, Placement placement) {
+        this.windowMillis = windowMillis;
+        this.placement = placement;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("join-batcher-");
+        threadFactory.setDaemon(true);
+        this.executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * adds a join to its application's current batch and waits for the batch to be placed
+     *
+     * @param   j   the join message
+     * @return      the session the join was placed in
+     */
+    public Session join(JoinMessage j) {
+        try {
+            return submit(j).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * adds a join to its application's current batch
+     *
+     * @param   j   the join message
+     * @return      the session the join will be placed in, once its batch has been placed
+     */
+    public ListenableFuture<Session> submit(JoinMessage j) {
+        SettableListenableFuture<Session> future = new SettableListenableFuture<Session>();
+        String applicationId = j.getApplicationId() == null ? "" : j.getApplicationId();
+        while (true) {
+            Batch batch = this.batches.get(applicationId);
+            if (batch == null) {
+                Batch created = new Batch(applicationId);
+                batch = this.batches.putIfAbsent(applicationId, created);
+                if (batch == null) {
+                    batch = created;
+                    schedule(created);
+                }
+            }
+            if (batch.add(j, future)) {
+                break;
+            }
+            // the batch was closed for placement after we looked it up; the next one will take the join
+            this.batches.remove(applicationId, batch);
+        }
+        this.joins.incrementAndGet();
+        return future;
+    }
+
+    /**
+     * places any open batches and stops the background thread
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(this.windowMillis + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getJoins() {
+        return this.joins.get();
+    }
+
+    /**
+     * @return  the number of batches placed
+     */
+    public long getPlacements() {
+        return this.placements.get();
+    }
+
+    private void schedule(final Batch batch) {
+        this.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                place(batch);
+            }
+        }, this.windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void place(Batch batch) {
+        this.batches.remove(batch.applicationId, batch);
+        batch.close();
+        if (batch.joins.isEmpty()) {
+            return;
+        }
+        this.placements.incrementAndGet();
+        try {
+            List<Session> sessions = this.placement.place(batch.applicationId, batch.joins);
+            for (int i = 0; i < batch.futures.size(); i++) {
+                batch.futures.get(i).set(i < sessions.size() ? sessions.get(i) : null);
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Placing %d joins for %s failed: %s", batch.joins.size(),
+                    batch.applicationId, e.getMessage()));
+            for (SettableListenableFuture<Session> future : batch.futures) {
+                future.setException(e);
+            }
+        }
+    }
+
+    private static final class Batch {
+        private final String applicationId;
+        private final List<JoinMessage> joins = new ArrayList<JoinMessage>();
+        private final List<SettableListenableFuture<Session>> futures =
+                new ArrayList<SettableListenableFuture<Session>>();
+        private boolean closed;
+
+        private Batch(String applicationId) {
+            this.applicationId = applicationId;
+        }
+
+        private synchronized boolean add(JoinMessage j, SettableListenableFuture<Session> future) {
+            if (this.closed) {
+                return false;
+            }
+            this.joins.add(j);
+            this.futures.add(future);
+            return true;
+        }
+
+        private synchronized void close() {
+            this.closed = true;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-application, lock-free queue of pairing sessions that are waiting for a partner. A waiting session lives only in
+ * memory; when a second device asks to pair it claims the oldest waiting session for its application, and only the
+ * completed pair is written to the document store. Claiming polls the queue, so each waiting session is handed to
+ * exactly one partner no matter how many pair requests arrive at once.
+ *
+ * A claimed session's devices stay known to the queue until the caller settles the claim, once the pair has been
+ * written, so that a device which disconnects in between is not left in the pair: cancelling it marks it as departed,
+ * and settling the claim reports it to the caller. A claim and a cancel of the same session synchronize on that session,
+ * so that the cancel sees the device either waiting or claimed.
+ *
+ * Waiting sessions are local to this node. Lookups return copies; a claimed session belongs to the caller.
+ */
+public class PairingQueue {
+    private final ConcurrentMap<String, Queue<Session>> applications = new ConcurrentHashMap<String, Queue<Session>>();
+    private final ConcurrentMap<UUID, Session> sessions = new ConcurrentHashMap<UUID, Session>();
+    private final ConcurrentMap<UUID, Session> sessionsByDevice = new ConcurrentHashMap<UUID, Session>();
+    // devices of claimed sessions not yet settled, mapped to whether they have been cancelled meanwhile
+    private final ConcurrentMap<UUID, Boolean> claimed = new ConcurrentHashMap<UUID, Boolean>();
+
+    /**
+     * adds a session to the back of its application's queue to wait for a partner
+     *
+     * @param   session     an unlocked session holding the single device waiting to be paired
+     */
+    public void offer(Session session) {
+        this.sessions.put(session.getUuid(), session);
+        for (Device device : session.getDevices()) {
+            this.sessionsByDevice.put(device.getUuid(), session);
+        }
+        queue(key(session.getApplicationId())).offer(session);
+    }
+
+    /**
+     * takes the oldest waiting session for an application out of the queue. The caller must settle the claim once it
+     * has written the pair, or given up on it.
+     *
+     * @param   applicationId   the application to pair for
+     * @return                  the claimed session, or null if no session is waiting
+     *
+     * @see     #settle(Session)
+     */
+    public Session claim(String applicationId) {
+        Queue<Session> queue = this.applications.get(key(applicationId));
+        Session session = queue == null ? null : queue.poll();
+        if (session != null) {
+            synchronized (session) {
+                // a device cancelled since the poll has been marked as departed already
+                for (Device device : session.getDevices()) {
+                    this.claimed.putIfAbsent(device.getUuid(), Boolean.FALSE);
+                }
+                unmap(session);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * ends a claim, after which its devices are no longer known to the queue
+     *
+     * @param   session     a session returned by claim, possibly with devices added since
+     * @return              the UUIDs of the claimed devices that were cancelled while the session was claimed
+     */
+    public Set<UUID> settle(Session session) {
+        Set<UUID> departed = new HashSet<UUID>();
+        for (Device device : session.getDevices()) {
+            if (Boolean.TRUE.equals(this.claimed.remove(device.getUuid()))) {
+                departed.add(device.getUuid());
+            }
+        }
+        return departed;
+    }
+
+    /**
+     * takes a device's waiting session out of the queue, e.g. because the device disconnected before it was paired. If
+     * the session has been claimed but not yet settled, the device is marked as departed for the claimant to drop.
+     *
+     * @param   deviceUuid  the UUID of the waiting device
+     * @return              boolean, whether the device was waiting or claimed; false if it was neither
+     */
+    public boolean cancel(UUID deviceUuid) {
+        Session session = this.sessionsByDevice.get(deviceUuid);
+        if (session != null) {
+            synchronized (session) {
+                Queue<Session> queue = this.applications.get(key(session.getApplicationId()));
+                if (queue != null && queue.remove(session)) {
+                    unmap(session);
+                    return true;
+                }
+                if (this.sessionsByDevice.get(deviceUuid) == session) {
+                    // polled by a claim that has not marked its devices yet
+                    this.claimed.put(deviceUuid, Boolean.TRUE);
+                    return true;
+                }
+            }
+        }
+        return this.claimed.replace(deviceUuid, Boolean.FALSE, Boolean.TRUE)
+            || Boolean.TRUE.equals(this.claimed.get(deviceUuid));
+    }
+
+    /**
+     * @param   uuid    the session's UUID
+     * @return          a copy of the waiting session, or null if no such session is waiting
+     */
+    public Session get(UUID uuid) {
+        Session session = uuid == null ? null : this.sessions.get(uuid);
+        return session == null ? null : new Session(session);
+    }
+
+    /**
+     * @param   deviceUuid  the UUID of a device assumed to be waiting for a partner
+     * @return              a copy of the device's waiting session, or null if the device is not waiting
+     */
+    public Session getByDevice(UUID deviceUuid) {
+        Session session = deviceUuid == null ? null : this.sessionsByDevice.get(deviceUuid);
+        return session == null ? null : new Session(session);
+    }
+
+    public int size() {
+        return this.sessions.size();
+    }
+
+    private void unmap(Session session) {
+        this.sessions.remove(session.getUuid(), session);
+        for (Device device : session.getDevices()) {
+            this.sessionsByDevice.remove(device.getUuid(), session);
+        }
+    }
+
+    private static String key(String applicationId) {
+        return applicationId == null ? "" : applicationId;
+    }
+
+    private Queue<Session> queue(String applicationId) {
+        Queue<Session> queue = this.applications.get(applicationId);
+        if (queue == null) {
+            Queue<Session> created = new ConcurrentLinkedQueue<Session>();
+            queue = this.applications.putIfAbsent(applicationId, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,210 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.Revisions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent cache of sessions keyed by session UUID, with a secondary lookup by the UUID of any device in the
+ * session. Entries expire after a fixed time-to-live and the least recently used entries are evicted once the cache is
+ * full. The cache is split into independently locked segments so that lookups for different sessions do not contend.
+ *
+ * The cache holds snapshots: sessions are copied on the way in and on the way out.
+ */
+public class SessionCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final ConcurrentMap<UUID, UUID> sessionsByDevice = new ConcurrentHashMap<UUID, UUID>();
+    private final long ttlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param   maxSize     the maximum number of sessions to hold
+     * @param   ttlSeconds  the number of seconds after which a cached session is reloaded from the document store
+     */
+    public SessionCache(int maxSize, long ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.segments = new Segment[SEGMENTS];
+        int segmentSize = Math.max(maxSize / SEGMENTS, 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @param   uuid    the session's UUID
+     * @return          a copy of the cached session, or null if it is not cached or has expired
+     */
+    public Session get(UUID uuid) {
+        Session session = uuid == null ? null : segment(uuid).get(uuid);
+        if (session == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return new Session(session);
+    }
+
+    /**
+     * @param   deviceUuid  the UUID of a device assumed to be in a session
+     * @return              a copy of the cached session containing the device, or null if none is cached
+     */
+    public Session getByDevice(UUID deviceUuid) {
+        UUID sessionUuid = this.sessionsByDevice.get(deviceUuid);
+        Session session = sessionUuid == null ? null : segment(sessionUuid).get(sessionUuid);
+        if (session == null || !session.deviceInSession(deviceUuid)) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return new Session(session);
+    }
+
+    /**
+     * caches the state of a session after it has been read from or written to the document store. A session whose
+     * revision is older than the one already cached is ignored, and a deleted session is invalidated.
+     *
+     * @param   session     the session to cache
+     */
+    public void put(Session session) {
+        if (session == null || session.getUuid() == null) {
+            return;
+        }
+        if (session.is_deleted()) {
+            invalidate(session.getUuid());
+            return;
+        }
+        Session snapshot = new Session(session);
+        Session previous = segment(session.getUuid()).put(snapshot);
+        if (previous != snapshot) {
+            if (previous != null) {
+                unmapDevices(previous);
+            }
+            for (Device device : snapshot.getDevices()) {
+                this.sessionsByDevice.put(device.getUuid(), snapshot.getUuid());
+            }
+        }
+    }
+
+    /**
+     * drops a session from the cache, e.g. after a write to it conflicted or it was deleted
+     *
+     * @param   uuid    the session's UUID
+     */
+    public void invalidate(UUID uuid) {
+        if (uuid == null) {
+            return;
+        }
+        Session previous = segment(uuid).remove(uuid);
+        if (previous != null) {
+            unmapDevices(previous);
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private void unmapDevices(Session session) {
+        for (Device device : session.getDevices()) {
+            this.sessionsByDevice.remove(device.getUuid(), session.getUuid());
+        }
+    }
+
+    private Segment segment(UUID uuid) {
+        int h = uuid.hashCode();
+        h ^= (h >>> 16);
+        return this.segments[h & (SEGMENTS - 1)];
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<UUID, Entry> entries;
+
+        private Segment(final int maxSize) {
+            this.entries = new LinkedHashMap<UUID, Entry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+                    if (size() > maxSize) {
+                        evictions.incrementAndGet();
+                        unmapDevices(eldest.getValue().session);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private synchronized Session get(UUID uuid) {
+            Entry entry = this.entries.get(uuid);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.loaded > ttlNanos) {
+                this.entries.remove(uuid);
+                unmapDevices(entry.session);
+                return null;
+            }
+            return entry.session;
+        }
+
+        /**
+         * @return  the given session itself if it was ignored as stale, otherwise the session it replaced, if any
+         */
+        private synchronized Session put(Session session) {
+            Entry previous = this.entries.get(session.getUuid());
+            if (previous != null && Revisions.isNewer(previous.session.get_rev(), session.get_rev())) {
+                return session;
+            }
+            this.entries.put(session.getUuid(), new Entry(session, System.nanoTime()));
+            return previous == null ? null : previous.session;
+        }
+
+        private synchronized Session remove(UUID uuid) {
+            Entry previous = this.entries.remove(uuid);
+            return previous == null ? null : previous.session;
+        }
+
+        private synchronized int size() {
+            return this.entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final Session session;
+        private final long loaded;
+
+        private Entry(Session session, long loaded) {
+            this.session = session;
+            this.loaded = loaded;
+        }
+    }
+}
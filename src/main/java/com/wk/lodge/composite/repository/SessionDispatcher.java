@@ -0,0 +1,342 @@
+package com.wk.lodge.composite.repository;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the operations that change a session one at a time, in the order they were dispatched, so that e.g. a join, a
+ * start and a disconnect for the same session no longer read the same revision and conflict when they write it.
+ * Operations for different sessions still run in parallel.
+ *
+ * Each session that has operations in flight has a mailbox. A caller of call() whose session's mailbox is idle runs its
+ * operation on its own thread; a caller that finds the mailbox busy queues the operation behind the ones in flight and
+ * waits for it, and the queue is worked off by whichever thread is draining the mailbox, handing over to a small pool of
+ * background threads once the operation of the draining caller is done. A caller of submit() never runs or waits for
+ * the operation: it is queued the same way and run by the background threads, which complete the returned future, so
+ * e.g. an inbound channel thread is not held up by a busy session. A mailbox is dropped as soon as it is empty.
+ */
+@Component
+public class SessionDispatcher {
+    private static final Log logger = LogFactory.getLog(SessionDispatcher.class);
+    private static final int DRAIN_BATCH = 16;
+    private static final ThreadLocal<Mailbox> CURRENT = new ThreadLocal<Mailbox>();
+
+    private final boolean enabled;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+
+    /**
+     * @param   enabled     whether operations are dispatched per session; if not, they run on the caller's thread as
+     *                      they arrive
+     * @param   poolSize    the number of background threads that drain busy mailboxes
+     */
+    @Autowired
+    public SessionDispatcher(
+        @Value("${sessionDispatch.enabled}") boolean enabled,
+        @Value("${sessionDispatch.poolSize}") int poolSize
+    ) {
+        this.enabled = enabled;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("session-dispatch-");
+        threadFactory.setDaemon(true);
+        this.executor = Executors.newFixedThreadPool(poolSize, threadFactory);
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * runs an operation once every operation dispatched earlier for the same session has run, and waits for it. A
+     * caller that must not wait for a busy session, e.g. on an inbound channel thread, should submit the operation
+     * instead.
+     *
+     * @param   sessionId   the id of the session the operation changes
+     * @param   operation   the operation
+     * @return              the operation's result
+     * @throws  RuntimeException    whatever the operation throws
+     */
+    public <T> T call(String sessionId, Callable<T> operation) {
+        Mailbox current = CURRENT.get();
+        if(!this.enabled || sessionId == null || (current != null && current.sessionId.equals(sessionId))) {
+            // an operation that dispatches to its own session would otherwise wait for itself
+            return invoke(operation);
+        }
+        FutureTask<T> task = new FutureTask<T>(operation);
+        Mailbox mailbox = enqueue(sessionId, task);
+        if(mailbox != null) {
+            mailbox.drain(1);
+        }
+        return await(task);
+    }
+
+    /**
+     * queues an operation behind every operation dispatched earlier for the same session, and returns at once. The
+     * operation runs on one of the background threads, which completes the future, so that callbacks added to it run
+     * there too unless it has completed by the time they are added.
+     *
+     * @param   sessionId   the id of the session the operation changes
+     * @param   operation   the operation
+     * @return              a future of the operation's result, or of whatever it throws
+     */
+    public <T> ListenableFuture<T> submit(String sessionId, Callable<T> operation) {
+        ListenableFutureTask<T> task = new ListenableFutureTask<T>(operation);
+        Mailbox current = CURRENT.get();
+        if(!this.enabled || sessionId == null || (current != null && current.sessionId.equals(sessionId))) {
+            task.run();
+            return task;
+        }
+        Mailbox mailbox = enqueue(sessionId, task);
+        if(mailbox != null) {
+            mailbox.handOver();
+        }
+        return task;
+    }
+
+    /**
+     * adds a task to its session's mailbox, creating the mailbox if there is none
+     *
+     * @return  the mailbox if it was idle, in which case the caller must see that it is drained, otherwise null
+     */
+    private Mailbox enqueue(String sessionId, Runnable task) {
+        this.dispatched.incrementAndGet();
+        while(true) {
+            Mailbox mailbox = this.mailboxes.get(sessionId);
+            if(mailbox == null) {
+                Mailbox created = new Mailbox(sessionId);
+                mailbox = this.mailboxes.putIfAbsent(sessionId, created);
+                if(mailbox == null) {
+                    mailbox = created;
+                }
+            }
+            int depth = mailbox.offer(task);
+            if(depth < 0) {
+                // the mailbox was dropped after we looked it up
+                this.mailboxes.remove(sessionId, mailbox);
+                continue;
+            }
+            recordDepth(depth);
+            if(depth == 1) {
+                return mailbox;
+            }
+            this.contended.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @param   sessionId   the id of a session
+     * @return              the number of operations queued or running for the session
+     */
+    public int depth(String sessionId) {
+        Mailbox mailbox = this.mailboxes.get(sessionId);
+        return mailbox == null ? 0 : mailbox.depth();
+    }
+
+    /**
+     * @return  the number of sessions with operations queued or running
+     */
+    public int getMailboxes() {
+        return this.mailboxes.size();
+    }
+
+    /**
+     * @return  the number of operations queued or running across all sessions
+     */
+    public int getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * @return  the deepest any one mailbox has been since the last report
+     */
+    public int getMaxDepth() {
+        return this.maxDepth.get();
+    }
+
+    /**
+     * @return  the number of operations dispatched
+     */
+    public long getDispatched() {
+        return this.dispatched.get();
+    }
+
+    /**
+     * @return  the number of operations that had to wait for another operation on the same session
+     */
+    public long getContended() {
+        return this.contended.get();
+    }
+
+    /**
+     * logs the mailbox depths seen since the last report, if any operation had to wait
+     * <p>
+     * Scheduled by default to run every minute
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void report() {
+        int max = this.maxDepth.getAndSet(0);
+        if(max > 1 || logger.isDebugEnabled()) {
+            logger.info(String.format("Session mailboxes: %d active, %d operations queued, max depth %d, %d of %d operations contended",
+                this.mailboxes.size(), this.queued.get(), max, this.contended.get(), this.dispatched.get()));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordDepth(int depth) {
+        int max = this.maxDepth.get();
+        while(depth > max && !this.maxDepth.compareAndSet(max, depth)) {
+            max = this.maxDepth.get();
+        }
+    }
+
+    private static <T> T invoke(Callable<T> operation) {
+        try {
+            return operation.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T> T await(FutureTask<T> task) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // the operation is already queued behind others for the session, so see it through
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class Mailbox implements Runnable {
+        private final String sessionId;
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean closed;
+
+        private Mailbox(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * @return  the depth of the mailbox with the task added, 1 meaning that the caller must drain it, or -1 if the
+         *          mailbox has been dropped
+         */
+        private synchronized int offer(Runnable task) {
+            if(this.closed) {
+                return -1;
+            }
+            this.tasks.add(task);
+            queued.incrementAndGet();
+            return this.tasks.size();
+        }
+
+        private synchronized int depth() {
+            return this.tasks.size();
+        }
+
+        @Override
+        public void run() {
+            drain(DRAIN_BATCH);
+        }
+
+        /**
+         * runs up to limit tasks, then hands the rest of the mailbox over to a background thread. The head of the
+         * queue stays in it while it runs, so that operations dispatched meanwhile queue behind it.
+         */
+        private void drain(int limit) {
+            Mailbox previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                for(int ran = 0; ran < limit; ran++) {
+                    Runnable task;
+                    synchronized(this) {
+                        task = this.tasks.peek();
+                    }
+                    task.run();
+                    synchronized(this) {
+                        this.tasks.remove();
+                        queued.decrementAndGet();
+                        if(this.tasks.isEmpty()) {
+                            this.closed = true;
+                            mailboxes.remove(this.sessionId, this);
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                if(previous == null) {
+                    CURRENT.remove();
+                }
+                else {
+                    CURRENT.set(previous);
+                }
+            }
+            handOver();
+        }
+
+        /**
+         * has a background thread drain the rest of the mailbox
+         */
+        private void handOver() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // shutting down; finish the mailbox here rather than leave its callers waiting
+                drain(Integer.MAX_VALUE);
+            }
+        }
+    }
+}
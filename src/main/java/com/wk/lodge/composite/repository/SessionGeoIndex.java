@@ -0,0 +1,306 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.Revisions;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory grid index of open sessions, partitioned by application id. Sessions are bucketed into fixed-size
+ * latitude/longitude cells so that a proximity lookup only inspects the cells surrounding an inbound device instead of
+ * every open session for the application.
+ *
+ * The index holds snapshots of sessions; lookups return copies, so callers are free to mutate what they get back.
+ *
+ * Writes made by this node keep the index current, but other nodes write sessions too, so an application's open
+ * sessions are re-seeded from the document store once the seed is older than the re-seed interval, and an entry is
+ * replaced or dropped whenever a read of the session finds it out of date.
+ */
+public class SessionGeoIndex {
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double MIN_COS_LATITUDE = 0.01;
+    private static final long DEFAULT_RESEED_MILLIS = 30000;
+
+    private final double cellDegrees;
+    private final int rows;
+    private final int cols;
+    private final ConcurrentMap<String, ConcurrentMap<Long, ConcurrentMap<UUID, Entry>>> applications =
+            new ConcurrentHashMap<String, ConcurrentMap<Long, ConcurrentMap<UUID, Entry>>>();
+    private final ConcurrentMap<UUID, Entry> entries = new ConcurrentHashMap<UUID, Entry>();
+    private final ConcurrentMap<String, Long> seeded = new ConcurrentHashMap<String, Long>();
+    private volatile long reseedMillis = DEFAULT_RESEED_MILLIS;
+
+    /**
+     * @param   cellSizeMeters  the height of a grid cell, in meters. Lookups are cheapest when this is close to the
+     *                          largest range that will be queried.
+     */
+    public SessionGeoIndex(float cellSizeMeters) {
+        this.cellDegrees = Math.max(cellSizeMeters, 1.0f) / METERS_PER_DEGREE;
+        this.rows = (int) Math.ceil(180.0 / cellDegrees) + 1;
+        this.cols = (int) Math.ceil(360.0 / cellDegrees);
+    }
+
+    /**
+     * @param   reseedMillis    how long, in milliseconds, an application's seed is trusted before warm asks for the
+     *                          application to be seeded again
+     */
+    public void setReseedMillis(long reseedMillis) {
+        this.reseedMillis = reseedMillis;
+    }
+
+    /**
+     * claims the load of an application's open sessions. Returns true the first time the application is seen and
+     * then once per re-seed interval, to exactly one caller, which should then seed the index from the document store.
+     *
+     * @param   applicationId   the application to warm
+     * @return                  boolean, whether the caller should seed the index for this application
+     */
+    public boolean warm(String applicationId) {
+        if (applicationId == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long last = this.seeded.get(applicationId);
+        if (last == null) {
+            return this.seeded.putIfAbsent(applicationId, now) == null;
+        }
+        return now - last >= this.reseedMillis && this.seeded.replace(applicationId, last, now);
+    }
+
+    /**
+     * indexes an application's open sessions as read from the document store, and drops the application's entries
+     * that were indexed before the read began but are no longer among them, e.g. sessions locked or deleted by
+     * another node
+     *
+     * @param   applicationId   the application seeded
+     * @param   sessions        the application's open sessions
+     * @param   since           the time, in epoch milliseconds, at which the sessions were read
+     */
+    public void seed(String applicationId, Collection<Session> sessions, long since) {
+        Set<UUID> open = new HashSet<UUID>();
+        for (Session session : sessions) {
+            open.add(session.getUuid());
+            index(session);
+        }
+        ConcurrentMap<Long, ConcurrentMap<UUID, Entry>> cells = this.applications.get(applicationId);
+        if (cells == null) {
+            return;
+        }
+        for (ConcurrentMap<UUID, Entry> cell : cells.values()) {
+            for (Entry entry : cell.values()) {
+                if (entry.indexed < since && !open.contains(entry.session.getUuid())) {
+                    remove(entry.session.getUuid(), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * reflects a change another node made to a session, unless the index already holds that revision of the session or
+     * a later one
+     *
+     * @param   session     the session as changed
+     */
+    public void indexNewer(Session session) {
+        Entry entry = session == null || session.getUuid() == null ? null : this.entries.get(session.getUuid());
+        if (entry == null || Revisions.isNewer(session.get_rev(), entry.session.get_rev())) {
+            index(session);
+        }
+    }
+
+    /**
+     * reflects a read of a session in the index: an indexed entry older than what was read is replaced, and one for a
+     * session that could no longer be read is dropped. Sessions that are not indexed are left out.
+     *
+     * @param   uuid        the session's UUID
+     * @param   session     the session as read, or null if it was not found
+     */
+    public void refresh(UUID uuid, Session session) {
+        Entry entry = uuid == null ? null : this.entries.get(uuid);
+        if (entry == null) {
+            return;
+        }
+        if (session == null) {
+            remove(uuid, entry);
+        }
+        else if (Revisions.isNewer(session.get_rev(), entry.session.get_rev())) {
+            index(session);
+        }
+    }
+
+    /**
+     * adds, moves or removes a session in the index depending on its current state. Only unlocked, undeleted sessions
+     * with an application id and a geo location are indexed; anything else is removed.
+     *
+     * @param   session     the session whose state should be reflected in the index
+     */
+    public void index(Session session) {
+        if (session == null || session.getUuid() == null) {
+            return;
+        }
+        float[] geo = session.getGeoLocation();
+        if (session.isLocked() || session.is_deleted() || session.getApplicationId() == null
+                || geo == null || geo.length < 2) {
+            remove(session.getUuid());
+            return;
+        }
+
+        Entry entry = new Entry(new Session(session), new float[]{geo[0], geo[1]}, cellKey(geo[0], geo[1]),
+                System.currentTimeMillis());
+        Entry previous = this.entries.put(session.getUuid(), entry);
+        if (previous != null && previous.cell != entry.cell) {
+            removeFromCell(previous);
+        }
+        cell(session.getApplicationId(), entry.cell, true).put(session.getUuid(), entry);
+    }
+
+    /**
+     * removes a session from the index
+     *
+     * @param   uuid    the session's UUID
+     */
+    public void remove(UUID uuid) {
+        if (uuid == null) {
+            return;
+        }
+        Entry previous = this.entries.remove(uuid);
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+    }
+
+    /**
+     * finds the nearest indexed session for an application that lies within range of a geo location and still has
+     * room for another device.
+     *
+     * @param   applicationId   the application the session must belong to
+     * @param   geo             the [latitude, longitude] of the inbound device
+     * @param   range           the maximum distance, in meters, between the device and the session
+     * @param   maxDevices      the maximum number of devices allowed in a session for the application
+     * @return                  a copy of the nearest matching session, or null if none is in range
+     */
+    public Session findNearest(String applicationId, float[] geo, float range, int maxDevices) {
+        ConcurrentMap<Long, ConcurrentMap<UUID, Entry>> cells = this.applications.get(applicationId);
+        if (cells == null || geo == null || geo.length < 2) {
+            return null;
+        }
+
+        double lat = geo[0];
+        double lng = geo[1];
+        int row = row(lat);
+        int col = col(lng);
+        double cosLat = Math.max(Math.cos(Math.toRadians(lat)), MIN_COS_LATITUDE);
+        int rowSpan = (int) Math.ceil(range / (METERS_PER_DEGREE * cellDegrees));
+        int colSpan = Math.min((int) Math.ceil(range / (METERS_PER_DEGREE * cellDegrees * cosLat)), cols / 2);
+
+        double latDelta = GeoDistance.latitudeDelta(range);
+        double lngDelta = GeoDistance.longitudeDelta(lat, range);
+        Entry nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int r = Math.max(row - rowSpan, 0); r <= Math.min(row + rowSpan, rows - 1); r++) {
+            for (int c = col - colSpan; c <= col + colSpan; c++) {
+                ConcurrentMap<UUID, Entry> cell = cells.get(key(r, wrap(c)));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry entry : cell.values()) {
+                    if (this.entries.get(entry.session.getUuid()) != entry
+                            || entry.session.getDevices().size() >= maxDevices
+                            || !GeoDistance.inBoundingBox(entry.geo, lat, lng, latDelta, lngDelta)) {
+                        continue;
+                    }
+                    double distance = GeoDistance.distance(entry.geo, lat, lng);
+                    if (distance <= range && distance < nearestDistance) {
+                        nearest = entry;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+        }
+
+        return nearest == null ? null : new Session(nearest.session);
+    }
+
+    /**
+     * @return  the number of sessions currently held in the index
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    private void remove(UUID uuid, Entry entry) {
+        if (this.entries.remove(uuid, entry)) {
+            removeFromCell(entry);
+        }
+    }
+
+    private void removeFromCell(Entry entry) {
+        ConcurrentMap<UUID, Entry> cell = cell(entry.session.getApplicationId(), entry.cell, false);
+        if (cell != null) {
+            cell.remove(entry.session.getUuid(), entry);
+        }
+    }
+
+    private ConcurrentMap<UUID, Entry> cell(String applicationId, long key, boolean create) {
+        ConcurrentMap<Long, ConcurrentMap<UUID, Entry>> cells = this.applications.get(applicationId);
+        if (cells == null) {
+            if (!create) {
+                return null;
+            }
+            ConcurrentMap<Long, ConcurrentMap<UUID, Entry>> created =
+                    new ConcurrentHashMap<Long, ConcurrentMap<UUID, Entry>>();
+            cells = this.applications.putIfAbsent(applicationId, created);
+            if (cells == null) {
+                cells = created;
+            }
+        }
+        ConcurrentMap<UUID, Entry> cell = cells.get(key);
+        if (cell == null && create) {
+            ConcurrentMap<UUID, Entry> created = new ConcurrentHashMap<UUID, Entry>();
+            cell = cells.putIfAbsent(key, created);
+            if (cell == null) {
+                cell = created;
+            }
+        }
+        return cell;
+    }
+
+    private long cellKey(double lat, double lng) {
+        return key(row(lat), col(lng));
+    }
+
+    private long key(int row, int col) {
+        return (long) row * cols + col;
+    }
+
+    private int row(double lat) {
+        return Math.min(Math.max((int) Math.floor((lat + 90.0) / cellDegrees), 0), rows - 1);
+    }
+
+    private int col(double lng) {
+        return wrap((int) Math.floor((lng + 180.0) / cellDegrees));
+    }
+
+    private int wrap(int col) {
+        return ((col % cols) + cols) % cols;
+    }
+
+    private static final class Entry {
+        private final Session session;
+        private final float[] geo;
+        private final long cell;
+        private final long indexed;
+
+        private Entry(Session session, float[] geo, long cell, long indexed) {
+            this.session = session;
+            this.geo = geo;
+            this.cell = cell;
+            this.indexed = indexed;
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.wk.lodge.composite.repository;
 
-import com.google.gson.Gson;
-import com.javadocmd.simplelatlng.LatLng;
-import com.javadocmd.simplelatlng.LatLngTool;
-import com.javadocmd.simplelatlng.util.LengthUnit;
+import com.wk.lodge.composite.metrics.StripedCounter;
 import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.MeteredSessionStore;
+import com.wk.lodge.composite.repository.store.ReplicatedSessionStore;
+import com.wk.lodge.composite.repository.store.SessionChangesFollower;
+import com.wk.lodge.composite.repository.store.SessionStore;
 import com.wk.lodge.composite.service.RoomService;
+import com.wk.lodge.composite.web.socket.message.codec.MessageCodec;
 import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
 import com.wk.lodge.composite.web.socket.message.inbound.PairMessage;
 import com.wk.lodge.composite.web.socket.message.outbound.DisconnectResponse;
@@ -13,43 +15,195 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.lightcouch.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
 import org.springframework.messaging.core.MessageSendingOperations;
 import org.springframework.messaging.simp.broker.BrokerAvailabilityEvent;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Repository
 public class SessionRepository implements ApplicationListener<BrokerAvailabilityEvent> {
 
     private static final Log logger = LogFactory.getLog(SessionRepository.class);
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+    private static final long DEFAULT_CACHE_TTL_SECONDS = 30;
+    // how often a join that lost a race for a session looks for a session again before opening a new one
+    private static final int JOIN_ATTEMPTS = 3;
     private Random random;
-    private Gson gson;
     private DeviceLimiter deviceLimiter;
     private RoomService roomService;
-    private CouchDbClient couchDbSessionClient;
+    private SessionStore sessionStore;
+    private SessionGeoIndex geoIndex;
+    private SessionCache sessionCache;
+    private SessionWriteBuffer writeBuffer;
+    private PairingQueue pairingQueue;
+    private DeviceIndex deviceIndex;
+    private JoinBatcher joinBatcher;
+    private SessionDispatcher sessionDispatcher;
+    @Value("${sessionWriteBehind.enabled}")
+    private boolean writeBehindEnabled;
+    @Value("${joinBatch.enabled}")
+    private boolean joinBatchEnabled;
+    @Value("${joinBatch.windowMillis}")
+    private long joinBatchWindowMillis;
+    private AsyncListenableTaskExecutor asyncExecutor;
     private MessageSendingOperations<String> messagingTemplate;
     private AtomicBoolean brokerAvailable;
+    private final StripedCounter conflictSessions = new StripedCounter();
 
     @Autowired
     public SessionRepository(
-        CouchDbClient dbClient,
+        SessionStore sessionStore,
         DeviceLimiter dl,
         RoomService rr,
         MessageSendingOperations<String> messagingTemplate
     ){
-        this.couchDbSessionClient = dbClient;
+        this.sessionStore = sessionStore;
         this.deviceLimiter = dl;
         this.roomService = rr;
         this.messagingTemplate = messagingTemplate;
         this.random = new Random();
-        this.gson = new Gson();
         this.brokerAvailable = new AtomicBoolean();
+        this.geoIndex = new SessionGeoIndex(dl.getMaxDistanceThresholdBetweenDevices());
+        this.sessionCache = new SessionCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL_SECONDS);
+        this.writeBuffer = new SessionWriteBuffer();
+        this.pairingQueue = new PairingQueue();
+        this.deviceIndex = new DeviceIndex();
+        this.followChanges(sessionStore);
+    }
+
+    /**
+     * with a replicated session store, keeps the cache and indexes in line with the changes other nodes make, as the
+     * store's follower reads them from the _changes feed
+     */
+    private void followChanges(SessionStore store){
+        if(store instanceof MeteredSessionStore){
+            store = ((MeteredSessionStore) store).getSessionStore();
+        }
+        if(store instanceof ReplicatedSessionStore){
+            ((ReplicatedSessionStore) store).getFollower().addListener(new SessionChangesFollower.Listener() {
+                @Override
+                public void changed(Session session) {
+                    followed(session);
+                }
+            });
+        }
+    }
+
+    /**
+     * brings what this node holds in memory in line with a change another node made to a session
+     *
+     * @param   session     the session as changed; a deleted session carries its UUID and is marked deleted
+     */
+    void followed(Session session){
+        UUID uuid = session.getUuid();
+        if(session.is_deleted()){
+            this.sessionCache.invalidate(uuid);
+            this.geoIndex.remove(uuid);
+            this.deviceIndex.remove(uuid);
+            return;
+        }
+        if(this.writeBuffer.get(uuid) != null){
+            // the staged state is written over the change, or conflicts with it and is re-read, on the next flush
+            return;
+        }
+        // the next read of the session goes to the replica, which holds the change
+        this.sessionCache.invalidate(uuid);
+        this.deviceIndex.index(session);
+        this.geoIndex.indexNewer(session);
+    }
+
+    @Autowired(required = false)
+    public void setSessionCache(SessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+    }
+
+    @Autowired(required = false)
+    public void setSessionDispatcher(SessionDispatcher sessionDispatcher) {
+        this.sessionDispatcher = sessionDispatcher;
+    }
+
+    /**
+     * @param   asyncExecutor   the executor the asynchronous variants run their blocking session store calls on
+     */
+    @Autowired(required = false)
+    public void setAsyncExecutor(@Qualifier("sessionAsyncExecutor") AsyncListenableTaskExecutor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    public SessionWriteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    public PairingQueue getPairingQueue() {
+        return pairingQueue;
+    }
+
+    public DeviceIndex getDeviceIndex() {
+        return deviceIndex;
+    }
+
+    /**
+     * @return  the number of joins that were placed in a new session because adding the device to the session found
+     *          for it conflicted with another write
+     */
+    public long getConflictSessions() {
+        return this.conflictSessions.get();
+    }
+
+    /**
+     * @param   reseedSeconds   how often, in seconds, an application's open sessions are re-read into the geo index
+     */
+    @Value("${sessionGeoIndex.reseedSeconds}")
+    public void setGeoIndexReseedSeconds(long reseedSeconds) {
+        this.geoIndex.setReseedMillis(TimeUnit.SECONDS.toMillis(reseedSeconds));
+    }
+
+    public void setWriteBehindEnabled(boolean writeBehindEnabled) {
+        this.writeBehindEnabled = writeBehindEnabled;
+    }
+
+    /**
+     * starts batching joins if join batching is enabled
+     */
+    @PostConstruct
+    public void init() {
+        if(this.joinBatchEnabled){
+            this.joinBatcher = new JoinBatcher(this.joinBatchWindowMillis, new JoinBatcher.Placement() {
+                @Override
+                public List<Session> place(String applicationId, List<JoinMessage> joins) {
+                    return placeJoins(applicationId, joins);
+                }
+            });
+        }
     }
 
     @Override
@@ -66,26 +220,12 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
     }
 
     private List<Session> getUnlockedSessionsByApplicationId(String applicationId){
-        try{
-            List<Session> sessions = this.couchDbSessionClient.view("app/application-id")
-                .key(applicationId)
-                .includeDocs(true)
-                .query(Session.class);
-
-            if(!sessions.isEmpty()){
-                return sessions;
-            }
-        }
-        catch(NoDocumentException | IndexOutOfBoundsException e){
-            logger.error(String.format("Sessions not found. Error message: %s", e.getMessage()));
-        }
-
-        return new ArrayList<Session>();
+        return this.sessionStore.findOpenByApplication(applicationId);
 
     }
 
     /**
-     * Persists a new session object to the CouchDB document store
+     * Persists a new session object to the session store
      *
      * @param  session The session to be persisted to the document store
      */
@@ -95,9 +235,10 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
                 session.setInserted(new Date().getTime());
                 session.setUpdated(session.getInserted());
             }
-            Response res = this.couchDbSessionClient.save(session);
-            session.set_id(res.getId());
-            session.set_rev(res.getRev());
+            this.sessionStore.create(session);
+            this.geoIndex.index(session);
+            this.sessionCache.put(session);
+            this.deviceIndex.index(session);
             return session;
         }
         catch(DocumentConflictException conflictException){
@@ -109,56 +250,233 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
 
     /**
      * Based on a join message's geo location, creates a new session or finds an existing session within a tolerated
-     * geo-proximity from the new device that has just attempted to join a session.
+     * geo-proximity from the new device that has just attempted to join a session. When join batching is enabled the
+     * join is placed together with the other joins for its application that arrive within the batch window.
      *
      * @param   o       A generic object in the form of a JoinMessage object that has just attempted to join a session
      * @return          Session A session that is either new or existing
      */
     public Session getOrCreate(Object o)  {
         JoinMessage j = (JoinMessage)o;
-        Session session = null;
-        //List<Session> unlockedSessions = this.getSessionsByLocked(false);
-        List<Session> unlockedSessions = this.getUnlockedSessionsByApplicationId(j.getApplicationId());
-
-        // if unlocked sessions is not null and has members, try to find a session within the minimum threshold distance from
-        // the device. if a session is found, return it. if not, try to find a session within the maximum threshold distance
-        // from the device. if a session is found there, return it.
-        if(unlockedSessions != null){
-            if(!unlockedSessions.isEmpty()){
-                session = getSessionInRange(unlockedSessions, deviceLimiter.getMinDistanceThresholdBetweenDevices(),j);
-                if(session == null){
-                    session = getSessionInRange(unlockedSessions, deviceLimiter.getMaxDistanceThresholdBetweenDevices(),j);
-                }
-            }
+        if(this.joinBatcher != null){
+            return this.joinBatcher.join(j);
         }
+        return this.place(j);
+    }
 
-        // if a session was found in either the min threshold or max threshold distance, update it with the new device information
-        if(session != null) {
+    private Session place(JoinMessage j)  {
+        int maxDevices = deviceLimiter.getMaxDevicesPerSessionForGame(j.getApplicationId());
+        this.warmGeoIndex(j.getApplicationId());
+
+        // if a session was found in either the min threshold or max threshold distance, update it with the new device
+        // information. A join that loses a race for the session looks again, as the index has been refreshed
+        for(int attempt = 0; attempt < JOIN_ATTEMPTS; attempt++) {
+            Session session = this.findNearest(j, maxDevices);
+            if(session == null) {
+                break;
+            }
             if(session.deviceInSession(j.getDevice().getUuid())) {
                 return session;
-            } else if(session.getDevices().size() < deviceLimiter.getMaxDevicesPerSessionForGame(j.getApplicationId())){
+            } else if(session.getDevices().size() >= maxDevices) {
+                break;
+            }
+            Session joined = this.dispatching() ? this.dispatchJoin(session.getUuid().toString(), j, maxDevices)
+                : this.join(session, j);
+            if(joined != null){
+                return joined;
+            }
+        }
+
+        // if no sessions found that are in proximity to new device, create a new session and
+        // update it accordingly before adding.
+        return this.create(this.newSession(j));
+    }
+
+    /**
+     * adds a joining device to a session found for it in the geo index
+     *
+     * @return  the session with the device added, or null if the session could not be written
+     */
+    private Session join(Session session, JoinMessage j){
+        session.setGeoLocation(j.getGeo());
+        session.addDevice(j.getDevice());
+
+        try {
+            return update(session);
+        } catch (DocumentConflictException documentConflictException) {
+            // refresh the index from the staged state or the document store, so that the join can look again
+            this.conflictSessions.increment();
+            this.geoIndex.index(this.find(session.getUuid().toString()));
+        }
+        return null;
+    }
+
+    /**
+     * adds a joining device to a session found for it in the geo index, through the session's mailbox. The session is
+     * read again in the mailbox, so that the device is added to its latest revision rather than to the one indexed.
+     *
+     * @return  the session with the device added, or null if the session has meanwhile filled up, been started or
+     *          ended, or could not be written
+     */
+    private Session dispatchJoin(final String sessionId, final JoinMessage j, final int maxDevices){
+        return this.sessionDispatcher.call(sessionId, new Callable<Session>() {
+            @Override
+            public Session call() {
+                Session session = find(sessionId);
+                if(session == null || session.isLocked()){
+                    // the indexed copy is out of date; drop it so that the join looks elsewhere
+                    geoIndex.remove(UUID.fromString(sessionId));
+                    return null;
+                }
+                if(session.deviceInSession(j.getDevice().getUuid())){
+                    return session;
+                }
+                if(session.getDevices().size() >= maxDevices){
+                    geoIndex.index(session);
+                    return null;
+                }
+                return join(session, j);
+            }
+        });
+    }
+
+    private boolean dispatching(){
+        return this.sessionDispatcher != null && this.sessionDispatcher.isEnabled();
+    }
+
+    /**
+     * Places a batch of joins for one application and persists every session the batch creates or changes with a
+     * single bulk request. Joins are clustered greedily in arrival order: each device goes to the nearest session with
+     * room for it, including sessions opened earlier in the same batch, and a new session is opened only when none is
+     * in range. Joins whose session could not be written are placed again one at a time.
+     *
+     * @param   applicationId   the application the joins are for
+     * @param   joins           the joins, in the order they arrived
+     * @return                  the session each join was placed in, in the same order as the joins
+     */
+    List<Session> placeJoins(String applicationId, List<JoinMessage> joins) {
+        int maxDevices = deviceLimiter.getMaxDevicesPerSessionForGame(applicationId);
+        this.warmGeoIndex(applicationId);
+        Map<UUID, Session> changed = new LinkedHashMap<UUID, Session>();
+        Set<UUID> opened = new HashSet<UUID>();
+        List<Session> placed = new ArrayList<Session>(joins.size());
+
+        for(JoinMessage j: joins){
+            Session session = this.findNearest(j, maxDevices);
+            if(session != null && changed.containsKey(session.getUuid())){
+                session = changed.get(session.getUuid());
+            }
+            if(session == null){
+                session = this.newSession(j);
+                opened.add(session.getUuid());
+                changed.put(session.getUuid(), session);
+            }
+            else if(!session.deviceInSession(j.getDevice().getUuid())){
                 session.setGeoLocation(j.getGeo());
                 session.addDevice(j.getDevice());
+                changed.put(session.getUuid(), session);
+            }
+            // keep the index current so that later joins in the batch see this one
+            this.geoIndex.index(session);
+            placed.add(session);
+        }
+
+        List<Session> writes = new ArrayList<Session>();
+        for(Session session: changed.values()){
+            if(this.writeBehindEnabled && !opened.contains(session.getUuid())){
+                this.update(session);
+            }
+            else{
+                session.setUpdated(new Date().getTime());
+                writes.add(session);
+            }
+        }
+        Set<UUID> failed = this.bulkWrite(writes);
+        for(UUID uuid: failed){
+            this.geoIndex.remove(uuid);
+            this.sessionCache.invalidate(uuid);
+            if(!opened.contains(uuid)){
+                this.geoIndex.index(this.find(uuid.toString()));
+            }
+        }
+
+        for(int i = 0; i < placed.size(); i++){
+            Session session = placed.get(i);
+            placed.set(i, failed.contains(session.getUuid()) ? this.place(joins.get(i)) : new Session(session));
+        }
+        if(logger.isDebugEnabled()){
+            logger.debug(String.format("Placed %d joins for %s in %d sessions with one bulk write; %d writes failed",
+                joins.size(), applicationId, changed.size(), failed.size()));
+        }
+        return placed;
+    }
 
-                try {
-                    return update(session);
-                } catch (DocumentConflictException documentConflictException) {
-                    //No op - fall through to a new session
+    /**
+     * writes new and changed sessions in one bulk request, recording the assigned ids and revisions
+     *
+     * @return  the UUIDs of the sessions that could not be written
+     */
+    private Set<UUID> bulkWrite(List<Session> sessions){
+        Set<UUID> failed = new HashSet<UUID>();
+        if(sessions.isEmpty()){
+            return failed;
+        }
+        try{
+            List<String> errors = this.sessionStore.bulk(sessions);
+            for(int i = 0; i < sessions.size(); i++){
+                Session session = sessions.get(i);
+                if(errors.get(i) == null){
+                    this.geoIndex.index(session);
+                    this.sessionCache.put(session);
+                    this.deviceIndex.index(session);
+                }
+                else{
+                    logger.error(String.format("Error writing session %s: %s", session.getUuid(), errors.get(i)));
+                    failed.add(session.getUuid());
                 }
             }
         }
+        catch(CouchDbException dbException){
+            logger.error(String.format("Bulk write of %d sessions failed with the following exception: %s",
+                sessions.size(), dbException.getMessage()));
+            for(Session session: sessions){
+                failed.add(session.getUuid());
+            }
+        }
+        return failed;
+    }
 
-        // if no sessions found that are in proximity to new device, create a new session and
-        // update it accordingly before adding.
-        session = new Session();
+    private void warmGeoIndex(String applicationId){
+        // the first join for an application seeds the geo index with the application's open sessions; from then on
+        // the index is kept current by create, update, delete and reads, and re-seeded only once the seed is older
+        // than the re-seed interval, to pick up sessions other nodes have opened, locked or deleted
+        if(this.geoIndex.warm(applicationId)){
+            long since = System.currentTimeMillis();
+            this.geoIndex.seed(applicationId, this.getUnlockedSessionsByApplicationId(applicationId), since);
+        }
+    }
+
+    private Session findNearest(JoinMessage j, int maxDevices){
+        // try to find the nearest session within the minimum threshold distance from the device. if none is found,
+        // try to find the nearest session within the maximum threshold distance from the device.
+        Session session = this.geoIndex.findNearest(j.getApplicationId(), j.getGeo(),
+            deviceLimiter.getMinDistanceThresholdBetweenDevices(), maxDevices);
+        if(session == null){
+            session = this.geoIndex.findNearest(j.getApplicationId(), j.getGeo(),
+                deviceLimiter.getMaxDistanceThresholdBetweenDevices(), maxDevices);
+        }
+        return session;
+    }
+
+    private Session newSession(JoinMessage j){
+        Session session = new Session();
         session.setApplicationId(j.getApplicationId());
         session.setRoom(assignRoom(j.getApplicationId()));
         session.setGeoLocation(j.getGeo());
         session.setInserted(new Date().getTime());
         session.setUpdated(session.getInserted());
         session.addDevice(j.getDevice());
-
-        return this.create(session);
+        return session;
     }
 
     /**
@@ -177,16 +495,16 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
         // inbound device. If one is found, create the device to it, and update its Geolocation with the device's
         // geolocation. This way when the next device comes in it will only need to be within proximity
         // to the last device to join the session to be allowed into session
-        float[] deviceGeo= j.getGeo();
-        LatLng dGeo = new LatLng(new Double(deviceGeo[0]), new Double(deviceGeo[1]));
+        float[] deviceGeo = j.getGeo();
+        double lat = deviceGeo[0];
+        double lng = deviceGeo[1];
+        double latDelta = GeoDistance.latitudeDelta(range);
+        double lngDelta = GeoDistance.longitudeDelta(lat, range);
 
         for(Session session: sessions){
             float[] sGeo = session.getGeoLocation();
-            if(sGeo != null){
-                LatLng sessionGeo =new LatLng(new Double(sGeo[0]), new Double(sGeo[1]));
-                double distanceFromInboundDevice = LatLngTool.distance(dGeo,sessionGeo, LengthUnit.METER);
-
-                if(distanceFromInboundDevice <= range){
+            if(sGeo != null && GeoDistance.inBoundingBox(sGeo, lat, lng, latDelta, lngDelta)){
+                if(GeoDistance.distance(sGeo, lat, lng) <= range){
                     return session;
                 }
             }
@@ -201,57 +519,64 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
      * @return          a session, if found, which has a matching UUID
      */
     public Session find(String uuid){
-        try{
-            List<Session> sessions = this.couchDbSessionClient.view("app/uuid")
-                .key(uuid)
-                .limit(1)
-                .includeDocs(true)
-                .query(Session.class);
-
-            if(!sessions.isEmpty()){
-                return sessions.get(0);
-            }
+        UUID sessionUuid = toUuid(uuid);
+        Session waiting = this.pairingQueue.get(sessionUuid);
+        if(waiting != null){
+            return waiting;
         }
-        catch(NoDocumentException noDocumentException){
-            logger.error(String.format("Design/View or document not found in document store. Error message: \n%s", noDocumentException.getMessage()));
+        Session staged = this.writeBuffer.get(sessionUuid);
+        if(staged != null){
+            return staged;
         }
-        catch(IndexOutOfBoundsException indexOutOfBoundsException){
-            logger.error(String.format("Session not found in document store. Error message: %s",
-                indexOutOfBoundsException.getMessage()));
+        if(sessionUuid == null){
+            return null;
         }
-
-        return null;
+        Session session = this.sessionCache.get(sessionUuid);
+        if(session == null){
+            session = this.sessionStore.find(sessionUuid);
+            this.sessionCache.put(session);
+            this.deviceIndex.index(session);
+            this.geoIndex.refresh(sessionUuid, session);
+        }
+        return session;
     }
 
     /**
-     * Finds and returns stale sessions, i.e., sessions which have existed for longer than the maximum session lifespan.
+     * Looks up the application of a session among the sessions this node holds in memory, without reading the document
+     * store, e.g. on a thread which must not block on it
      *
-     * @param   staleSessionThresholdMinutes    int, number of minutes at which point a session is considered stale
-     * @returns                                 List of session objects that are considered stale
+     * @param   uuid    a string representation of a session's UUID
+     * @return          the session's application id, or null if the session is not known to this node
      */
-    public List<Session> findStale(int staleSessionThresholdMinutes){
-        long staleSessionThresholdMilliseconds=60000*staleSessionThresholdMinutes;
-        long nowMilliseconds = new Date().getTime();
-        long staleSessionCutoff = nowMilliseconds - staleSessionThresholdMilliseconds;
-
-        try{
-            List<Session> sessions = this.couchDbSessionClient.view("app/session-by-timestamp")
-                .endKey(staleSessionCutoff)
-                .includeDocs(true)
-                .query(Session.class);
-
-            if(!sessions.isEmpty()){
-                return sessions;
-            }
+    public String findApplicationId(String uuid){
+        UUID sessionUuid = toUuid(uuid);
+        if(sessionUuid == null){
+            return null;
         }
-        catch(NoDocumentException noDocumentException){
-            logger.info("Tried to fetch stale sessions, but none were present.");
+        String applicationId = this.deviceIndex.getApplicationId(sessionUuid);
+        if(applicationId != null){
+            return applicationId;
         }
-        catch(IndexOutOfBoundsException indexOutOfBoundsException){
-            logger.error(String.format("Session not found in document store. Error message: %s", indexOutOfBoundsException.getMessage()));
+        Session session = this.pairingQueue.get(sessionUuid);
+        if(session == null){
+            session = this.writeBuffer.get(sessionUuid);
         }
+        return session == null ? null : session.getApplicationId();
+    }
 
-        return null;
+    /**
+     * Finds and returns one page of stale sessions, i.e., sessions which have existed for longer than the maximum
+     * session lifespan. Pages are ordered by insertion time, so passing the last session of one page as after returns
+     * the next.
+     *
+     * @param   staleSessionCutoff  long, time in epoch milliseconds before which a session is considered stale
+     * @param   after               the last session of the previous page, or null for the first page
+     * @param   limit               int, the maximum number of sessions to return
+     * @returns                     List of session objects that are considered stale
+     */
+    public List<Session> findStale(long staleSessionCutoff, Session after, int limit){
+        List<Session> sessions = this.sessionStore.findStale(staleSessionCutoff, after, limit);
+        return sessions.isEmpty() ? null : sessions;
     }
 
     /**
@@ -261,47 +586,66 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
      * @return          the session containing the device UUID
      */
     public Session findByDeviceUuid(String uuid){
-        try{
-            List<Session> sessions = this.couchDbSessionClient.view("app/session-by-device")
-                .key(uuid)
-                .limit(1)
-                .includeDocs(true)
-                .query(Session.class);
-
-            if(!sessions.isEmpty()){
-                return sessions.get(0);
-            }
+        UUID deviceUuid = toUuid(uuid);
+        Session waiting = this.pairingQueue.getByDevice(deviceUuid);
+        if(waiting != null){
+            return waiting;
         }
-        catch(NoDocumentException noDocumentException){
-            logger.error(String.format("Design/View or document not found in document store. Error message: %s", noDocumentException.getMessage()));
+        if(deviceUuid == null){
+            return null;
         }
-        catch(IndexOutOfBoundsException indexOutOfBoundsException){
-            logger.error(String.format("Session not found in document store. Error message: %s", indexOutOfBoundsException.getMessage()));
+        Session session = this.sessionCache.getByDevice(deviceUuid);
+        if(session == null){
+            session = this.findIndexed(deviceUuid);
         }
-
-        return null;
+        if(session == null){
+            session = this.sessionStore.findByDevice(deviceUuid);
+            this.sessionCache.put(session);
+            this.deviceIndex.index(session);
+            if(session != null){
+                this.geoIndex.refresh(session.getUuid(), session);
+            }
+        }
+        return session == null ? null : withStagedState(session, deviceUuid);
     }
 
     /**
-     * Returns a list of all sessions currently in the CouchDB document store
+     * fetches the session a device was last written to by this node, by its _id rather than through a view query
      *
-     * @return      List of all sessions in the document store
+     * @return  the session, or null if none is indexed for the device or the indexed session no longer contains it
      */
-    public List<Session> getAll() {
-        try{
-            List<Session> sessions = this.couchDbSessionClient.view("app/uuid")
-                .includeDocs(true)
-                .query(Session.class);
-
-            if(!sessions.isEmpty()){
-                return sessions;
+    private Session findIndexed(UUID deviceUuid){
+        DeviceIndex.Entry entry = this.deviceIndex.get(deviceUuid);
+        if(entry == null){
+            return null;
+        }
+        Session session = this.sessionCache.get(entry.getSessionUuid());
+        if(session == null){
+            session = this.sessionStore.findById(entry.getSessionId());
+            this.geoIndex.refresh(entry.getSessionUuid(), session);
+            if(session == null){
+                this.deviceIndex.remove(entry.getSessionUuid());
+                return null;
             }
+            this.sessionCache.put(session);
+            this.deviceIndex.index(session);
         }
-        catch(NoDocumentException noDocumentException){
-            logger.error("Design/View or document not found in document store");
+        if(!session.deviceInSession(deviceUuid)){
+            // changed by another node since this one wrote it
+            this.deviceIndex.remove(deviceUuid, entry.getSessionUuid());
+            return null;
         }
+        return session;
+    }
 
-        return null;
+    /**
+     * Returns a list of all sessions currently in the session store
+     *
+     * @return      List of all sessions in the document store
+     */
+    public List<Session> getAll() {
+        List<Session> sessions = this.sessionStore.findAll();
+        return sessions.isEmpty() ? null : sessions;
     }
 
     /**
@@ -311,40 +655,126 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
      * @return          the session once it's been updated
      */
     public Session update(Session session)  {
+        if(this.writeBehindEnabled){
+            // stage() stamps the updated time itself, and rejects a session that changed after it was read
+            session.set_rev(this.writeBuffer.stage(session));
+            this.geoIndex.index(session);
+            this.sessionCache.put(session);
+            this.deviceIndex.index(session);
+            return session;
+        }
         try {
             session.setUpdated(new Date().getTime());
-            Response res = this.couchDbSessionClient.update(session);
-            session.set_rev(res.getRev());
+            this.sessionStore.update(session);
+            this.geoIndex.index(session);
+            this.sessionCache.put(session);
+            this.deviceIndex.index(session);
             return session;
         }
         catch(DocumentConflictException conflictException) {
             logger.error(String.format("Error updating the session document: %s", conflictException.getMessage()));
+            this.geoIndex.remove(session.getUuid());
+            this.sessionCache.invalidate(session.getUuid());
             throw conflictException;
         }
     }
 
     /**
-     * Updates a set of session objects using the CouchDB bulk update API
+     * Updates a set of session objects using the session store's bulk update API. Each document in the request succeeds
+     * or fails on its own, e.g. a deletion fails if the session has been written since it was read.
      *
      * @param   sessions    List of sessions to update
-     * @return              boolean, whether the update completed successfully
+     * @return              the UUIDs of the sessions that could not be written; all of them if the request failed
      */
-    public boolean bulkUpdate(List<Session> sessions) {
+    public Set<UUID> bulkUpdate(List<Session> sessions) {
+        Set<UUID> failed = new HashSet<UUID>();
         try{
-            this.couchDbSessionClient.bulk(sessions, true);
-            System.out.println(String.format("%d sessions marked for deletion", sessions.size()));
-            return true;
+            List<String> errors = this.sessionStore.bulk(sessions);
+            for(int i = 0; i < sessions.size(); i++){
+                Session session = sessions.get(i);
+                if(errors.get(i) == null){
+                    if(session.is_deleted()){
+                        this.writeBuffer.discard(session.getUuid());
+                    }
+                    this.geoIndex.index(session);
+                    this.sessionCache.put(session);
+                    this.deviceIndex.index(session);
+                }
+                else{
+                    failed.add(session.getUuid());
+                    this.geoIndex.remove(session.getUuid());
+                    this.sessionCache.invalidate(session.getUuid());
+                }
+            }
+            if(logger.isDebugEnabled())
+                logger.debug(String.format("%d of %d sessions written in bulk", sessions.size() - failed.size(),
+                    sessions.size()));
         }
         catch(CouchDbException dbException){
-
+            for(Session session: sessions){
+                failed.add(session.getUuid());
+                this.sessionCache.invalidate(session.getUuid());
+            }
             logger.error(String.format("Bulk update failed with the following exception: %s", dbException.getMessage()));
         }
+        return failed;
+    }
 
-        return false;
+    /**
+     * Writes all session mutations staged since the last flush to the session store in a single bulk request.
+     * Only does anything when write-behind is enabled; scheduled to run once per write-behind window, and once more
+     * on shutdown so that staged mutations are not lost.
+     */
+    @Scheduled(fixedDelayString = "${sessionWriteBehind.flushMillis}")
+    public void flush() {
+        List<Session> sessions = this.writeBuffer.drain();
+        if(sessions.isEmpty()){
+            return;
+        }
+        try{
+            List<String> errors = this.sessionStore.bulk(sessions);
+            int written = 0;
+            for(int i = 0; i < sessions.size(); i++){
+                Session session = sessions.get(i);
+                if(errors.get(i) == null){
+                    this.writeBuffer.written(session, session.get_rev());
+                    if(this.writeBuffer.get(session.getUuid()) == null){
+                        this.sessionCache.put(session);
+                        this.deviceIndex.index(session);
+                    }
+                    written++;
+                }
+                else{
+                    // another writer got there first; drop the staged state and re-read the session
+                    logger.error(String.format("Error flushing session %s: %s", session.getUuid(), errors.get(i)));
+                    this.writeBuffer.conflicted(session);
+                    this.sessionCache.invalidate(session.getUuid());
+                    this.geoIndex.remove(session.getUuid());
+                    this.geoIndex.index(this.find(session.getUuid().toString()));
+                }
+            }
+            if(logger.isDebugEnabled()){
+                logger.debug(String.format("Flushed %d of %d staged sessions; %d mutations staged, %d writes saved",
+                    written, sessions.size(), this.writeBuffer.getStaged(), this.writeBuffer.getWritesSaved()));
+            }
+        }
+        catch(CouchDbException dbException){
+            logger.error(String.format("Flushing staged sessions failed with the following exception: %s",
+                dbException.getMessage()));
+            this.writeBuffer.restore(sessions);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if(this.joinBatcher != null){
+            this.joinBatcher.shutdown();
+        }
+        this.flush();
     }
 
     /**
-     * Deletes a session object from the CouchDB document store by UUID
+     * Deletes a session object from the session store by UUID
      *
      * @param   uuid    String representation of the session's UUID
      * @return          boolean, whether the delete op completed successfully
@@ -352,11 +782,16 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
     public boolean delete(String uuid)  {
         Session session = this.find(uuid);
         if(session != null){
+            this.writeBuffer.discard(session.getUuid());
             try{
-                this.couchDbSessionClient.remove(session);
+                this.sessionStore.delete(session);
+                this.geoIndex.remove(session.getUuid());
+                this.sessionCache.invalidate(session.getUuid());
+                this.deviceIndex.remove(session.getUuid());
                 return true;
             }
             catch(DocumentConflictException conflictException){
+                this.sessionCache.invalidate(session.getUuid());
                 logger.error(String.format("Error deleting the session from the document store: %s",
                     conflictException.getMessage()));
                 throw conflictException;
@@ -369,14 +804,39 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
     /**
      * Removes a device from a session using the device's UUID for identification. If a device is removed and the session
      * contains more devices, a device removal message is broadcasted to the remaining devices in session. If the device
-     * being removed is the last device in the session, the session is deleted from the CouchDB document store.
+     * being removed is the last device in the session, the session is deleted from the session store.
      *
      * @param   uuid    String representation of the device UUID that should be removed
      * @return          boolean, whether the removal completed successfully
      */
-    public boolean removeDeviceFromSessionByDeviceUuid(String uuid) {
-        boolean noConflict = true;
+    public boolean removeDeviceFromSessionByDeviceUuid(final String uuid) {
+        // a device still waiting for a pairing partner has nothing in the document store to clean up
+        UUID deviceUuid = toUuid(uuid);
+        if(deviceUuid != null && this.pairingQueue.cancel(deviceUuid)){
+            return true;
+        }
         Session session = this.findByDeviceUuid(uuid);
+        if(session != null && this.dispatching()) {
+            return this.sessionDispatcher.call(session.getUuid().toString(), this.removal(uuid));
+        }
+        return this.removeDevice(uuid, session);
+    }
+
+    /**
+     * @return  a removal of the device to run in its session's mailbox, which reads the session again so that the device
+     *          is removed from its latest revision
+     */
+    private Callable<Boolean> removal(final String uuid) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return removeDevice(uuid, findByDeviceUuid(uuid));
+            }
+        };
+    }
+
+    private boolean removeDevice(String uuid, Session session) {
+        boolean noConflict = true;
         if(session != null) {
             session.removeDeviceByUuid(uuid);
 
@@ -389,10 +849,10 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
                     noConflict = false;
                 }
                 if(this.brokerAvailable.get()){
-                    String disconnectResponse = gson.toJson(new DisconnectResponse(session.getDevices()), DisconnectResponse.class);
+                    DisconnectResponse disconnectResponse = new DisconnectResponse(session.getDevices());
                     this.messagingTemplate.convertAndSend(String.format("/topic/%s", session.getUuid().toString()), disconnectResponse);
                     if(logger.isDebugEnabled()) {
-                        logger.debug(disconnectResponse);
+                        logger.debug(MessageCodec.toJson(disconnectResponse));
                     }
                 }
             }
@@ -411,6 +871,72 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
         return noConflict;
     }
 
+    /**
+     * Removes many devices from their sessions at once, e.g. after a network outage dropped a venue's devices together.
+     * Devices are grouped by session, so that each affected session is written once, sessions left empty are deleted,
+     * and all of the writes go to the session store in a single bulk request. The remaining devices of each session
+     * are sent one device removal message for all of the devices that left it.
+     *
+     * @param   deviceUuids     the UUIDs of the devices to remove
+     * @return                  the UUIDs of the devices that could not be removed because their session's write failed
+     */
+    public Set<UUID> removeDevicesFromSessions(Collection<UUID> deviceUuids) {
+        Map<UUID, Session> changed = new LinkedHashMap<UUID, Session>();
+        Map<UUID, List<UUID>> removed = new HashMap<UUID, List<UUID>>();
+        for(UUID deviceUuid: deviceUuids){
+            if(this.pairingQueue.cancel(deviceUuid)){
+                continue;
+            }
+            Session session = this.findByDeviceUuid(deviceUuid.toString());
+            if(session == null){
+                continue;
+            }
+            if(changed.containsKey(session.getUuid())){
+                session = changed.get(session.getUuid());
+            }
+            else{
+                changed.put(session.getUuid(), session);
+                removed.put(session.getUuid(), new ArrayList<UUID>());
+            }
+            session.removeDeviceByUuid(deviceUuid.toString());
+            removed.get(session.getUuid()).add(deviceUuid);
+        }
+
+        List<Session> writes = new ArrayList<Session>(changed.size());
+        for(Session session: changed.values()){
+            if(session.getDevices().isEmpty()){
+                this.writeBuffer.discard(session.getUuid());
+                session.set_deleted(true);
+                writes.add(session);
+            }
+            else if(this.writeBehindEnabled){
+                this.update(session);
+            }
+            else{
+                session.setUpdated(new Date().getTime());
+                writes.add(session);
+            }
+        }
+        Set<UUID> failed = this.bulkWrite(writes);
+
+        Set<UUID> notRemoved = new HashSet<UUID>();
+        for(Session session: changed.values()){
+            if(failed.contains(session.getUuid())){
+                this.geoIndex.remove(session.getUuid());
+                this.sessionCache.invalidate(session.getUuid());
+                notRemoved.addAll(removed.get(session.getUuid()));
+            }
+            else if(!session.is_deleted() && this.brokerAvailable.get()){
+                DisconnectResponse disconnectResponse = new DisconnectResponse(session.getDevices());
+                this.messagingTemplate.convertAndSend(String.format("/topic/%s", session.getUuid().toString()), disconnectResponse);
+                if(logger.isDebugEnabled()) {
+                    logger.debug(MessageCodec.toJson(disconnectResponse));
+                }
+            }
+        }
+        return notRemoved;
+    }
+
     /**
      * Finds all un/locked sessions based on a boolean value. A session is locked once all devices in the session have
      * joined, and the first device in the session initiates a start command. If a session has not received a start
@@ -420,58 +946,214 @@ public class SessionRepository implements ApplicationListener<BrokerAvailability
      * @return              list of sessions that whose lock status corresponds to the parameter passed
      */
     public List<Session> getSessionsByLocked(boolean isLocked) {
-        try{
-            List<Session> sessions = this.couchDbSessionClient.view("app/locked-sessions")
-                .key(isLocked)
-                .includeDocs(true)
-                .query(Session.class);
-
-            if(!sessions.isEmpty()){
-                return sessions;
-            }
-        }
-        catch(NoDocumentException noDocumentException){
-            logger.error(String.format("Design/View or document not found in document store. Error message: %s", noDocumentException.getMessage()));
-        }
-        catch(IndexOutOfBoundsException indexOutOfBoundsException){
-            logger.error(String.format("Locked Sessions not found in document store. Error message: %s",
-                indexOutOfBoundsException.getMessage()));
-        }
-
-        return null;
+        List<Session> sessions = this.sessionStore.findByLocked(isLocked);
+        return sessions.isEmpty() ? null : sessions;
     }
 
     /**
-     * Finds a random open pair session by app id. If no open pairing sessions are open than a new pairing session
-     * is created and returned.
+     * Pairs a device with the device that has been waiting longest for a partner in the same application. Waiting
+     * devices are held in memory by the pairing queue, so a pair is matched without reading the document store and
+     * only the completed, locked pair session is persisted. If no device is waiting, a new pairing session is
+     * created and the device waits in it for a partner, as it also does if its partner disconnects while the pair is
+     * being written.
      *
      * @param   p   PairMessage
      * @return      Session
      */
     public Session pair(PairMessage p) {
-        try{
-            List<Session> sessions = this.getUnlockedSessionsByApplicationId(p.getApplicationId());
-            // open sessions for pairing found
-            if(!sessions.isEmpty()){
-                // pick a random session from the collection
-                Session pairedSession = sessions.get(0);
-                pairedSession.addDevice(p.getDevice());
-                pairedSession.setLocked(true);
-                return this.update(pairedSession);
-            }
+        Session waiting = this.pairingQueue.getByDevice(p.getDevice().getUuid());
+        if(waiting != null){
+            return waiting;
         }
-        catch(NoDocumentException | IndexOutOfBoundsException e){
-            logger.error(String.format("Session not found. Error message: %s",e.getMessage()));
+
+        Session pairedSession = this.pairingQueue.claim(p.getApplicationId());
+        if(pairedSession != null){
+            pairedSession.addDevice(p.getDevice());
+            pairedSession.setLocked(true);
+            pairedSession.setUpdated(new Date().getTime());
+            Session created = this.create(pairedSession);
+            Set<UUID> departed = this.pairingQueue.settle(pairedSession);
+            if(created == null){
+                // put the partner back in the queue so that it can be paired again, unless it has left meanwhile
+                pairedSession.removeDeviceByUuid(p.getDevice().getUuid().toString());
+                pairedSession.setLocked(false);
+                if(departed.isEmpty()){
+                    this.pairingQueue.offer(pairedSession);
+                }
+                return null;
+            }
+            if(departed.isEmpty()){
+                return created;
+            }
+            // the partner disconnected while the pair was written; undo the pair and wait for another partner
+            try{
+                this.delete(created.getUuid().toString());
+            }
+            catch(DocumentConflictException conflictException){
+                this.removeDevicesFromSessions(departed);
+                return this.find(created.getUuid().toString());
+            }
         }
 
-        // if no sessions were found, create a new one
+        // if no devices are waiting, create a new pairing session to wait in
         Session pairingSession = new Session();
         pairingSession.setApplicationId(p.getApplicationId());
         pairingSession.setGeoLocation(p.getGeo());
         pairingSession.setInserted(new Date().getTime());
         pairingSession.setUpdated(pairingSession.getInserted());
         pairingSession.addDevice(p.getDevice());
-        return this.create(pairingSession);
+        this.pairingQueue.offer(pairingSession);
+        return new Session(pairingSession);
+    }
+
+    /**
+     * Asynchronous variant of getOrCreate. When join batching is enabled, the join waits for its batch without holding
+     * a thread, so any number of joins can be in flight while the batcher's single thread places them. Otherwise the
+     * join is placed with the same blocking session store calls as getOrCreate, run on the session async executor
+     * instead of the caller's thread, so at most as many joins as that executor has threads are placed at once.
+     *
+     * @param   o       A generic object in the form of a JoinMessage object that has just attempted to join a session
+     * @return          the session the device joined, once it has been placed
+     *
+     * @see     #getOrCreate(Object)
+     */
+    public ListenableFuture<Session> getOrCreateAsync(final Object o) {
+        if(this.joinBatcher != null){
+            return this.joinBatcher.submit((JoinMessage) o);
+        }
+        return this.async(new Callable<Session>() {
+            @Override
+            public Session call() {
+                return place((JoinMessage) o);
+            }
+        });
+    }
+
+    /**
+     * runs pair on the session async executor
+     *
+     * @see     #pair(PairMessage)
+     */
+    public ListenableFuture<Session> pairAsync(final PairMessage p) {
+        return this.async(new Callable<Session>() {
+            @Override
+            public Session call() {
+                return pair(p);
+            }
+        });
+    }
+
+    /**
+     * runs find on the session async executor
+     *
+     * @see     #find(String)
+     */
+    public ListenableFuture<Session> findAsync(final String uuid) {
+        return this.async(new Callable<Session>() {
+            @Override
+            public Session call() {
+                return find(uuid);
+            }
+        });
+    }
+
+    /**
+     * runs update on the session async executor
+     *
+     * @see     #update(Session)
+     */
+    public ListenableFuture<Session> updateAsync(final Session session) {
+        return this.async(new Callable<Session>() {
+            @Override
+            public Session call() {
+                return update(session);
+            }
+        });
+    }
+
+    /**
+     * runs removeDeviceFromSessionByDeviceUuid on the session async executor. When operations are dispatched per
+     * session, the device's session is looked up there and the removal is queued in the session's mailbox, which
+     * completes the future, so that no executor thread waits for a busy session.
+     *
+     * @see     #removeDeviceFromSessionByDeviceUuid(String)
+     */
+    public ListenableFuture<Boolean> removeDeviceFromSessionByDeviceUuidAsync(final String uuid) {
+        if(!this.dispatching()) {
+            return this.async(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return removeDeviceFromSessionByDeviceUuid(uuid);
+                }
+            });
+        }
+        final SettableListenableFuture<Boolean> removed = new SettableListenableFuture<Boolean>();
+        final ListenableFutureCallback<Boolean> relay = new ListenableFutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean result) {
+                removed.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable exception) {
+                removed.setException(exception);
+            }
+        };
+        this.async(new Callable<ListenableFuture<Boolean>>() {
+            @Override
+            public ListenableFuture<Boolean> call() {
+                UUID deviceUuid = toUuid(uuid);
+                if(deviceUuid != null && pairingQueue.cancel(deviceUuid)){
+                    return new AsyncResult<Boolean>(true);
+                }
+                Session session = findByDeviceUuid(uuid);
+                if(session == null){
+                    return new AsyncResult<Boolean>(removeDevice(uuid, null));
+                }
+                return sessionDispatcher.submit(session.getUuid().toString(), removal(uuid));
+            }
+        }).addCallback(new ListenableFutureCallback<ListenableFuture<Boolean>>() {
+            @Override
+            public void onSuccess(ListenableFuture<Boolean> removal) {
+                removal.addCallback(relay);
+            }
+
+            @Override
+            public void onFailure(Throwable exception) {
+                removed.setException(exception);
+            }
+        });
+        return removed;
+    }
+
+    /**
+     * hands a blocking session call to the session async executor, so that the caller's thread is free while it runs;
+     * the call itself still holds one of the executor's threads until the session store answers. lightcouch only
+     * offers blocking HTTP calls, so the number of calls in flight is bounded by the executor's threads, not freed
+     * from them.
+     */
+    private <T> ListenableFuture<T> async(Callable<T> operation){
+        if(this.asyncExecutor == null){
+            throw new IllegalStateException("No sessionAsyncExecutor is configured");
+        }
+        return this.asyncExecutor.submitListenable(operation);
+    }
+
+    private Session withStagedState(Session session, UUID deviceUuid){
+        Session staged = this.writeBuffer.get(session.getUuid());
+        if(staged == null){
+            return session;
+        }
+        return staged.deviceInSession(deviceUuid) ? staged : null;
+    }
+
+    private static UUID toUuid(String uuid){
+        try{
+            return uuid == null ? null : UUID.fromString(uuid);
+        }
+        catch(IllegalArgumentException e){
+            return null;
+        }
     }
 
 }
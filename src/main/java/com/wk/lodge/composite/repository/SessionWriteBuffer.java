@@ -0,0 +1,195 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.Revisions;
+import org.lightcouch.DocumentConflictException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds session mutations that have not yet been written to the document store. Mutations to the same session are
+ * merged in memory - the latest staged state of a session replaces any earlier one - so that a burst of updates to one
+ * session costs a single write when the buffer is drained.
+ *
+ * The buffer also remembers the latest revision written for each session, so that a state staged against an older
+ * revision is written against the current one instead of conflicting with this node's own earlier flush.
+ *
+ * Because a staged state replaces the one before it, a state must be derived from the latest one staged, or two
+ * read-modify-writes racing on one session would silently lose the first. Each staged state is stamped with a strictly
+ * increasing updated time, and a copy of a session whose updated time is not that of the latest staged state is
+ * rejected as stale, unless it was read back from the store after another node wrote the session.
+ */
+public class SessionWriteBuffer {
+    private final ConcurrentMap<UUID, Session> pending = new ConcurrentHashMap<UUID, Session>();
+    private final ConcurrentMap<UUID, String> revisions = new ConcurrentHashMap<UUID, String>();
+    private final ConcurrentMap<UUID, Long> versions = new ConcurrentHashMap<UUID, Long>();
+    private final Set<UUID> flushing = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final AtomicLong staged = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    /**
+     * stages the latest state of a session, replacing any state already staged for it. The session's updated time is
+     * set to the stamp of the staged state, so that the caller's copy can be mutated and staged again.
+     *
+     * @param   session     the mutated session, derived from the latest state staged for it
+     * @return              the revision the staged state will be written against
+     * @throws  DocumentConflictException   if another state has been staged since the session was read
+     */
+    public synchronized String stage(Session session) {
+        UUID uuid = session.getUuid();
+        Long latest = this.versions.get(uuid);
+        if (latest != null && session.getUpdated() != latest && !writtenElsewhere(session)) {
+            this.stale.incrementAndGet();
+            throw new DocumentConflictException(String.format("Session %s was changed since it was read", uuid));
+        }
+        long updated = latest == null ? System.currentTimeMillis() : Math.max(System.currentTimeMillis(), latest + 1);
+        session.setUpdated(updated);
+        Session snapshot = withLatestRevision(new Session(session));
+        this.pending.put(uuid, snapshot);
+        this.versions.put(uuid, updated);
+        this.staged.incrementAndGet();
+        return snapshot.get_rev();
+    }
+
+    /**
+     * @param   uuid    the session's UUID
+     * @return          a copy of the staged state of the session, or null if nothing is staged for it
+     */
+    public Session get(UUID uuid) {
+        Session session = uuid == null ? null : this.pending.get(uuid);
+        return session == null ? null : withLatestRevision(new Session(session));
+    }
+
+    /**
+     * drops any staged state for a session, e.g. because the session is about to be deleted
+     *
+     * @param   uuid    the session's UUID
+     * @return          the latest revision written for the session by this buffer, or null if none is known
+     */
+    public synchronized String discard(UUID uuid) {
+        this.pending.remove(uuid);
+        this.versions.remove(uuid);
+        return this.revisions.remove(uuid);
+    }
+
+    /**
+     * removes and returns everything staged so far, ready to be written in one bulk request
+     *
+     * @return  the staged sessions, carrying the latest known revision of each
+     */
+    public synchronized List<Session> drain() {
+        List<Session> sessions = new ArrayList<Session>(this.pending.size());
+        for (UUID uuid : this.pending.keySet()) {
+            Session session = this.pending.remove(uuid);
+            if (session != null) {
+                this.flushing.add(uuid);
+                sessions.add(withLatestRevision(session));
+            }
+        }
+        if (!sessions.isEmpty()) {
+            this.flushes.incrementAndGet();
+        }
+        return sessions;
+    }
+
+    /**
+     * records a successful write of a drained session
+     *
+     * @param   session     the drained session
+     * @param   rev         the revision the document store assigned to the write
+     */
+    public void written(Session session, String rev) {
+        this.revisions.put(session.getUuid(), rev);
+        this.flushing.remove(session.getUuid());
+        this.written.incrementAndGet();
+    }
+
+    /**
+     * records a drained session whose write was rejected by the document store
+     *
+     * @param   session     the drained session
+     */
+    public synchronized void conflicted(Session session) {
+        this.revisions.remove(session.getUuid());
+        this.flushing.remove(session.getUuid());
+        if (!this.pending.containsKey(session.getUuid())) {
+            // the session is read again from the store, so any copy of it may be staged
+            this.versions.remove(session.getUuid());
+        }
+        this.conflicts.incrementAndGet();
+    }
+
+    /**
+     * puts drained sessions back after a failed flush, unless a newer state has been staged for them in the meantime
+     *
+     * @param   sessions    the drained sessions
+     */
+    public synchronized void restore(List<Session> sessions) {
+        for (Session session : sessions) {
+            this.pending.putIfAbsent(session.getUuid(), session);
+            this.flushing.remove(session.getUuid());
+        }
+    }
+
+    public int size() {
+        return this.pending.size();
+    }
+
+    public long getStaged() {
+        return this.staged.get();
+    }
+
+    public long getWritten() {
+        return this.written.get();
+    }
+
+    public long getConflicts() {
+        return this.conflicts.get();
+    }
+
+    public long getFlushes() {
+        return this.flushes.get();
+    }
+
+    /**
+     * @return  the number of states rejected because they were derived from a session that had changed since
+     */
+    public long getStale() {
+        return this.stale.get();
+    }
+
+    /**
+     * @return  the number of document writes avoided by merging mutations to the same session
+     */
+    public long getWritesSaved() {
+        return Math.max(this.staged.get() - this.written.get() - this.conflicts.get() - this.pending.size(), 0);
+    }
+
+    /**
+     * @return  true if the session is a copy read from the store after another node wrote a revision newer than any
+     *          this buffer has written, and nothing of this node's is waiting to be written over it
+     */
+    private boolean writtenElsewhere(Session session) {
+        UUID uuid = session.getUuid();
+        return !this.pending.containsKey(uuid) && !this.flushing.contains(uuid)
+            && Revisions.isNewer(session.get_rev(), this.revisions.get(uuid));
+    }
+
+    private Session withLatestRevision(Session session) {
+        String rev = this.revisions.get(session.getUuid());
+        if (rev != null && Revisions.isNewer(rev, session.get_rev())) {
+            session.set_rev(rev);
+        }
+        return session;
+    }
+}
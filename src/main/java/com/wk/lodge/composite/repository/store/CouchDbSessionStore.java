@@ -0,0 +1,171 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.model.Session;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lightcouch.CouchDbClient;
+import org.lightcouch.NoDocumentException;
+import org.lightcouch.Response;
+import org.lightcouch.View;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Session store backed by a CouchDB database, queried through the views in the "app" design document created by
+ * couchdb_setup.py. Sessions are looked up by device through the keys-only session-id-by-device view, or through the
+ * older session-by-device view in databases set up before it existed.
+ */
+public class CouchDbSessionStore implements SessionStore {
+    private static final Log logger = LogFactory.getLog(CouchDbSessionStore.class);
+
+    private final CouchDbClient couchDbSessionClient;
+    private volatile boolean compactDeviceView = true;
+
+    public CouchDbSessionStore(CouchDbClient couchDbSessionClient) {
+        this.couchDbSessionClient = couchDbSessionClient;
+    }
+
+    @Override
+    public Session create(Session session) {
+        Response res = this.couchDbSessionClient.save(session);
+        session.set_id(res.getId());
+        session.set_rev(res.getRev());
+        return session;
+    }
+
+    @Override
+    public Session find(UUID uuid) {
+        return first(query("app/uuid", uuid.toString(), 1));
+    }
+
+    @Override
+    public Session findById(String id) {
+        try {
+            return this.couchDbSessionClient.find(Session.class, id);
+        } catch (NoDocumentException noDocumentException) {
+            return null;
+        }
+    }
+
+    @Override
+    public Session findByDevice(UUID deviceUuid) {
+        if (this.compactDeviceView) {
+            try {
+                return first(this.couchDbSessionClient.view("app/session-id-by-device")
+                        .key(deviceUuid.toString())
+                        .includeDocs(true)
+                        .limit(1)
+                        .query(Session.class));
+            } catch (NoDocumentException noDocumentException) {
+                logger.info("The session-id-by-device view is missing; falling back to session-by-device.");
+                this.compactDeviceView = false;
+            }
+        }
+        return first(query("app/session-by-device", deviceUuid.toString(), 1));
+    }
+
+    @Override
+    public List<Session> findOpenByApplication(String applicationId) {
+        return query("app/application-id", applicationId, 0);
+    }
+
+    @Override
+    public List<Session> findByLocked(boolean locked) {
+        try {
+            return this.couchDbSessionClient.view("app/locked-sessions")
+                    .key(locked)
+                    .includeDocs(true)
+                    .query(Session.class);
+        } catch (NoDocumentException noDocumentException) {
+            logger.error(String.format("Design/View or document not found in document store. Error message: %s",
+                    noDocumentException.getMessage()));
+        }
+        return new ArrayList<Session>();
+    }
+
+    @Override
+    public List<Session> findStale(long insertedBefore, Session after, int limit) {
+        try {
+            // query(Session.class) only maps a row's doc when include_docs is set, and the row itself otherwise
+            View query = this.couchDbSessionClient.view("app/session-by-timestamp")
+                    .endKey(insertedBefore)
+                    .includeDocs(true)
+                    .limit(limit + 1);
+            if (after != null) {
+                query.startKey(after.getInserted()).startKeyDocId(after.get_id());
+            }
+            List<Session> sessions = query.query(Session.class);
+            // startkey_docid is inclusive, so the previous page's last session comes back if it still exists
+            if (!sessions.isEmpty() && after != null && after.get_id().equals(sessions.get(0).get_id())) {
+                sessions.remove(0);
+            }
+            return sessions.size() > limit ? sessions.subList(0, limit) : sessions;
+        } catch (NoDocumentException noDocumentException) {
+            logger.info("Tried to fetch stale sessions, but none were present.");
+        }
+        return new ArrayList<Session>();
+    }
+
+    @Override
+    public List<Session> findAll() {
+        try {
+            return this.couchDbSessionClient.view("app/uuid")
+                    .includeDocs(true)
+                    .query(Session.class);
+        } catch (NoDocumentException noDocumentException) {
+            logger.error("Design/View or document not found in document store");
+        }
+        return new ArrayList<Session>();
+    }
+
+    @Override
+    public Session update(Session session) {
+        Response res = this.couchDbSessionClient.update(session);
+        session.set_rev(res.getRev());
+        return session;
+    }
+
+    @Override
+    public List<String> bulk(List<Session> sessions) {
+        List<Response> responses = this.couchDbSessionClient.bulk(sessions, false);
+        List<String> errors = new ArrayList<String>(sessions.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            Response res = i < responses.size() ? responses.get(i) : null;
+            if (res != null && res.getError() == null) {
+                sessions.get(i).set_id(res.getId());
+                sessions.get(i).set_rev(res.getRev());
+                errors.add(null);
+            } else {
+                errors.add(res == null ? "no response" : res.getReason());
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public void delete(Session session) {
+        this.couchDbSessionClient.remove(session);
+    }
+
+    private List<Session> query(String view, String key, int limit) {
+        try {
+            View query = this.couchDbSessionClient.view(view)
+                    .key(key)
+                    .includeDocs(true);
+            if (limit > 0) {
+                query.limit(limit);
+            }
+            return query.query(Session.class);
+        } catch (NoDocumentException noDocumentException) {
+            logger.error(String.format("Design/View or document not found in document store. Error message: %s",
+                    noDocumentException.getMessage()));
+        }
+        return new ArrayList<Session>();
+    }
+
+    private static Session first(List<Session> sessions) {
+        return sessions.isEmpty() ? null : sessions.get(0);
+    }
+}
@@ -0,0 +1,159 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.wk.lodge.composite.model.Session;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lightcouch.CouchDbException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Embedded session store that keeps sessions in memory and makes them durable with an append-only journal on local
+ * disk. Every write appends the written session to the journal as one line of JSON, in the same form CouchDB stores
+ * it; a deletion appends the deleted session. On start-up the journal is replayed, and whenever it has grown to more
+ * than twice the number of live sessions it is rewritten to hold only the live ones.
+ *
+ * Journal writes are flushed to the operating system but not synced to the device, so a crash of the machine (but not
+ * of the process) can lose the last few writes.
+ */
+public class DiskSessionStore extends InMemorySessionStore {
+    private static final Log logger = LogFactory.getLog(DiskSessionStore.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String JOURNAL_NAME = "sessions.journal";
+    private static final int MIN_COMPACTION_ENTRIES = 1024;
+
+    private final Gson gson = new Gson();
+    private final File journal;
+    private Writer writer;
+    private long entries;
+
+    /**
+     * @param   directory   the directory to keep the journal in; created if it does not exist
+     */
+    public DiskSessionStore(String directory) {
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new CouchDbException(String.format("Cannot create session store directory %s", directory));
+        }
+        this.journal = new File(dir, JOURNAL_NAME);
+        synchronized (this) {
+            replay();
+            compact();
+        }
+    }
+
+    /**
+     * closes the journal
+     */
+    public synchronized void close() {
+        try {
+            if (this.writer != null) {
+                this.writer.close();
+                this.writer = null;
+            }
+        } catch (IOException e) {
+            logger.error(String.format("Error closing session journal: %s", e.getMessage()));
+        }
+    }
+
+    @Override
+    protected void written(Session session) {
+        append(session);
+    }
+
+    @Override
+    protected void deleted(Session session) {
+        Session deleted = new Session(session);
+        deleted.set_deleted(true);
+        append(deleted);
+    }
+
+    private void append(Session session) {
+        if (this.writer == null) {
+            throw new CouchDbException("Session store is closed");
+        }
+        try {
+            this.writer.write(this.gson.toJson(session));
+            this.writer.write('\n');
+            this.writer.flush();
+        } catch (IOException e) {
+            throw new CouchDbException("Error writing session journal", e);
+        }
+        this.entries++;
+        if (this.entries > MIN_COMPACTION_ENTRIES && this.entries > 2L * size()) {
+            compact();
+        }
+    }
+
+    private void replay() {
+        if (!this.journal.exists()) {
+            return;
+        }
+        int skipped = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(this.journal), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    load(this.gson.fromJson(line, Session.class));
+                } catch (JsonParseException e) {
+                    // most likely a line cut short by a crash
+                    skipped++;
+                }
+            }
+        } catch (IOException e) {
+            throw new CouchDbException("Error reading session journal", e);
+        }
+        if (skipped > 0) {
+            logger.error(String.format("Skipped %d unreadable entries in session journal %s", skipped, this.journal));
+        }
+    }
+
+    /**
+     * rewrites the journal to hold only the live sessions, replacing the old journal atomically
+     */
+    private void compact() {
+        close();
+        File compacted = new File(this.journal.getParentFile(), JOURNAL_NAME + ".compact");
+        long written = 0;
+        try {
+            FileOutputStream out = new FileOutputStream(compacted);
+            try (Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(out, UTF_8))) {
+                for (Session session : findAll()) {
+                    compactedWriter.write(this.gson.toJson(session));
+                    compactedWriter.write('\n');
+                    written++;
+                }
+                compactedWriter.flush();
+                out.getFD().sync();
+            }
+            Files.move(compacted.toPath(), this.journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            this.entries = written;
+        } catch (IOException e) {
+            logger.error(String.format("Error compacting session journal: %s", e.getMessage()));
+        }
+        // keep appending to whichever journal is in place, compacted or not
+        try {
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.journal, true), UTF_8));
+        } catch (IOException e) {
+            throw new CouchDbException("Error opening session journal", e);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.lightcouch.DocumentConflictException;
+import org.lightcouch.NoDocumentException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Session store that keeps sessions in concurrent maps on the heap, for single-node deployments and load tests that
+ * should run without CouchDB. Revisions are checked exactly as CouchDB checks them. Reads are lock-free; writes are
+ * serialized, which costs little since none of them leaves memory.
+ *
+ * Sessions are lost when the process exits; see DiskSessionStore for a store that survives restarts.
+ */
+public class InMemorySessionStore implements SessionStore {
+    private static final String CONFLICT = "Document update conflict.";
+    private static final Comparator<Session> INSERTION_ORDER = new Comparator<Session>() {
+        @Override
+        public int compare(Session a, Session b) {
+            if (a.getInserted() != b.getInserted()) {
+                return a.getInserted() < b.getInserted() ? -1 : 1;
+            }
+            return String.valueOf(a.get_id()).compareTo(String.valueOf(b.get_id()));
+        }
+    };
+
+    private final ConcurrentMap<UUID, Session> sessions = new ConcurrentHashMap<UUID, Session>();
+    private final ConcurrentMap<UUID, UUID> sessionsByDevice = new ConcurrentHashMap<UUID, UUID>();
+    private final ConcurrentMap<String, UUID> sessionsById = new ConcurrentHashMap<String, UUID>();
+
+    @Override
+    public synchronized Session create(Session session) {
+        if (this.sessions.containsKey(session.getUuid())) {
+            throw new DocumentConflictException(CONFLICT);
+        }
+        if (session.get_id() == null) {
+            session.set_id(newId());
+        }
+        session.set_rev(nextRevision(null));
+        store(session);
+        return session;
+    }
+
+    @Override
+    public Session find(UUID uuid) {
+        return copy(this.sessions.get(uuid));
+    }
+
+    @Override
+    public Session findById(String id) {
+        UUID uuid = id == null ? null : this.sessionsById.get(id);
+        return uuid == null ? null : copy(this.sessions.get(uuid));
+    }
+
+    @Override
+    public Session findByDevice(UUID deviceUuid) {
+        UUID sessionUuid = this.sessionsByDevice.get(deviceUuid);
+        Session session = sessionUuid == null ? null : this.sessions.get(sessionUuid);
+        return session != null && session.deviceInSession(deviceUuid) ? copy(session) : null;
+    }
+
+    @Override
+    public List<Session> findOpenByApplication(String applicationId) {
+        List<Session> found = new ArrayList<Session>();
+        for (Session session : this.sessions.values()) {
+            if (!session.isLocked() && applicationId != null && applicationId.equals(session.getApplicationId())) {
+                found.add(copy(session));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Session> findByLocked(boolean locked) {
+        List<Session> found = new ArrayList<Session>();
+        for (Session session : this.sessions.values()) {
+            if (session.isLocked() == locked) {
+                found.add(copy(session));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Session> findStale(long insertedBefore, Session after, int limit) {
+        List<Session> found = new ArrayList<Session>();
+        for (Session session : this.sessions.values()) {
+            if (session.getInserted() != 0 && session.getInserted() <= insertedBefore
+                    && (after == null || INSERTION_ORDER.compare(session, after) > 0)) {
+                found.add(session);
+            }
+        }
+        Collections.sort(found, INSERTION_ORDER);
+        List<Session> page = new ArrayList<Session>(Math.min(found.size(), limit));
+        for (int i = 0; i < found.size() && i < limit; i++) {
+            page.add(copy(found.get(i)));
+        }
+        return page;
+    }
+
+    @Override
+    public List<Session> findAll() {
+        List<Session> found = new ArrayList<Session>();
+        for (Session session : this.sessions.values()) {
+            found.add(copy(session));
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized Session update(Session session) {
+        Session current = this.sessions.get(session.getUuid());
+        if (current == null || !current.get_rev().equals(session.get_rev())) {
+            throw new DocumentConflictException(CONFLICT);
+        }
+        session.set_rev(nextRevision(current.get_rev()));
+        store(session);
+        return session;
+    }
+
+    @Override
+    public synchronized List<String> bulk(List<Session> sessions) {
+        List<String> errors = new ArrayList<String>(sessions.size());
+        for (Session session : sessions) {
+            try {
+                if (session.is_deleted()) {
+                    delete(session);
+                    session.set_rev(nextRevision(session.get_rev()));
+                } else if (session.get_rev() == null) {
+                    create(session);
+                } else {
+                    update(session);
+                }
+                errors.add(null);
+            } catch (DocumentConflictException conflictException) {
+                errors.add(conflictException.getMessage());
+            } catch (NoDocumentException noDocumentException) {
+                errors.add(noDocumentException.getMessage());
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public synchronized void delete(Session session) {
+        Session current = this.sessions.get(session.getUuid());
+        if (current == null) {
+            throw new NoDocumentException("missing");
+        }
+        if (!current.get_rev().equals(session.get_rev())) {
+            throw new DocumentConflictException(CONFLICT);
+        }
+        remove(current);
+    }
+
+    /**
+     * mirrors a session written to another store, e.g. a change read from CouchDB's _changes feed. The session is
+     * taken as it is unless a later revision of it is already held. A deleted session may be identified by its _id
+     * alone.
+     *
+     * @param   session     the session as written to the other store, carrying the revision it was written at
+     * @return              a copy of the change as applied, a deleted session carrying its UUID, or null if the store
+     *                      already held the revision or a later one
+     */
+    public synchronized Session replicate(Session session) {
+        UUID uuid = session.getUuid();
+        if (uuid == null && session.get_id() != null) {
+            uuid = this.sessionsById.get(session.get_id());
+        }
+        Session current = uuid == null ? null : this.sessions.get(uuid);
+        if (current != null && (Revisions.isNewer(current.get_rev(), session.get_rev())
+                || (!session.is_deleted() && current.get_rev().equals(session.get_rev())))) {
+            return null;
+        }
+        if (session.is_deleted()) {
+            if (current == null) {
+                return null;
+            }
+            remove(current);
+            Session deleted = new Session(current);
+            deleted.set_rev(session.get_rev());
+            deleted.set_deleted(true);
+            return deleted;
+        } else if (uuid != null) {
+            store(session);
+            return new Session(session);
+        }
+        return null;
+    }
+
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * called with the lock held after a session has been written
+     *
+     * @param   session     the stored state of the session
+     */
+    protected void written(Session session) {
+    }
+
+    /**
+     * called with the lock held after a session has been deleted
+     *
+     * @param   session     the last stored state of the session
+     */
+    protected void deleted(Session session) {
+    }
+
+    /**
+     * puts a session into the store as it is, without checking or assigning a revision, e.g. to restore a store's
+     * contents from disk
+     *
+     * @param   session     the session
+     */
+    protected synchronized void load(Session session) {
+        if (session.is_deleted()) {
+            Session previous = this.sessions.remove(session.getUuid());
+            if (previous != null) {
+                unmap(previous);
+            }
+        } else {
+            put(session);
+        }
+    }
+
+    private void store(Session session) {
+        written(put(session));
+    }
+
+    private Session put(Session session) {
+        Session stored = new Session(session);
+        Session previous = this.sessions.put(stored.getUuid(), stored);
+        if (previous != null) {
+            unmap(previous);
+        }
+        for (Device device : stored.getDevices()) {
+            this.sessionsByDevice.put(device.getUuid(), stored.getUuid());
+        }
+        if (stored.get_id() != null) {
+            this.sessionsById.put(stored.get_id(), stored.getUuid());
+        }
+        return stored;
+    }
+
+    private void remove(Session session) {
+        this.sessions.remove(session.getUuid());
+        unmap(session);
+        deleted(session);
+    }
+
+    private void unmap(Session session) {
+        for (Device device : session.getDevices()) {
+            this.sessionsByDevice.remove(device.getUuid(), session.getUuid());
+        }
+        if (session.get_id() != null) {
+            this.sessionsById.remove(session.get_id(), session.getUuid());
+        }
+    }
+
+    private static Session copy(Session session) {
+        return session == null ? null : new Session(session);
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private static String nextRevision(String rev) {
+        return String.format("%d-%s", Revisions.generation(rev) + 1, newId());
+    }
+}
@@ -0,0 +1,234 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.metrics.LatencyHistogram;
+import com.wk.lodge.composite.metrics.StripedCounter;
+import com.wk.lodge.composite.model.Session;
+import org.lightcouch.DocumentConflictException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every call made to a session store, and counts the writes it rejects because of a conflicting revision. Calls
+ * are timed separately for each kind of call, which for the CouchDB store means for each view queried: lookups by
+ * session UUID go through app/uuid, lookups by device through app/session-id-by-device, and so on. Timing and counting
+ * allocate nothing, so the store can be metered under load.
+ */
+public class MeteredSessionStore implements SessionStore {
+    private final SessionStore sessionStore;
+    private final List<Call> calls = new ArrayList<Call>();
+    private final Call create = call("create", "_doc");
+    private final Call find = call("find", "app/uuid");
+    private final Call findById = call("findById", "_doc");
+    private final Call findByDevice = call("findByDevice", "app/session-id-by-device");
+    private final Call findOpenByApplication = call("findOpenByApplication", "app/application-id");
+    private final Call findByLocked = call("findByLocked", "app/locked-sessions");
+    private final Call findStale = call("findStale", "app/session-by-timestamp");
+    private final Call findAll = call("findAll", "app/uuid");
+    private final Call update = call("update", "_doc");
+    private final Call bulk = call("bulk", "_bulk_docs");
+    private final Call delete = call("delete", "_doc");
+    private final StripedCounter conflicts = new StripedCounter();
+
+    public MeteredSessionStore(SessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+    }
+
+    /**
+     * closes the metered store, if it holds resources of its own
+     */
+    public void close() {
+        if(this.sessionStore instanceof ReplicatedSessionStore) {
+            ((ReplicatedSessionStore) this.sessionStore).close();
+        }
+        else if(this.sessionStore instanceof DiskSessionStore) {
+            ((DiskSessionStore) this.sessionStore).close();
+        }
+    }
+
+    public SessionStore getSessionStore() {
+        return this.sessionStore;
+    }
+
+    /**
+     * @return  the calls made to the store, each with the histogram of its durations
+     */
+    public List<Call> getCalls() {
+        return Collections.unmodifiableList(this.calls);
+    }
+
+    /**
+     * @return  the number of writes rejected because they were based on an outdated revision, including those in bulk
+     *          requests
+     */
+    public long getConflicts() {
+        return this.conflicts.get();
+    }
+
+    @Override
+    public Session create(Session session) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.create(session);
+        } catch (DocumentConflictException e) {
+            this.conflicts.increment();
+            throw e;
+        } finally {
+            this.create.record(start);
+        }
+    }
+
+    @Override
+    public Session find(UUID uuid) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.find(uuid);
+        } finally {
+            this.find.record(start);
+        }
+    }
+
+    @Override
+    public Session findById(String id) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.findById(id);
+        } finally {
+            this.findById.record(start);
+        }
+    }
+
+    @Override
+    public Session findByDevice(UUID deviceUuid) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.findByDevice(deviceUuid);
+        } finally {
+            this.findByDevice.record(start);
+        }
+    }
+
+    @Override
+    public List<Session> findOpenByApplication(String applicationId) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.findOpenByApplication(applicationId);
+        } finally {
+            this.findOpenByApplication.record(start);
+        }
+    }
+
+    @Override
+    public List<Session> findByLocked(boolean locked) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.findByLocked(locked);
+        } finally {
+            this.findByLocked.record(start);
+        }
+    }
+
+    @Override
+    public List<Session> findStale(long insertedBefore, Session after, int limit) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.findStale(insertedBefore, after, limit);
+        } finally {
+            this.findStale.record(start);
+        }
+    }
+
+    @Override
+    public List<Session> findAll() {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.findAll();
+        } finally {
+            this.findAll.record(start);
+        }
+    }
+
+    @Override
+    public Session update(Session session) {
+        long start = System.nanoTime();
+        try {
+            return this.sessionStore.update(session);
+        } catch (DocumentConflictException e) {
+            this.conflicts.increment();
+            throw e;
+        } finally {
+            this.update.record(start);
+        }
+    }
+
+    @Override
+    public List<String> bulk(List<Session> sessions) {
+        long start = System.nanoTime();
+        try {
+            List<String> errors = this.sessionStore.bulk(sessions);
+            for(String error : errors) {
+                if(error != null && error.toLowerCase().contains("conflict")) {
+                    this.conflicts.increment();
+                }
+            }
+            return errors;
+        } finally {
+            this.bulk.record(start);
+        }
+    }
+
+    @Override
+    public void delete(Session session) {
+        long start = System.nanoTime();
+        try {
+            this.sessionStore.delete(session);
+        } catch (DocumentConflictException e) {
+            this.conflicts.increment();
+            throw e;
+        } finally {
+            this.delete.record(start);
+        }
+    }
+
+    private Call call(String name, String view) {
+        Call call = new Call(name, view);
+        this.calls.add(call);
+        return call;
+    }
+
+    /**
+     * a kind of call made to the store, and the histogram of its durations in microseconds
+     */
+    public static final class Call {
+        private final String name;
+        private final String view;
+        private final LatencyHistogram durations = new LatencyHistogram();
+
+        private Call(String name, String view) {
+            this.name = name;
+            this.view = view;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return  the CouchDB view the call queries, or _doc or _bulk_docs for calls that read or write documents
+         */
+        public String getView() {
+            return this.view;
+        }
+
+        public LatencyHistogram getDurations() {
+            return this.durations;
+        }
+
+        private void record(long start) {
+            this.durations.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+}
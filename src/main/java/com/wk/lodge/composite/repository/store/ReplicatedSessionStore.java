@@ -0,0 +1,119 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.model.Session;
+import org.lightcouch.CouchDbClient;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Session store that writes to CouchDB and serves reads from a local replica kept up to date by a
+ * SessionChangesFollower, so that every node sees the sessions written by every other node without querying CouchDB.
+ * The replica is a DiskSessionStore, so it survives restarts along with the follower's position in the feed.
+ *
+ * Reads fall back to CouchDB while the replica is catching up, or when the follower has not heard from CouchDB within
+ * the tolerated lag. This node's own writes are applied to the replica as soon as CouchDB accepts them. Listeners added
+ * to the follower hear of the changes made by other nodes, e.g. to keep caches in front of the store current.
+ */
+public class ReplicatedSessionStore implements SessionStore {
+    private final CouchDbSessionStore couchDbSessionStore;
+    private final DiskSessionStore replica;
+    private final SessionChangesFollower follower;
+    private final long maxLagMillis;
+
+    /**
+     * @param   couchDbSessionClient    the client for the sessions database
+     * @param   directory               the directory to keep the replica in
+     * @param   maxLagMillis            the longest time since the follower last heard from CouchDB for which reads
+     *                                  are still served from the replica
+     */
+    public ReplicatedSessionStore(CouchDbClient couchDbSessionClient, String directory, long maxLagMillis) {
+        this.couchDbSessionStore = new CouchDbSessionStore(couchDbSessionClient);
+        this.replica = new DiskSessionStore(directory);
+        this.maxLagMillis = maxLagMillis;
+        this.follower = new SessionChangesFollower(couchDbSessionClient, this.replica, directory,
+                Math.max(maxLagMillis / 2, 1));
+        this.follower.start();
+    }
+
+    public void close() {
+        this.follower.stop();
+        this.replica.close();
+    }
+
+    public SessionChangesFollower getFollower() {
+        return this.follower;
+    }
+
+    @Override
+    public Session create(Session session) {
+        this.couchDbSessionStore.create(session);
+        this.replica.replicate(session);
+        return session;
+    }
+
+    @Override
+    public Session find(UUID uuid) {
+        return reads().find(uuid);
+    }
+
+    @Override
+    public Session findById(String id) {
+        return reads().findById(id);
+    }
+
+    @Override
+    public Session findByDevice(UUID deviceUuid) {
+        return reads().findByDevice(deviceUuid);
+    }
+
+    @Override
+    public List<Session> findOpenByApplication(String applicationId) {
+        return reads().findOpenByApplication(applicationId);
+    }
+
+    @Override
+    public List<Session> findByLocked(boolean locked) {
+        return reads().findByLocked(locked);
+    }
+
+    @Override
+    public List<Session> findStale(long insertedBefore, Session after, int limit) {
+        return reads().findStale(insertedBefore, after, limit);
+    }
+
+    @Override
+    public List<Session> findAll() {
+        return reads().findAll();
+    }
+
+    @Override
+    public Session update(Session session) {
+        this.couchDbSessionStore.update(session);
+        this.replica.replicate(session);
+        return session;
+    }
+
+    @Override
+    public List<String> bulk(List<Session> sessions) {
+        List<String> errors = this.couchDbSessionStore.bulk(sessions);
+        for (int i = 0; i < sessions.size(); i++) {
+            if (errors.get(i) == null) {
+                this.replica.replicate(sessions.get(i));
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public void delete(Session session) {
+        this.couchDbSessionStore.delete(session);
+        Session deleted = new Session(session);
+        deleted.set_deleted(true);
+        this.replica.replicate(deleted);
+    }
+
+    private SessionStore reads() {
+        return this.follower.isCurrent(this.maxLagMillis) ? this.replica : this.couchDbSessionStore;
+    }
+}
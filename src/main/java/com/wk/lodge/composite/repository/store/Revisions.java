@@ -0,0 +1,35 @@
+package com.wk.lodge.composite.repository.store;
+
+/**
+ * CouchDB document revisions, e.g. "3-917fa2381192822767f010b95b45325b", begin with a generation number that each write
+ * of the document increases by one. Comparing generations tells which of two copies of a session was written later,
+ * which the in-memory stores, cache and indexes rely on to never replace a copy with an older one.
+ */
+public final class Revisions {
+
+    private Revisions() {
+    }
+
+    /**
+     * @param   rev     a CouchDB document revision, e.g. "3-917fa2381192822767f010b95b45325b"
+     * @return          the revision's generation number, or 0 if it has none
+     */
+    public static long generation(String rev) {
+        if (rev == null) {
+            return 0;
+        }
+        int dash = rev.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? rev : rev.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return  true if rev was written after other, judged by their generations
+     */
+    public static boolean isNewer(String rev, String other) {
+        return generation(rev) > generation(other);
+    }
+}
@@ -0,0 +1,258 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.wk.lodge.composite.model.Session;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lightcouch.Changes;
+import org.lightcouch.ChangesResult;
+import org.lightcouch.CouchDbClient;
+import org.lightcouch.CouchDbException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Follows the sessions database's _changes feed on a background thread and mirrors every session document into a
+ * local replica. On start it catches up from the last sequence it saw with the normal feed, one page at a time, and then
+ * switches to the continuous feed. The last sequence applied is saved next to the replica's journal, so a restarted
+ * follower resumes where it stopped instead of reading the whole feed again.
+ *
+ * The continuous feed is requested with a heartbeat, so a healthy follower hears from CouchDB at least once per
+ * heartbeat even when nothing changes; isCurrent tells readers whether that has happened recently enough.
+ *
+ * Listeners are told of every change that the replica did not already hold, i.e. of the changes made by other nodes,
+ * so that what this node keeps in memory besides the replica can follow them too.
+ */
+public class SessionChangesFollower implements Runnable {
+    private static final Log logger = LogFactory.getLog(SessionChangesFollower.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEQUENCE_NAME = "changes.seq";
+    private static final int CATCH_UP_PAGE_SIZE = 1000;
+    private static final long SEQUENCE_SAVE_INTERVAL_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * told of the session changes the follower applies to its replica
+     */
+    public interface Listener {
+        /**
+         * called on the follower's thread, in feed order
+         *
+         * @param   session     the session as changed; a deleted session carries its UUID and is marked deleted
+         */
+        void changed(Session session);
+    }
+
+    private final CouchDbClient couchDbSessionClient;
+    private final InMemorySessionStore replica;
+    private final File sequenceFile;
+    private final long heartbeatMillis;
+    private final Gson gson = new Gson();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile String sequence;
+    private volatile boolean caughtUp;
+    private volatile long lastContact;
+    private volatile boolean running;
+    private volatile Changes changes;
+    private long sequenceSaved;
+    private Thread thread;
+
+    /**
+     * @param   couchDbSessionClient    the client for the sessions database
+     * @param   replica                 the store to mirror sessions into
+     * @param   directory               the directory to save the last applied sequence in
+     * @param   heartbeatMillis         how often CouchDB should send a heartbeat on an idle feed
+     */
+    public SessionChangesFollower(CouchDbClient couchDbSessionClient, InMemorySessionStore replica, String directory,
+                                  long heartbeatMillis) {
+        this.couchDbSessionClient = couchDbSessionClient;
+        this.replica = replica;
+        this.sequenceFile = new File(directory, SEQUENCE_NAME);
+        this.heartbeatMillis = heartbeatMillis;
+        this.sequence = readSequence();
+    }
+
+    public synchronized void start() {
+        if (this.thread == null) {
+            this.running = true;
+            this.thread = new Thread(this, "session-changes-follower");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        this.running = false;
+        Changes current = this.changes;
+        if (current != null) {
+            current.stop();
+        }
+        if (this.thread != null) {
+            this.thread.interrupt();
+            try {
+                this.thread.join(this.heartbeatMillis + RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.thread = null;
+        }
+        saveSequence();
+    }
+
+    /**
+     * @param   maxLagMillis    the longest time since the follower last heard from CouchDB that is tolerated
+     * @return                  boolean, whether the replica has caught up with the feed and is still following it
+     */
+    public boolean isCurrent(long maxLagMillis) {
+        return this.caughtUp && System.currentTimeMillis() - this.lastContact <= maxLagMillis;
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public String getSequence() {
+        return this.sequence;
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                catchUp();
+                follow();
+            } catch (CouchDbException e) {
+                logger.error(String.format("Following session changes failed, retrying: %s", e.getMessage()));
+            }
+            this.caughtUp = false;
+            saveSequence();
+            if (this.running) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void catchUp() {
+        List<ChangesResult.Row> rows;
+        do {
+            ChangesResult result = this.couchDbSessionClient.changes()
+                    .includeDocs(true)
+                    .since(this.sequence)
+                    .limit(CATCH_UP_PAGE_SIZE)
+                    .getChanges();
+            rows = result.getResults() == null ? Collections.<ChangesResult.Row>emptyList() : result.getResults();
+            for (ChangesResult.Row row : rows) {
+                apply(row);
+            }
+            if (result.getLastSeq() != null) {
+                this.sequence = result.getLastSeq();
+            }
+            this.lastContact = System.currentTimeMillis();
+        } while (this.running && rows.size() >= CATCH_UP_PAGE_SIZE);
+        saveSequence();
+        this.caughtUp = true;
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Session replica caught up at sequence %s", this.sequence));
+        }
+    }
+
+    private void follow() {
+        this.changes = this.couchDbSessionClient.changes()
+                .includeDocs(true)
+                .since(this.sequence)
+                .heartBeat(this.heartbeatMillis)
+                .continuousChanges();
+        try {
+            while (this.running && this.changes.hasNext()) {
+                // heartbeats arrive as empty rows
+                ChangesResult.Row row = this.changes.next();
+                this.lastContact = System.currentTimeMillis();
+                if (row != null) {
+                    apply(row);
+                    this.sequence = row.getSeq();
+                    if (this.lastContact - this.sequenceSaved >= SEQUENCE_SAVE_INTERVAL_MILLIS) {
+                        saveSequence();
+                    }
+                }
+            }
+        } finally {
+            this.changes.stop();
+            this.changes = null;
+        }
+    }
+
+    private void apply(ChangesResult.Row row) {
+        JsonObject doc = row.getDoc();
+        if (row.isDeleted() || doc == null || (doc.has("_deleted") && doc.get("_deleted").getAsBoolean())) {
+            Session deleted = new Session();
+            deleted.setUuid(null);
+            deleted.set_id(row.getId());
+            deleted.set_rev(doc != null && doc.has("_rev") ? doc.get("_rev").getAsString()
+                    : row.getChanges() == null || row.getChanges().isEmpty() ? null : row.getChanges().get(0).getRev());
+            deleted.set_deleted(true);
+            announce(this.replica.replicate(deleted));
+        } else if (doc.has("uuid")) {
+            // anything without a uuid, e.g. the design document, is not a session
+            announce(this.replica.replicate(this.gson.fromJson(doc, Session.class)));
+        }
+    }
+
+    private void announce(Session applied) {
+        if (applied == null) {
+            return;
+        }
+        for (Listener listener : this.listeners) {
+            try {
+                listener.changed(applied);
+            } catch (RuntimeException e) {
+                logger.error(String.format("Error handling a change to session %s: %s", applied.getUuid(),
+                        e.getMessage()));
+            }
+        }
+    }
+
+    private String readSequence() {
+        try {
+            if (this.sequenceFile.exists()) {
+                String saved = new String(Files.readAllBytes(this.sequenceFile.toPath()), UTF_8).trim();
+                if (!saved.isEmpty()) {
+                    return saved;
+                }
+            }
+        } catch (IOException e) {
+            logger.error(String.format("Error reading %s, following session changes from the start: %s",
+                    this.sequenceFile, e.getMessage()));
+        }
+        return "0";
+    }
+
+    private void saveSequence() {
+        synchronized (this.sequenceFile) {
+            saveSequence(this.sequence);
+        }
+    }
+
+    private void saveSequence(String sequence) {
+        File saving = new File(this.sequenceFile.getParentFile(), SEQUENCE_NAME + ".tmp");
+        try {
+            Files.write(saving.toPath(), sequence.getBytes(UTF_8));
+            Files.move(saving.toPath(), this.sequenceFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            this.sequenceSaved = System.currentTimeMillis();
+        } catch (IOException e) {
+            logger.error(String.format("Error saving session changes sequence: %s", e.getMessage()));
+        }
+    }
+}
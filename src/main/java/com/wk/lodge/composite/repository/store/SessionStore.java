@@ -0,0 +1,94 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.model.Session;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Document store that sessions are persisted to. Every implementation follows CouchDB's optimistic concurrency
+ * model: a write carries the revision it was based on, the store assigns a new revision to each successful write, and a
+ * write based on anything but the current revision is rejected with an org.lightcouch.DocumentConflictException.
+ * Failures of the store itself are signalled with an org.lightcouch.CouchDbException.
+ *
+ * Sessions passed to a store are not retained by it, and sessions returned by it are not shared with other callers.
+ */
+public interface SessionStore {
+
+    /**
+     * persists a new session, assigning its _id and _rev
+     *
+     * @param   session     the new session
+     * @return              the session
+     */
+    Session create(Session session);
+
+    /**
+     * @param   uuid    the session's UUID
+     * @return          the session, or null if it does not exist
+     */
+    Session find(UUID uuid);
+
+    /**
+     * @param   id  the session's _id
+     * @return      the session, or null if it does not exist
+     */
+    Session findById(String id);
+
+    /**
+     * @param   deviceUuid  the UUID of a device assumed to be in a session
+     * @return              the session containing the device, or null if there is none
+     */
+    Session findByDevice(UUID deviceUuid);
+
+    /**
+     * @param   applicationId   an application id
+     * @return                  the application's unlocked sessions
+     */
+    List<Session> findOpenByApplication(String applicationId);
+
+    /**
+     * @param   locked  whether to find locked or unlocked sessions
+     * @return          every session whose lock status matches
+     */
+    List<Session> findByLocked(boolean locked);
+
+    /**
+     * pages through the sessions inserted at or before a given time, in order of insertion time and then _id
+     *
+     * @param   insertedBefore  a time in epoch milliseconds
+     * @param   after           the last session of the previous page, or null for the first page
+     * @param   limit           the maximum number of sessions to return
+     * @return                  up to limit sessions inserted at or before the given time, following after
+     */
+    List<Session> findStale(long insertedBefore, Session after, int limit);
+
+    /**
+     * @return  every session in the store
+     */
+    List<Session> findAll();
+
+    /**
+     * writes a new state of an existing session, assigning its new _rev
+     *
+     * @param   session     the session, carrying the revision it is based on
+     * @return              the session
+     */
+    Session update(Session session);
+
+    /**
+     * writes several new, changed or deleted sessions in one request. Each session is written or rejected on its own;
+     * sessions that are written have their _id and _rev assigned.
+     *
+     * @param   sessions    the sessions to write
+     * @return              for each session, in order, null if it was written, otherwise the reason it was not
+     */
+    List<String> bulk(List<Session> sessions);
+
+    /**
+     * deletes a session
+     *
+     * @param   session     the session, carrying its current revision
+     */
+    void delete(Session session);
+}
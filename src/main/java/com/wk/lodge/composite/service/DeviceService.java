@@ -1,5 +1,6 @@
 package com.wk.lodge.composite.service;
 
+import com.wk.lodge.composite.metrics.LatencyHistogram;
 import com.wk.lodge.composite.registry.DeviceRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -8,8 +9,13 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.HashSet;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class DeviceService {
@@ -18,6 +24,11 @@ public class DeviceService {
     private SessionService sessionService;
     @Value("${deleteUnhealthyDevices}")
     private boolean runScheduledTask;
+    private final Queue<UUID> disconnectedDevices = new ConcurrentLinkedQueue<UUID>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong sweeps = new AtomicLong();
+    private volatile long lastSweepMillis;
+    private final LatencyHistogram sweepMillis = new LatencyHistogram();
 
     @Autowired
     public void setDeviceRegistry(DeviceRegistry deviceRegistry) {
@@ -33,22 +44,97 @@ public class DeviceService {
      * Manages deletion of unhealthy devices from sessions. An unhealthy device is defined as a device that hasn't sent
      * the service a ping inside of a certain time threshold.
      *
-     * If the device is marked as unhealthy, and it is not successfully deleted from the session to which it belonged,
-     * it is added back into the healthy device registry so that its deletion can be reattempted on the next pass. The
-     * main reason it might fail to be deleted would be a thrown DocumentConflict exception when trying to update CouchDB.
+     * Unhealthy devices are deleted together, so that each affected session is updated once however many of its devices
+     * dropped. If a device is not successfully deleted from the session to which it belonged, it is added back into the
+     * healthy device registry so that its deletion can be reattempted on a later pass. The main reason it might fail to
+     * be deleted would be a thrown DocumentConflict exception when trying to update CouchDB.
+     * <p>
+     * Only devices that have gone silent are left to this pass; devices whose connection closed are evicted at once.
      * <p>
      * Scheduled by default to run every 2.5 seconds
      */
     @Scheduled(fixedRate=2000)
     public void deleteUnhealthyDevices() {
         if(runScheduledTask) {
+            long start = System.currentTimeMillis();
             Set<UUID> unhealthyDevices = this.deviceRegistry.getUnhealthyDevices();
-            for(UUID uuid : unhealthyDevices) {
-                if(!this.sessionService.deleteDeviceFromSessionByDeviceUuid(uuid.toString())) {
-                    this.deviceRegistry.addHealthyDevice(uuid.toString());
+            Set<UUID> failed = delete(unhealthyDevices);
+            this.lastSweepMillis = System.currentTimeMillis() - start;
+            this.sweepMillis.record(this.lastSweepMillis);
+            this.sweeps.incrementAndGet();
+            if(!unhealthyDevices.isEmpty()) {
+                logger.info(String.format("Deleted %d of %d unhealthy devices in %d ms",
+                    unhealthyDevices.size() - failed.size(), unhealthyDevices.size(), this.lastSweepMillis));
+            }
+            else if(logger.isDebugEnabled()) logger.debug("Cleaning up unhealthy devices");
+        }
+    }
+
+    /**
+     * deletes a device from its session as soon as its connection to the server has closed, rather than waiting for it
+     * to be found unhealthy. Evictions are grouped: while one thread is deleting devices, devices that disconnect
+     * meanwhile are queued, and that thread deletes them next, together, so that a session losing several devices at
+     * once, e.g. when a network drops, is written once rather than once per device. A queued device which reconnects
+     * before its turn stays in its session; one whose deletion fails is added back into the healthy device registry so
+     * that its deletion is reattempted once it has timed out.
+     *
+     * @param   uuid    String representation of the device's UUID
+     */
+    public void evictDevice(String uuid) {
+        this.deviceRegistry.removeDevice(uuid);
+        this.disconnectedDevices.add(UUID.fromString(uuid));
+        // checked again once the flag is cleared, so that a device queued just before that is not left behind
+        while(!this.disconnectedDevices.isEmpty() && this.evicting.compareAndSet(false, true)) {
+            try {
+                Set<UUID> disconnected = drainDisconnectedDevices();
+                Set<UUID> failed = delete(disconnected);
+                if(logger.isDebugEnabled()) {
+                    logger.debug(String.format("Evicted %d of %d disconnected devices",
+                        disconnected.size() - failed.size(), disconnected.size()));
                 }
+            } finally {
+                this.evicting.set(false);
             }
-            if(logger.isDebugEnabled()) logger.debug("Cleaning up unhealthy devices");
         }
     }
+
+    private Set<UUID> drainDisconnectedDevices() {
+        Set<UUID> disconnected = new HashSet<UUID>();
+        UUID uuid;
+        while((uuid = this.disconnectedDevices.poll()) != null) {
+            if(!this.deviceRegistry.isHealthyDevice(uuid.toString())) {
+                disconnected.add(uuid);
+            }
+        }
+        return disconnected;
+    }
+
+    /**
+     * @return  the devices which could not be deleted, each added back into the healthy device registry
+     */
+    private Set<UUID> delete(Set<UUID> devices) {
+        Set<UUID> failed = devices.isEmpty() ? devices : this.sessionService.deleteDevicesFromSessions(devices);
+        for(UUID uuid : failed) {
+            this.deviceRegistry.addHealthyDevice(uuid.toString());
+        }
+        return failed;
+    }
+
+    public long getSweeps() {
+        return this.sweeps.get();
+    }
+
+    /**
+     * @return  the time taken by the latest unhealthy device sweep, in milliseconds
+     */
+    public long getLastSweepMillis() {
+        return this.lastSweepMillis;
+    }
+
+    /**
+     * @return  the histogram of the time taken by each unhealthy device sweep, in milliseconds
+     */
+    public LatencyHistogram getSweepMillis() {
+        return this.sweepMillis;
+    }
 }
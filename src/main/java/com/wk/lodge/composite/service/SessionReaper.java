@@ -0,0 +1,113 @@
+package com.wk.lodge.composite.service;
+
+import com.wk.lodge.composite.metrics.LatencyHistogram;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically deletes stale sessions. Each run pages through the sessions inserted before the stale session threshold
+ * and deletes the stale ones in bulk, one page at a time, pausing between pages so that a large backlog - e.g. after
+ * an event - is worked off without monopolizing the document store.
+ *
+ * Runs are scheduled with a fixed delay, so a run never overlaps the previous one.
+ */
+@Service
+public class SessionReaper {
+    private static final Log logger = LogFactory.getLog(SessionReaper.class);
+    private final SessionService sessionService;
+    private final int staleSessionMinutes;
+    private final int pageSize;
+    private final long pauseMillis;
+    @Value("${sessionReaper.enabled}")
+    private boolean enabled;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    private volatile int lastReaped;
+    private volatile long lastRunMillis;
+    private final LatencyHistogram runMillis = new LatencyHistogram();
+
+    @Autowired
+    public SessionReaper(
+        SessionService sessionService,
+        @Value("${staleSessionMinutes}") int staleSessionMinutes,
+        @Value("${sessionReaper.pageSize}") int pageSize,
+        @Value("${sessionReaper.pauseMillis}") long pauseMillis
+    ) {
+        this.sessionService = sessionService;
+        this.staleSessionMinutes = staleSessionMinutes;
+        this.pageSize = pageSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * reaps stale sessions if the reaper is enabled, and forgets the stale sessions held in memory either way, as
+     * another server may be the one reaping them
+     * <p>
+     * Scheduled by default to run every minute
+     */
+    @Scheduled(fixedDelayString = "${sessionReaper.intervalMillis}")
+    public void run() {
+        if(this.enabled) {
+            reap();
+        }
+        this.sessionService.forgetStale(this.staleSessionMinutes);
+    }
+
+    /**
+     * deletes every session that is stale at the start of the run
+     *
+     * @return  the number of sessions deleted
+     */
+    public int reap() {
+        long start = System.currentTimeMillis();
+        int count = this.sessionService.deleteStale(this.staleSessionMinutes, this.pageSize, this.pauseMillis);
+        this.lastRunMillis = System.currentTimeMillis() - start;
+        this.runMillis.record(this.lastRunMillis);
+        this.lastReaped = count;
+        this.reaped.addAndGet(count);
+        this.runs.incrementAndGet();
+        if(count > 0 || logger.isDebugEnabled()) {
+            logger.info(String.format("Reaped %d stale sessions in %d ms", count, this.lastRunMillis));
+        }
+        return count;
+    }
+
+    public long getRuns() {
+        return this.runs.get();
+    }
+
+    public long getReaped() {
+        return this.reaped.get();
+    }
+
+    /**
+     * @return  the number of sessions deleted by the latest run
+     */
+    public int getLastReaped() {
+        return this.lastReaped;
+    }
+
+    /**
+     * @return  the time taken by the latest run, in milliseconds
+     */
+    public long getLastRunMillis() {
+        return this.lastRunMillis;
+    }
+
+    /**
+     * @return  the histogram of the time taken by each run, in milliseconds
+     */
+    public LatencyHistogram getRunMillis() {
+        return this.runMillis;
+    }
+}
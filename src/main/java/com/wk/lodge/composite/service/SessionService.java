@@ -5,12 +5,19 @@ import com.wk.lodge.composite.repository.SessionRepository;
 import com.wk.lodge.composite.web.socket.message.inbound.PairMessage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 @Service
 public class SessionService {
+    private static final int DEFAULT_STALE_PAGE_SIZE = 500;
 
     private SessionRepository sessionRepository;
 
@@ -33,6 +40,18 @@ public class SessionService {
         return this.sessionRepository.find(id);
     }
 
+    /**
+     * Gets the application id of a session this server holds in memory, without reading the document store
+     *
+     * @param   id  String representation of session's UUID
+     * @return      the session's application id, or null if the session is not known to this server
+     *
+     * @see     SessionRepository#findApplicationId(String)
+     */
+    public String getApplicationId(String id)  {
+        return this.sessionRepository.findApplicationId(id);
+    }
+
     /**
      * gets an existing, or creates a new, session from a device's join message to the service. The join message contains
      * geo information which is what is used to determine if a new session should be created, or if an existing one
@@ -58,6 +77,36 @@ public class SessionService {
         return this.sessionRepository.pair(p);
     }
 
+    /**
+     * Asynchronous variant of get(Object)
+     *
+     * @param   o   the join message sent by the inbound device
+     * @return      the session the device joined, once it has been placed
+     *
+     * @see     SessionRepository#getOrCreateAsync(Object)
+     */
+    public ListenableFuture<Session> getAsync(Object o)  {
+        return this.sessionRepository.getOrCreateAsync(o);
+    }
+
+    /**
+     * Asynchronous variant of get(String)
+     *
+     * @see     SessionRepository#findAsync(String)
+     */
+    public ListenableFuture<Session> getAsync(String id)  {
+        return this.sessionRepository.findAsync(id);
+    }
+
+    /**
+     * Asynchronous variant of pair
+     *
+     * @see     SessionRepository#pairAsync(PairMessage)
+     */
+    public ListenableFuture<Session> pairAsync(PairMessage p){
+        return this.sessionRepository.pairAsync(p);
+    }
+
     /**
      * updates an existing session with new session information
      *
@@ -70,6 +119,15 @@ public class SessionService {
         return this.sessionRepository.update(session);
     }
 
+    /**
+     * Asynchronous variant of update
+     *
+     * @see     SessionRepository#updateAsync(com.wk.lodge.composite.model.Session)
+     */
+    public ListenableFuture<Session> updateAsync(Session session)  {
+        return this.sessionRepository.updateAsync(session);
+    }
+
     /**
      * deletes sessions marked as stale by warrant of the threshold passed into the method. Sessions that are considered
      * stale are either sessions that are locked and haven't been updated within the threshold in minutes, or are unlocked
@@ -78,38 +136,76 @@ public class SessionService {
      * @param   threshold   int, the threshold in minutes prior to which sessions are considered stale
      * @return              the count of sessions that were deleted
      *
-     * @see     SessionRepository#findStale(int)
-     * @see     SessionRepository#bulkUpdate(java.util.List)
+     * @see     #deleteStale(int, int, long)
      */
     public int deleteStale(int threshold)  {
-        List<Session> staleSessions = this.sessionRepository.findStale(threshold);
-        long thresholdMilliseconds = threshold*60000;
+        return deleteStale(threshold, DEFAULT_STALE_PAGE_SIZE, 0);
+    }
+
+    /**
+     * deletes stale sessions a page at a time, so that neither the query for stale sessions nor the bulk delete that
+     * follows it grows with the number of stale sessions. Only the sessions actually deleted are counted; one that fails
+     * to delete, e.g. because it was written meanwhile, is left for the next call. Stops early if a whole page fails,
+     * leaving the remaining sessions for the next call as well.
+     *
+     * @param   threshold   int, the threshold in minutes prior to which sessions are considered stale
+     * @param   pageSize    int, the number of stale sessions to read and delete at a time
+     * @param   pauseMillis long, the number of milliseconds to wait between pages
+     * @return              the count of sessions that were deleted
+     *
+     * @see     SessionRepository#findStale(long, Session, int)
+     * @see     SessionRepository#bulkUpdate(java.util.List)
+     */
+    public int deleteStale(int threshold, int pageSize, long pauseMillis)  {
+        long thresholdMilliseconds = threshold*60000L;
+        long now = new Date().getTime();
         int deleteCount = 0;
-        if(staleSessions != null){
-            long now = new Date().getTime();
-            for(Session s: staleSessions){
-                // if the game is still locked and the last update was more than 5 minutes ago, mark the session for deletion
-                if(s.isLocked()){
-                    if(now-s.getUpdated() > thresholdMilliseconds){
-                        s.set_deleted(true);
-                        deleteCount++;
-                    }
+        Session after = null;
+        List<Session> page;
+        while((page = this.sessionRepository.findStale(now - thresholdMilliseconds, after, pageSize)) != null){
+            List<Session> staleSessions = new ArrayList<Session>();
+            for(Session s: page){
+                if(isStale(s, now, thresholdMilliseconds)){
+                    s.set_deleted(true);
+                    staleSessions.add(s);
+                }
+            }
+            if(!staleSessions.isEmpty()){
+                // sessions that fail to delete are still in the store, so the next run reads them again
+                Set<UUID> failed = this.sessionRepository.bulkUpdate(staleSessions);
+                deleteCount += staleSessions.size() - failed.size();
+                if(failed.size() == staleSessions.size()){
+                    break;
+                }
+            }
+            if(page.size() < pageSize){
+                break;
+            }
+            after = page.get(page.size() - 1);
+            if(pauseMillis > 0){
+                try {
+                    Thread.sleep(pauseMillis);
                 }
-                // if the game is unlocked, and the gameEnded timestamp is more than (threshold) minutes ago,
-                // or if the last update was more than (threshold) minutes ago, mark the session for deletion
-                else{
-                    if((now - s.getSessionEnded() > thresholdMilliseconds) || (now - s.getUpdated() > thresholdMilliseconds)){
-                        s.set_deleted(true);
-                        deleteCount++;
-                    }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
-            this.sessionRepository.bulkUpdate(staleSessions);
         }
 
         return deleteCount;
     }
 
+    private static boolean isStale(Session s, long now, long thresholdMilliseconds){
+        // if the game is still locked and the last update was more than (threshold) minutes ago, it is stale
+        if(s.isLocked()){
+            return now - s.getUpdated() > thresholdMilliseconds;
+        }
+        // if the game is unlocked, and the gameEnded timestamp is more than (threshold) minutes ago,
+        // or if the last update was more than (threshold) minutes ago, it is stale
+        return (now - s.getSessionEnded() > thresholdMilliseconds) || (now - s.getUpdated() > thresholdMilliseconds);
+    }
+
     /**
      * deletes a device from a session by the device UUID
      *
@@ -122,4 +218,56 @@ public class SessionService {
         return this.sessionRepository.removeDeviceFromSessionByDeviceUuid(uuid);
     }
 
+    /**
+     * Asynchronous variant of deleteDeviceFromSessionByDeviceUuid
+     *
+     * @see     SessionRepository#removeDeviceFromSessionByDeviceUuidAsync(String)
+     */
+    public ListenableFuture<Boolean> deleteDeviceFromSessionByDeviceUuidAsync(String uuid) {
+        return this.sessionRepository.removeDeviceFromSessionByDeviceUuidAsync(uuid);
+    }
+
+    /**
+     * deletes many devices from their sessions at once, writing each affected session once
+     *
+     * @param   uuids   the UUIDs of the devices to delete
+     * @return          the UUIDs of the devices whose deletion failed and should be reattempted
+     *
+     * @see     SessionRepository#removeDevicesFromSessions(java.util.Collection)
+     */
+    public Set<UUID> deleteDevicesFromSessions(Collection<UUID> uuids) {
+        return this.sessionRepository.removeDevicesFromSessions(uuids);
+    }
+
+    /**
+     * counts the live sessions this server has read or written, i.e. those it has not seen end, be deleted or go stale
+     *
+     * @param   locked  whether to count the locked sessions or the open ones
+     * @return          the number of sessions, by application id and then by room
+     *
+     * @see     com.wk.lodge.composite.repository.DeviceIndex#countSessions(boolean)
+     */
+    public Map<String, Map<String, Integer>> countSessions(boolean locked) {
+        return this.sessionRepository.getDeviceIndex().countSessions(locked);
+    }
+
+    /**
+     * forgets the stale sessions this server holds in memory, whichever server deletes them from the document store
+     *
+     * @param   threshold   int, the threshold in minutes prior to which sessions are considered stale
+     * @return              the number of sessions forgotten
+     *
+     * @see     com.wk.lodge.composite.repository.DeviceIndex#prune(long)
+     */
+    public int forgetStale(int threshold) {
+        return this.sessionRepository.getDeviceIndex().prune(new Date().getTime() - threshold*60000L);
+    }
+
+    /**
+     * @see     SessionRepository#getConflictSessions()
+     */
+    public long getConflictSessions() {
+        return this.sessionRepository.getConflictSessions();
+    }
+
 }
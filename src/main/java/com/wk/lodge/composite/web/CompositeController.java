@@ -1,10 +1,12 @@
 
 package com.wk.lodge.composite.web;
 
-import com.google.gson.Gson;
 import com.wk.lodge.composite.model.Session;
 import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.registry.SessionStateRegistry;
+import com.wk.lodge.composite.repository.SessionDispatcher;
 import com.wk.lodge.composite.service.SessionService;
+import com.wk.lodge.composite.web.socket.message.codec.MessageCodec;
 import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
 import com.wk.lodge.composite.web.socket.message.inbound.PairMessage;
 import com.wk.lodge.composite.web.socket.message.inbound.SyncMessage;
@@ -12,17 +14,20 @@ import com.wk.lodge.composite.web.socket.message.outbound.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
 import org.springframework.messaging.handler.annotation.MessageExceptionHandler;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.annotation.SendToUser;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.concurrent.ListenableFutureCallback;
 
 import java.security.Principal;
 import java.util.Date;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 @Controller
 public class CompositeController {
@@ -31,7 +36,12 @@ public class CompositeController {
     private SimpMessagingTemplate template;
     private final SessionService sessionService;
     private final DeviceRegistry deviceRegistry;
-    private final Gson gson;
+    private SessionStateRegistry sessionStates;
+    private SessionDispatcher sessionDispatcher;
+    @Value("${sessionState.enabled}")
+    private boolean sessionStateEnabled;
+    @Value("${sessionAsync.enabled}")
+    private boolean sessionAsyncEnabled;
 
     @Autowired
     public CompositeController(SessionService sessionService,
@@ -39,7 +49,24 @@ public class CompositeController {
         this.sessionService = sessionService;
         this.template = template;
         this.deviceRegistry = deviceRegistry;
-        this.gson = new Gson();
+    }
+
+    @Autowired
+    public void setSessionStateRegistry(SessionStateRegistry sessionStates) {
+        this.sessionStates = sessionStates;
+    }
+
+    @Autowired(required = false)
+    public void setSessionDispatcher(SessionDispatcher sessionDispatcher) {
+        this.sessionDispatcher = sessionDispatcher;
+    }
+
+    public void setSessionStateEnabled(boolean sessionStateEnabled) {
+        this.sessionStateEnabled = sessionStateEnabled;
+    }
+
+    public void setSessionAsyncEnabled(boolean sessionAsyncEnabled) {
+        this.sessionAsyncEnabled = sessionAsyncEnabled;
     }
 
     /**
@@ -48,84 +75,112 @@ public class CompositeController {
      * interacting with Composite.
      *
      * @param   principal   the device principal that sent the init request
-     * @return              stringified InitResponse
+     * @return              InitResponse
      *
      * @see     InitResponse
      */
     @MessageMapping("/init")
     @SendToUser("/queue/device")
-    public String init(Principal principal) {
+    public InitResponse init(Principal principal) {
         this.deviceRegistry.addHealthyDevice(principal.getName());
-        String initResponse = gson.toJson(new InitResponse(principal.getName()), InitResponse.class);
+        InitResponse initResponse = new InitResponse(principal.getName());
         if(logger.isDebugEnabled())
-            logger.debug(String.format("INIT RESPONSE: %s", initResponse));
+            logger.debug(String.format("INIT RESPONSE: %s", MessageCodec.toJson(initResponse)));
         return initResponse;
     }
 
     /**
      * direct message handler that receives a join message from a device. When a device joins, a session is attempted to
      * be found within a tolerated geo-proximity. if one is found, the device is added to it and returned, if not, a
-     * new session is created.
+     * new session is created. When session calls are asynchronous, the response is sent to the device once the join
+     * has been placed, and the inbound thread is released at once.
      *
-     * @param   j   a stringified JoinMessage sent from the device seeking to join a session
-     * @return      stringified JoinResponse
+     * @param   principal   the device principal seeking to join a session
+     * @param   j           a stringified JoinMessage sent from the device seeking to join a session
+     * @return              JoinResponse, or null if it is sent asynchronously
      *
      * @see     JoinMessage
      * @see     JoinResponse
      */
     @MessageMapping("/join")
     @SendToUser("/queue/device")
-    public String join(JoinMessage j) {
+    public JoinResponse join(Principal principal, JoinMessage j) {
         String joinType = j.getType().toString();
         switch(joinType){
             case "enter":
                 break;
             case "exit":
-                Session session = (Session) this.sessionService.get(j);
-                String uuid = session.getUuid().toString();
-                //Return join
-                String joinResponse = gson.toJson(new JoinResponse(session.getApplicationId(), uuid, session.getDevices(), session.getRoom()), JoinResponse.class);
-                if(logger.isDebugEnabled())
-                    logger.debug(String.format("JOIN RESPONSE: %s", joinResponse));
-                return joinResponse;
+                if(this.sessionAsyncEnabled){
+                    this.sessionService.getAsync(j).addCallback(new ReplyCallback(principal) {
+                        @Override
+                        protected BeanResponse reply(Session session) {
+                            return joinResponse(session);
+                        }
+                    });
+                    return null;
+                }
+                return joinResponse((Session) this.sessionService.get(j));
             default:
                 logger.error(String.format("Detected SyncType %s not supported", joinType));
         }
         return null;
     }
 
+    private JoinResponse joinResponse(Session session) {
+        String uuid = session.getUuid().toString();
+        //Return join
+        JoinResponse joinResponse = new JoinResponse(session.getApplicationId(), uuid, session.getDevices(), session.getRoom());
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("JOIN RESPONSE: %s", MessageCodec.toJson(joinResponse)));
+        return joinResponse;
+    }
+
     /**
      * Direct message handler that receives pair message from a device. When device joins, session is found or a new
-     * pair session is created.
+     * pair session is created. When session calls are asynchronous, the response is sent to the device once the
+     * device has been paired, and the inbound thread is released at once.
      *
-     * @param p     Stringified PairMessage sent from device seeking to pair up with another device
-     * @return      Stringified PairResponse
+     * @param principal     the device principal seeking to pair up with another device
+     * @param p             Stringified PairMessage sent from device seeking to pair up with another device
+     * @return              PairResponse, or null if it is sent asynchronously
      *
      * @see         PairResponse
      * @see         PairMessage
      */
     @MessageMapping("/pair")
     @SendToUser("/queue/device")
-    public String pair(PairMessage p){
+    public PairResponse pair(Principal principal, PairMessage p){
         String pairType = p.getType().toString();
         switch(pairType){
             case "enter":
                 break;
             case "exit":
-                Session session = this.sessionService.pair(p);
-                String uuid = session.getUuid().toString();
-                // Return pair
-                String pairResponse = gson.toJson(new PairResponse(session.getApplicationId(), uuid,session.getDevices()),PairResponse.class);
-                if(logger.isDebugEnabled()){
-                    logger.debug(String.format("PAIR RESPONSE: %s", pairResponse));
+                if(this.sessionAsyncEnabled){
+                    this.sessionService.pairAsync(p).addCallback(new ReplyCallback(principal) {
+                        @Override
+                        protected BeanResponse reply(Session session) {
+                            return pairResponse(session);
+                        }
+                    });
+                    return null;
                 }
-                return pairResponse;
+                return pairResponse(this.sessionService.pair(p));
             default:
                 logger.error(String.format("Detected SyncType %s not supported", pairType));
         }
         return null;
     }
 
+    private PairResponse pairResponse(Session session) {
+        String uuid = session.getUuid().toString();
+        // Return pair
+        PairResponse pairResponse = new PairResponse(session.getApplicationId(), uuid,session.getDevices());
+        if(logger.isDebugEnabled()){
+            logger.debug(String.format("PAIR RESPONSE: %s", MessageCodec.toJson(pairResponse)));
+        }
+        return pairResponse;
+    }
+
     /**
      * direct message handler for assisting connected devices in calculating the latency between when messages are sent
      * by the server and when they are received by the client. Each client should hit this endpoint a number of times
@@ -133,17 +188,17 @@ public class CompositeController {
      * the server responses
      *
      * @param   s   a stringified SyncMessage sent by the client
-     * @return      a stringified SyncResponse
+     * @return      a SyncResponse
      *
      * @see     SyncMessage
      * @see     SyncResponse
      */
     @MessageMapping("/sync")
     @SendToUser("/queue/device")
-    public String sync(SyncMessage s) {
-        String syncResponse = gson.toJson(new SyncResponse(s.getTime()), SyncResponse.class);
+    public SyncResponse sync(SyncMessage s) {
+        SyncResponse syncResponse = new SyncResponse(s.getTime());
         if(logger.isDebugEnabled())
-            logger.debug(String.format("SYNC RESPONSE: %s", syncResponse));
+            logger.debug(String.format("SYNC RESPONSE: %s", MessageCodec.toJson(syncResponse)));
         return syncResponse;
     }
 
@@ -154,16 +209,18 @@ public class CompositeController {
      * @param   principal       The device principal sending the inbound message
      * @param   id              the id of the session and topic
      * @param   obj             map of message objects sent to the topic, including what type of message is being sent
-     * @return                  string response to topic corresponding to the type of message that was sent
+     * @return                  response to topic corresponding to the type of message that was sent
      *
-     * @see     private methods below: update, data, start, stop, devices
+     * @see     private methods below: update, data, patch, state, start, stop, devices
      */
     @MessageMapping("/{id}")
-    public String multiplex(Principal principal, @DestinationVariable String id, Map<String, Object> obj) {
+    public BeanResponse multiplex(Principal principal, @DestinationVariable String id, Map<String, Object> obj) {
         String type = (String) obj.get("type");
         switch(type) {
             case "update": return this.update(id, obj);
             case "data": return this.data(id, obj);
+            case "patch": return this.patch(id, obj);
+            case "state": return this.state(principal, id);
             case "start": return this.start(principal, id);
             case "stop": return this.stop(principal, id);
             case "devices": return this.devices(id);
@@ -176,15 +233,15 @@ public class CompositeController {
      *
      * @param   id      the uuid of the device that sent the update message
      * @param   update  map of update objects sent by the device
-     * @return          stringified UpdateResponse
+     * @return          UpdateResponse
      *
      * @see     UpdateResponse
      */
-    private String update(String id, Map<String, Object> update) {
+    private UpdateResponse update(String id, Map<String, Object> update) {
         if(validUUID(id)) {
-            String updateResponse = gson.toJson(new UpdateResponse(update.get("data")), UpdateResponse.class);
+            UpdateResponse updateResponse = new UpdateResponse(update.get("data"));
             if(logger.isDebugEnabled())
-                logger.debug(String.format("UPDATE RESPONSE: %s", updateResponse));
+                logger.debug(String.format("UPDATE RESPONSE: %s", MessageCodec.toJson(updateResponse)));
             return updateResponse;
         }
         return null;
@@ -195,86 +252,184 @@ public class CompositeController {
      *
      * @param   id      the uuid of the device that sent the data message
      * @param   data    map of data objects that the device sent and that should be sent back to the session topic
-     * @return          stringified DataResponse
+     * @return          DataResponse
      *
      * @see     DataResponse
      */
-    private String data(String id, Map<String, Object> data) {
+    private DataResponse data(String id, Map<String, Object> data) {
         if(validUUID(id)) {
-            String dataResponse = gson.toJson(new DataResponse(data.get("data")), DataResponse.class);
+            DataResponse dataResponse = new DataResponse(data.get("data"));
             if(logger.isDebugEnabled())
-                logger.debug(String.format("DATA RESPONSE: %s", dataResponse));
+                logger.debug(String.format("DATA RESPONSE: %s", MessageCodec.toJson(dataResponse)));
             return dataResponse;
         }
         return null;
     }
 
+    /**
+     * multiplex handler that applies a patch to the session's shared state, and broadcasts only the keys the patch
+     * changed, under the state's new version. Devices that find they have missed a version should ask for the whole
+     * state with a state message.
+     *
+     * The patch is sent to the broker channel while the session's state is locked, rather than returned, so that
+     * concurrent patches to a session are sent in the order of their versions; the broker channel relays the messages to
+     * each destination in the order they were sent, so they reach the topic in that order too.
+     *
+     * @param   id      the id of the session whose state is patched
+     * @param   patch   map whose data entry holds the keys to set, or to remove when null
+     * @return          null, since the patch has been broadcast already
+     *
+     * @see     PatchResponse
+     * @see     SessionStateRegistry#patch(String, Map, SessionStateRegistry.Publisher)
+     */
+    @SuppressWarnings("unchecked")
+    private BeanResponse patch(final String id, Map<String, Object> patch) {
+        if(this.sessionStateEnabled && this.sessionStates != null && validUUID(id)
+                && patch.get("data") instanceof Map) {
+            this.sessionStates.patch(id, (Map<String, Object>) patch.get("data"),
+                    new SessionStateRegistry.Publisher() {
+                @Override
+                public void publish(SessionStateRegistry.Change change) {
+                    PatchResponse patchResponse = new PatchResponse(change.getVersion(), change.getValues(),
+                            change.getRemoved());
+                    if(logger.isDebugEnabled())
+                        logger.debug(String.format("PATCH RESPONSE: %s", MessageCodec.toJson(patchResponse)));
+                    template.convertAndSend(String.format("/topic/%s", id), patchResponse);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * multiplex handler that sends a snapshot of the session's shared state to the device that asked for it only, e.g.
+     * a device that has just joined the session
+     *
+     * @param   principal   the device principal asking for the state
+     * @param   id          the id of the session
+     * @return              null, since the snapshot is not broadcast to the session
+     *
+     * @see     StateResponse
+     */
+    private BeanResponse state(Principal principal, String id) {
+        if(this.sessionStateEnabled && this.sessionStates != null && validUUID(id)) {
+            SessionStateRegistry.Change snapshot = this.sessionStates.snapshot(id);
+            StateResponse stateResponse = new StateResponse(snapshot.getVersion(), snapshot.getValues());
+            if(logger.isDebugEnabled())
+                logger.debug(String.format("STATE RESPONSE: %s", MessageCodec.toJson(stateResponse)));
+            this.template.convertAndSendToUser(principal.getName(), "/queue/device", stateResponse);
+        }
+        return null;
+    }
+
     /**
      * multiplex handler that broadcasts a start event back to the session when a device principal initiates a start event
      *
      * @param   principal   the device principal that initiated the start event
      * @param   id          the id of the session that should be started
-     * @return              stringifed StartResponse
+     * @return              StartResponse, or null if it is broadcast once the session's mailbox has run the start
      *
      * @see     StartResponse
      */
-    private String start(Principal principal, String id) {
+    private StartResponse start(Principal principal, final String id) {
         if(validUUID(id)) {
-            Session session = (Session) this.sessionService.get(id);
-            if(session != null) {
-                session.setLocked(true);
-                this.sessionService.update(session);
-                String startResponse = gson.toJson(new StartResponse(), StartResponse.class);
-                if(logger.isDebugEnabled())
-                    logger.debug(String.format("START RESPONSE: %s", startResponse));
-                return startResponse;
+            Callable<Session> start = new Callable<Session>() {
+                @Override
+                public Session call() {
+                    Session session = sessionService.get(id);
+                    if(session != null) {
+                        session.setLocked(true);
+                        sessionService.update(session);
+                    }
+                    return session;
+                }
+            };
+            if(this.sessionDispatcher != null) {
+                this.sessionDispatcher.submit(id, start).addCallback(new BroadcastCallback(principal, id) {
+                    @Override
+                    protected BeanResponse broadcast(Session session) {
+                        return startResponse();
+                    }
+                });
+                return null;
+            }
+            if(invoke(start) != null) {
+                return startResponse();
             }
         }
         return null;
     }
 
+    private StartResponse startResponse() {
+        StartResponse startResponse = new StartResponse();
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("START RESPONSE: %s", MessageCodec.toJson(startResponse)));
+        return startResponse;
+    }
+
     /**
      * multiplex handler that broadcasts a stop event back to the session when a device principal initiates a stop event
      *
      * @param   principal   the device principal that initiated the stop event
      * @param   id          the id of the session that should be stopped
-     * @return              stringified StopResponse
+     * @return              StopResponse, or null if it is broadcast once the session's mailbox has run the stop
      *
      * @see     StopResponse
      */
-    private String stop(Principal principal, String id) {
+    private StopResponse stop(Principal principal, final String id) {
         if(validUUID(id)) {
-            Session session = (Session) this.sessionService.get(id);
-            if(session != null) {
-                session.setLocked(false);
-                session.setSessionEnded(new Date().getTime());
-                this.sessionService.update(session);
-                String stopResponse = gson.toJson(new StopResponse(), StopResponse.class);
-                if(logger.isDebugEnabled())
-                    logger.debug(String.format("STOP RESPONSE: %s", stopResponse));
-                return stopResponse;
+            Callable<Session> stop = new Callable<Session>() {
+                @Override
+                public Session call() {
+                    Session session = sessionService.get(id);
+                    if(session != null) {
+                        session.setLocked(false);
+                        session.setSessionEnded(new Date().getTime());
+                        sessionService.update(session);
+                    }
+                    return session;
+                }
+            };
+            if(this.sessionDispatcher != null) {
+                this.sessionDispatcher.submit(id, stop).addCallback(new BroadcastCallback(principal, id) {
+                    @Override
+                    protected BeanResponse broadcast(Session session) {
+                        return stopResponse();
+                    }
+                });
+                return null;
+            }
+            if(invoke(stop) != null) {
+                return stopResponse();
             }
         }
         return null;
     }
 
+    private StopResponse stopResponse() {
+        StopResponse stopResponse = new StopResponse();
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("STOP RESPONSE: %s", MessageCodec.toJson(stopResponse)));
+        return stopResponse;
+    }
+
     /**
      * multiplex handler that broadcasts a list of devices found in a session back to the session topic
      *
      * @param   id      the id of the session for which a devices broadcast should be sent
-     * @return          stringified DevicesResponse object containing the session's devices
+     * @return          DevicesResponse object containing the session's devices
      *
      * @see     DevicesResponse
      */
-    private String devices(String id) {
+    private DevicesResponse devices(String id) {
         if(validUUID(id)) {
             Session session = (Session) this.sessionService.get(id);
             //Broadcast updated device list
             if(session != null) {
                 if (session.getDevices().size() > 1) {
-                    String devicesResponse = gson.toJson(new DevicesResponse(session.getDevices()), DevicesResponse.class);
+                    DevicesResponse devicesResponse = new DevicesResponse(session.getDevices());
                     if (logger.isDebugEnabled())
-                        logger.debug(String.format("DEVICES RESPONSE: %s", devicesResponse));
+                        logger.debug(String.format("DEVICES RESPONSE: %s", MessageCodec.toJson(devicesResponse)));
                     return devicesResponse;
                 }
             }
@@ -302,6 +457,20 @@ public class CompositeController {
      */
     @MessageMapping("/disconnect")
     public void disconnect(Principal principal) {
+        if(this.sessionAsyncEnabled) {
+            final String uuid = principal.getName();
+            this.sessionService.deleteDeviceFromSessionByDeviceUuidAsync(uuid).addCallback(new ListenableFutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean removed) {
+                }
+
+                @Override
+                public void onFailure(Throwable exception) {
+                    logger.error(String.format("Removing device %s from its session failed", uuid), exception);
+                }
+            });
+            return;
+        }
         this.sessionService.deleteDeviceFromSessionByDeviceUuid(principal.getName());
     }
 
@@ -318,6 +487,78 @@ public class CompositeController {
         return exception.getMessage();
     }
 
+    /**
+     * broadcasts the response to a session change run through the session's mailbox to the session's topic, as
+     * multiplex would have, or sends the change's error to the device that asked for it. Nothing is broadcast if the
+     * session could not be found.
+     */
+    private abstract class BroadcastCallback implements ListenableFutureCallback<Session> {
+        private final String user;
+        private final String id;
+
+        private BroadcastCallback(Principal principal, String id) {
+            this.user = principal.getName();
+            this.id = id;
+        }
+
+        protected abstract BeanResponse broadcast(Session session);
+
+        @Override
+        public void onSuccess(Session session) {
+            if(session != null) {
+                template.convertAndSend(String.format("/topic/%s", this.id), broadcast(session));
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable exception) {
+            logger.error("Handling exception: ", exception);
+            template.convertAndSendToUser(this.user, "/queue/errors", String.valueOf(exception.getMessage()));
+        }
+    }
+
+    /**
+     * sends the response to an asynchronous session call to the device that made it, or the call's error, as
+     * handleException would have
+     */
+    private abstract class ReplyCallback implements ListenableFutureCallback<Session> {
+        private final String user;
+
+        private ReplyCallback(Principal principal) {
+            this.user = principal.getName();
+        }
+
+        protected abstract BeanResponse reply(Session session);
+
+        @Override
+        public void onSuccess(Session session) {
+            if(session == null) {
+                onFailure(new IllegalStateException("No session could be found or created"));
+                return;
+            }
+            template.convertAndSendToUser(this.user, "/queue/device", reply(session));
+        }
+
+        @Override
+        public void onFailure(Throwable exception) {
+            logger.error("Handling exception: ", exception);
+            template.convertAndSendToUser(this.user, "/queue/errors", String.valueOf(exception.getMessage()));
+        }
+    }
+
+    /**
+     * runs a read-modify-write of a session on the caller's thread, where there is no dispatcher to order it
+     */
+    private static <T> T invoke(Callable<T> operation) {
+        try {
+            return operation.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Returns a boolean value that identifies if a UUID sent from a client device is actually a UUID. Method included
      * as a means of protection against spamming or otherwise invalid attempts to get messages from the service.
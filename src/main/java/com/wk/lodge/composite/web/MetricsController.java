@@ -0,0 +1,151 @@
+package com.wk.lodge.composite.web;
+
+import com.wk.lodge.composite.metrics.LatencyHistogram;
+import com.wk.lodge.composite.metrics.PrometheusWriter;
+import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.repository.store.MeteredSessionStore;
+import com.wk.lodge.composite.repository.store.SessionStore;
+import com.wk.lodge.composite.service.DeviceService;
+import com.wk.lodge.composite.service.SessionReaper;
+import com.wk.lodge.composite.service.SessionService;
+import com.wk.lodge.composite.web.socket.messaging.LatencyInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.util.Map;
+
+/**
+ * Serves operational metrics at /metrics in the Prometheus text format: the live sessions this server knows of by
+ * application, room and state, the devices tracked and healthy, the duration of session store calls by CouchDB view,
+ * write conflicts, the sessions opened because joining a session conflicted, and the duration of the stale session
+ * reaper and unhealthy device sweep runs. When the latency interceptor is registered, message latencies by destination and
+ * the load of the channel executors are served as well.
+ */
+@Controller
+public class MetricsController {
+    private static final double MICROS = 1e-6;
+    private static final double MILLIS = 1e-3;
+
+    private SessionService sessionService;
+    private SessionStore sessionStore;
+    private DeviceRegistry deviceRegistry;
+    private DeviceService deviceService;
+    private SessionReaper sessionReaper;
+    private LatencyInterceptor latencyInterceptor;
+    @Value("${metrics.enabled}")
+    private boolean enabled;
+
+    @Autowired
+    public void setSessionService(SessionService sessionService) {
+        this.sessionService = sessionService;
+    }
+
+    @Autowired
+    public void setSessionStore(SessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+    }
+
+    @Autowired
+    public void setDeviceRegistry(DeviceRegistry deviceRegistry) {
+        this.deviceRegistry = deviceRegistry;
+    }
+
+    @Autowired
+    public void setDeviceService(DeviceService deviceService) {
+        this.deviceService = deviceService;
+    }
+
+    @Autowired
+    public void setSessionReaper(SessionReaper sessionReaper) {
+        this.sessionReaper = sessionReaper;
+    }
+
+    @Autowired(required = false)
+    public void setLatencyInterceptor(LatencyInterceptor latencyInterceptor) {
+        this.latencyInterceptor = latencyInterceptor;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public ResponseEntity<String> metrics() {
+        if(!this.enabled) {
+            return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(PrometheusWriter.CONTENT_TYPE));
+        return new ResponseEntity<String>(write(new PrometheusWriter()).toString(), headers, HttpStatus.OK);
+    }
+
+    PrometheusWriter write(PrometheusWriter out) {
+        out.metric("composite_sessions", "gauge",
+            "Live sessions this server has read or written and not seen end, be deleted or go stale, by application, "
+                + "room and state.");
+        for(boolean locked : new boolean[]{false, true}) {
+            String state = locked ? "locked" : "open";
+            for(Map.Entry<String, Map<String, Integer>> application
+                    : this.sessionService.countSessions(locked).entrySet()) {
+                for(Map.Entry<String, Integer> room : application.getValue().entrySet()) {
+                    out.sample("composite_sessions", room.getValue(),
+                        "application", application.getKey(), "room", room.getKey(), "state", state);
+                }
+            }
+        }
+        out.metric("composite_devices_connected", "gauge", "Devices that have pinged and not yet been swept.");
+        out.sample("composite_devices_connected", this.deviceRegistry.size());
+        out.metric("composite_devices_healthy", "gauge", "Devices whose latest ping is within the timeout.");
+        out.sample("composite_devices_healthy", this.deviceRegistry.countHealthy());
+
+        if(this.sessionStore instanceof MeteredSessionStore) {
+            MeteredSessionStore store = (MeteredSessionStore) this.sessionStore;
+            out.metric("composite_store_call_seconds", "summary", "Duration of session store calls, by call and view.");
+            for(MeteredSessionStore.Call call : store.getCalls()) {
+                out.summary("composite_store_call_seconds", call.getDurations(), MICROS,
+                    "call", call.getName(), "view", call.getView());
+            }
+            out.metric("composite_store_conflicts_total", "counter",
+                "Session writes rejected because of a conflicting revision.");
+            out.sample("composite_store_conflicts_total", store.getConflicts());
+        }
+        out.metric("composite_conflict_sessions_total", "counter",
+            "Sessions opened for a joining device because adding it to an existing session conflicted.");
+        out.sample("composite_conflict_sessions_total", this.sessionService.getConflictSessions());
+
+        out.metric("composite_reaper_run_seconds", "summary", "Duration of stale session reaper runs.");
+        out.summary("composite_reaper_run_seconds", this.sessionReaper.getRunMillis(), MILLIS);
+        out.metric("composite_reaper_sessions_total", "counter", "Stale sessions deleted by the reaper.");
+        out.sample("composite_reaper_sessions_total", this.sessionReaper.getReaped());
+        out.metric("composite_unhealthy_sweep_seconds", "summary", "Duration of unhealthy device sweeps.");
+        out.summary("composite_unhealthy_sweep_seconds", this.deviceService.getSweepMillis(), MILLIS);
+
+        if(this.latencyInterceptor != null) {
+            out.metric("composite_message_seconds", "summary",
+                "Time from a message reaching the inbound channel until it was handled, by destination.");
+            for(Map.Entry<String, LatencyHistogram> destination : this.latencyInterceptor.getHistograms().entrySet()) {
+                out.summary("composite_message_seconds", destination.getValue(), MICROS,
+                    "destination", destination.getKey());
+            }
+            out.metric("composite_inbound_queue_wait_seconds", "summary",
+                "Time dispatched messages waited for an inbound channel thread.");
+            out.summary("composite_inbound_queue_wait_seconds", this.latencyInterceptor.getQueueWait(), MICROS);
+            out.metric("composite_executor_queued", "gauge", "Tasks queued on an executor, as last sampled.");
+            for(LatencyInterceptor.ExecutorGauge gauge : this.latencyInterceptor.getExecutorGauges()) {
+                out.sample("composite_executor_queued", gauge.getQueued(), "executor", gauge.getName());
+            }
+            out.metric("composite_executor_active", "gauge", "Threads of an executor running a task, as last sampled.");
+            for(LatencyInterceptor.ExecutorGauge gauge : this.latencyInterceptor.getExecutorGauges()) {
+                out.sample("composite_executor_active", gauge.getActive(), "executor", gauge.getName());
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,68 @@
+package com.wk.lodge.composite.web.socket.message.codec;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Converts inbound message payloads to the message classes, and outbound messages to payloads, with MessageCodec. It is
+ * registered ahead of Spring's default converters, so it takes every message class it has a reader or writer for, and
+ * leaves everything else, e.g. plain Strings, to them.
+ *
+ * @see MessageCodec
+ * @see com.wk.lodge.composite.config.WebSocketConfig#configureMessageConverters(java.util.List)
+ */
+public class CodecMessageConverter extends AbstractMessageConverter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public CodecMessageConverter() {
+        super(new MimeType("application", "json", UTF_8));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return MessageCodec.canRead(clazz) || MessageCodec.canWrite(clazz);
+    }
+
+    @Override
+    protected boolean canConvertFrom(Message<?> message, Class<?> targetClass) {
+        return targetClass != null && MessageCodec.canRead(targetClass) && supportsMimeType(message.getHeaders());
+    }
+
+    @Override
+    protected boolean canConvertTo(Object payload, MessageHeaders headers) {
+        return MessageCodec.canWrite(payload.getClass()) && supportsMimeType(headers);
+    }
+
+    @Override
+    public Object convertFromInternal(Message<?> message, Class<?> targetClass) {
+        Object payload = message.getPayload();
+        try {
+            if(payload instanceof byte[]) {
+                return MessageCodec.read((byte[]) payload, targetClass);
+            }
+            return MessageCodec.read(payload.toString(), targetClass);
+        } catch (IOException e) {
+            throw new MessageConversionException(message, String.format("Could not read %s: %s",
+                    targetClass.getSimpleName(), e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public Object convertToInternal(Object payload, MessageHeaders headers) {
+        if(String.class.equals(getSerializedPayloadClass())) {
+            return MessageCodec.toJson(payload);
+        }
+        try {
+            return MessageCodec.write(payload);
+        } catch (IOException e) {
+            throw new MessageConversionException(String.format("Could not write %s: %s",
+                    payload.getClass().getSimpleName(), e.getMessage()), e);
+        }
+    }
+}
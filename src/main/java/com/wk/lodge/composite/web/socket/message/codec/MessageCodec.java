@@ -0,0 +1,185 @@
+package com.wk.lodge.composite.web.socket.message.codec;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.wk.lodge.composite.web.socket.message.inbound.*;
+import com.wk.lodge.composite.web.socket.message.outbound.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The codec for every inbound and outbound message class: a reader or a writer for each, written by hand against
+ * Jackson's streaming parser and generator, so that a message goes straight between JSON bytes and objects without
+ * reflection or an intermediate String. All of them share a single JsonFactory, which is thread-safe and recycles its
+ * buffers.
+ *
+ * Writers produce what Gson produced for the same object: fields in the same order, subclass fields first, with null
+ * fields left out.
+ *
+ * @see MessageReaders
+ * @see MessageWriters
+ * @see CodecMessageConverter
+ */
+public final class MessageCodec {
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final Map<Class<?>, Reader<?>> READERS = new HashMap<>();
+    private static final Map<Class<?>, Writer<?>> WRITERS = new HashMap<>();
+
+    static {
+        READERS.put(BeanMessage.class, MessageReaders.BEAN);
+        READERS.put(SyncMessage.class, MessageReaders.SYNC);
+        READERS.put(MatchMessage.class, MessageReaders.MATCH);
+        READERS.put(JoinMessage.class, MessageReaders.JOIN);
+        READERS.put(PairMessage.class, MessageReaders.PAIR);
+        READERS.put(MapMessage.class, MessageReaders.MAP_MESSAGE);
+        READERS.put(Map.class, MessageReaders.MAP);
+
+        WRITERS.put(BeanResponse.class, MessageWriters.BEAN);
+        WRITERS.put(InitResponse.class, MessageWriters.INIT);
+        WRITERS.put(SyncResponse.class, MessageWriters.SYNC);
+        WRITERS.put(MatchResponse.class, MessageWriters.MATCH);
+        WRITERS.put(JoinResponse.class, MessageWriters.JOIN);
+        WRITERS.put(PairResponse.class, MessageWriters.MATCH);
+        WRITERS.put(DevicesResponse.class, MessageWriters.DEVICES);
+        WRITERS.put(DisconnectResponse.class, MessageWriters.DISCONNECT);
+        WRITERS.put(UpdateResponse.class, MessageWriters.UPDATE);
+        WRITERS.put(DataResponse.class, MessageWriters.DATA);
+        WRITERS.put(PatchResponse.class, MessageWriters.PATCH);
+        WRITERS.put(StateResponse.class, MessageWriters.STATE);
+        WRITERS.put(StartResponse.class, MessageWriters.BEAN);
+        WRITERS.put(StopResponse.class, MessageWriters.BEAN);
+    }
+
+    private MessageCodec() {}
+
+    /**
+     * reads a message from a parser whose current token is the message's first token
+     */
+    public interface Reader<T> {
+        T read(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * writes a message to a generator
+     */
+    public interface Writer<T> {
+        void write(JsonGenerator generator, T value) throws IOException;
+    }
+
+    /**
+     * @return  whether there is a reader for the given class
+     */
+    public static boolean canRead(Class<?> type) {
+        return READERS.containsKey(type);
+    }
+
+    /**
+     * @return  whether there is a writer for the given class. Maps of any kind are written as JSON objects.
+     */
+    public static boolean canWrite(Class<?> type) {
+        return WRITERS.containsKey(type) || Map.class.isAssignableFrom(type);
+    }
+
+    /**
+     * reads a message from UTF-8 JSON. A message that arrives as a JSON string, i.e. stringified twice, is read from
+     * the string's contents, as the @JsonCreator factories on the inbound messages have always allowed.
+     *
+     * @param   json    the UTF-8 JSON of the message
+     * @param   type    the class of the message, which must have a reader
+     * @return          the message, or null if the JSON is null
+     * @throws  IOException if the JSON is malformed or does not fit the message class
+     */
+    public static <T> T read(byte[] json, Class<T> type) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            return read(parser, type);
+        }
+    }
+
+    /**
+     * reads a message from JSON held in a String
+     *
+     * @see     #read(byte[], Class)
+     */
+    public static <T> T read(String json, Class<T> type) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            return read(parser, type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T read(JsonParser parser, Class<T> type) throws IOException {
+        Reader<T> reader = (Reader<T>) READERS.get(type);
+        if(reader == null) {
+            throw new IllegalArgumentException(String.format("No reader for %s", type.getName()));
+        }
+        if(parser.nextToken() == JsonToken.VALUE_STRING) {
+            return read(parser.getText(), type);
+        }
+        return reader.read(parser);
+    }
+
+    /**
+     * reads a message from JSON held in a String, for the @JsonCreator factories on the inbound messages
+     *
+     * @throws  IllegalArgumentException if the JSON is malformed or does not fit the message class
+     */
+    public static <T> T parse(String json, Class<T> type) {
+        try {
+            return read(json, type);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Could not read %s", type.getSimpleName()), e);
+        }
+    }
+
+    /**
+     * writes a message as UTF-8 JSON
+     *
+     * @param   value   the message, whose class must have a writer
+     * @return          the UTF-8 JSON of the message
+     */
+    public static byte[] write(Object value) throws IOException {
+        ByteArrayBuilder bytes = new ByteArrayBuilder(FACTORY._getBufferRecycler());
+        try (JsonGenerator generator = FACTORY.createGenerator(bytes, JsonEncoding.UTF8)) {
+            write(generator, value);
+        }
+        byte[] json = bytes.toByteArray();
+        bytes.release();
+        return json;
+    }
+
+    /**
+     * writes a message as JSON in a String, e.g. for logging
+     *
+     * @see     #write(Object)
+     */
+    public static String toJson(Object value) {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = FACTORY.createGenerator(json)) {
+            write(generator, value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Could not write %s", value.getClass().getSimpleName()), e);
+        }
+        return json.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(JsonGenerator generator, Object value) throws IOException {
+        Writer<Object> writer = (Writer<Object>) WRITERS.get(value.getClass());
+        if(writer != null) {
+            writer.write(generator, value);
+        }
+        else if(value instanceof Map) {
+            MessageWriters.writeValue(generator, value);
+        }
+        else {
+            throw new IllegalArgumentException(String.format("No writer for %s", value.getClass().getName()));
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.wk.lodge.composite.web.socket.message.codec;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.web.socket.message.inbound.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Readers for the inbound messages, which skip fields they do not know, as Gson did. Untyped values, i.e. the fields of
+ * a multiplexed message, are read as Jackson reads them: objects as LinkedHashMaps, arrays as ArrayLists, integers as
+ * the smallest of Integer, Long and BigInteger that fits, and decimals as Doubles.
+ *
+ * @see MessageCodec
+ */
+final class MessageReaders {
+
+    private MessageReaders() {}
+
+    static final MessageCodec.Reader<BeanMessage> BEAN = new MessageCodec.Reader<BeanMessage>() {
+        @Override
+        public BeanMessage read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            BeanMessage message = new BeanMessage();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if("type".equals(name)) {
+                    message.setType(parser.getValueAsString());
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+            return message;
+        }
+    };
+
+    static final MessageCodec.Reader<SyncMessage> SYNC = new MessageCodec.Reader<SyncMessage>() {
+        @Override
+        public SyncMessage read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            SyncMessage message = new SyncMessage();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch(name) {
+                    case "type": message.setType(parser.getValueAsString()); break;
+                    case "time": message.setTime(readLong(parser)); break;
+                    default: parser.skipChildren();
+                }
+            }
+            return message;
+        }
+    };
+
+    static final MessageCodec.Reader<MatchMessage> MATCH = new MessageCodec.Reader<MatchMessage>() {
+        @Override
+        public MatchMessage read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            MatchMessage message = new MatchMessage();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if(!readMatchField(parser, name, message)) {
+                    parser.skipChildren();
+                }
+            }
+            return message;
+        }
+    };
+
+    static final MessageCodec.Reader<JoinMessage> JOIN = new MessageCodec.Reader<JoinMessage>() {
+        @Override
+        public JoinMessage read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            JoinMessage message = new JoinMessage();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if("type".equals(name)) {
+                    String type = parser.getValueAsString();
+                    message.setType(type == null ? null : readEnum(parser, JoinMessage.Types.class, type));
+                }
+                else if(!readMatchField(parser, name, message)) {
+                    parser.skipChildren();
+                }
+            }
+            return message;
+        }
+    };
+
+    static final MessageCodec.Reader<PairMessage> PAIR = new MessageCodec.Reader<PairMessage>() {
+        @Override
+        public PairMessage read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            PairMessage message = new PairMessage();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if("type".equals(name)) {
+                    String type = parser.getValueAsString();
+                    message.setType(type == null ? null : readEnum(parser, PairMessage.Types.class, type));
+                }
+                else if(!readMatchField(parser, name, message)) {
+                    parser.skipChildren();
+                }
+            }
+            return message;
+        }
+    };
+
+    static final MessageCodec.Reader<Map<String, Object>> MAP = new MessageCodec.Reader<Map<String, Object>>() {
+        @Override
+        public Map<String, Object> read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            return readFields(parser, new LinkedHashMap<String, Object>());
+        }
+    };
+
+    static final MessageCodec.Reader<MapMessage> MAP_MESSAGE = new MessageCodec.Reader<MapMessage>() {
+        @Override
+        public MapMessage read(JsonParser parser) throws IOException {
+            if(!startObject(parser)) {
+                return null;
+            }
+            MapMessage message = new MapMessage();
+            readFields(parser, message);
+            return message;
+        }
+    };
+
+    /**
+     * reads one of the fields that every MatchMessage has
+     *
+     * @return  whether the field was one of them
+     */
+    private static boolean readMatchField(JsonParser parser, String name, MatchMessage message) throws IOException {
+        switch(name) {
+            case "applicationId": message.setApplicationId(parser.getValueAsString()); return true;
+            case "device": message.setDevice(readDevice(parser)); return true;
+            case "geo": message.setGeo(readFloats(parser)); return true;
+            case "point": message.setPoint(readInts(parser)); return true;
+            case "vector": message.setVector(readFloats(parser)); return true;
+            default: return false;
+        }
+    }
+
+    private static Device readDevice(JsonParser parser) throws IOException {
+        if(!startObject(parser)) {
+            return null;
+        }
+        String uuid = null;
+        int width = 0, height = 0, performance = 0, instructions = 0;
+        String location = null, country = null;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch(name) {
+                case "uuid": uuid = parser.getValueAsString(); break;
+                case "width": width = parser.getValueAsInt(); break;
+                case "height": height = parser.getValueAsInt(); break;
+                case "performance": performance = parser.getValueAsInt(); break;
+                case "instructions": instructions = parser.getValueAsInt(); break;
+                case "location": location = parser.getValueAsString(); break;
+                case "country": country = parser.getValueAsString(); break;
+                default: parser.skipChildren();
+            }
+        }
+        // a device sent without a uuid gets a random one, as the no-arg constructor gives it
+        Device device;
+        try {
+            device = uuid == null ? new Device() : new Device(uuid);
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException(String.format("Invalid UUID %s", uuid), parser.getCurrentLocation(), e);
+        }
+        device.setWidth(width);
+        device.setHeight(height);
+        device.setPerformance(performance);
+        device.setInstructions(instructions);
+        device.setLocation(location);
+        device.setCountry(country);
+        return device;
+    }
+
+    private static <E extends Enum<E>> E readEnum(JsonParser parser, Class<E> type, String value)
+            throws JsonParseException {
+        try {
+            return Enum.valueOf(type, value);
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException(String.format("Invalid %s %s", type.getSimpleName(), value),
+                    parser.getCurrentLocation(), e);
+        }
+    }
+
+    private static Long readLong(JsonParser parser) throws IOException {
+        return parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : parser.getValueAsLong();
+    }
+
+    private static float[] readFloats(JsonParser parser) throws IOException {
+        if(!startArray(parser)) {
+            return null;
+        }
+        float[] values = new float[2];
+        int n = 0;
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = (float) parser.getValueAsDouble();
+        }
+        return n == values.length ? values : Arrays.copyOf(values, n);
+    }
+
+    private static int[] readInts(JsonParser parser) throws IOException {
+        if(!startArray(parser)) {
+            return null;
+        }
+        int[] values = new int[2];
+        int n = 0;
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = parser.getValueAsInt();
+        }
+        return n == values.length ? values : Arrays.copyOf(values, n);
+    }
+
+    private static <M extends Map<String, Object>> M readFields(JsonParser parser, M map) throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            map.put(name, readValue(parser));
+        }
+        return map;
+    }
+
+    /**
+     * reads an untyped value whose first token is the parser's current token
+     */
+    static Object readValue(JsonParser parser) throws IOException {
+        switch(parser.getCurrentToken()) {
+            case START_OBJECT:
+                return readFields(parser, new LinkedHashMap<String, Object>());
+            case START_ARRAY:
+                List<Object> values = new ArrayList<>();
+                while(parser.nextToken() != JsonToken.END_ARRAY) {
+                    values.add(readValue(parser));
+                }
+                return values;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException(String.format("Unexpected %s", parser.getCurrentToken()),
+                        parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * @return  true if the current token starts an object, false if it is null
+     */
+    private static boolean startObject(JsonParser parser) throws JsonParseException {
+        return start(parser, JsonToken.START_OBJECT);
+    }
+
+    /**
+     * @return  true if the current token starts an array, false if it is null
+     */
+    private static boolean startArray(JsonParser parser) throws JsonParseException {
+        return start(parser, JsonToken.START_ARRAY);
+    }
+
+    private static boolean start(JsonParser parser, JsonToken start) throws JsonParseException {
+        JsonToken token = parser.getCurrentToken();
+        if(token == start) {
+            return true;
+        }
+        if(token == JsonToken.VALUE_NULL) {
+            return false;
+        }
+        throw new JsonParseException(String.format("Expected %s but found %s", start, token),
+                parser.getCurrentLocation());
+    }
+}
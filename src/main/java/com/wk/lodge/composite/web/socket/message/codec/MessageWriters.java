@@ -0,0 +1,255 @@
+package com.wk.lodge.composite.web.socket.message.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.web.socket.message.outbound.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writers for the outbound messages. Each writes its class's own fields, then those of its superclasses, and leaves out
+ * null fields and null map entries, which is what Gson wrote; untyped values may be maps, collections, arrays, strings,
+ * numbers and booleans, which covers whatever Jackson reads from an inbound message.
+ *
+ * @see MessageCodec
+ */
+final class MessageWriters {
+
+    private MessageWriters() {}
+
+    static final MessageCodec.Writer<BeanResponse> BEAN = new MessageCodec.Writer<BeanResponse>() {
+        @Override
+        public void write(JsonGenerator generator, BeanResponse response) throws IOException {
+            generator.writeStartObject();
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<InitResponse> INIT = new MessageCodec.Writer<InitResponse>() {
+        @Override
+        public void write(JsonGenerator generator, InitResponse response) throws IOException {
+            generator.writeStartObject();
+            writeStringField(generator, "uuid", response.getUuid());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<SyncResponse> SYNC = new MessageCodec.Writer<SyncResponse>() {
+        @Override
+        public void write(JsonGenerator generator, SyncResponse response) throws IOException {
+            generator.writeStartObject();
+            writeLongField(generator, "time", response.getTime());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<MatchResponse> MATCH = new MessageCodec.Writer<MatchResponse>() {
+        @Override
+        public void write(JsonGenerator generator, MatchResponse response) throws IOException {
+            generator.writeStartObject();
+            writeMatchFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<JoinResponse> JOIN = new MessageCodec.Writer<JoinResponse>() {
+        @Override
+        public void write(JsonGenerator generator, JoinResponse response) throws IOException {
+            generator.writeStartObject();
+            writeStringField(generator, "roomName", response.getRoomName());
+            writeMatchFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<DevicesResponse> DEVICES = new MessageCodec.Writer<DevicesResponse>() {
+        @Override
+        public void write(JsonGenerator generator, DevicesResponse response) throws IOException {
+            generator.writeStartObject();
+            writeDevicesField(generator, response.getDevices());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<DisconnectResponse> DISCONNECT = new MessageCodec.Writer<DisconnectResponse>() {
+        @Override
+        public void write(JsonGenerator generator, DisconnectResponse response) throws IOException {
+            generator.writeStartObject();
+            writeDevicesField(generator, response.getDevices());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<UpdateResponse> UPDATE = new MessageCodec.Writer<UpdateResponse>() {
+        @Override
+        public void write(JsonGenerator generator, UpdateResponse response) throws IOException {
+            generator.writeStartObject();
+            writeValueField(generator, "data", response.getData());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<DataResponse> DATA = new MessageCodec.Writer<DataResponse>() {
+        @Override
+        public void write(JsonGenerator generator, DataResponse response) throws IOException {
+            generator.writeStartObject();
+            writeValueField(generator, "data", response.getData());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<PatchResponse> PATCH = new MessageCodec.Writer<PatchResponse>() {
+        @Override
+        public void write(JsonGenerator generator, PatchResponse response) throws IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("version", response.getVersion());
+            writeValueField(generator, "data", response.getData());
+            writeValueField(generator, "removed", response.getRemoved());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    static final MessageCodec.Writer<StateResponse> STATE = new MessageCodec.Writer<StateResponse>() {
+        @Override
+        public void write(JsonGenerator generator, StateResponse response) throws IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("version", response.getVersion());
+            writeValueField(generator, "data", response.getData());
+            writeBeanFields(generator, response);
+            generator.writeEndObject();
+        }
+    };
+
+    private static void writeBeanFields(JsonGenerator generator, BeanResponse response) throws IOException {
+        writeStringField(generator, "type", response.getType());
+        writeLongField(generator, "serverTime", response.getServerTime());
+    }
+
+    private static void writeMatchFields(JsonGenerator generator, MatchResponse response) throws IOException {
+        writeDevicesField(generator, response.getDevices());
+        writeStringField(generator, "id", response.getId());
+        writeStringField(generator, "applicationId", response.getApplicationId());
+        writeBeanFields(generator, response);
+    }
+
+    private static void writeDevicesField(JsonGenerator generator, List<Device> devices) throws IOException {
+        if(devices == null) {
+            return;
+        }
+        generator.writeArrayFieldStart("devices");
+        for(Device device : devices) {
+            if(device == null) {
+                generator.writeNull();
+            }
+            else {
+                writeDevice(generator, device);
+            }
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeDevice(JsonGenerator generator, Device device) throws IOException {
+        generator.writeStartObject();
+        if(device.getUuid() != null) {
+            generator.writeStringField("uuid", device.getUuid().toString());
+        }
+        generator.writeNumberField("width", device.getWidth());
+        generator.writeNumberField("height", device.getHeight());
+        generator.writeNumberField("performance", device.getPerformance());
+        generator.writeNumberField("instructions", device.getInstructions());
+        writeStringField(generator, "location", device.getLocation());
+        writeStringField(generator, "country", device.getCountry());
+        generator.writeEndObject();
+    }
+
+    private static void writeStringField(JsonGenerator generator, String name, String value) throws IOException {
+        if(value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static void writeLongField(JsonGenerator generator, String name, Long value) throws IOException {
+        if(value != null) {
+            generator.writeNumberField(name, value);
+        }
+    }
+
+    private static void writeValueField(JsonGenerator generator, String name, Object value) throws IOException {
+        if(value != null) {
+            generator.writeFieldName(name);
+            writeValue(generator, value);
+        }
+    }
+
+    /**
+     * writes an untyped value
+     *
+     * @throws  IllegalArgumentException if the value, or a value it holds, is of a type that has no JSON form here
+     */
+    static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if(value == null) {
+            generator.writeNull();
+        }
+        else if(value instanceof String) {
+            generator.writeString((String) value);
+        }
+        else if(value instanceof Map) {
+            generator.writeStartObject();
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeValueField(generator, String.valueOf(entry.getKey()), entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else if(value instanceof Collection) {
+            generator.writeStartArray();
+            for(Object element : (Collection<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        }
+        else if(value instanceof Object[]) {
+            generator.writeStartArray();
+            for(Object element : (Object[]) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        }
+        else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).longValue());
+        }
+        else if(value instanceof Double) {
+            generator.writeNumber((Double) value);
+        }
+        else if(value instanceof Float) {
+            generator.writeNumber((Float) value);
+        }
+        else if(value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        }
+        else if(value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        }
+        else if(value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if(value instanceof Character) {
+            generator.writeString(value.toString());
+        }
+        else {
+            throw new IllegalArgumentException(String.format("No JSON form for %s", value.getClass().getName()));
+        }
+    }
+}
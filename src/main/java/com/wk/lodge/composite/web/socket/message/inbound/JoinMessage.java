@@ -1,7 +1,7 @@
 package com.wk.lodge.composite.web.socket.message.inbound;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.google.gson.Gson;
+import com.wk.lodge.composite.web.socket.message.codec.MessageCodec;
 
 public class JoinMessage extends MatchMessage{
     public static enum Types {exit, enter};
@@ -9,8 +9,7 @@ public class JoinMessage extends MatchMessage{
 
     @JsonCreator
     public static JoinMessage parseJson(String jsonString){
-        Gson gson = new Gson();
-        return gson.fromJson(jsonString, JoinMessage.class);
+        return MessageCodec.parse(jsonString, JoinMessage.class);
     }
 
     public JoinMessage(){}
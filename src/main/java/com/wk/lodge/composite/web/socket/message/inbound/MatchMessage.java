@@ -1,8 +1,8 @@
 package com.wk.lodge.composite.web.socket.message.inbound;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.google.gson.Gson;
 import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.web.socket.message.codec.MessageCodec;
 
 public class MatchMessage {
     private String applicationId;
@@ -15,8 +15,7 @@ public class MatchMessage {
 
     @JsonCreator
     public static MatchMessage parseJson(String jsonString){
-        Gson gson = new Gson();
-        return gson.fromJson(jsonString, MatchMessage.class);
+        return MessageCodec.parse(jsonString, MatchMessage.class);
     }
 
     public String getApplicationId() {
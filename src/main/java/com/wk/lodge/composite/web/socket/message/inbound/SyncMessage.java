@@ -1,15 +1,14 @@
 package com.wk.lodge.composite.web.socket.message.inbound;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.google.gson.Gson;
+import com.wk.lodge.composite.web.socket.message.codec.MessageCodec;
 
 public class SyncMessage extends BeanMessage {
     private Long time;
 
     @JsonCreator
     public static SyncMessage parseJson(String jsonString){
-        Gson gson = new Gson();
-        return gson.fromJson(jsonString, SyncMessage.class);
+        return MessageCodec.parse(jsonString, SyncMessage.class);
     }
 
     public Long getTime() {
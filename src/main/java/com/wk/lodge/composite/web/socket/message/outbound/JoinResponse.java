@@ -12,4 +12,12 @@ public class JoinResponse extends MatchResponse {
         this.type = "join";
         this.roomName = roomName;
     }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    public void setRoomName(String roomName) {
+        this.roomName = roomName;
+    }
 }
@@ -0,0 +1,42 @@
+package com.wk.lodge.composite.web.socket.message.outbound;
+
+import java.util.List;
+import java.util.Map;
+
+public class PatchResponse extends BeanResponse {
+    private long version;
+    private Map<String, Object> data;
+    private List<String> removed;
+
+    public PatchResponse(long version, Map<String, Object> data, List<String> removed) {
+        super();
+        this.type = "patch";
+        this.version = version;
+        this.data = data;
+        this.removed = removed;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Map<String, Object> getData() {
+        return data;
+    }
+
+    public void setData(Map<String, Object> data) {
+        this.data = data;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<String> removed) {
+        this.removed = removed;
+    }
+}
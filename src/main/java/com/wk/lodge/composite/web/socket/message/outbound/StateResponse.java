@@ -0,0 +1,31 @@
+package com.wk.lodge.composite.web.socket.message.outbound;
+
+import java.util.Map;
+
+public class StateResponse extends BeanResponse {
+    private long version;
+    private Map<String, Object> data;
+
+    public StateResponse(long version, Map<String, Object> data) {
+        super();
+        this.type = "state";
+        this.version = version;
+        this.data = data;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Map<String, Object> getData() {
+        return data;
+    }
+
+    public void setData(Map<String, Object> data) {
+        this.data = data;
+    }
+}
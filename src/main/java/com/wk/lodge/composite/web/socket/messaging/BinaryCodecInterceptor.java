@@ -0,0 +1,167 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets devices exchange message bodies encoded with Smile, Jackson's binary form of JSON, instead of JSON text.
+ *
+ * Inbound, any SEND frame whose content-type is application/x-jackson-smile is transcoded to JSON before it reaches the
+ * rest of the client inbound channel, so that CompositeController and the raw relay only ever see JSON. Outbound, a
+ * device that sends a "codec:smile" header on its STOMP CONNECT frame receives the JSON bodies of its MESSAGE frames
+ * transcoded to Smile, and every frame as a binary WebSocket frame. Only connections that can carry binary frames may
+ * opt in; SockJS connections, and devices that do not ask, keep receiving JSON text.
+ *
+ * Registered as an interceptor on both the client inbound and client outbound channels.
+ *
+ * @see BinaryFrameWebSocketHandler
+ */
+public class BinaryCodecInterceptor extends ChannelInterceptorAdapter implements ApplicationListener<SessionDisconnectEvent> {
+    private static final Log logger = LogFactory.getLog(BinaryCodecInterceptor.class);
+    public static final MimeType SMILE = new MimeType("application", "x-jackson-smile");
+    public static final String CODEC_HEADER = "codec";
+    public static final String SMILE_CODEC = "smile";
+    /** session attribute set on connections that can carry binary WebSocket frames */
+    public static final String BINARY_FRAMES_ATTRIBUTE = "composite.binaryFrames";
+    /** session attribute set on connections that have opted in to Smile */
+    public static final String CODEC_ATTRIBUTE = "composite.codec";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+
+    @Value("${binaryCodec.enabled}")
+    private boolean enabled;
+    private final Set<String> smileSessions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if(!this.enabled || !(message.getPayload() instanceof byte[])) {
+            return message;
+        }
+        SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        if(SimpMessageType.CONNECT.equals(type)) {
+            negotiate(message);
+            return message;
+        }
+        StompCommand command = StompHeaderAccessor.getCommand(message.getHeaders());
+        MimeType contentType = contentType(message);
+        if(StompCommand.SEND.equals(command) && contentType != null && SMILE.isCompatibleWith(contentType)) {
+            return transcode(message, toJson((byte[]) message.getPayload()), MimeTypeUtils.APPLICATION_JSON);
+        }
+        if(StompCommand.MESSAGE.equals(command) && isJson(contentType)) {
+            String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+            if(sessionId != null && this.smileSessions.contains(sessionId)) {
+                return transcode(message, toSmile((byte[]) message.getPayload()), SMILE);
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public void onApplicationEvent(SessionDisconnectEvent event) {
+        this.smileSessions.remove(event.getSessionId());
+    }
+
+    private void negotiate(Message<?> message) {
+        StompHeaderAccessor headers = StompHeaderAccessor.wrap(message);
+        Map<String, Object> attributes = headers.getSessionAttributes();
+        if(!SMILE_CODEC.equals(headers.getFirstNativeHeader(CODEC_HEADER)) || attributes == null
+                || !Boolean.TRUE.equals(attributes.get(BINARY_FRAMES_ATTRIBUTE))) {
+            return;
+        }
+        attributes.put(CODEC_ATTRIBUTE, SMILE_CODEC);
+        this.smileSessions.add(headers.getSessionId());
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Session %s negotiated the %s codec", headers.getSessionId(), SMILE_CODEC));
+    }
+
+    private static MimeType contentType(Message<?> message) {
+        Object value = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+        if(value instanceof String) {
+            return MimeTypeUtils.parseMimeType((String) value);
+        }
+        return (MimeType) value;
+    }
+
+    private static boolean isJson(MimeType contentType) {
+        return contentType == null || MimeTypeUtils.APPLICATION_JSON.isCompatibleWith(contentType)
+                || MimeTypeUtils.TEXT_PLAIN.isCompatibleWith(contentType);
+    }
+
+    private static Message<?> transcode(Message<?> message, byte[] payload, MimeType contentType) {
+        if(payload == null) {
+            return message;
+        }
+        StompHeaderAccessor headers = StompHeaderAccessor.wrap(message);
+        headers.setContentType(contentType);
+        return MessageBuilder.createMessage(payload, headers.getMessageHeaders());
+    }
+
+    /**
+     * @param   json    a UTF-8 JSON document
+     * @return          the document encoded with Smile, or null if it is not valid JSON
+     */
+    public static byte[] toSmile(byte[] json) {
+        try {
+            return copy(JSON_FACTORY.createParser(json), SMILE_FACTORY, json.length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param   smile   a Smile document
+     * @return          the document encoded as UTF-8 JSON, or null if it is not valid Smile
+     */
+    public static byte[] toJson(byte[] smile) {
+        try {
+            return copy(SMILE_FACTORY.createParser(smile), JSON_FACTORY, smile.length * 2);
+        } catch (IOException e) {
+            logger.warn("Could not decode Smile body", e);
+            return null;
+        }
+    }
+
+    private static byte[] copy(JsonParser parser, JsonFactory to, int sizeHint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
+        JsonGenerator generator = to.createGenerator(out);
+        try {
+            while(parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        } finally {
+            parser.close();
+        }
+        generator.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,67 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.io.IOException;
+
+/**
+ * A SubProtocolWebSocketHandler that lets STOMP frames travel in binary WebSocket frames, which the STOMP protocol
+ * handler does not support on its own: it only accepts text frames from clients, and only sends text frames to them.
+ *
+ * Binary frames received from a client are handed to the protocol handler as text frames over the same bytes, which
+ * the STOMP decoder reads as-is. Frames sent to a client that has negotiated a binary codec are sent as binary frames,
+ * since their bodies are no longer valid UTF-8. Connections that cannot carry binary frames, i.e. SockJS connections,
+ * are left alone, and are never offered a binary codec.
+ *
+ * @see BinaryCodecInterceptor
+ */
+public class BinaryFrameWebSocketHandler extends SubProtocolWebSocketHandler {
+
+    public BinaryFrameWebSocketHandler(MessageChannel clientInboundChannel, SubscribableChannel clientOutboundChannel) {
+        super(clientInboundChannel, clientOutboundChannel);
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        if(WebSocketSessionDecorator.unwrap(session) instanceof SockJsSession) {
+            super.afterConnectionEstablished(session);
+            return;
+        }
+        session.getAttributes().put(BinaryCodecInterceptor.BINARY_FRAMES_ATTRIBUTE, Boolean.TRUE);
+        super.afterConnectionEstablished(new BinaryFrameSession(session));
+    }
+
+    @Override
+    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+        if(message instanceof BinaryMessage) {
+            BinaryMessage binary = (BinaryMessage) message;
+            byte[] bytes = new byte[binary.getPayloadLength()];
+            binary.getPayload().duplicate().get(bytes);
+            message = new TextMessage(bytes);
+        }
+        super.handleMessage(session, message);
+    }
+
+    private static class BinaryFrameSession extends WebSocketSessionDecorator {
+
+        private BinaryFrameSession(WebSocketSession session) {
+            super(session);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            if(message instanceof TextMessage && getAttributes().containsKey(BinaryCodecInterceptor.CODEC_ATTRIBUTE)) {
+                message = new BinaryMessage(((TextMessage) message).asBytes());
+            }
+            super.sendMessage(message);
+        }
+    }
+}
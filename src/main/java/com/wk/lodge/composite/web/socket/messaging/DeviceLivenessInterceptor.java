@@ -0,0 +1,134 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.service.DeviceService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Derives device liveness from the transport instead of from /app/ping messages. When enabled, every frame a device
+ * sends - STOMP heartbeats included - counts as a ping, and is recorded in the device registry on the thread that
+ * received it, before it reaches the inbound channel's thread pool. Pings themselves are then dropped rather than
+ * dispatched to CompositeController. A device is removed from its session as soon as its last WebSocket session
+ * closes, instead of once it has timed out.
+ *
+ * Registered as an interceptor on the client inbound channel, and as a listener for WebSocket session events.
+ */
+public class DeviceLivenessInterceptor extends ChannelInterceptorAdapter implements ApplicationListener<ApplicationEvent> {
+    private static final Log logger = LogFactory.getLog(DeviceLivenessInterceptor.class);
+    private static final String PING_DESTINATION = "/app/ping";
+
+    private final DeviceRegistry deviceRegistry;
+    private DeviceService deviceService;
+    @Value("${deviceLiveness.events}")
+    private boolean enabled;
+    private final Map<String, String> devicesBySocket = new HashMap<String, String>();
+    private final Map<String, Integer> socketsByDevice = new HashMap<String, Integer>();
+
+    public DeviceLivenessInterceptor(DeviceRegistry deviceRegistry) {
+        this.deviceRegistry = deviceRegistry;
+    }
+
+    /**
+     * @param   deviceService   the device service, resolved lazily: the device service depends on the session
+     *                          repository, which depends on the channels this interceptor is registered on
+     */
+    @Autowired
+    @Lazy
+    public void setDeviceService(DeviceService deviceService) {
+        this.deviceService = deviceService;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if(!this.enabled) {
+            return message;
+        }
+        SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        Principal user = SimpMessageHeaderAccessor.getUser(message.getHeaders());
+        // the disconnect message for a closed socket follows its SessionDisconnectEvent
+        if(user != null && !SimpMessageType.DISCONNECT.equals(type)) {
+            touch(user.getName());
+        }
+        if(SimpMessageType.MESSAGE.equals(type)
+                && PING_DESTINATION.equals(SimpMessageHeaderAccessor.getDestination(message.getHeaders()))) {
+            return null;
+        }
+        return message;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if(!this.enabled) {
+            return;
+        }
+        if(event instanceof SessionConnectEvent) {
+            Message<?> message = ((SessionConnectEvent) event).getMessage();
+            Principal user = SimpMessageHeaderAccessor.getUser(message.getHeaders());
+            String socket = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+            if(user != null && socket != null) {
+                connected(socket, user.getName());
+                touch(user.getName());
+            }
+        }
+        else if(event instanceof SessionDisconnectEvent) {
+            String device = disconnected(((SessionDisconnectEvent) event).getSessionId());
+            if(device != null) {
+                if(logger.isDebugEnabled()) logger.debug(String.format("Evicting disconnected device %s", device));
+                this.deviceService.evictDevice(device);
+            }
+        }
+    }
+
+    private void touch(String device) {
+        try {
+            this.deviceRegistry.addHealthyDevice(device);
+        }
+        catch(IllegalArgumentException e) {
+            // not a device principal
+        }
+    }
+
+    private synchronized void connected(String socket, String device) {
+        if(this.devicesBySocket.put(socket, device) == null) {
+            Integer sockets = this.socketsByDevice.get(device);
+            this.socketsByDevice.put(device, sockets == null ? 1 : sockets + 1);
+        }
+    }
+
+    /**
+     * @return  the device whose socket closed, if it has no other socket open, otherwise null
+     */
+    private synchronized String disconnected(String socket) {
+        String device = this.devicesBySocket.remove(socket);
+        if(device == null) {
+            return null;
+        }
+        Integer sockets = this.socketsByDevice.remove(device);
+        if(sockets != null && sockets > 1) {
+            this.socketsByDevice.put(device, sockets - 1);
+            return null;
+        }
+        return device;
+    }
+}
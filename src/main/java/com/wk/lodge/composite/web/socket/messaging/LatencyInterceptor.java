@@ -0,0 +1,424 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.metrics.LatencyHistogram;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.handler.invocation.AbstractMethodMessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records how long the messages devices send to /app destinations take, from the moment they reach the client inbound
+ * channel until they have been handled, in a histogram per destination: /app/join, /app/pair, /app/sync, /app/init,
+ * /app/ping and /app/disconnect, and /app/{id} by the type of the message. Messages to /app/{id} that the raw relay or
+ * the update coalescer take before they reach CompositeController are recorded as "/app/{id} relayed". For messages
+ * that are dispatched to the controller, the time spent waiting in the inbound channel's queue is also recorded, in a
+ * histogram of its own. A reply sent from the controller counts as handled once it is handed to the broker channel;
+ * replies sent asynchronously are not included.
+ *
+ * The time a message arrives is kept in thread-locals and in a fixed table of messages in flight, and the histograms
+ * count into fixed arrays, so nothing is allocated per message. Messages whose slot in the table is taken by another
+ * message in flight are not timed, and only counted.
+ *
+ * Also samples the queue depth and active thread count of every ThreadPoolTaskExecutor in the context, which includes
+ * the executors of the client inbound, client outbound and broker channels. The executors are looked up once the
+ * context has been refreshed, since the channels they run are built with this interceptor.
+ *
+ * Registered on the client inbound channel twice: the interceptor returned by {@link #getArrivalInterceptor()} ahead of
+ * every other interceptor, and this interceptor after every other one.
+ */
+public class LatencyInterceptor extends ChannelInterceptorAdapter implements ExecutorChannelInterceptor,
+        ApplicationListener<ContextRefreshedEvent> {
+    private static final Log logger = LogFactory.getLog(LatencyInterceptor.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String APP_PREFIX = "/app/";
+    private static final String[] DESTINATIONS = {"join", "pair", "sync", "init", "ping", "disconnect"};
+    private static final String[] TYPES = {"update", "data", "patch", "state", "start", "stop", "devices"};
+    private static final String[] DESTINATION_PATHS = new String[DESTINATIONS.length];
+    private static final byte[][] QUOTED_TYPES = new byte[TYPES.length][];
+    private static final int OTHER = DESTINATIONS.length + TYPES.length;
+    private static final int RELAYED = OTHER + 1;
+    private static final int UNTRACKED = -1;
+    private static final int SLOTS = 4096;
+    private static final Object CLAIMED = new Object();
+    private static final ThreadLocal<long[]> SENDING = new Timing();
+    private static final ThreadLocal<long[]> HANDLING = new Timing();
+
+    static {
+        for(int i = 0; i < DESTINATIONS.length; i++) {
+            DESTINATION_PATHS[i] = APP_PREFIX + DESTINATIONS[i];
+        }
+        for(int i = 0; i < TYPES.length; i++) {
+            QUOTED_TYPES[i] = ("\"" + TYPES[i] + "\"").getBytes(UTF_8);
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[RELAYED + 1];
+    private final Map<String, LatencyHistogram> histogramsByName;
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final AtomicReferenceArray<Object> inFlight = new AtomicReferenceArray<Object>(SLOTS);
+    private final AtomicLongArray arrivals = new AtomicLongArray(SLOTS);
+    private final AtomicIntegerArray keys = new AtomicIntegerArray(SLOTS);
+    private final AtomicLong untimed = new AtomicLong();
+    private final ChannelInterceptor arrivalInterceptor = new Arrivals();
+    private volatile List<ExecutorGauge> executorGauges = Collections.emptyList();
+    @Value("${latency.enabled}")
+    private boolean enabled;
+
+    public LatencyInterceptor() {
+        Map<String, LatencyHistogram> byName = new LinkedHashMap<String, LatencyHistogram>();
+        for(int key = 0; key < this.histograms.length; key++) {
+            this.histograms[key] = new LatencyHistogram();
+            byName.put(name(key), this.histograms[key]);
+        }
+        this.histogramsByName = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * @param   executors   the executors to sample, by bean name
+     */
+    public void setExecutors(Map<String, ThreadPoolTaskExecutor> executors) {
+        List<ExecutorGauge> gauges = new ArrayList<ExecutorGauge>();
+        for(Map.Entry<String, ThreadPoolTaskExecutor> executor : executors.entrySet()) {
+            gauges.add(new ExecutorGauge(executor.getKey(), executor.getValue()));
+        }
+        this.executorGauges = Collections.unmodifiableList(gauges);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        setExecutors(event.getApplicationContext().getBeansOfType(ThreadPoolTaskExecutor.class));
+    }
+
+    /**
+     * @return  the interceptor that notes when a message arrives, to be registered ahead of every other interceptor
+     */
+    public ChannelInterceptor getArrivalInterceptor() {
+        return this.arrivalInterceptor;
+    }
+
+    /**
+     * @return  the histograms of the time taken by the messages to each destination, in microseconds, by destination
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return this.histogramsByName;
+    }
+
+    /**
+     * @return  the histogram of the time dispatched messages waited for an inbound channel thread, in microseconds
+     */
+    public LatencyHistogram getQueueWait() {
+        return this.queueWait;
+    }
+
+    /**
+     * @return  the number of messages that were not timed because another message held their slot
+     */
+    public long getUntimed() {
+        return this.untimed.get();
+    }
+
+    public List<ExecutorGauge> getExecutorGauges() {
+        return this.executorGauges;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if(!this.enabled) {
+            return message;
+        }
+        long[] sending = SENDING.get();
+        int key = (int) sending[1];
+        if(key == UNTRACKED) {
+            return message;
+        }
+        sending[1] = UNTRACKED;
+        if(key == OTHER) {
+            // the payload is JSON by now, whatever codec the device sent it in
+            key = typeKey(message);
+        }
+        if(!claim(message, sending[0], key)) {
+            this.untimed.incrementAndGet();
+        }
+        return message;
+    }
+
+    @Override
+    public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+        if(!sent || ex != null) {
+            // it will not be handled
+            this.inFlight.compareAndSet(slot(message), message, null);
+        }
+    }
+
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        if(!this.enabled || !(handler instanceof AbstractMethodMessageHandler)) {
+            return message;
+        }
+        long[] handling = HANDLING.get();
+        handling[1] = UNTRACKED;
+        int slot = slot(message);
+        if(this.inFlight.get(slot) == message) {
+            handling[0] = this.arrivals.get(slot);
+            handling[1] = this.keys.get(slot);
+            this.inFlight.set(slot, null);
+            this.queueWait.record(micros(System.nanoTime() - handling[0]));
+        }
+        return message;
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        if(!this.enabled || !(handler instanceof AbstractMethodMessageHandler)) {
+            return;
+        }
+        long[] handling = HANDLING.get();
+        if(handling[1] != UNTRACKED) {
+            this.histograms[(int) handling[1]].record(micros(System.nanoTime() - handling[0]));
+            handling[1] = UNTRACKED;
+        }
+    }
+
+    /**
+     * samples the queue depth and active thread count of each executor
+     * <p>
+     * Scheduled by default to run every second
+     */
+    @Scheduled(fixedRate = 1000)
+    public void sample() {
+        if(!this.enabled) {
+            return;
+        }
+        for(ExecutorGauge gauge : this.executorGauges) {
+            gauge.sample();
+        }
+    }
+
+    /**
+     * logs the latency percentiles of each destination that has had messages, and the busiest each executor has been
+     * since the last report
+     * <p>
+     * Scheduled by default to run every minute
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void report() {
+        if(!this.enabled) {
+            return;
+        }
+        for(Map.Entry<String, LatencyHistogram> entry : this.histogramsByName.entrySet()) {
+            log(entry.getKey(), entry.getValue());
+        }
+        log("inbound queue wait", this.queueWait);
+        for(ExecutorGauge gauge : this.executorGauges) {
+            logger.info(String.format("Executor %s: %d queued (max %d), %d active (max %d)", gauge.getName(),
+                gauge.getQueued(), gauge.getMaxQueued(), gauge.getActive(), gauge.getMaxActive()));
+            gauge.resetMax();
+        }
+        if(this.untimed.get() > 0) {
+            logger.info(String.format("%d messages were not timed", this.untimed.get()));
+        }
+    }
+
+    private static void log(String name, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        if(count > 0) {
+            logger.info(String.format("Latency %s: %d messages, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                name, count, millis(histogram.valueAtPercentile(50)), millis(histogram.valueAtPercentile(99)),
+                millis(histogram.valueAtPercentile(99.9)), millis(histogram.getMax())));
+        }
+    }
+
+    /**
+     * holds a message's arrival time and destination in its slot until it is handled
+     *
+     * @return  false if another message holds the slot
+     */
+    private boolean claim(Message<?> message, long arrival, int key) {
+        int slot = slot(message);
+        if(!this.inFlight.compareAndSet(slot, null, CLAIMED)) {
+            return false;
+        }
+        this.arrivals.set(slot, arrival);
+        this.keys.set(slot, key);
+        this.inFlight.set(slot, message);
+        return true;
+    }
+
+    private static int slot(Message<?> message) {
+        return System.identityHashCode(message) & (SLOTS - 1);
+    }
+
+    /**
+     * @return  the index of the histogram of a message's destination, OTHER for /app/{id} destinations, or UNTRACKED
+     */
+    private static int destinationKey(Message<?> message) {
+        if(!SimpMessageType.MESSAGE.equals(SimpMessageHeaderAccessor.getMessageType(message.getHeaders()))) {
+            return UNTRACKED;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if(destination == null || !destination.startsWith(APP_PREFIX)) {
+            return UNTRACKED;
+        }
+        for(int key = 0; key < DESTINATION_PATHS.length; key++) {
+            if(DESTINATION_PATHS[key].equals(destination)) {
+                return key;
+            }
+        }
+        return destination.indexOf('/', APP_PREFIX.length()) < 0 ? OTHER : UNTRACKED;
+    }
+
+    /**
+     * @return  the index of the histogram of the type of a message sent to /app/{id}
+     */
+    private static int typeKey(Message<?> message) {
+        if(!(message.getPayload() instanceof byte[])) {
+            return OTHER;
+        }
+        int type = RawRelayInterceptor.typeIndex((byte[]) message.getPayload(), QUOTED_TYPES);
+        return type < 0 ? OTHER : DESTINATIONS.length + type;
+    }
+
+    private static String name(int key) {
+        if(key < DESTINATIONS.length) {
+            return DESTINATION_PATHS[key];
+        }
+        if(key < OTHER) {
+            return APP_PREFIX + "{id} " + TYPES[key - DESTINATIONS.length];
+        }
+        return APP_PREFIX + "{id} " + (key == OTHER ? "other" : "relayed");
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * the arrival time and histogram index of the message a thread is sending or handling
+     */
+    private static final class Timing extends ThreadLocal<long[]> {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {0, UNTRACKED};
+        }
+    }
+
+    /**
+     * notes when a message arrives and which destination it is for. If an interceptor between this one and the
+     * LatencyInterceptor takes the message, the time it took is recorded once the send completes.
+     */
+    private final class Arrivals extends ChannelInterceptorAdapter {
+        @Override
+        public Message<?> preSend(Message<?> message, MessageChannel channel) {
+            if(enabled) {
+                long[] sending = SENDING.get();
+                sending[0] = System.nanoTime();
+                sending[1] = destinationKey(message);
+            }
+            return message;
+        }
+
+        @Override
+        public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+            if(!enabled) {
+                return;
+            }
+            long[] sending = SENDING.get();
+            int key = (int) sending[1];
+            if(key != UNTRACKED && !sent && ex == null) {
+                histograms[key == OTHER ? RELAYED : key].record(micros(System.nanoTime() - sending[0]));
+            }
+            sending[1] = UNTRACKED;
+        }
+    }
+
+    /**
+     * the queue depth and active thread count of an executor, as of the last sample, and the highest seen since the
+     * last report
+     */
+    public static final class ExecutorGauge {
+        private final String name;
+        private final ThreadPoolTaskExecutor executor;
+        private volatile int queued;
+        private volatile int active;
+        private volatile int maxQueued;
+        private volatile int maxActive;
+
+        private ExecutorGauge(String name, ThreadPoolTaskExecutor executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getQueued() {
+            return this.queued;
+        }
+
+        public int getActive() {
+            return this.active;
+        }
+
+        public int getMaxQueued() {
+            return this.maxQueued;
+        }
+
+        public int getMaxActive() {
+            return this.maxActive;
+        }
+
+        void sample() {
+            this.queued = queued();
+            this.active = this.executor.getActiveCount();
+            this.maxQueued = Math.max(this.maxQueued, this.queued);
+            this.maxActive = Math.max(this.maxActive, this.active);
+        }
+
+        private int queued() {
+            try {
+                return this.executor.getThreadPoolExecutor().getQueue().size();
+            } catch (IllegalStateException e) {
+                // not initialized yet, or a virtual channel executor, which starts a thread per task and queues none
+                return 0;
+            }
+        }
+
+        void resetMax() {
+            this.maxQueued = this.queued;
+            this.maxActive = this.active;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A channel that hands messages to its executor like an ExecutorSubscribableChannel, but handles the messages that share
+ * a key - the value of a given header - one at a time, in the order they were sent. Messages with different keys, and
+ * messages without the header, are still handled in parallel.
+ *
+ * Spring hands each message to the executor on its own, so two messages to one WebSocket session, or two broadcasts to
+ * one topic, can otherwise overtake each other on different threads, whatever mode the executor runs in. Registered in
+ * place of the client outbound channel, keyed by WebSocket session, and of the broker channel, keyed by destination.
+ *
+ * Each key with messages in flight has a lane, which is worked off on the executor by one task at a time and dropped as
+ * soon as it is empty.
+ */
+public class OrderedExecutorSubscribableChannel extends ExecutorSubscribableChannel {
+    private static final Log logger = LogFactory.getLog(OrderedExecutorSubscribableChannel.class);
+    private static final int DRAIN_BATCH = 16;
+    private static final ThreadLocal<Lane> CURRENT = new ThreadLocal<Lane>();
+    // set when the executor runs a lane handed over by the thread draining it on that same thread, as elastic mode does
+    // once it is full
+    private static final ThreadLocal<Boolean> RAN_INLINE = new ThreadLocal<Boolean>();
+
+    private final Executor executor;
+    private final String keyHeader;
+    private final ConcurrentMap<Object, Lane> lanes = new ConcurrentHashMap<Object, Lane>();
+
+    /**
+     * @param   executor    the executor the messages are handled on
+     * @param   keyHeader   the name of the header whose value orders the messages
+     */
+    public OrderedExecutorSubscribableChannel(Executor executor, String keyHeader) {
+        // the superclass, without an executor of its own, handles each message on the thread running its lane
+        super();
+        this.executor = executor;
+        this.keyHeader = keyHeader;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return this.executor;
+    }
+
+    public String getKeyHeader() {
+        return this.keyHeader;
+    }
+
+    /**
+     * @return  the number of keys with messages queued or being handled
+     */
+    public int getLanes() {
+        return this.lanes.size();
+    }
+
+    @Override
+    public boolean sendInternal(final Message<?> message, final long timeout) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                OrderedExecutorSubscribableChannel.super.sendInternal(message, timeout);
+            }
+        };
+        Object key = message.getHeaders().get(this.keyHeader);
+        if(key == null) {
+            this.executor.execute(task);
+            return true;
+        }
+        while(true) {
+            Lane lane = this.lanes.get(key);
+            if(lane == null) {
+                Lane created = new Lane(key);
+                lane = this.lanes.putIfAbsent(key, created);
+                if(lane == null) {
+                    lane = created;
+                }
+            }
+            int depth = lane.offer(task);
+            if(depth < 0) {
+                // the lane was dropped after we looked it up
+                this.lanes.remove(key, lane);
+                continue;
+            }
+            if(depth == 1 && !lane.handOver()) {
+                lane.run();
+            }
+            return true;
+        }
+    }
+
+    private final class Lane implements Runnable {
+        private final Object key;
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean closed;
+
+        private Lane(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * @return  the depth of the lane with the task added, 1 meaning that the lane must be scheduled, or -1 if the
+         *          lane has been dropped
+         */
+        private synchronized int offer(Runnable task) {
+            if(this.closed) {
+                return -1;
+            }
+            this.tasks.add(task);
+            return this.tasks.size();
+        }
+
+        @Override
+        public void run() {
+            if(CURRENT.get() == this) {
+                RAN_INLINE.set(Boolean.TRUE);
+                return;
+            }
+            Lane previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                // let other lanes have the thread between batches, unless no other thread will take the lane
+                while(drain(DRAIN_BATCH) && !handOver()) {
+                }
+            } finally {
+                if(previous == null) {
+                    CURRENT.remove();
+                }
+                else {
+                    CURRENT.set(previous);
+                }
+            }
+        }
+
+        /**
+         * @return  true if another thread will drain the lane, false if the caller must
+         */
+        private boolean handOver() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // shutting down; deliver what is left here rather than drop it
+                return false;
+            }
+            boolean ranInline = RAN_INLINE.get() != null;
+            RAN_INLINE.remove();
+            return !ranInline;
+        }
+
+        /**
+         * handles up to limit messages. The head of the queue stays in it while it is handled, so that messages sent
+         * meanwhile queue behind it.
+         *
+         * @return  true if messages are left in the lane
+         */
+        private boolean drain(int limit) {
+            for(int handled = 0; handled < limit; handled++) {
+                Runnable task;
+                synchronized(this) {
+                    task = this.tasks.peek();
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error(String.format("Failed to handle a message for %s", this.key), e);
+                }
+                synchronized(this) {
+                    this.tasks.remove();
+                    if(this.tasks.isEmpty()) {
+                        this.closed = true;
+                        lanes.remove(this.key, this);
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Relays update and data messages sent to /app/{id} straight to /topic/{id}, without dispatching them to
+ * CompositeController. The controller decodes each message into a map, wraps it in an UpdateResponse or DataResponse
+ * and encodes it again; here the payload is only scanned for its top-level type and data fields, and the data field's
+ * bytes are copied as-is into the response, behind the type and serverTime envelope that the controller would add.
+ *
+ * Messages that are not well formed JSON, such as a bare token other than true, false, null or a number, or that are of
+ * any other type, are passed on to the controller unchanged. Update messages to sessions whose application has an
+ * update tick are handed to the UpdateCoalescer instead of being relayed one by one. Registered as an interceptor on
+ * the client inbound channel.
+ */
+public class RawRelayInterceptor extends ChannelInterceptorAdapter {
+    private static final Log logger = LogFactory.getLog(RawRelayInterceptor.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final MimeType CONTENT_TYPE = new MimeType("application", "json", UTF_8);
+    private static final String APP_PREFIX = "/app/";
+    private static final String TOPIC_PREFIX = "/topic/";
+    private static final byte[] TYPE = "type".getBytes(UTF_8);
+    private static final byte[] DATA = "data".getBytes(UTF_8);
+    private static final byte[] UPDATE_VALUE = "\"update\"".getBytes(UTF_8);
+    private static final byte[] DATA_VALUE = "\"data\"".getBytes(UTF_8);
+    private static final byte[] UPDATE_HEAD = "{\"type\":\"update\",\"serverTime\":".getBytes(UTF_8);
+    private static final byte[] DATA_HEAD = "{\"type\":\"data\",\"serverTime\":".getBytes(UTF_8);
+    private static final byte[] DATA_KEY = ",\"data\":".getBytes(UTF_8);
+    private static final byte[] TRUE = "true".getBytes(UTF_8);
+    private static final byte[] FALSE = "false".getBytes(UTF_8);
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+    // deeper values are left to the controller rather than scanned recursively
+    private static final int MAX_DEPTH = 64;
+
+    private SimpMessagingTemplate brokerTemplate;
+    private UpdateCoalescer updateCoalescer;
+    @Value("${rawRelay.enabled}")
+    private boolean enabled;
+
+    /**
+     * @param   brokerTemplate  the broker template, resolved lazily since the broker channel is built with the client
+     *                          inbound channel this interceptor is registered on
+     */
+    @Autowired
+    @Lazy
+    public void setBrokerTemplate(SimpMessagingTemplate brokerTemplate) {
+        this.brokerTemplate = brokerTemplate;
+    }
+
+    @Autowired(required = false)
+    public void setUpdateCoalescer(UpdateCoalescer updateCoalescer) {
+        this.updateCoalescer = updateCoalescer;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if(!this.enabled || !(message.getPayload() instanceof byte[])
+                || !SimpMessageType.MESSAGE.equals(SimpMessageHeaderAccessor.getMessageType(message.getHeaders()))) {
+            return message;
+        }
+        String id = sessionId(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+        if(id == null) {
+            return message;
+        }
+        byte[] payload = (byte[]) message.getPayload();
+        if(this.updateCoalescer != null && coalesce(id, message, payload)) {
+            return null;
+        }
+        byte[] response = envelope(payload, new Date().getTime());
+        if(response == null) {
+            return message;
+        }
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("RELAYED RESPONSE: %s", new String(response, UTF_8)));
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setContentType(CONTENT_TYPE);
+        headers.setLeaveMutable(true);
+        this.brokerTemplate.send(TOPIC_PREFIX + id, MessageBuilder.createMessage(response, headers.getMessageHeaders()));
+        return null;
+    }
+
+    /**
+     * hands an update message to the coalescer, if its session's application coalesces updates
+     *
+     * @return  true if the coalescer took the update
+     */
+    private boolean coalesce(String id, Message<?> message, byte[] payload) {
+        Principal user = SimpMessageHeaderAccessor.getUser(message.getHeaders());
+        if(user == null) {
+            return false;
+        }
+        byte[] data = updateData(payload);
+        return data != null && this.updateCoalescer.offer(id, user.getName(), data);
+    }
+
+    /**
+     * wraps the data field of an update or data message in the envelope broadcast to the session topic, copying its
+     * bytes rather than decoding them
+     *
+     * @param   payload     the UTF-8 JSON payload of a message sent to /app/{id}
+     * @param   serverTime  the serverTime to add to the envelope
+     * @return              the response payload, or null if the payload is not an update or data message, or cannot
+     *                      be scanned
+     */
+    public static byte[] envelope(byte[] payload, long serverTime) {
+        int[] fields = scan(payload);
+        if(fields == null) {
+            return null;
+        }
+        int typeStart = fields[0], typeEnd = fields[1], dataStart = fields[2], dataEnd = fields[3];
+        byte[] head;
+        if(regionEquals(payload, typeStart, typeEnd, UPDATE_VALUE)) {
+            head = UPDATE_HEAD;
+        }
+        else if(regionEquals(payload, typeStart, typeEnd, DATA_VALUE)) {
+            head = DATA_HEAD;
+        }
+        else {
+            return null;
+        }
+
+        byte[] time = Long.toString(serverTime).getBytes(UTF_8);
+        int dataLength = dataStart < 0 ? 0 : dataEnd - dataStart;
+        byte[] response = new byte[head.length + time.length + (dataStart < 0 ? 0 : DATA_KEY.length + dataLength) + 1];
+        System.arraycopy(head, 0, response, 0, head.length);
+        int n = head.length;
+        System.arraycopy(time, 0, response, n, time.length);
+        n += time.length;
+        if(dataStart >= 0) {
+            System.arraycopy(DATA_KEY, 0, response, n, DATA_KEY.length);
+            n += DATA_KEY.length;
+            System.arraycopy(payload, dataStart, response, n, dataLength);
+            n += dataLength;
+        }
+        response[n] = '}';
+        return response;
+    }
+
+    /**
+     * @param   payload     the UTF-8 JSON payload of a message sent to /app/{id}
+     * @return              the data field's bytes if the payload is an update message, otherwise null
+     */
+    static byte[] updateData(byte[] payload) {
+        int[] fields = scan(payload);
+        if(fields == null || fields[2] < 0 || !regionEquals(payload, fields[0], fields[1], UPDATE_VALUE)) {
+            return null;
+        }
+        return Arrays.copyOfRange(payload, fields[2], fields[3]);
+    }
+
+    /**
+     * finds which of a set of types a message is, scanning the top level of its payload without allocating
+     *
+     * @param   payload     the UTF-8 JSON payload of a message sent to /app/{id}
+     * @param   types       the candidate type values, each in double quotes as it appears in the payload
+     * @return              the index in types of the payload's type, or -1 if it has none of them or cannot be scanned
+     */
+    static int typeIndex(byte[] payload, byte[][] types) {
+        int i = skipWhitespace(payload, 0);
+        if(i >= payload.length || payload[i] != '{') {
+            return -1;
+        }
+        i = skipWhitespace(payload, i + 1);
+        while(i < payload.length && payload[i] == '"') {
+            int keyStart = i + 1;
+            int keyEnd = skipString(payload, i) - 1;
+            if(keyEnd < keyStart) {
+                return -1;
+            }
+            i = skipWhitespace(payload, keyEnd + 1);
+            if(i >= payload.length || payload[i] != ':') {
+                return -1;
+            }
+            int valueStart = skipWhitespace(payload, i + 1);
+            int valueEnd = skipValue(payload, valueStart);
+            if(valueEnd < 0) {
+                return -1;
+            }
+            if(regionEquals(payload, keyStart, keyEnd, TYPE)) {
+                for(int t = 0; t < types.length; t++) {
+                    if(regionEquals(payload, valueStart, valueEnd, types[t])) {
+                        return t;
+                    }
+                }
+                return -1;
+            }
+            i = skipWhitespace(payload, valueEnd);
+            if(i >= payload.length || payload[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(payload, i + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * scans the top level of a JSON object for its type and data fields
+     *
+     * @return  the start and end indexes of the type and data values, -1 for a field that is missing, or null if the
+     *          payload cannot be scanned
+     */
+    private static int[] scan(byte[] payload) {
+        int typeStart = -1, typeEnd = -1, dataStart = -1, dataEnd = -1;
+        int i = skipWhitespace(payload, 0);
+        if(i >= payload.length || payload[i] != '{') {
+            return null;
+        }
+        i = skipWhitespace(payload, i + 1);
+        if(i < payload.length && payload[i] == '}') {
+            return null;
+        }
+        while(i < payload.length) {
+            if(payload[i] != '"') {
+                return null;
+            }
+            int keyStart = i + 1;
+            int keyEnd = skipString(payload, i) - 1;
+            if(keyEnd < keyStart) {
+                return null;
+            }
+            i = skipWhitespace(payload, keyEnd + 1);
+            if(i >= payload.length || payload[i] != ':') {
+                return null;
+            }
+            int valueStart = skipWhitespace(payload, i + 1);
+            int valueEnd = skipValue(payload, valueStart);
+            if(valueEnd < 0) {
+                return null;
+            }
+            if(regionEquals(payload, keyStart, keyEnd, TYPE)) {
+                typeStart = valueStart;
+                typeEnd = valueEnd;
+            }
+            else if(regionEquals(payload, keyStart, keyEnd, DATA)) {
+                dataStart = valueStart;
+                dataEnd = valueEnd;
+            }
+            i = skipWhitespace(payload, valueEnd);
+            if(i >= payload.length) {
+                return null;
+            }
+            if(payload[i] == '}') {
+                break;
+            }
+            if(payload[i] != ',') {
+                return null;
+            }
+            i = skipWhitespace(payload, i + 1);
+        }
+        return new int[] {typeStart, typeEnd, dataStart, dataEnd};
+    }
+
+    /**
+     * @return  the session id of a destination of the form /app/{id}, if it is a valid UUID, otherwise null
+     */
+    private static String sessionId(String destination) {
+        if(destination == null || !destination.startsWith(APP_PREFIX) || destination.indexOf('/', APP_PREFIX.length()) >= 0) {
+            return null;
+        }
+        String id = destination.substring(APP_PREFIX.length());
+        try {
+            UUID.fromString(id);
+        } catch (Exception e) {
+            return null;
+        }
+        return id;
+    }
+
+    private static int skipWhitespace(byte[] json, int i) {
+        while(i < json.length && (json[i] == ' ' || json[i] == '\t' || json[i] == '\n' || json[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return  the index just past the closing quote of the string starting at i, or -1 if it is not terminated
+     */
+    private static int skipString(byte[] json, int i) {
+        for(i = i + 1; i < json.length; i++) {
+            if(json[i] == '\\') {
+                i++;
+            }
+            else if(json[i] == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return  the index just past the JSON value starting at i, or -1 if it is not a well formed value
+     */
+    private static int skipValue(byte[] json, int i) {
+        return skipValue(json, i, 0);
+    }
+
+    private static int skipValue(byte[] json, int i, int depth) {
+        if(i >= json.length) {
+            return -1;
+        }
+        switch(json[i]) {
+            case '"':
+                return skipString(json, i);
+            case '{':
+                return depth < MAX_DEPTH ? skipObject(json, i, depth + 1) : -1;
+            case '[':
+                return depth < MAX_DEPTH ? skipArray(json, i, depth + 1) : -1;
+            case 't':
+                return skipLiteral(json, i, TRUE);
+            case 'f':
+                return skipLiteral(json, i, FALSE);
+            case 'n':
+                return skipLiteral(json, i, NULL);
+            default:
+                return skipNumber(json, i);
+        }
+    }
+
+    private static int skipObject(byte[] json, int i, int depth) {
+        i = skipWhitespace(json, i + 1);
+        if(i < json.length && json[i] == '}') {
+            return i + 1;
+        }
+        while(i < json.length && json[i] == '"') {
+            i = skipString(json, i);
+            if(i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(json, i);
+            if(i >= json.length || json[i] != ':') {
+                return -1;
+            }
+            i = skipValue(json, skipWhitespace(json, i + 1), depth);
+            if(i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(json, i);
+            if(i < json.length && json[i] == '}') {
+                return i + 1;
+            }
+            if(i >= json.length || json[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(json, i + 1);
+        }
+        return -1;
+    }
+
+    private static int skipArray(byte[] json, int i, int depth) {
+        i = skipWhitespace(json, i + 1);
+        if(i < json.length && json[i] == ']') {
+            return i + 1;
+        }
+        while(i < json.length) {
+            i = skipValue(json, i, depth);
+            if(i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(json, i);
+            if(i < json.length && json[i] == ']') {
+                return i + 1;
+            }
+            if(i >= json.length || json[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(json, i + 1);
+        }
+        return -1;
+    }
+
+    private static int skipLiteral(byte[] json, int i, byte[] literal) {
+        int end = i + literal.length;
+        return end <= json.length && regionEquals(json, i, end, literal) ? end : -1;
+    }
+
+    /**
+     * @return  the index just past the number starting at i, which must have the form JSON allows, or -1
+     */
+    private static int skipNumber(byte[] json, int i) {
+        if(i < json.length && json[i] == '-') {
+            i++;
+        }
+        if(i < json.length && json[i] == '0') {
+            i++;
+        }
+        else {
+            int digits = i;
+            i = skipDigits(json, i);
+            if(i == digits) {
+                return -1;
+            }
+        }
+        if(i < json.length && json[i] == '.') {
+            int digits = i + 1;
+            i = skipDigits(json, digits);
+            if(i == digits) {
+                return -1;
+            }
+        }
+        if(i < json.length && (json[i] == 'e' || json[i] == 'E')) {
+            i++;
+            if(i < json.length && (json[i] == '+' || json[i] == '-')) {
+                i++;
+            }
+            int digits = i;
+            i = skipDigits(json, i);
+            if(i == digits) {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    private static int skipDigits(byte[] json, int i) {
+        while(i < json.length && json[i] >= '0' && json[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean regionEquals(byte[] json, int start, int end, byte[] expected) {
+        if(start < 0 || end - start != expected.length) {
+            return false;
+        }
+        for(int k = 0; k < expected.length; k++) {
+            if(json[start + k] != expected[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,279 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.service.SessionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.MimeType;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the update messages of a session into one frame per tick, for applications configured with an update
+ * tick. The first update of a session opens a tick; until the tick ends, each further update replaces the previous one
+ * from the same device, and the latest update of each device is then published to /topic/{id} in a single frame:
+ *
+ *      {"type":"updates","serverTime":...,"updates":{"&lt;device uuid&gt;":&lt;data&gt;,...}}
+ *
+ * However fast devices send updates, the broker therefore sees at most one message per session per tick. The data of
+ * each update is copied as-is, as by the raw relay. Ticks are published on a single background thread.
+ *
+ * Updates arrive on the transport threads, so a session's application is only looked up among the sessions this node
+ * holds in memory. Updates to a session this node does not know yet are relayed as they are while the session is read
+ * from the document store on another background thread, after which its updates are coalesced.
+ */
+public class UpdateCoalescer {
+    private static final Log logger = LogFactory.getLog(UpdateCoalescer.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final MimeType CONTENT_TYPE = new MimeType("application", "json", UTF_8);
+    private static final String TOPIC_PREFIX = "/topic/";
+    private static final byte[] HEAD = "{\"type\":\"updates\",\"serverTime\":".getBytes(UTF_8);
+    private static final byte[] UPDATES_KEY = ",\"updates\":{".getBytes(UTF_8);
+
+    private final Map<String, Long> tickMillisByApplication;
+    private SessionService sessionService;
+    private SimpMessagingTemplate brokerTemplate;
+    private final boolean enabled;
+    private final ScheduledExecutorService executor;
+    private final ExecutorService lookupExecutor;
+    private final ConcurrentMap<String, Boolean> lookups = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentMap<String, Tick> ticks = new ConcurrentHashMap<String, Tick>();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+
+    /**
+     * @param   tickMillisByApplication     the update tick of each application id, in milliseconds; applications
+     *                                      without a positive tick are not coalesced
+     */
+    public UpdateCoalescer(Map<String, Long> tickMillisByApplication) {
+        this.tickMillisByApplication = new HashMap<String, Long>(tickMillisByApplication);
+        boolean enabled = false;
+        for(Long tickMillis : this.tickMillisByApplication.values()) {
+            enabled |= tickMillis != null && tickMillis > 0;
+        }
+        this.enabled = enabled;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("update-coalescer-");
+        threadFactory.setDaemon(true);
+        this.executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        CustomizableThreadFactory lookupThreadFactory = new CustomizableThreadFactory("update-coalescer-lookup-");
+        lookupThreadFactory.setDaemon(true);
+        this.lookupExecutor = Executors.newSingleThreadExecutor(lookupThreadFactory);
+    }
+
+    // collaborators are resolved lazily: both depend on the client inbound channel, which the raw relay, and so this
+    // coalescer, are built into
+    @Autowired
+    @Lazy
+    public void setSessionService(SessionService sessionService) {
+        this.sessionService = sessionService;
+    }
+
+    @Autowired
+    @Lazy
+    public void setBrokerTemplate(SimpMessagingTemplate brokerTemplate) {
+        this.brokerTemplate = brokerTemplate;
+    }
+
+    /**
+     * adds an update to its session's current tick, if the session's application is coalesced
+     *
+     * @param   sessionId   the id of the session the update was sent to
+     * @param   device      the UUID of the device that sent the update
+     * @param   data        the update's data, as JSON
+     * @return              false if the session's application is not coalesced, and the update should be relayed as
+     *                      it is
+     */
+    public boolean offer(String sessionId, String device, byte[] data) {
+        if(!this.enabled) {
+            return false;
+        }
+        while(true) {
+            Tick tick = this.ticks.get(sessionId);
+            if(tick == null) {
+                long tickMillis = tickMillis(sessionId);
+                if(tickMillis <= 0) {
+                    return false;
+                }
+                Tick created = new Tick(sessionId);
+                tick = this.ticks.putIfAbsent(sessionId, created);
+                if(tick == null) {
+                    tick = created;
+                    schedule(created, tickMillis);
+                }
+            }
+            if(tick.add(device, data)) {
+                break;
+            }
+            // the tick was closed for publishing after we looked it up; the next one will take the update
+            this.ticks.remove(sessionId, tick);
+        }
+        this.updates.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * publishes any open ticks and stops the background thread
+     */
+    public void shutdown() {
+        this.lookupExecutor.shutdownNow();
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return  the number of updates coalesced
+     */
+    public long getUpdates() {
+        return this.updates.get();
+    }
+
+    /**
+     * @return  the number of frames published
+     */
+    public long getFrames() {
+        return this.frames.get();
+    }
+
+    private long tickMillis(String sessionId) {
+        String applicationId = this.sessionService.getApplicationId(sessionId);
+        if(applicationId == null) {
+            lookUp(sessionId);
+            return 0;
+        }
+        Long tickMillis = this.tickMillisByApplication.get(applicationId);
+        return tickMillis == null ? 0 : tickMillis;
+    }
+
+    /**
+     * reads a session this node does not hold in memory from the document store, once however many of its updates
+     * arrive meanwhile, so that it is known by the time its next updates arrive
+     */
+    private void lookUp(final String sessionId) {
+        if(this.lookups.putIfAbsent(sessionId, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            this.lookupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sessionService.get(sessionId);
+                    } catch (RuntimeException e) {
+                        logger.warn(String.format("Failed to look up session %s", sessionId), e);
+                    } finally {
+                        lookups.remove(sessionId);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            this.lookups.remove(sessionId);
+        }
+    }
+
+    private void schedule(final Tick tick, long tickMillis) {
+        this.executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                publish(tick);
+            }
+        }, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void publish(Tick tick) {
+        this.ticks.remove(tick.sessionId, tick);
+        Map<String, byte[]> latest = tick.close();
+        if(latest.isEmpty()) {
+            return;
+        }
+        try {
+            SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+            headers.setContentType(CONTENT_TYPE);
+            headers.setLeaveMutable(true);
+            this.brokerTemplate.send(TOPIC_PREFIX + tick.sessionId,
+                    MessageBuilder.createMessage(frame(latest, System.currentTimeMillis()), headers.getMessageHeaders()));
+            this.frames.incrementAndGet();
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to publish %d updates to session %s", latest.size(), tick.sessionId), e);
+        }
+    }
+
+    /**
+     * @param   latest      the latest data of each device, as JSON
+     * @param   serverTime  the serverTime to add to the frame
+     * @return              the coalesced frame
+     */
+    static byte[] frame(Map<String, byte[]> latest, long serverTime) {
+        int size = HEAD.length + 20 + UPDATES_KEY.length + 2;
+        for(Map.Entry<String, byte[]> entry : latest.entrySet()) {
+            size += entry.getKey().length() + 4 + entry.getValue().length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.write(HEAD, 0, HEAD.length);
+        byte[] time = Long.toString(serverTime).getBytes(UTF_8);
+        out.write(time, 0, time.length);
+        out.write(UPDATES_KEY, 0, UPDATES_KEY.length);
+        boolean first = true;
+        for(Map.Entry<String, byte[]> entry : latest.entrySet()) {
+            if(!first) {
+                out.write(',');
+            }
+            first = false;
+            // device names are UUIDs, which need no escaping
+            byte[] device = entry.getKey().getBytes(UTF_8);
+            out.write('"');
+            out.write(device, 0, device.length);
+            out.write('"');
+            out.write(':');
+            out.write(entry.getValue(), 0, entry.getValue().length);
+        }
+        out.write('}');
+        out.write('}');
+        return out.toByteArray();
+    }
+
+    private static final class Tick {
+        private final String sessionId;
+        private final Map<String, byte[]> latest = new LinkedHashMap<String, byte[]>();
+        private boolean closed;
+
+        private Tick(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        private synchronized boolean add(String device, byte[] data) {
+            if(this.closed) {
+                return false;
+            }
+            this.latest.put(device, data);
+            return true;
+        }
+
+        private synchronized Map<String, byte[]> close() {
+            this.closed = true;
+            return this.latest;
+        }
+    }
+}
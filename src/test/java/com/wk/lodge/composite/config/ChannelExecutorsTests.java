@@ -0,0 +1,126 @@
+package com.wk.lodge.composite.config;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChannelExecutorsTests {
+    private static final int MESSAGES = 100;
+    private static final int CORE_POOL_SIZE = 9;
+
+    /**
+     * sends a burst of messages through a channel whose handlers block, as they would on a slow session store, until
+     * as many of them as the mode should allow are in flight at once
+     *
+     * @return  the most messages that were in flight at once
+     */
+    private int peakInFlight(String mode, int maxPoolSize, final int expected) throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger ranBySender = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(MESSAGES);
+        final Thread sender = Thread.currentThread();
+        ThreadPoolTaskExecutor executor = ChannelExecutors.create("test-" + mode + "-", mode, CORE_POOL_SIZE,
+                maxPoolSize);
+        executor.afterPropertiesSet();
+        try {
+            ExecutorSubscribableChannel channel = new ExecutorSubscribableChannel(executor);
+            channel.subscribe(new MessageHandler() {
+                @Override
+                public void handleMessage(Message<?> message) throws MessagingException {
+                    if (Thread.currentThread() == sender) {
+                        ranBySender.incrementAndGet();
+                    }
+                    int now = inFlight.incrementAndGet();
+                    int seen;
+                    while ((seen = peak.get()) < now && !peak.compareAndSet(seen, now)) {
+                        // another handler raised the peak; try again
+                    }
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    inFlight.decrementAndGet();
+                    handled.countDown();
+                }
+            });
+            for (int i = 0; i < MESSAGES; i++) {
+                channel.send(MessageBuilder.withPayload(i).build());
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (inFlight.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            assertTrue(handled.await(30, TimeUnit.SECONDS));
+            assertEquals(0, ranBySender.get());
+            return peak.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testThePoolIsCappedAtItsCoreThreads() throws Exception {
+        assertEquals(CORE_POOL_SIZE, peakInFlight(ChannelExecutors.POOL, 1000, CORE_POOL_SIZE));
+    }
+
+    @Test
+    public void testElasticModeHandlesEveryMessageInFlightAtOnce() throws Exception {
+        assertEquals(MESSAGES, peakInFlight(ChannelExecutors.ELASTIC, 1000, MESSAGES));
+    }
+
+    @Test
+    public void testVirtualModeIsNotCappedByTheMaximumPoolSize() throws Exception {
+        if (ChannelExecutors.virtualThreadFactory("v-") != null) {
+            // a maximum well under the burst, which only platform threads are held to
+            assertEquals(MESSAGES, peakInFlight(ChannelExecutors.VIRTUAL, CORE_POOL_SIZE, MESSAGES));
+        } else {
+            assertEquals(MESSAGES, peakInFlight(ChannelExecutors.VIRTUAL, 1000, MESSAGES));
+        }
+    }
+
+    @Test
+    public void testModes() {
+        ThreadPoolTaskExecutor pool = ChannelExecutors.create("p-", ChannelExecutors.POOL, 9, 1000);
+        assertEquals(9, pool.getCorePoolSize());
+        assertEquals(Integer.MAX_VALUE, pool.getMaxPoolSize());
+
+        ThreadPoolTaskExecutor elastic = ChannelExecutors.create("e-", ChannelExecutors.ELASTIC, 9, 1000);
+        assertEquals(9, elastic.getCorePoolSize());
+        assertEquals(1000, elastic.getMaxPoolSize());
+
+        boolean virtualThreads = ChannelExecutors.virtualThreadFactory("v-") != null;
+        assertEquals(hasMethod("ofVirtual"), virtualThreads);
+        ThreadPoolTaskExecutor virtual = ChannelExecutors.create("v-", ChannelExecutors.VIRTUAL, 9, 1000);
+        assertEquals(virtualThreads, virtual instanceof ChannelExecutors.ThreadPerTaskExecutor);
+
+        try {
+            ChannelExecutors.create("x-", "fibers", 9, 1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("fibers"));
+        }
+    }
+
+    private static boolean hasMethod(String name) {
+        try {
+            Thread.class.getMethod(name);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
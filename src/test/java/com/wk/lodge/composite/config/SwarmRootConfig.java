@@ -0,0 +1,68 @@
+package com.wk.lodge.composite.config;
+
+import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import com.wk.lodge.composite.repository.store.MeteredSessionStore;
+import com.wk.lodge.composite.repository.store.SessionStore;
+import com.wk.lodge.composite.service.RoomService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.HashMap;
+
+/**
+ * Root configuration for device swarms run on a single box: sessions are held in memory, so no CouchDB is needed.
+ *
+ * @see com.wk.lodge.composite.load.SwarmServer
+ */
+@Configuration
+@PropertySource("classpath:/application.properties")
+public class SwarmRootConfig {
+    @Value(value= "${appOne.applicationId}") private String appOneApplicationId;
+    @Value(value = "${appOne.maxDevicesPerSession}") private int appOneMaxDevicesPerSession;
+    @Value(value = "${appOne.roomNames}") private String[] appOneRoomNames;
+    @Value(value= "${appTwo.applicationId}") private String appTwoApplicationId;
+    @Value(value = "${appTwo.maxDevicesPerSession}") private int appTwoMaxDevicesPerSession;
+    @Value(value = "${minDistanceThresholdBetweenDevices}") private float minDistanceThresholdBetweenDevices;
+    @Value(value = "${maxDistanceThresholdBetweenDevices}") private float maxDistanceThresholdBetweenDevices;
+    @Value(value = "${sessionAsync.poolSize}") private int sessionAsyncPoolSize;
+
+    @Bean
+    public static PropertySourcesPlaceholderConfigurer
+    getPropertySourcesPlaceholderConfigurer(){
+        return new PropertySourcesPlaceholderConfigurer();
+    }
+
+    @Bean
+    public SessionStore sessionStore(){
+        return new MeteredSessionStore(new InMemorySessionStore());
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor sessionAsyncExecutor(){
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(sessionAsyncPoolSize);
+        executor.setThreadNamePrefix("session-async-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+
+    @Bean
+    public DeviceLimiter deviceLimiter(){
+        HashMap<String,Integer> maxDevicesPerSession = new HashMap<>();
+        maxDevicesPerSession.put(appOneApplicationId, appOneMaxDevicesPerSession);
+        maxDevicesPerSession.put(appTwoApplicationId, appTwoMaxDevicesPerSession);
+        return new DeviceLimiter(maxDevicesPerSession,minDistanceThresholdBetweenDevices,maxDistanceThresholdBetweenDevices);
+    }
+
+    @Bean
+    public RoomService roomService(){
+        HashMap<String,String[]> roomNames = new HashMap<>();
+        roomNames.put(appOneApplicationId, appOneRoomNames);
+        return new RoomService(roomNames);
+    }
+}
@@ -0,0 +1,20 @@
+package com.wk.lodge.composite.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+
+/**
+ * The test WebSocket configuration with the simple broker in place of the RabbitMQ relay, for device swarms run on a
+ * single box.
+ *
+ * @see com.wk.lodge.composite.load.SwarmServer
+ */
+@Configuration
+public class SwarmWebSocketConfig extends TestWebSocketConfig {
+
+    @Override
+    public void configureMessageBroker(MessageBrokerRegistry registry) {
+        registry.enableSimpleBroker("/queue/", "/topic/");
+        registry.setApplicationDestinationPrefixes("/app");
+    }
+}
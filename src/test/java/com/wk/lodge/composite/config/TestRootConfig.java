@@ -1,6 +1,9 @@
 package com.wk.lodge.composite.config;
 
 import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.store.CouchDbSessionStore;
+import com.wk.lodge.composite.repository.store.MeteredSessionStore;
+import com.wk.lodge.composite.repository.store.SessionStore;
 import com.wk.lodge.composite.service.RoomService;
 import org.lightcouch.CouchDbClient;
 import org.lightcouch.CouchDbProperties;
@@ -14,6 +17,7 @@ import org.springframework.core.env.Environment;
 import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.SubscribableChannel;
 import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.HashMap;
 import java.util.List;
@@ -39,6 +43,7 @@ public class TestRootConfig implements ApplicationListener<ContextRefreshedEvent
     @Value(value = "${appTwo.maxDevicesPerSession}") private int appTwoMaxDevicesPerSession;
     @Value(value = "${minDistanceThresholdBetweenDevices}") private float minDistanceThresholdBetweenDevices;
     @Value(value = "${maxDistanceThresholdBetweenDevices}") private float maxDistanceThresholdBetweenDevices;
+    @Value(value = "${sessionAsync.poolSize}") private int sessionAsyncPoolSize;
 
     @Value(value = "${couchdb.host}") private String couchDbHostname;
     @Value(value = "${couchdb.port}") private int couchDbHostPort;
@@ -69,6 +74,23 @@ public class TestRootConfig implements ApplicationListener<ContextRefreshedEvent
         return new CouchDbClient(couchDbProperties);
     }
 
+    @Bean
+    public SessionStore sessionStore(){
+        return new MeteredSessionStore(new CouchDbSessionStore(couchDbSessionClient()));
+    }
+
+    /**
+     * the threads the session repository's asynchronous calls block on while the session store answers
+     */
+    @Bean
+    public ThreadPoolTaskExecutor sessionAsyncExecutor(){
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(sessionAsyncPoolSize);
+        executor.setThreadNamePrefix("session-async-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+
     @Bean
     public DeviceLimiter deviceLimiter(){
         HashMap<String,Integer> maxDevicesPerSession = new HashMap<>();
@@ -1,12 +1,21 @@
 package com.wk.lodge.composite.config;
 
 import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.registry.SessionStateRegistry;
+import com.wk.lodge.composite.web.socket.message.codec.CodecMessageConverter;
+import com.wk.lodge.composite.web.socket.messaging.BinaryCodecInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.DeviceLivenessInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.LatencyInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.RawRelayInterceptor;
+import com.wk.lodge.composite.web.socket.messaging.UpdateCoalescer;
 import com.wk.lodge.composite.web.socket.server.support.CompositeHandshakeHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.*;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.core.env.Environment;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.socket.config.annotation.AbstractWebSocketMessageBrokerConfigurer;
@@ -15,6 +24,9 @@ import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.server.standard.TomcatRequestUpgradeStrategy;
 import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
+import java.util.HashMap;
+import java.util.List;
+
 @Configuration
 @EnableScheduling
 @PropertySource("classpath:/rabbitmq.properties")
@@ -30,6 +42,12 @@ public class TestWebSocketConfig extends AbstractWebSocketMessageBrokerConfigure
     private @Value(value = "${rabbitmq.clientPasscode}") String clientPasscode;
     private @Value(value = "${rabbitmq.systemLogin}") String systemLogin;
     private @Value(value = "${rabbitmq.systemPasscode}") String systemPasscode;
+    private @Value(value = "${deviceLiveness.timeoutMillis}") long deviceTimeoutMillis;
+    private @Value(value = "${sessionState.idleSeconds}") long sessionStateIdleSeconds;
+    private @Value(value = "${appOne.applicationId}") String appOneApplicationId;
+    private @Value(value = "${appOne.updateTickMillis}") long appOneUpdateTickMillis;
+    private @Value(value = "${appTwo.applicationId}") String appTwoApplicationId;
+    private @Value(value = "${appTwo.updateTickMillis}") long appTwoUpdateTickMillis;
 
     @Bean
     public DefaultHandshakeHandler handshakeHandler() {
@@ -44,7 +62,40 @@ public class TestWebSocketConfig extends AbstractWebSocketMessageBrokerConfigure
 
     @Bean
     public DeviceRegistry deviceRegistry() {
-        return new DeviceRegistry();
+        return new DeviceRegistry(deviceTimeoutMillis);
+    }
+
+    @Bean
+    public SessionStateRegistry sessionStateRegistry() {
+        return new SessionStateRegistry(sessionStateIdleSeconds);
+    }
+
+    @Bean
+    public DeviceLivenessInterceptor deviceLivenessInterceptor() {
+        return new DeviceLivenessInterceptor(deviceRegistry());
+    }
+
+    @Bean
+    public RawRelayInterceptor rawRelayInterceptor() {
+        return new RawRelayInterceptor();
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public UpdateCoalescer updateCoalescer() {
+        HashMap<String,Long> updateTickMillis = new HashMap<>();
+        updateTickMillis.put(appOneApplicationId, appOneUpdateTickMillis);
+        updateTickMillis.put(appTwoApplicationId, appTwoUpdateTickMillis);
+        return new UpdateCoalescer(updateTickMillis);
+    }
+
+    @Bean
+    public LatencyInterceptor latencyInterceptor() {
+        return new LatencyInterceptor();
+    }
+
+    @Bean
+    public BinaryCodecInterceptor binaryCodecInterceptor() {
+        return new BinaryCodecInterceptor();
     }
 
     @Autowired
@@ -56,6 +107,23 @@ public class TestWebSocketConfig extends AbstractWebSocketMessageBrokerConfigure
                 .withSockJS();
     }
 
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.setInterceptors(latencyInterceptor().getArrivalInterceptor(), binaryCodecInterceptor(),
+                deviceLivenessInterceptor(), rawRelayInterceptor(), latencyInterceptor());
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.setInterceptors(binaryCodecInterceptor());
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        messageConverters.add(new CodecMessageConverter());
+        return true;
+    }
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry registry) {
         registry.enableStompBrokerRelay("/queue/", "/topic/")
@@ -0,0 +1,234 @@
+package com.wk.lodge.composite.load;
+
+import com.wk.lodge.composite.repository.GeoDistance;
+import com.wk.lodge.composite.web.support.client.WebSocketStompClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.sockjs.client.RestTemplateXhrTransport;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.Transport;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives load at a Composite server with a swarm of simulated devices, and reports join and pair latency percentiles,
+ * the fan-out latency of updates, and error and conflict rates. Devices gather at sites spread over an area around a
+ * center point, so that those at the same site share sessions and those at different sites do not.
+ *
+ * Run it with the swarm profile, against an embedded server with an in-memory session store:
+ *
+ *     mvn -P swarm -DskipTests integration-test -Dswarm.devices=1000 -Dswarm.seconds=120
+ *
+ * or against a running server with -Dswarm.url=http://host:8080. See SwarmSettings for every setting. A single box
+ * runs out of file descriptors before it runs out of anything else, so raise ulimit -n for large swarms.
+ *
+ * @see VirtualDevice
+ */
+public class DeviceSwarm {
+    private static final Log logger = LogFactory.getLog(DeviceSwarm.class);
+
+    private final SwarmSettings settings;
+    private final SwarmReport report = new SwarmReport();
+    private final double[][] sites;
+    private final Set<VirtualDevice> devices =
+        Collections.newSetFromMap(new ConcurrentHashMap<VirtualDevice, Boolean>());
+    private ScheduledExecutorService scheduler;
+    private ExecutorService connector;
+    private WebSocketStompClient stompClient;
+    private volatile boolean running;
+
+    public DeviceSwarm(SwarmSettings settings) {
+        this.settings = settings;
+        this.sites = new double[Math.max(settings.getSites(), 1)][];
+        for(int i = 0; i < this.sites.length; i++) {
+            this.sites[i] = around(settings.getLat(), settings.getLng(), settings.getSpreadKm() * 1000);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SwarmSettings settings = SwarmSettings.fromSystemProperties();
+        SwarmServer server = null;
+        if(settings.getUrl() == null) {
+            server = SwarmServer.start();
+            settings.setUrl(server.getUrl());
+        }
+        try {
+            logger.info(new DeviceSwarm(settings).run());
+        } finally {
+            if(server != null) {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * connects the devices over the ramp, lets them run for the rest of the run, then disconnects them
+     *
+     * @return  the report of the run
+     */
+    public SwarmReport run() throws InterruptedException {
+        start();
+        try {
+            long spacingMicros = TimeUnit.SECONDS.toMicros(this.settings.getRampSeconds())
+                / Math.max(this.settings.getDevices(), 1);
+            for(int i = 0; i < this.settings.getDevices(); i++) {
+                launch(i * spacingMicros);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.settings.getSeconds());
+            long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(this.settings.getReportSeconds(), 1));
+            for(long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(left, reportNanos));
+                logger.info(this.report.progress());
+            }
+        } finally {
+            stop();
+        }
+        readServerMetrics();
+        return this.report;
+    }
+
+    private void start() {
+        List<Transport> transports = new ArrayList<>();
+        if("xhr".equals(this.settings.getTransport())) {
+            transports.add(new RestTemplateXhrTransport(new RestTemplate()));
+        }
+        else {
+            transports.add(new WebSocketTransport(new StandardWebSocketClient()));
+        }
+        this.stompClient = new WebSocketStompClient(URI.create(this.settings.getUrl() + "/composite"),
+            new WebSocketHttpHeaders(), new SockJsClient(transports));
+        this.stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+
+        CustomizableThreadFactory schedulerThreads = new CustomizableThreadFactory("swarm-");
+        schedulerThreads.setDaemon(true);
+        this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+            schedulerThreads);
+        CustomizableThreadFactory connectorThreads = new CustomizableThreadFactory("swarm-connect-");
+        connectorThreads.setDaemon(true);
+        this.connector = Executors.newFixedThreadPool(this.settings.getConnectThreads(), connectorThreads);
+        this.running = true;
+    }
+
+    private void stop() throws InterruptedException {
+        this.running = false;
+        this.connector.shutdownNow();
+        this.connector.awaitTermination(10, TimeUnit.SECONDS);
+        for(VirtualDevice device : this.devices) {
+            device.close();
+        }
+        this.devices.clear();
+        this.scheduler.shutdownNow();
+        this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void launch(long delayMicros) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] site = this.sites[random.nextInt(this.sites.length)];
+        double[] geo = around(site[0], site[1], this.settings.getSiteMeters());
+        final VirtualDevice device = new VirtualDevice(this, new float[]{(float) geo[0], (float) geo[1]},
+            random.nextDouble() < this.settings.getPairRatio());
+        this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(!running) {
+                    return;
+                }
+                devices.add(device);
+                connector.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(running) {
+                            device.connect();
+                        }
+                    }
+                });
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * puts a new device in the place of one that has dropped or failed to connect, after a second
+     */
+    void replace(VirtualDevice device) {
+        if(this.devices.remove(device) && this.running) {
+            launch(TimeUnit.SECONDS.toMicros(1));
+        }
+    }
+
+    private void readServerMetrics() {
+        String metrics;
+        try {
+            metrics = new RestTemplate().getForObject(this.settings.getUrl() + "/metrics", String.class);
+        } catch (RestClientException e) {
+            logger.warn(String.format("No metrics at %s/metrics", this.settings.getUrl()));
+            return;
+        }
+        this.report.setStoreConflicts(sample(metrics, "composite_store_conflicts_total"));
+        this.report.setConflictSessions(sample(metrics, "composite_conflict_sessions_total"));
+    }
+
+    /**
+     * @return  the value of an unlabelled sample in a Prometheus text exposition, or -1 if it has none
+     */
+    static long sample(String metrics, String name) {
+        for(String line : metrics.split("\n")) {
+            if(line.startsWith(name + " ")) {
+                return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return  a random [latitude, longitude] within range meters of the given point, uniformly over the disc
+     */
+    private static double[] around(double lat, double lng, double range) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double distance = range * Math.sqrt(random.nextDouble());
+        double bearing = 2 * Math.PI * random.nextDouble();
+        double north = distance * Math.cos(bearing);
+        double east = distance * Math.sin(bearing);
+        return new double[]{
+            lat + Math.signum(north) * GeoDistance.latitudeDelta(Math.abs(north)),
+            lng + Math.signum(east) * GeoDistance.longitudeDelta(lat, Math.abs(east))
+        };
+    }
+
+    boolean isRunning() {
+        return this.running;
+    }
+
+    SwarmSettings getSettings() {
+        return this.settings;
+    }
+
+    SwarmReport getReport() {
+        return this.report;
+    }
+
+    WebSocketStompClient getStompClient() {
+        return this.stompClient;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+}
@@ -0,0 +1,79 @@
+package com.wk.lodge.composite.load;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceSwarmTests {
+    private static SwarmServer server;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        server = SwarmServer.start();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private SwarmSettings settings() {
+        SwarmSettings settings = new SwarmSettings();
+        settings.setUrl(server.getUrl());
+        settings.setDevices(6);
+        settings.setSeconds(4);
+        settings.setRampSeconds(1);
+        settings.setReportSeconds(2);
+        settings.setSyncs(2);
+        settings.setUpdatesPerSecond(20);
+        settings.setPingMillis(500);
+        settings.setSites(1);
+        settings.setSiteMeters(1);
+        return settings;
+    }
+
+    @Test
+    public void testDevicesJoinAndReceiveEachOthersUpdates() throws Exception {
+        SwarmSettings settings = settings();
+        settings.setPairRatio(0);
+        settings.setMeanLifetimeSeconds(0);
+        SwarmReport report = new DeviceSwarm(settings).run();
+
+        assertEquals(report.toString(), 6, report.getConnect().getCount());
+        assertEquals(report.toString(), 12, report.getSync().getCount());
+        assertEquals(report.toString(), 6, report.getJoin().getCount());
+        assertEquals(report.toString(), 0, report.getPair().getCount());
+        assertTrue(report.toString(), report.getUpdatesSent().get() > 0);
+        assertTrue(report.toString(), report.getFanOut().getCount() > 0);
+        assertEquals(report.toString(), 0, report.getErrors());
+        assertEquals(report.toString(), 0, report.getDrops().get());
+        assertTrue(report.toString(), report.getStoreConflicts() >= 0);
+        assertTrue(report.toString(), report.getConflictSessions() >= 0);
+    }
+
+    @Test
+    public void testDroppedDevicesAreReplaced() throws Exception {
+        SwarmSettings settings = settings();
+        settings.setPairRatio(0.5);
+        settings.setMeanLifetimeSeconds(0.5);
+        SwarmReport report = new DeviceSwarm(settings).run();
+
+        assertTrue(report.toString(), report.getDrops().get() > 0);
+        assertTrue(report.toString(), report.getConnect().getCount() > 6);
+        assertTrue(report.toString(), report.getJoin().getCount() + report.getPair().getCount() > 6);
+        assertEquals(report.toString(), 0, report.getErrors());
+    }
+
+    @Test
+    public void testSamplesAreReadFromTheMetricsExposition() {
+        String metrics = "# TYPE composite_store_conflicts_total counter\n" +
+            "composite_store_conflicts_total 3\n" +
+            "composite_sessions{application=\"appOne\",room=\"lobby\"} 2\n";
+        assertEquals(3, DeviceSwarm.sample(metrics, "composite_store_conflicts_total"));
+        assertEquals(-1, DeviceSwarm.sample(metrics, "composite_sessions"));
+    }
+}
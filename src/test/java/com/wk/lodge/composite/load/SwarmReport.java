@@ -0,0 +1,186 @@
+package com.wk.lodge.composite.load;
+
+import com.wk.lodge.composite.metrics.LatencyHistogram;
+import com.wk.lodge.composite.metrics.StripedCounter;
+
+/**
+ * What a device swarm measured: latencies in microseconds, counts of what the devices did and of what went wrong, and
+ * the conflict counters the server reported at the end of the run. Updated by every device at once.
+ */
+public class SwarmReport {
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram sync = new LatencyHistogram();
+    private final LatencyHistogram join = new LatencyHistogram();
+    private final LatencyHistogram pair = new LatencyHistogram();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final StripedCounter connectFailures = new StripedCounter();
+    private final StripedCounter sent = new StripedCounter();
+    private final StripedCounter updatesSent = new StripedCounter();
+    private final StripedCounter drops = new StripedCounter();
+    private final StripedCounter errorReplies = new StripedCounter();
+    private final StripedCounter errorFrames = new StripedCounter();
+    private final StripedCounter sendFailures = new StripedCounter();
+    private final StripedCounter closedByServer = new StripedCounter();
+    private long storeConflicts = -1;
+    private long conflictSessions = -1;
+
+    /**
+     * @return  time from opening a connection until the STOMP CONNECTED frame arrived
+     */
+    public LatencyHistogram getConnect() {
+        return connect;
+    }
+
+    /**
+     * @return  round trip time of sync messages
+     */
+    public LatencyHistogram getSync() {
+        return sync;
+    }
+
+    /**
+     * @return  time from sending a join until the join response arrived
+     */
+    public LatencyHistogram getJoin() {
+        return join;
+    }
+
+    /**
+     * @return  time from sending a pair until the pair response arrived
+     */
+    public LatencyHistogram getPair() {
+        return pair;
+    }
+
+    /**
+     * @return  time from a device sending an update until each other device of its session received it
+     */
+    public LatencyHistogram getFanOut() {
+        return fanOut;
+    }
+
+    public StripedCounter getConnectFailures() {
+        return connectFailures;
+    }
+
+    /**
+     * @return  the messages sent by devices, of any kind
+     */
+    public StripedCounter getSent() {
+        return sent;
+    }
+
+    public StripedCounter getUpdatesSent() {
+        return updatesSent;
+    }
+
+    public StripedCounter getDrops() {
+        return drops;
+    }
+
+    /**
+     * @return  messages the server sent to /user/queue/errors
+     */
+    public StripedCounter getErrorReplies() {
+        return errorReplies;
+    }
+
+    /**
+     * @return  STOMP ERROR frames received
+     */
+    public StripedCounter getErrorFrames() {
+        return errorFrames;
+    }
+
+    public StripedCounter getSendFailures() {
+        return sendFailures;
+    }
+
+    /**
+     * @return  connections closed by the server, or by the transport, rather than by their device
+     */
+    public StripedCounter getClosedByServer() {
+        return closedByServer;
+    }
+
+    public long getErrors() {
+        return this.connectFailures.get() + this.errorReplies.get() + this.errorFrames.get() + this.sendFailures.get()
+            + this.closedByServer.get();
+    }
+
+    /**
+     * @return  session writes the server's store rejected because of a conflicting revision, or -1 if the server
+     *          serves no metrics
+     */
+    public long getStoreConflicts() {
+        return storeConflicts;
+    }
+
+    public void setStoreConflicts(long storeConflicts) {
+        this.storeConflicts = storeConflicts;
+    }
+
+    /**
+     * @return  sessions the server opened because joining an existing session conflicted, or -1 if the server serves
+     *          no metrics
+     */
+    public long getConflictSessions() {
+        return conflictSessions;
+    }
+
+    public void setConflictSessions(long conflictSessions) {
+        this.conflictSessions = conflictSessions;
+    }
+
+    /**
+     * @return  a one line summary of the run so far
+     */
+    public String progress() {
+        return String.format("connected %d, joined %d, paired %d, updates %d sent %d received, drops %d, errors %d",
+            this.connect.getCount(), this.join.getCount(), this.pair.getCount(), this.updatesSent.get(),
+            this.fanOut.getCount(), this.drops.get(), getErrors());
+    }
+
+    @Override
+    public String toString() {
+        long matches = this.join.getCount() + this.pair.getCount();
+        StringBuilder report = new StringBuilder("device swarm report\n");
+        report.append(String.format("%-10s %10s %10s %10s %10s %10s %10s%n",
+            "", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        row(report, "connect", this.connect);
+        row(report, "sync", this.sync);
+        row(report, "join", this.join);
+        row(report, "pair", this.pair);
+        row(report, "fan-out", this.fanOut);
+        report.append(String.format("updates sent %d, received %d; drops %d%n",
+            this.updatesSent.get(), this.fanOut.getCount(), this.drops.get()));
+        report.append(String.format("errors %d in %d messages sent (%.3f%%): connect %d, error replies %d, " +
+                "error frames %d, send %d, closed by server %d%n",
+            getErrors(), this.sent.get(), percent(getErrors(), this.sent.get()), this.connectFailures.get(),
+            this.errorReplies.get(), this.errorFrames.get(), this.sendFailures.get(), this.closedByServer.get()));
+        if(this.storeConflicts < 0) {
+            report.append("conflicts n/a, the server serves no metrics\n");
+        }
+        else {
+            report.append(String.format("conflicts %d store writes, %d conflict sessions in %d joins and pairs " +
+                    "(%.3f%%)%n", this.storeConflicts, this.conflictSessions, matches,
+                percent(this.conflictSessions, matches)));
+        }
+        return report.toString();
+    }
+
+    private static void row(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.getCount(),
+            millis(histogram.valueAtPercentile(50)), millis(histogram.valueAtPercentile(90)),
+            millis(histogram.valueAtPercentile(99)), millis(histogram.valueAtPercentile(99.9)),
+            millis(histogram.getMax())));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+}
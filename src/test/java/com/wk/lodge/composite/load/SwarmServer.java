@@ -0,0 +1,66 @@
+package com.wk.lodge.composite.load;
+
+import com.wk.lodge.composite.config.Initializer;
+import com.wk.lodge.composite.config.SwarmRootConfig;
+import com.wk.lodge.composite.config.SwarmWebSocketConfig;
+import com.wk.lodge.composite.config.WebConfig;
+import com.wk.lodge.composite.web.support.server.TomcatWebSocketTestServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.SocketUtils;
+
+/**
+ * An embedded Tomcat server running Composite for a device swarm to load, with sessions held in memory and the simple
+ * broker in place of the RabbitMQ relay, so that a swarm can run on a single box with nothing else installed.
+ */
+public class SwarmServer {
+    private static final Log logger = LogFactory.getLog(SwarmServer.class);
+
+    private final int port;
+    private final TomcatWebSocketTestServer server;
+
+    private SwarmServer(int port) {
+        this.port = port;
+        this.server = new TomcatWebSocketTestServer(port);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static SwarmServer start() throws Exception {
+        SwarmServer swarmServer = new SwarmServer(SocketUtils.findAvailableTcpPort());
+        swarmServer.server.deployConfig(SwarmDispatcherServletInitializer.class);
+        swarmServer.server.start();
+        logger.info(String.format("Swarm server started at %s", swarmServer.getUrl()));
+        return swarmServer;
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + this.port;
+    }
+
+    public void stop() {
+        try {
+            this.server.undeployConfig();
+        }
+        catch (Throwable t) {
+            logger.error("Failed to undeploy application", t);
+        }
+        try {
+            this.server.stop();
+        }
+        catch (Throwable t) {
+            logger.error("Failed to stop server", t);
+        }
+    }
+
+    public static class SwarmDispatcherServletInitializer extends Initializer {
+        @Override
+        protected Class<?>[] getRootConfigClasses() {
+            return new Class<?>[] { SwarmRootConfig.class };
+        }
+
+        @Override
+        protected Class<?>[] getServletConfigClasses() {
+            return new Class<?>[] { WebConfig.class, SwarmWebSocketConfig.class };
+        }
+    }
+}
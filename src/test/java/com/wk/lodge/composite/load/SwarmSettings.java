@@ -0,0 +1,249 @@
+package com.wk.lodge.composite.load;
+
+/**
+ * Settings of a device swarm. Every setting can be given as a system property named swarm.&lt;setting&gt;, e.g.
+ * -Dswarm.devices=1000, which is how the swarm profile passes them on.
+ */
+public class SwarmSettings {
+    private String url;
+    private String transport = "websocket";
+    private int devices = 100;
+    private int seconds = 60;
+    private int rampSeconds = 10;
+    private int reportSeconds = 10;
+    private int syncs = 3;
+    private double updatesPerSecond = 10;
+    private long pingMillis = 2000;
+    private double pairRatio = 0.2;
+    private double meanLifetimeSeconds = 120;
+    private double lat = 45.5231;
+    private double lng = -122.6765;
+    private int sites = 20;
+    private double spreadKm = 50;
+    private double siteMeters = 2;
+    private String joinApplicationId = "appOne";
+    private String pairApplicationId = "appTwo";
+    private int connectThreads = 16;
+
+    public static SwarmSettings fromSystemProperties() {
+        SwarmSettings settings = new SwarmSettings();
+        settings.setUrl(System.getProperty("swarm.url", settings.getUrl()));
+        settings.setTransport(System.getProperty("swarm.transport", settings.getTransport()));
+        settings.setDevices(Integer.getInteger("swarm.devices", settings.getDevices()));
+        settings.setSeconds(Integer.getInteger("swarm.seconds", settings.getSeconds()));
+        settings.setRampSeconds(Integer.getInteger("swarm.rampSeconds", settings.getRampSeconds()));
+        settings.setReportSeconds(Integer.getInteger("swarm.reportSeconds", settings.getReportSeconds()));
+        settings.setSyncs(Integer.getInteger("swarm.syncs", settings.getSyncs()));
+        settings.setUpdatesPerSecond(doubleProperty("swarm.updatesPerSecond", settings.getUpdatesPerSecond()));
+        settings.setPingMillis(Long.getLong("swarm.pingMillis", settings.getPingMillis()));
+        settings.setPairRatio(doubleProperty("swarm.pairRatio", settings.getPairRatio()));
+        settings.setMeanLifetimeSeconds(doubleProperty("swarm.meanLifetimeSeconds", settings.getMeanLifetimeSeconds()));
+        settings.setLat(doubleProperty("swarm.lat", settings.getLat()));
+        settings.setLng(doubleProperty("swarm.lng", settings.getLng()));
+        settings.setSites(Integer.getInteger("swarm.sites", settings.getSites()));
+        settings.setSpreadKm(doubleProperty("swarm.spreadKm", settings.getSpreadKm()));
+        settings.setSiteMeters(doubleProperty("swarm.siteMeters", settings.getSiteMeters()));
+        settings.setJoinApplicationId(System.getProperty("swarm.joinApplicationId", settings.getJoinApplicationId()));
+        settings.setPairApplicationId(System.getProperty("swarm.pairApplicationId", settings.getPairApplicationId()));
+        settings.setConnectThreads(Integer.getInteger("swarm.connectThreads", settings.getConnectThreads()));
+        return settings;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.isEmpty() ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * @return  the base URL of the server under load, e.g. http://localhost:8080, or null to start an embedded server
+     *          with an in-memory session store
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url == null || url.isEmpty() ? null : url;
+    }
+
+    /**
+     * @return  websocket to connect over SockJS's WebSocket transport, or xhr to connect over XHR streaming
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return  the number of devices kept connected; a device that drops is replaced by a new one
+     */
+    public int getDevices() {
+        return devices;
+    }
+
+    public void setDevices(int devices) {
+        this.devices = devices;
+    }
+
+    public int getSeconds() {
+        return seconds;
+    }
+
+    public void setSeconds(int seconds) {
+        this.seconds = seconds;
+    }
+
+    /**
+     * @return  the time over which the devices are connected, evenly spaced
+     */
+    public int getRampSeconds() {
+        return rampSeconds;
+    }
+
+    public void setRampSeconds(int rampSeconds) {
+        this.rampSeconds = rampSeconds;
+    }
+
+    public int getReportSeconds() {
+        return reportSeconds;
+    }
+
+    public void setReportSeconds(int reportSeconds) {
+        this.reportSeconds = reportSeconds;
+    }
+
+    /**
+     * @return  the number of sync round trips a device makes after init and before it joins or pairs
+     */
+    public int getSyncs() {
+        return syncs;
+    }
+
+    public void setSyncs(int syncs) {
+        this.syncs = syncs;
+    }
+
+    /**
+     * @return  the rate at which each device sends updates to its session, or 0 for none
+     */
+    public double getUpdatesPerSecond() {
+        return updatesPerSecond;
+    }
+
+    public void setUpdatesPerSecond(double updatesPerSecond) {
+        this.updatesPerSecond = updatesPerSecond;
+    }
+
+    public long getPingMillis() {
+        return pingMillis;
+    }
+
+    public void setPingMillis(long pingMillis) {
+        this.pingMillis = pingMillis;
+    }
+
+    /**
+     * @return  the fraction of devices that pair instead of join
+     */
+    public double getPairRatio() {
+        return pairRatio;
+    }
+
+    public void setPairRatio(double pairRatio) {
+        this.pairRatio = pairRatio;
+    }
+
+    /**
+     * @return  the mean time a device stays in its session before it drops, or 0 for devices that never drop.
+     *          Lifetimes are exponentially distributed, so drops arrive at random
+     */
+    public double getMeanLifetimeSeconds() {
+        return meanLifetimeSeconds;
+    }
+
+    public void setMeanLifetimeSeconds(double meanLifetimeSeconds) {
+        this.meanLifetimeSeconds = meanLifetimeSeconds;
+    }
+
+    /**
+     * @return  the latitude of the center of the area the sites are spread over
+     */
+    public double getLat() {
+        return lat;
+    }
+
+    public void setLat(double lat) {
+        this.lat = lat;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+
+    public void setLng(double lng) {
+        this.lng = lng;
+    }
+
+    /**
+     * @return  the number of sites devices gather at; devices at the same site are close enough to share a session
+     */
+    public int getSites() {
+        return sites;
+    }
+
+    public void setSites(int sites) {
+        this.sites = sites;
+    }
+
+    /**
+     * @return  the radius of the area the sites are spread over
+     */
+    public double getSpreadKm() {
+        return spreadKm;
+    }
+
+    public void setSpreadKm(double spreadKm) {
+        this.spreadKm = spreadKm;
+    }
+
+    /**
+     * @return  the radius of a site, within which its devices are spread
+     */
+    public double getSiteMeters() {
+        return siteMeters;
+    }
+
+    public void setSiteMeters(double siteMeters) {
+        this.siteMeters = siteMeters;
+    }
+
+    public String getJoinApplicationId() {
+        return joinApplicationId;
+    }
+
+    public void setJoinApplicationId(String joinApplicationId) {
+        this.joinApplicationId = joinApplicationId;
+    }
+
+    public String getPairApplicationId() {
+        return pairApplicationId;
+    }
+
+    public void setPairApplicationId(String pairApplicationId) {
+        this.pairApplicationId = pairApplicationId;
+    }
+
+    /**
+     * @return  the number of connections opened at once; opening a connection blocks until its handshake completes
+     */
+    public int getConnectThreads() {
+        return connectThreads;
+    }
+
+    public void setConnectThreads(int connectThreads) {
+        this.connectThreads = connectThreads;
+    }
+}
@@ -0,0 +1,328 @@
+package com.wk.lodge.composite.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import com.wk.lodge.composite.web.socket.message.inbound.MatchMessage;
+import com.wk.lodge.composite.web.socket.message.inbound.PairMessage;
+import com.wk.lodge.composite.web.socket.message.inbound.SyncMessage;
+import com.wk.lodge.composite.web.support.client.StompMessageHandler;
+import com.wk.lodge.composite.web.support.client.StompSession;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A simulated device. It goes through what a real one does: connects, sends init, syncs its clock a few times, then
+ * joins or pairs into a session near where it stands, and from then on streams updates to its session and pings the
+ * server until the swarm stops or the device drops. A dropped device leaves its session, or half the time just goes
+ * away, and the swarm puts a new device in its place. Only the reply to the request the device has outstanding is
+ * timed; any other reply on its queue is ignored, so that the counts match the requests made.
+ *
+ * Updates carry the device's uuid and the System.nanoTime at which they were sent, so that the other devices of the
+ * session, all in the same JVM, can time their fan-out.
+ *
+ * Messages arrive on the WebSocket client's threads and the device's own work runs on the swarm's scheduler, so
+ * everything that touches the connection holds the device's lock.
+ */
+class VirtualDevice implements StompMessageHandler {
+    private static final Log logger = LogFactory.getLog(VirtualDevice.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String DEVICE_QUEUE = "/user/queue/device";
+    private static final String ERROR_QUEUE = "/user/queue/errors";
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    private final DeviceSwarm swarm;
+    private final SwarmSettings settings;
+    private final SwarmReport report;
+    private final float[] geo;
+    private final boolean pairing;
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+    private StompSession stompSession;
+    private String uuid;
+    private String sessionId;
+    private int syncs;
+    // the type of the reply the device is waiting for, so that a reply it did not ask for is not counted
+    private String awaiting;
+    private long connectStart;
+    private long requestStart;
+    private boolean closed;
+
+    VirtualDevice(DeviceSwarm swarm, float[] geo, boolean pairing) {
+        this.swarm = swarm;
+        this.settings = swarm.getSettings();
+        this.report = swarm.getReport();
+        this.geo = geo;
+        this.pairing = pairing;
+    }
+
+    /**
+     * opens the device's connection, blocking until the handshake completes
+     */
+    void connect() {
+        this.connectStart = System.nanoTime();
+        try {
+            this.swarm.getStompClient().connect(this);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                this.closed = true;
+            }
+            if(!this.swarm.isRunning()) {
+                // the swarm interrupts the connects still in flight when it stops
+                return;
+            }
+            logger.debug("Connecting failed", e);
+            this.report.getConnectFailures().increment();
+            this.swarm.replace(this);
+        }
+    }
+
+    @Override
+    public synchronized void afterConnected(StompSession stompSession, StompHeaderAccessor headers) {
+        this.stompSession = stompSession;
+        this.report.getConnect().record(microsSince(this.connectStart));
+        if(this.closed) {
+            stompSession.disconnect();
+            return;
+        }
+        this.stompSession.subscribe(DEVICE_QUEUE, null);
+        this.stompSession.subscribe(ERROR_QUEUE, null);
+        this.awaiting = "init";
+        send("/app/init", "");
+    }
+
+    @Override
+    public synchronized void handleMessage(Message<byte[]> message) {
+        if(this.closed) {
+            return;
+        }
+        String destination = StompHeaderAccessor.wrap(message).getDestination();
+        if(ERROR_QUEUE.equals(destination)) {
+            this.report.getErrorReplies().increment();
+            if(logger.isDebugEnabled())
+                logger.debug(String.format("Error reply to %s: %s", this.uuid, new String(message.getPayload())));
+            return;
+        }
+        Map<String, Object> json = parse(message.getPayload());
+        if(json == null) {
+            return;
+        }
+        Object type = json.get("type");
+        if(destination != null && destination.startsWith(TOPIC_PREFIX)) {
+            if("update".equals(type) && json.get("data") instanceof Map) {
+                Map<?, ?> data = (Map<?, ?>) json.get("data");
+                if(!this.uuid.equals(data.get("device")) && data.get("sent") instanceof Number) {
+                    this.report.getFanOut().record(microsSince(((Number) data.get("sent")).longValue()));
+                }
+            }
+            return;
+        }
+        if(type == null || !type.equals(this.awaiting)) {
+            if(logger.isDebugEnabled())
+                logger.debug(String.format("Unexpected %s reply to %s, awaiting %s", type, this.uuid, this.awaiting));
+            return;
+        }
+        if("init".equals(type)) {
+            this.uuid = (String) json.get("uuid");
+            this.syncs = this.settings.getSyncs();
+            syncOrMatch();
+        }
+        else if("sync".equals(type)) {
+            this.report.getSync().record(microsSince(this.requestStart));
+            syncOrMatch();
+        }
+        else if("join".equals(type) || "pair".equals(type)) {
+            (this.pairing ? this.report.getPair() : this.report.getJoin()).record(microsSince(this.requestStart));
+            matched((String) json.get("id"));
+        }
+    }
+
+    private void syncOrMatch() {
+        this.requestStart = System.nanoTime();
+        if(this.syncs-- > 0) {
+            SyncMessage sync = new SyncMessage();
+            sync.setType("sync");
+            sync.setTime(new Date().getTime());
+            this.awaiting = "sync";
+            send("/app/sync", sync);
+            return;
+        }
+        Device device = new Device(this.uuid);
+        device.setWidth(1282);
+        device.setHeight(849);
+        MatchMessage match;
+        if(this.pairing) {
+            PairMessage pair = new PairMessage();
+            pair.setType(PairMessage.Types.exit);
+            pair.setApplicationId(this.settings.getPairApplicationId());
+            match = pair;
+        }
+        else {
+            JoinMessage join = new JoinMessage();
+            join.setType(JoinMessage.Types.exit);
+            join.setApplicationId(this.settings.getJoinApplicationId());
+            match = join;
+        }
+        match.setDevice(device);
+        match.setGeo(this.geo);
+        match.setPoint(new int[]{0, 0});
+        match.setVector(new float[]{1, 1});
+        this.awaiting = this.pairing ? "pair" : "join";
+        send(this.pairing ? "/app/pair" : "/app/join", match);
+    }
+
+    private void matched(String sessionId) {
+        this.awaiting = null;
+        this.sessionId = sessionId;
+        this.stompSession.subscribe(TOPIC_PREFIX + sessionId, null);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(this.settings.getUpdatesPerSecond() > 0) {
+            long periodMicros = (long) (1000000 / this.settings.getUpdatesPerSecond());
+            this.tasks.add(this.swarm.getScheduler().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    update();
+                }
+            }, random.nextLong(periodMicros), periodMicros, TimeUnit.MICROSECONDS));
+        }
+        this.tasks.add(this.swarm.getScheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ping();
+            }
+        }, random.nextLong(this.settings.getPingMillis()), this.settings.getPingMillis(), TimeUnit.MILLISECONDS));
+        if(this.settings.getMeanLifetimeSeconds() > 0) {
+            long lifetimeMillis = (long) (-Math.log(1 - random.nextDouble()) * this.settings.getMeanLifetimeSeconds()
+                * 1000);
+            this.tasks.add(this.swarm.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drop();
+                }
+            }, lifetimeMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private synchronized void update() {
+        if(this.closed) {
+            return;
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("device", this.uuid);
+        data.put("sent", System.nanoTime());
+        Map<String, Object> update = new HashMap<>();
+        update.put("type", "update");
+        update.put("data", data);
+        if(send("/app/" + this.sessionId, update)) {
+            this.report.getUpdatesSent().increment();
+        }
+    }
+
+    private synchronized void ping() {
+        if(!this.closed) {
+            send("/app/ping", "");
+        }
+    }
+
+    private synchronized void drop() {
+        if(this.closed) {
+            return;
+        }
+        this.report.getDrops().increment();
+        if(ThreadLocalRandom.current().nextBoolean()) {
+            send("/app/disconnect", "");
+        }
+        close();
+        this.swarm.replace(this);
+    }
+
+    /**
+     * closes the device's connection, if it is open, without replacing the device
+     */
+    synchronized void close() {
+        if(this.closed && this.stompSession == null) {
+            return;
+        }
+        this.closed = true;
+        for(ScheduledFuture<?> task : this.tasks) {
+            task.cancel(false);
+        }
+        this.tasks.clear();
+        if(this.stompSession != null) {
+            try {
+                this.stompSession.disconnect();
+            } catch (RuntimeException e) {
+                logger.debug("Disconnecting failed", e);
+            }
+            this.stompSession = null;
+        }
+    }
+
+    @Override
+    public synchronized void handleError(Message<byte[]> message) {
+        this.report.getErrorFrames().increment();
+        if(logger.isDebugEnabled())
+            logger.debug(String.format("Error frame to %s: %s", this.uuid,
+                StompHeaderAccessor.wrap(message).getShortLogMessage(message.getPayload())));
+    }
+
+    @Override
+    public void handleReceipt(String receiptId) {
+    }
+
+    @Override
+    public void afterDisconnected() {
+        synchronized (this) {
+            if(this.closed) {
+                return;
+            }
+            this.report.getClosedByServer().increment();
+            this.stompSession = null;
+            close();
+        }
+        this.swarm.replace(this);
+    }
+
+    private boolean send(String destination, Object payload) {
+        try {
+            this.stompSession.send(destination, payload);
+            this.report.getSent().increment();
+            return true;
+        } catch (RuntimeException e) {
+            // the connection is going away; afterDisconnected will see to it
+            logger.debug("Sending failed", e);
+            this.report.getSendFailures().increment();
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parse(byte[] payload) {
+        try {
+            return objectMapper.readValue(payload, Map.class);
+        } catch (IOException e) {
+            logger.debug("Unreadable message", e);
+            return null;
+        }
+    }
+
+    private static long microsSince(long start) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VirtualDevice %s in session %s", this.uuid, this.sessionId);
+    }
+}
@@ -0,0 +1,63 @@
+package com.wk.lodge.composite.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.valueAtPercentile(99));
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(5000050000L, histogram.getTotal());
+        // each value is known to within 1/16th
+        assertEquals(50000, histogram.valueAtPercentile(50), 50000 / 16);
+        assertEquals(99000, histogram.valueAtPercentile(99), 99000 / 16);
+        assertEquals(100000, histogram.valueAtPercentile(100));
+        for (int i = 0; i < 16 * 60; i++) {
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.lowestValue(i)));
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.highestValue(i)));
+        }
+    }
+
+    @Test
+    public void testConcurrentRecordingIsNotLost() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                done.add(threads.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 20000; i++) {
+                            histogram.record(i % 100);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(160000, histogram.getCount());
+        assertEquals(8 * 200 * 4950, histogram.getTotal());
+        assertEquals(99, histogram.getMax());
+    }
+}
@@ -0,0 +1,80 @@
+package com.wk.lodge.composite.registry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTests {
+    private ManualClockRegistry registry;
+
+    @Before
+    public void setUp() {
+        this.registry = new ManualClockRegistry();
+    }
+
+    @Test
+    public void testDevicesExpireAtTheirOwnDeadline() {
+        String early = UUID.randomUUID().toString();
+        String late = UUID.randomUUID().toString();
+        this.registry.addHealthyDevice(early);
+        this.registry.time = 1500;
+        this.registry.addHealthyDevice(late);
+
+        this.registry.time = 4100;
+        Set<UUID> unhealthy = this.registry.getUnhealthyDevices();
+        assertEquals(1, unhealthy.size());
+        assertTrue(unhealthy.contains(UUID.fromString(early)));
+        assertFalse(this.registry.isHealthyDevice(early));
+        assertTrue(this.registry.isHealthyDevice(late));
+
+        this.registry.time = 5600;
+        unhealthy = this.registry.getUnhealthyDevices();
+        assertTrue(unhealthy.contains(UUID.fromString(late)));
+        assertEquals(0, this.registry.size());
+        assertTrue(this.registry.getUnhealthyDevices().isEmpty());
+    }
+
+    @Test
+    public void testPingsMoveTheDeadline() {
+        String uuid = UUID.randomUUID().toString();
+        this.registry.addHealthyDevice(uuid);
+        for (int i = 1; i <= 20; i++) {
+            this.registry.time = i * 1000;
+            this.registry.addHealthyDevice(uuid);
+            assertTrue(this.registry.getUnhealthyDevices().isEmpty());
+        }
+        assertTrue(this.registry.isHealthyDevice(uuid));
+
+        this.registry.time = 24000;
+        assertTrue(this.registry.getUnhealthyDevices().contains(UUID.fromString(uuid)));
+    }
+
+    @Test
+    public void testUnhealthyDevicesAreTrackedAfreshWhenAddedBack() {
+        String uuid = UUID.randomUUID().toString();
+        this.registry.addHealthyDevice(uuid);
+        // a sweep long after the last one still finds every overdue device
+        this.registry.time = 60000;
+        assertTrue(this.registry.getUnhealthyDevices().contains(UUID.fromString(uuid)));
+
+        this.registry.addHealthyDevice(uuid);
+        assertTrue(this.registry.isHealthyDevice(uuid));
+        this.registry.time = 62000;
+        assertTrue(this.registry.getUnhealthyDevices().isEmpty());
+        this.registry.time = 64000;
+        assertTrue(this.registry.getUnhealthyDevices().contains(UUID.fromString(uuid)));
+    }
+
+    private static class ManualClockRegistry extends DeviceRegistry {
+        private long time;
+
+        @Override
+        protected long now() {
+            return this.time;
+        }
+    }
+}
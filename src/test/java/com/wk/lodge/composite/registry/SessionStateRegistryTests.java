@@ -0,0 +1,101 @@
+package com.wk.lodge.composite.registry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SessionStateRegistryTests {
+    private ManualClockRegistry registry;
+
+    @Before
+    public void setUp() {
+        this.registry = new ManualClockRegistry();
+    }
+
+    private static Map<String, Object> patch(Object... keysAndValues) {
+        Map<String, Object> patch = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            patch.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return patch;
+    }
+
+    @Test
+    public void testPatchesReturnOnlyWhatChanged() {
+        SessionStateRegistry.Change change = this.registry.patch("s", patch("x", 1, "y", Arrays.asList(1, 2)));
+        assertEquals(1, change.getVersion());
+        assertEquals(2, change.getValues().size());
+        assertNull(change.getRemoved());
+
+        change = this.registry.patch("s", patch("x", 2, "y", Arrays.asList(1, 2), "z", null));
+        assertEquals(2, change.getVersion());
+        assertEquals(patch("x", 2), change.getValues());
+        assertNull(change.getRemoved());
+
+        change = this.registry.patch("s", patch("y", null));
+        assertEquals(3, change.getVersion());
+        assertTrue(change.getValues().isEmpty());
+        assertEquals(Arrays.asList("y"), change.getRemoved());
+
+        assertNull(this.registry.patch("s", patch("x", 2, "y", null)));
+
+        SessionStateRegistry.Change snapshot = this.registry.snapshot("s");
+        assertEquals(3, snapshot.getVersion());
+        assertEquals(patch("x", 2), snapshot.getValues());
+        assertEquals(0, this.registry.snapshot("other").getVersion());
+    }
+
+    @Test
+    public void testChangesArePublishedWhileTheStateIsHeld() {
+        final List<Long> published = new ArrayList<Long>();
+        SessionStateRegistry.Publisher publisher = new SessionStateRegistry.Publisher() {
+            @Override
+            public void publish(SessionStateRegistry.Change change) {
+                // another patch to the session would have to wait for this one to be published
+                assertEquals(change.getVersion(), registry.snapshot("s").getVersion());
+                published.add(change.getVersion());
+            }
+        };
+        SessionStateRegistry.Change change = this.registry.patch("s", patch("x", 1), publisher);
+        assertNull(this.registry.patch("s", patch("x", 1), publisher));
+        this.registry.patch("s", patch("x", 2), publisher);
+
+        assertEquals(1, change.getVersion());
+        assertEquals(Arrays.asList(1L, 2L), published);
+    }
+
+    @Test
+    public void testIdleStatesAreForgotten() {
+        this.registry.patch("idle", patch("x", 1));
+        this.registry.time = 30000;
+        this.registry.patch("busy", patch("x", 1));
+
+        this.registry.time = 60000;
+        assertEquals(1, this.registry.evictIdle());
+        assertEquals(0, this.registry.snapshot("idle").getVersion());
+        assertEquals(1, this.registry.snapshot("busy").getVersion());
+
+        assertEquals(1, this.registry.patch("idle", patch("x", 1)).getVersion());
+        assertEquals(2, this.registry.size());
+    }
+
+    private static class ManualClockRegistry extends SessionStateRegistry {
+        private long time;
+
+        private ManualClockRegistry() {
+            super(60);
+        }
+
+        @Override
+        protected long now() {
+            return this.time;
+        }
+    }
+}
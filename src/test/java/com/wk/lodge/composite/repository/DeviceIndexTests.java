@@ -0,0 +1,195 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import com.wk.lodge.composite.service.RoomService;
+import org.junit.Test;
+import org.springframework.messaging.core.MessageSendingOperations;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class DeviceIndexTests {
+
+    private Session session(String id, Device... devices) {
+        Session session = new Session();
+        session.set_id(id);
+        for (Device device : devices) {
+            session.addDevice(device);
+        }
+        return session;
+    }
+
+    @Test
+    public void testIndexesEveryDeviceOfASession() {
+        DeviceIndex index = new DeviceIndex();
+        Device one = new Device();
+        Device two = new Device();
+        Session session = session("a", one, two);
+        index.index(session);
+
+        assertEquals(session.getUuid(), index.get(one.getUuid()).getSessionUuid());
+        assertEquals("a", index.get(two.getUuid()).getSessionId());
+        assertNull(index.get(UUID.randomUUID()));
+        assertNull(index.get(null));
+    }
+
+    @Test
+    public void testDevicesLeavingAndSessionsDeletedAreUnmapped() {
+        DeviceIndex index = new DeviceIndex();
+        Device leaving = new Device();
+        Device staying = new Device();
+        Session session = session("a", leaving, staying);
+        index.index(session);
+
+        session.removeDeviceByUuid(leaving.getUuid().toString());
+        index.index(session);
+        assertNull(index.get(leaving.getUuid()));
+        assertNotNull(index.get(staying.getUuid()));
+
+        // a device that has moved to another session stays mapped to it when the old session goes away
+        Session other = session("b", staying);
+        index.index(other);
+        session.set_deleted(true);
+        index.index(session);
+        assertEquals(other.getUuid(), index.get(staying.getUuid()).getSessionUuid());
+
+        index.remove(other.getUuid());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSessionsAreCountedByApplicationAndRoom() {
+        DeviceIndex index = new DeviceIndex();
+        Session[] sessions = {session("a", new Device()), session("b", new Device()), session("c", new Device())};
+        for (Session session : sessions) {
+            session.setApplicationId("appOne");
+            session.setRoom("lobby");
+        }
+        sessions[2].setRoom(null);
+        for (Session session : sessions) {
+            index.index(session);
+        }
+        assertEquals(Integer.valueOf(2), index.countSessions(false).get("appOne").get("lobby"));
+        assertEquals(Integer.valueOf(1), index.countSessions(false).get("appOne").get(""));
+        assertTrue(index.countSessions(true).isEmpty());
+
+        sessions[0].set_deleted(true);
+        index.index(sessions[0]);
+        index.remove(sessions[2].getUuid());
+        assertEquals(1, index.countSessions(false).get("appOne").size());
+        assertEquals(Integer.valueOf(1), index.countSessions(false).get("appOne").get("lobby"));
+
+        sessions[1].setLocked(true);
+        index.index(sessions[1]);
+        assertTrue(index.countSessions(false).isEmpty());
+        assertEquals(Integer.valueOf(1), index.countSessions(true).get("appOne").get("lobby"));
+
+        // an ended session is no longer counted, though its devices can still be found
+        sessions[1].setLocked(false);
+        sessions[1].setSessionEnded(1000);
+        index.index(sessions[1]);
+        assertTrue(index.countSessions(false).isEmpty());
+        assertTrue(index.countSessions(true).isEmpty());
+        assertNotNull(index.get(sessions[1].getDevices().get(0).getUuid()));
+    }
+
+    @Test
+    public void testStaleSessionsArePruned() {
+        DeviceIndex index = new DeviceIndex();
+        Session fresh = session("a", new Device());
+        fresh.setUpdated(5000);
+        Session idle = session("b", new Device());
+        idle.setUpdated(1000);
+        Session ended = session("c", new Device());
+        ended.setUpdated(5000);
+        ended.setSessionEnded(1000);
+        for (Session session : new Session[]{fresh, idle, ended}) {
+            index.index(session);
+        }
+
+        assertEquals(2, index.prune(2000));
+        assertEquals(1, index.size());
+        assertNotNull(index.get(fresh.getDevices().get(0).getUuid()));
+        assertEquals(Integer.valueOf(1), index.countSessions(false).get("").get(""));
+        assertEquals(0, index.prune(2000));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDisconnectNeedsNoDeviceQuery() {
+        CountingSessionStore store = new CountingSessionStore();
+        HashMap<String, Integer> maxDevicesPerSession = new HashMap<>();
+        maxDevicesPerSession.put("appOne", 8);
+        SessionRepository repository = new SessionRepository(store, new DeviceLimiter(maxDevicesPerSession, 3, 100),
+            new RoomService(new HashMap<String, String[]>()), mock(MessageSendingOperations.class));
+        Device leaving = new Device();
+        Device staying = new Device();
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        session.addDevice(leaving);
+        session.addDevice(staying);
+        repository.create(session);
+        // an empty cache, as if the session had expired from it
+        repository.setSessionCache(new SessionCache(100, 60));
+
+        assertTrue(repository.removeDeviceFromSessionByDeviceUuid(leaving.getUuid().toString()));
+        assertTrue(repository.removeDeviceFromSessionByDeviceUuid(staying.getUuid().toString()));
+
+        assertEquals(0, store.deviceQueries);
+        assertEquals(0, store.size());
+        assertEquals(0, repository.getDeviceIndex().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testChangesFollowedFromOtherNodesReachTheCacheAndIndexes() {
+        InMemorySessionStore store = new InMemorySessionStore();
+        HashMap<String, Integer> maxDevicesPerSession = new HashMap<>();
+        maxDevicesPerSession.put("appOne", 8);
+        SessionRepository repository = new SessionRepository(store, new DeviceLimiter(maxDevicesPerSession, 3, 100),
+            new RoomService(new HashMap<String, String[]>()), mock(MessageSendingOperations.class));
+        Device moved = new Device();
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        session.setGeoLocation(new float[]{45, 45});
+        session.addDevice(moved);
+        session = repository.create(session);
+
+        // another node moves the device out of the session and adds one of its own
+        Device joined = new Device();
+        Session changed = new Session(session);
+        changed.removeDeviceByUuid(moved.getUuid().toString());
+        changed.addDevice(joined);
+        store.update(changed);
+        repository.followed(changed);
+
+        assertNull(repository.getDeviceIndex().get(moved.getUuid()));
+        assertEquals(session.getUuid(), repository.getDeviceIndex().get(joined.getUuid()).getSessionUuid());
+        assertTrue(repository.find(session.getUuid().toString()).deviceInSession(joined.getUuid()));
+
+        // and then deletes it
+        store.delete(changed);
+        Session deleted = new Session(changed);
+        deleted.set_deleted(true);
+        repository.followed(deleted);
+
+        assertNull(repository.getDeviceIndex().get(joined.getUuid()));
+        assertNull(repository.getSessionCache().get(session.getUuid()));
+        assertNull(repository.find(session.getUuid().toString()));
+    }
+
+    private static class CountingSessionStore extends InMemorySessionStore {
+        private int deviceQueries;
+
+        @Override
+        public Session findByDevice(UUID deviceUuid) {
+            this.deviceQueries++;
+            return super.findByDevice(deviceUuid);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.wk.lodge.composite.repository;
+
+import com.javadocmd.simplelatlng.LatLng;
+import com.javadocmd.simplelatlng.LatLngTool;
+import com.javadocmd.simplelatlng.util.LengthUnit;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GeoDistanceTests {
+
+    @Test
+    public void testMatchesSimpleLatLng() {
+        // simplelatlng rounds coordinates to microdegrees, i.e. up to ~0.1m per coordinate
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            float[] a = {(float) (random.nextDouble() * 180 - 90), (float) (random.nextDouble() * 360 - 180)};
+            float[] b = {(float) (a[0] + random.nextGaussian() * 0.001), (float) (a[1] + random.nextGaussian() * 0.001)};
+            double expected = LatLngTool.distance(new LatLng(a[0], a[1]), new LatLng(b[0], b[1]), LengthUnit.METER);
+            assertEquals(expected, GeoDistance.distance(b, a[0], a[1]), 0.5);
+        }
+    }
+
+    @Test
+    public void testBoundingBoxNeverRejectsPointsInRange() {
+        Random random = new Random(7);
+        int inRange = 0;
+        for (int i = 0; i < 100000; i++) {
+            double lat = random.nextDouble() * 178 - 89;
+            double lng = random.nextDouble() * 360 - 180;
+            float[] candidate = {(float) (lat + random.nextGaussian() * 0.0005),
+                    (float) (lng + random.nextGaussian() * 0.0005)};
+            double range = 33;
+            boolean inBox = GeoDistance.inBoundingBox(candidate, lat, lng, GeoDistance.latitudeDelta(range),
+                    GeoDistance.longitudeDelta(lat, range));
+            if (GeoDistance.distance(candidate, lat, lng) <= range) {
+                inRange++;
+                assertTrue(inBox);
+            }
+        }
+        assertTrue(inRange > 0);
+    }
+
+    @Test
+    public void testBoundingBoxWrapsAtTheAntimeridian() {
+        double lngDelta = GeoDistance.longitudeDelta(0, 33);
+        assertTrue(GeoDistance.inBoundingBox(new float[]{0f, -179.9999f}, 0, 179.9999, GeoDistance.latitudeDelta(33),
+                lngDelta));
+        assertFalse(GeoDistance.inBoundingBox(new float[]{0f, 0f}, 0, 179.9999, GeoDistance.latitudeDelta(33),
+                lngDelta));
+        assertEquals(180.0, GeoDistance.longitudeDelta(90, 33), 0);
+    }
+}
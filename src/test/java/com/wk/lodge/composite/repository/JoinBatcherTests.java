@@ -0,0 +1,124 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JoinBatcherTests {
+    private JoinBatcher batcher;
+    private final List<List<JoinMessage>> batches = new CopyOnWriteArrayList<List<JoinMessage>>();
+
+    private JoinMessage join(String applicationId) {
+        JoinMessage j = new JoinMessage();
+        j.setApplicationId(applicationId);
+        j.setDevice(new Device());
+        j.setGeo(new float[]{45, 45});
+        return j;
+    }
+
+    // places every join in a batch in one session for the batch
+    private final JoinBatcher.Placement placement = new JoinBatcher.Placement() {
+        @Override
+        public List<Session> place(String applicationId, List<JoinMessage> joins) {
+            batches.add(new ArrayList<JoinMessage>(joins));
+            Session session = new Session();
+            session.setApplicationId(applicationId);
+            List<Session> placed = new ArrayList<Session>();
+            for (JoinMessage j : joins) {
+                session.addDevice(j.getDevice());
+                placed.add(session);
+            }
+            return placed;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (this.batcher != null) {
+            this.batcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentJoinsArePlacedTogetherPerApplication() throws Exception {
+        this.batcher = new JoinBatcher(500, this.placement);
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        List<Future<Session>> appOne = new ArrayList<Future<Session>>();
+        List<Future<Session>> appTwo = new ArrayList<Future<Session>>();
+        for (int i = 0; i < 10; i++) {
+            appOne.add(executor.submit(joining(join("appOne"))));
+            appTwo.add(executor.submit(joining(join("appTwo"))));
+        }
+
+        Session session = appOne.get(0).get();
+        for (Future<Session> future : appOne) {
+            assertSame(session, future.get());
+        }
+        assertEquals(10, session.getDevices().size());
+        assertEquals("appTwo", appTwo.get(0).get().getApplicationId());
+        assertEquals(2, this.batches.size());
+        assertEquals(2, this.batcher.getPlacements());
+        assertEquals(20, this.batcher.getJoins());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testJoinsAfterTheWindowStartANewBatch() {
+        this.batcher = new JoinBatcher(1, this.placement);
+        Session first = this.batcher.join(join("appOne"));
+        Session second = this.batcher.join(join("appOne"));
+
+        assertNotSame(first, second);
+        assertEquals(2, this.batches.size());
+    }
+
+    @Test
+    public void testSubmittedJoinsWaitWithoutHoldingThreads() throws Exception {
+        this.batcher = new JoinBatcher(1000, this.placement);
+        List<ListenableFuture<Session>> futures = new ArrayList<ListenableFuture<Session>>();
+        for (int i = 0; i < 2000; i++) {
+            futures.add(this.batcher.submit(join(i % 2 == 0 ? "appOne" : "appTwo")));
+        }
+        assertFalse(futures.get(0).isDone());
+
+        for (ListenableFuture<Session> future : futures) {
+            assertNotNull(future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1000, futures.get(0).get().getDevices().size());
+        assertEquals(2, this.batcher.getPlacements());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPlacementFailuresReachTheJoiningThread() {
+        this.batcher = new JoinBatcher(1, new JoinBatcher.Placement() {
+            @Override
+            public List<Session> place(String applicationId, List<JoinMessage> joins) {
+                throw new IllegalStateException("document store unavailable");
+            }
+        });
+        this.batcher.join(join("appOne"));
+    }
+
+    private Callable<Session> joining(final JoinMessage j) {
+        return new Callable<Session>() {
+            @Override
+            public Session call() {
+                return batcher.join(j);
+            }
+        };
+    }
+}
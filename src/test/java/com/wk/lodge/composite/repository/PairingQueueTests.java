@@ -0,0 +1,171 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PairingQueueTests {
+    private PairingQueue queue;
+
+    private Session waiting(String applicationId, Device device) {
+        Session session = new Session();
+        session.setApplicationId(applicationId);
+        session.addDevice(device);
+        return session;
+    }
+
+    @Before
+    public void setUp() {
+        this.queue = new PairingQueue();
+    }
+
+    @Test
+    public void testClaimsOldestWaitingSessionForTheApplication() {
+        Device first = new Device();
+        Session older = waiting("appTwo", first);
+        Session newer = waiting("appTwo", new Device());
+        this.queue.offer(older);
+        this.queue.offer(newer);
+        this.queue.offer(waiting("appOne", new Device()));
+
+        assertEquals(older.getUuid(), this.queue.get(older.getUuid()).getUuid());
+        assertEquals(older.getUuid(), this.queue.getByDevice(first.getUuid()).getUuid());
+        assertSame(older, this.queue.claim("appTwo"));
+        assertNull(this.queue.get(older.getUuid()));
+        assertNull(this.queue.getByDevice(first.getUuid()));
+        assertSame(newer, this.queue.claim("appTwo"));
+        assertNull(this.queue.claim("appTwo"));
+        assertNull(this.queue.claim("appThree"));
+        assertEquals(1, this.queue.size());
+    }
+
+    @Test
+    public void testCancelledSessionsAreNotClaimed() {
+        Device device = new Device();
+        this.queue.offer(waiting("appTwo", device));
+
+        assertTrue(this.queue.cancel(device.getUuid()));
+        assertFalse(this.queue.cancel(device.getUuid()));
+        assertFalse(this.queue.cancel(UUID.randomUUID()));
+        assertNull(this.queue.claim("appTwo"));
+        assertEquals(0, this.queue.size());
+    }
+
+    @Test
+    public void testDevicesCancelledWhileClaimedAreReportedOnSettle() {
+        Device partner = new Device();
+        this.queue.offer(waiting("appTwo", partner));
+
+        Session claimed = this.queue.claim("appTwo");
+        Device pairer = new Device();
+        claimed.addDevice(pairer);
+        assertNull(this.queue.getByDevice(partner.getUuid()));
+        assertTrue(this.queue.cancel(partner.getUuid()));
+        assertTrue(this.queue.cancel(partner.getUuid()));
+        assertFalse(this.queue.cancel(pairer.getUuid()));
+
+        assertEquals(Collections.singleton(partner.getUuid()), this.queue.settle(claimed));
+        // once settled, the device is looked for in the written pair instead
+        assertFalse(this.queue.cancel(partner.getUuid()));
+        assertTrue(this.queue.settle(claimed).isEmpty());
+    }
+
+    @Test
+    public void testSettlingAClaimNobodyCancelledReportsNoDevices() {
+        Device partner = new Device();
+        this.queue.offer(waiting("appTwo", partner));
+
+        Session claimed = this.queue.claim("appTwo");
+        claimed.addDevice(new Device());
+
+        assertTrue(this.queue.settle(claimed).isEmpty());
+        assertFalse(this.queue.cancel(partner.getUuid()));
+    }
+
+    @Test
+    public void testCancelRacingAClaimIsNeverLost() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                final Device device = new Device();
+                this.queue.offer(waiting("appTwo", device));
+                final CountDownLatch start = new CountDownLatch(1);
+                Future<Session> claim = executor.submit(new Callable<Session>() {
+                    @Override
+                    public Session call() throws Exception {
+                        start.await();
+                        return queue.claim("appTwo");
+                    }
+                });
+                Future<Boolean> cancel = executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return queue.cancel(device.getUuid());
+                    }
+                });
+                start.countDown();
+                Session claimed = claim.get(5, TimeUnit.SECONDS);
+                assertTrue(cancel.get(5, TimeUnit.SECONDS));
+                if (claimed != null) {
+                    // claimed before the cancel took the session out of the queue, so the claimant must hear of it
+                    assertEquals(Collections.singleton(device.getUuid()), this.queue.settle(claimed));
+                }
+                assertEquals(0, this.queue.size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEachWaitingSessionIsClaimedOnce() throws Exception {
+        final int sessions = 10000;
+        for (int i = 0; i < sessions; i++) {
+            this.queue.offer(waiting("appTwo", new Device()));
+        }
+        final Set<UUID> claimed = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+        final AtomicInteger claims = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Session session;
+                    while ((session = queue.claim("appTwo")) != null) {
+                        claimed.add(session.getUuid());
+                        claims.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(sessions, claims.get());
+        assertEquals(sessions, claimed.size());
+        assertEquals(0, this.queue.size());
+    }
+}
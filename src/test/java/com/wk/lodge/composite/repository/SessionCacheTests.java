@@ -0,0 +1,98 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SessionCacheTests {
+
+    private Session session(String rev, Device... devices) {
+        Session session = new Session();
+        session.set_rev(rev);
+        for (Device device : devices) {
+            session.addDevice(device);
+        }
+        return session;
+    }
+
+    @Test
+    public void testGetBySessionAndDeviceUuid() {
+        SessionCache cache = new SessionCache(100, 60);
+        Device device = new Device();
+        Session session = session("1-a", device);
+        cache.put(session);
+
+        assertEquals(session.getUuid(), cache.get(session.getUuid()).getUuid());
+        assertEquals(session.getUuid(), cache.getByDevice(device.getUuid()).getUuid());
+        assertNull(cache.get(UUID.randomUUID()));
+        assertNull(cache.getByDevice(UUID.randomUUID()));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        SessionCache cache = new SessionCache(100, 60);
+        Session session = session("1-a", new Device());
+        cache.put(session);
+
+        cache.get(session.getUuid()).addDevice(new Device());
+        session.addDevice(new Device());
+
+        assertEquals(1, cache.get(session.getUuid()).getDevices().size());
+    }
+
+    @Test
+    public void testOlderRevisionsDoNotReplaceNewerOnes() {
+        SessionCache cache = new SessionCache(100, 60);
+        Device removed = new Device();
+        Session session = session("2-b", removed);
+        Session stale = new Session(session);
+        stale.set_rev("1-a");
+        cache.put(session);
+        cache.put(stale);
+        assertEquals("2-b", cache.get(session.getUuid()).get_rev());
+
+        session.removeDeviceByUuid(removed.getUuid().toString());
+        session.set_rev("3-c");
+        cache.put(session);
+        assertEquals("3-c", cache.get(session.getUuid()).get_rev());
+        assertNull(cache.getByDevice(removed.getUuid()));
+    }
+
+    @Test
+    public void testInvalidateAndDelete() {
+        SessionCache cache = new SessionCache(100, 60);
+        Device device = new Device();
+        Session session = session("1-a", device);
+        cache.put(session);
+        cache.invalidate(session.getUuid());
+        assertNull(cache.get(session.getUuid()));
+        assertNull(cache.getByDevice(device.getUuid()));
+
+        cache.put(session);
+        session.set_deleted(true);
+        cache.put(session);
+        assertNull(cache.get(session.getUuid()));
+    }
+
+    @Test
+    public void testSizeAndTtlEviction() throws Exception {
+        SessionCache cache = new SessionCache(16, 60);
+        for (int i = 0; i < 200; i++) {
+            cache.put(session("1-a", new Device()));
+        }
+        assertTrue(cache.size() <= 16);
+        assertTrue(cache.getEvictions() >= 184);
+
+        SessionCache expiring = new SessionCache(100, 0);
+        Session session = session("1-a");
+        expiring.put(session);
+        Thread.sleep(5);
+        assertNull(expiring.get(session.getUuid()));
+    }
+}
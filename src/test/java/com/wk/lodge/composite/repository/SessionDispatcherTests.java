@@ -0,0 +1,233 @@
+package com.wk.lodge.composite.repository;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionDispatcherTests {
+    private SessionDispatcher dispatcher;
+    private ExecutorService callers;
+
+    @After
+    public void tearDown() {
+        if (this.callers != null) {
+            this.callers.shutdownNow();
+        }
+        if (this.dispatcher != null) {
+            this.dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testOperationsRunOneAtATimePerSession() throws Exception {
+        this.dispatcher = new SessionDispatcher(true, 2);
+        this.callers = Executors.newFixedThreadPool(16);
+        final Map<String, int[]> counters = new HashMap<String, int[]>();
+        final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        for (String id : new String[]{"a", "b", "c"}) {
+            counters.put(id, new int[1]);
+            running.put(id, new AtomicInteger());
+        }
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 600; i++) {
+            final String id = i % 3 == 0 ? "a" : i % 3 == 1 ? "b" : "c";
+            results.add(this.callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return dispatcher.call(id, new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            if (running.get(id).incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            // an unsynchronized read-modify-write, as of a session document
+                            int value = counters.get(id)[0];
+                            Thread.yield();
+                            counters.get(id)[0] = value + 1;
+                            running.get(id).decrementAndGet();
+                            return value + 1;
+                        }
+                    });
+                }
+            }));
+        }
+        for (Future<Integer> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS) > 0);
+        }
+
+        assertEquals(0, overlaps.get());
+        for (int[] counter : counters.values()) {
+            assertEquals(200, counter[0]);
+        }
+        assertEquals(600, this.dispatcher.getDispatched());
+        // a caller can see its result just before the thread that ran it drops the mailbox
+        for (int i = 0; i < 1000 && this.dispatcher.getMailboxes() > 0; i++) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, this.dispatcher.getQueued());
+        assertEquals(0, this.dispatcher.getMailboxes());
+        assertTrue(this.dispatcher.getMaxDepth() >= 1);
+    }
+
+    @Test
+    public void testSessionsDoNotWaitForEachOther() throws Exception {
+        this.dispatcher = new SessionDispatcher(true, 2);
+        this.callers = Executors.newFixedThreadPool(3);
+        final CountDownLatch otherSessionRan = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Future<Boolean> blocked = this.callers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return dispatcher.call("a", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        release.await(10, TimeUnit.SECONDS);
+                        return otherSessionRan.getCount() == 0;
+                    }
+                });
+            }
+        });
+        while (this.dispatcher.depth("a") == 0) {
+            Thread.sleep(1);
+        }
+        Future<String> queued = this.callers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return dispatcher.call("a", new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "second";
+                    }
+                });
+            }
+        });
+        while (this.dispatcher.depth("a") < 2) {
+            Thread.sleep(1);
+        }
+
+        assertEquals("other", this.dispatcher.call("b", new Callable<String>() {
+            @Override
+            public String call() {
+                otherSessionRan.countDown();
+                return "other";
+            }
+        }));
+        assertFalse(queued.isDone());
+        assertEquals(1, this.dispatcher.getContended());
+
+        release.countDown();
+        assertTrue(blocked.get(10, TimeUnit.SECONDS));
+        assertEquals("second", queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSubmittingToAHotSessionDoesNotHoldUpTheCallerOrAColdSession() throws Exception {
+        this.dispatcher = new SessionDispatcher(true, 2);
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> hotOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger ranByCaller = new AtomicInteger();
+
+        List<ListenableFuture<Integer>> hot = new ArrayList<ListenableFuture<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            final int sequence = i;
+            hot.add(this.dispatcher.submit("hot", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    if (Thread.currentThread() == caller) {
+                        ranByCaller.incrementAndGet();
+                    }
+                    if (sequence == 0) {
+                        // the hot session's first operation holds its mailbox until the cold session has been served
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    hotOrder.add(sequence);
+                    return sequence;
+                }
+            }));
+        }
+        ListenableFuture<String> cold = this.dispatcher.submit("cold", new Callable<String>() {
+            @Override
+            public String call() {
+                if (Thread.currentThread() == caller) {
+                    ranByCaller.incrementAndGet();
+                }
+                return "cold";
+            }
+        });
+
+        assertEquals("cold", cold.get(5, TimeUnit.SECONDS));
+        assertFalse(hot.get(9).isDone());
+        assertEquals(10, this.dispatcher.depth("hot"));
+
+        release.countDown();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), hot.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), hotOrder);
+        assertEquals(0, ranByCaller.get());
+        assertEquals(9, this.dispatcher.getContended());
+    }
+
+    @Test
+    public void testFailuresAndNestedCallsReachTheCaller() {
+        this.dispatcher = new SessionDispatcher(true, 1);
+        try {
+            this.dispatcher.call("a", new Callable<Object>() {
+                @Override
+                public Object call() {
+                    throw new IllegalArgumentException("conflict");
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("conflict", e.getMessage());
+        }
+
+        // an operation that dispatches to its own session runs in place rather than waiting for itself
+        assertEquals("inner", this.dispatcher.call("a", new Callable<String>() {
+            @Override
+            public String call() {
+                return dispatcher.call("a", new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "inner";
+                    }
+                });
+            }
+        }));
+        assertEquals(0, this.dispatcher.getMailboxes());
+
+        SessionDispatcher disabled = new SessionDispatcher(false, 1);
+        try {
+            assertEquals("direct", disabled.call("a", new Callable<String>() {
+                @Override
+                public String call() {
+                    return "direct";
+                }
+            }));
+            assertEquals(0, disabled.getDispatched());
+        } finally {
+            disabled.shutdown();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SessionGeoIndexTests {
+    private SessionGeoIndex index;
+
+    private Session session(String applicationId, float lat, float lng) {
+        Session session = new Session();
+        session.setApplicationId(applicationId);
+        session.setGeoLocation(new float[]{lat, lng});
+        session.addDevice(new Device());
+        return session;
+    }
+
+    @Before
+    public void setUp() {
+        this.index = new SessionGeoIndex(33);
+    }
+
+    @Test
+    public void testFindsNearestSessionInRange() {
+        Session far = session("appOne", 33.98954f, -118.46242f);
+        Session near = session("appOne", 33.98951f, -118.46252f);
+        this.index.index(far);
+        this.index.index(near);
+
+        Session found = this.index.findNearest("appOne", new float[]{33.98951f, -118.46253f}, 33, 8);
+
+        assertNotNull(found);
+        assertEquals(near.getUuid(), found.getUuid());
+    }
+
+    @Test
+    public void testIgnoresSessionsOutOfRangeOrForOtherApplications() {
+        this.index.index(session("appOne", 43.7198276f, 39.7087364f));
+        this.index.index(session("appTwo", 13.7198276f, 79.7087364f));
+
+        assertNull(this.index.findNearest("appOne", new float[]{13.7198276f, 79.7087364f}, 33, 8));
+        assertNull(this.index.findNearest("appThree", new float[]{43.7198276f, 39.7087364f}, 33, 8));
+    }
+
+    @Test
+    public void testFindsSessionsAcrossCellBoundaries() {
+        // a pair of points 20m apart that straddle the antimeridian
+        this.index.index(session("appOne", 0f, 179.99991f));
+
+        assertNotNull(this.index.findNearest("appOne", new float[]{0f, -179.99991f}, 33, 8));
+    }
+
+    @Test
+    public void testLockedDeletedAndFullSessionsAreNotReturned() {
+        Session session = session("appOne", 15.7198276f, 1.7087364f);
+        float[] geo = session.getGeoLocation();
+        this.index.index(session);
+        assertNotNull(this.index.findNearest("appOne", geo, 3, 8));
+        assertNull(this.index.findNearest("appOne", geo, 3, 1));
+
+        session.setLocked(true);
+        this.index.index(session);
+        assertNull(this.index.findNearest("appOne", geo, 3, 8));
+        assertEquals(0, this.index.size());
+
+        session.setLocked(false);
+        this.index.index(session);
+        session.set_deleted(true);
+        this.index.index(session);
+        assertNull(this.index.findNearest("appOne", geo, 3, 8));
+    }
+
+    @Test
+    public void testUpdatesMoveSessionsAndLookupsReturnCopies() {
+        Session session = session("appOne", 62.7198276f, 39.7087364f);
+        this.index.index(session);
+
+        session.setGeoLocation(new float[]{18.7198276f, 39.7087364f});
+        this.index.index(session);
+        assertNull(this.index.findNearest("appOne", new float[]{62.7198276f, 39.7087364f}, 33, 8));
+
+        Session found = this.index.findNearest("appOne", session.getGeoLocation(), 33, 8);
+        assertNotNull(found);
+        found.addDevice(new Device());
+        assertEquals(1, this.index.findNearest("appOne", session.getGeoLocation(), 33, 8).getDevices().size());
+
+        this.index.remove(session.getUuid());
+        assertNull(this.index.findNearest("appOne", session.getGeoLocation(), 33, 8));
+        assertEquals(0, this.index.size());
+    }
+
+    @Test
+    public void testWarmIsClaimedOncePerApplication() {
+        assertTrue(this.index.warm("appOne"));
+        assertFalse(this.index.warm("appOne"));
+        assertTrue(this.index.warm("appTwo"));
+    }
+
+    @Test
+    public void testWarmIsClaimedAgainOnceTheSeedIsOld() throws Exception {
+        this.index.setReseedMillis(500);
+        assertTrue(this.index.warm("appOne"));
+        assertFalse(this.index.warm("appOne"));
+        Thread.sleep(600);
+        assertTrue(this.index.warm("appOne"));
+        assertFalse(this.index.warm("appOne"));
+    }
+
+    @Test
+    public void testSeedDropsSessionsNoLongerOpen() throws Exception {
+        Session open = session("appOne", 33.98951f, -118.46252f);
+        Session closedElsewhere = session("appOne", 33.98951f, -118.46252f);
+        this.index.index(open);
+        this.index.index(closedElsewhere);
+        Thread.sleep(5);
+        long since = System.currentTimeMillis();
+        Session indexedDuringSeed = session("appOne", 33.98951f, -118.46252f);
+        this.index.index(indexedDuringSeed);
+
+        this.index.seed("appOne", Arrays.asList(open), since);
+
+        assertEquals(2, this.index.size());
+        this.index.remove(open.getUuid());
+        this.index.remove(indexedDuringSeed.getUuid());
+        assertNull(this.index.findNearest("appOne", open.getGeoLocation(), 33, 8));
+    }
+
+    @Test
+    public void testRefreshReplacesOlderEntriesAndDropsMissingSessions() {
+        Session session = session("appOne", 33.98951f, -118.46252f);
+        session.set_rev("1-a");
+        this.index.index(session);
+
+        Session read = new Session(session);
+        read.set_rev("2-b");
+        read.setLocked(true);
+        this.index.refresh(read.getUuid(), read);
+        assertNull(this.index.findNearest("appOne", session.getGeoLocation(), 33, 8));
+
+        this.index.index(session);
+        Session older = new Session(session);
+        older.set_rev("0-z");
+        older.addDevice(new Device());
+        this.index.refresh(older.getUuid(), older);
+        assertEquals(1, this.index.findNearest("appOne", session.getGeoLocation(), 33, 8).getDevices().size());
+
+        this.index.refresh(session.getUuid(), null);
+        assertEquals(0, this.index.size());
+
+        // sessions that are not indexed are not added by a read
+        this.index.refresh(session.getUuid(), session);
+        assertEquals(0, this.index.size());
+    }
+}
@@ -5,6 +5,7 @@ import com.wk.lodge.composite.config.TestRootConfig;
 import com.wk.lodge.composite.config.TestWebSocketConfig;
 import com.wk.lodge.composite.model.Device;
 import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.CouchDbSessionStore;
 import com.wk.lodge.composite.service.RoomService;
 import com.wk.lodge.composite.service.SessionService;
 import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
@@ -73,7 +74,7 @@ public class SessionRepositoryTests {
         RoomService roomService = new RoomService(roomNames);
 
         this.service = new SessionService();
-        this.repo = new SessionRepository(couchDbClient, dl, roomService, messagingTemplate);
+        this.repo = new SessionRepository(new CouchDbSessionStore(couchDbClient), dl, roomService, messagingTemplate);
         this.service.setSessionRepository(this.repo);
     }
 
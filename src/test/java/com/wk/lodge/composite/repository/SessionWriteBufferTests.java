@@ -0,0 +1,190 @@
+package com.wk.lodge.composite.repository;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import com.wk.lodge.composite.service.RoomService;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import org.junit.Test;
+import org.lightcouch.DocumentConflictException;
+import org.springframework.messaging.core.MessageSendingOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class SessionWriteBufferTests {
+
+    @Test
+    public void testMutationsToTheSameSessionAreMerged() {
+        SessionWriteBuffer buffer = new SessionWriteBuffer();
+        Session session = new Session();
+        session.set_rev("1-a");
+        for (int i = 0; i < 5; i++) {
+            session.addDevice(new Device());
+            buffer.stage(session);
+        }
+
+        assertEquals(5, buffer.get(session.getUuid()).getDevices().size());
+
+        List<Session> drained = buffer.drain();
+        assertEquals(1, drained.size());
+        assertEquals(5, drained.get(0).getDevices().size());
+        assertEquals(0, buffer.size());
+
+        buffer.written(drained.get(0), "2-b");
+        assertEquals(5, buffer.getStaged());
+        assertEquals(1, buffer.getWritten());
+        assertEquals(4, buffer.getWritesSaved());
+    }
+
+    @Test
+    public void testStagedStateIsWrittenAgainstTheLatestRevision() {
+        SessionWriteBuffer buffer = new SessionWriteBuffer();
+        Session session = new Session();
+        session.set_rev("1-a");
+        buffer.stage(session);
+        buffer.written(buffer.drain().get(0), "2-b");
+
+        // a caller still holding the first revision stages another mutation
+        assertEquals("2-b", buffer.stage(session));
+        assertEquals("2-b", buffer.drain().get(0).get_rev());
+    }
+
+    @Test
+    public void testRestoreKeepsNewerStagedState() {
+        SessionWriteBuffer buffer = new SessionWriteBuffer();
+        Session session = new Session();
+        buffer.stage(session);
+        List<Session> drained = buffer.drain();
+
+        session.addDevice(new Device());
+        buffer.stage(session);
+        buffer.restore(drained);
+        assertEquals(1, buffer.get(session.getUuid()).getDevices().size());
+
+        Session other = new Session();
+        buffer.restore(Arrays.asList(other));
+        assertNotNull(buffer.get(other.getUuid()));
+
+        buffer.discard(session.getUuid());
+        assertNull(buffer.get(session.getUuid()));
+    }
+
+    @Test
+    public void testStateDerivedFromAnOlderStagedStateIsRejected() {
+        SessionWriteBuffer buffer = new SessionWriteBuffer();
+        Session session = new Session();
+        session.set_rev("1-a");
+        buffer.stage(session);
+
+        // two callers read the staged state and mutate it at the same time
+        Session first = buffer.get(session.getUuid());
+        Session second = buffer.get(session.getUuid());
+        first.addDevice(new Device());
+        buffer.stage(first);
+        second.addDevice(new Device());
+        try {
+            buffer.stage(second);
+            fail("a state derived from a replaced state was staged");
+        } catch (DocumentConflictException e) {
+            assertEquals(1, buffer.getStale());
+        }
+
+        // read again, the second mutation is staged on top of the first
+        second = buffer.get(session.getUuid());
+        second.addDevice(new Device());
+        buffer.stage(second);
+        assertEquals(2, buffer.drain().get(0).getDevices().size());
+    }
+
+    @Test
+    public void testCopyReadAfterAnotherNodeWroteTheSessionIsStaged() {
+        SessionWriteBuffer buffer = new SessionWriteBuffer();
+        Session session = new Session();
+        session.set_rev("1-a");
+        buffer.stage(session);
+        buffer.written(buffer.drain().get(0), "2-b");
+
+        Session remote = new Session(session);
+        remote.set_rev("3-c");
+        remote.setUpdated(session.getUpdated() - 1000);
+        remote.addDevice(new Device());
+        assertEquals("3-c", buffer.stage(remote));
+
+        // but not while a state of this node's is waiting to be written over it
+        Session older = new Session(remote);
+        older.set_rev("4-d");
+        older.setUpdated(remote.getUpdated() - 1000);
+        try {
+            buffer.stage(older);
+            fail("a copy was staged over a pending state");
+        } catch (DocumentConflictException e) {
+            assertEquals(1, buffer.getStale());
+        }
+    }
+
+    @Test
+    public void testConcurrentJoinsBothSurviveAFlush() throws Exception {
+        HashMap<String, Integer> maxDevicesPerSession = new HashMap<String, Integer>();
+        maxDevicesPerSession.put("appOne", 8);
+        InMemorySessionStore store = new InMemorySessionStore();
+        @SuppressWarnings("unchecked")
+        final SessionRepository repository = new SessionRepository(store,
+            new DeviceLimiter(maxDevicesPerSession, 3, 100), new RoomService(new HashMap<String, String[]>()),
+            mock(MessageSendingOperations.class));
+        repository.setWriteBehindEnabled(true);
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        session.setGeoLocation(new float[]{45, 45});
+        session.addDevice(new Device());
+        session = repository.create(session);
+
+        Set<UUID> joined = new HashSet<UUID>();
+        for (int round = 0; round < 50; round++) {
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 2; t++) {
+                final JoinMessage j = new JoinMessage();
+                j.setApplicationId("appOne");
+                j.setDevice(new Device());
+                j.setGeo(new float[]{45, 45});
+                joined.add(j.getDevice().getUuid());
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            barrier.await();
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                        repository.getOrCreate(j);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        repository.flush();
+
+        Set<UUID> stored = new HashSet<UUID>();
+        for (Session written : store.findAll()) {
+            for (Device device : written.getDevices()) {
+                stored.add(device.getUuid());
+            }
+        }
+        assertTrue(stored.containsAll(joined));
+        assertEquals(0, repository.getWriteBuffer().size());
+    }
+}
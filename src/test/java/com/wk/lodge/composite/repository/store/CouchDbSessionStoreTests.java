@@ -0,0 +1,208 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.wk.lodge.composite.model.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lightcouch.CouchDbClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CouchDbSessionStoreTests {
+    private CouchDbStandIn couchDb;
+    private CouchDbClient client;
+    private CouchDbSessionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.couchDb = new CouchDbStandIn();
+        this.client = new CouchDbClient("sessions", false, "http", "localhost", this.couchDb.getPort(), null, null);
+        this.store = new CouchDbSessionStore(this.client);
+    }
+
+    @After
+    public void tearDown() {
+        this.client.shutdown();
+        this.couchDb.stop();
+    }
+
+    private Session session(String id, long inserted) {
+        Session session = new Session();
+        session.set_id(id);
+        session.set_rev("1-" + id);
+        session.setApplicationId("appOne");
+        session.setInserted(inserted);
+        session.setUpdated(inserted);
+        this.couchDb.add(session);
+        return session;
+    }
+
+    @Test
+    public void testStaleSessionsArePagedWithTheirDocuments() throws Exception {
+        List<Session> stale = new ArrayList<Session>();
+        stale.add(session("a", 1000));
+        stale.add(session("b", 1000));
+        stale.add(session("c", 1000));
+        stale.add(session("d", 1500));
+        stale.add(session("e", 1500));
+        stale.add(session("f", 1800));
+        stale.add(session("g", 2000));
+        session("h", 2500);
+        session("i", 3000);
+
+        List<Session> found = new ArrayList<Session>();
+        List<Session> page;
+        Session after = null;
+        int pages = 0;
+        while (!(page = this.store.findStale(2000, after, 3)).isEmpty()) {
+            assertTrue(page.size() <= 3);
+            found.addAll(page);
+            after = page.get(page.size() - 1);
+            pages++;
+        }
+
+        assertEquals(3, pages);
+        assertEquals(stale.size(), found.size());
+        for (int i = 0; i < stale.size(); i++) {
+            Session expected = stale.get(i);
+            Session actual = found.get(i);
+            assertEquals(expected.get_id(), actual.get_id());
+            assertEquals(expected.get_rev(), actual.get_rev());
+            assertEquals(expected.getUuid(), actual.getUuid());
+            assertEquals(expected.getInserted(), actual.getInserted());
+            assertEquals(expected.getUpdated(), actual.getUpdated());
+        }
+    }
+
+    @Test
+    public void testPagingSkipsTheCursorOnlyWhenItIsStillPresent() throws Exception {
+        Session a = session("a", 1000);
+        session("b", 1000);
+        session("c", 1500);
+
+        List<Session> first = this.store.findStale(2000, null, 1);
+        assertEquals("a", first.get(0).get_id());
+        assertEquals("b", this.store.findStale(2000, a, 1).get(0).get_id());
+
+        // once the cursor's session has been deleted, the page starts at the session after it
+        this.couchDb.remove("a");
+        assertEquals("b", this.store.findStale(2000, a, 1).get(0).get_id());
+    }
+
+    /**
+     * serves the session-by-timestamp view the way CouchDB does: rows sorted by key and document id, each with the
+     * document as its value, and the document again as doc when it is asked for with include_docs
+     */
+    private static class CouchDbStandIn implements HttpHandler {
+        private final Gson gson = new Gson();
+        private final HttpServer server;
+        private final List<JsonObject> docs = new ArrayList<JsonObject>();
+
+        CouchDbStandIn() throws IOException {
+            this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            this.server.createContext("/sessions/_design/app/_view/session-by-timestamp", this);
+            // the client asks for the server version when it is constructed
+            this.server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    respond(exchange, "{\"couchdb\":\"Welcome\",\"version\":\"1.6.1\"}");
+                }
+            });
+            this.server.start();
+        }
+
+        int getPort() {
+            return this.server.getAddress().getPort();
+        }
+
+        void stop() {
+            this.server.stop(0);
+        }
+
+        synchronized void add(Session session) {
+            this.docs.add(this.gson.toJsonTree(session).getAsJsonObject());
+        }
+
+        synchronized void remove(String id) {
+            for (int i = 0; i < this.docs.size(); i++) {
+                if (this.docs.get(i).get("_id").getAsString().equals(id)) {
+                    this.docs.remove(i);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = new HashMap<String, String>();
+            for (String param : exchange.getRequestURI().getRawQuery().split("&")) {
+                String[] pair = param.split("=", 2);
+                params.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+            }
+            long endKey = params.containsKey("endkey") ? Long.parseLong(params.get("endkey")) : Long.MAX_VALUE;
+            long startKey = params.containsKey("startkey") ? Long.parseLong(params.get("startkey")) : Long.MIN_VALUE;
+            String startKeyDocId = params.get("startkey_docid");
+            if (startKeyDocId != null && startKeyDocId.startsWith("\"")) {
+                startKeyDocId = this.gson.fromJson(startKeyDocId, String.class);
+            }
+            int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+            boolean includeDocs = "true".equals(params.get("include_docs"));
+
+            List<JsonObject> sorted = new ArrayList<JsonObject>(this.docs);
+            Collections.sort(sorted, new Comparator<JsonObject>() {
+                @Override
+                public int compare(JsonObject a, JsonObject b) {
+                    int byKey = Long.compare(a.get("inserted").getAsLong(), b.get("inserted").getAsLong());
+                    return byKey != 0 ? byKey : a.get("_id").getAsString().compareTo(b.get("_id").getAsString());
+                }
+            });
+            JsonArray rows = new JsonArray();
+            for (JsonObject doc : sorted) {
+                long key = doc.get("inserted").getAsLong();
+                String id = doc.get("_id").getAsString();
+                if (key < startKey || key > endKey || rows.size() == limit) {
+                    continue;
+                }
+                if (key == startKey && startKeyDocId != null && id.compareTo(startKeyDocId) < 0) {
+                    continue;
+                }
+                JsonObject row = new JsonObject();
+                row.addProperty("id", id);
+                row.addProperty("key", key);
+                row.add("value", doc);
+                if (includeDocs) {
+                    row.add("doc", doc);
+                }
+                rows.add(row);
+            }
+            JsonObject body = new JsonObject();
+            body.addProperty("total_rows", this.docs.size());
+            body.addProperty("offset", 0);
+            body.add("rows", rows);
+            respond(exchange, body.toString());
+        }
+
+        private static void respond(HttpExchange exchange, String body) throws IOException {
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+    }
+}
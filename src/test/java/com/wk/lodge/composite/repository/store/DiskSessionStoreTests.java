@@ -0,0 +1,87 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class DiskSessionStoreTests {
+    private File directory;
+    private DiskSessionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("sessions").toFile();
+        this.store = new DiskSessionStore(this.directory.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        this.store.close();
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private DiskSessionStore reopen() {
+        this.store.close();
+        this.store = new DiskSessionStore(this.directory.getPath());
+        return this.store;
+    }
+
+    @Test
+    public void testSessionsSurviveARestart() {
+        Device device = new Device();
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        session.addDevice(device);
+        this.store.create(session);
+        session.setLocked(true);
+        this.store.update(session);
+        Session deleted = this.store.create(new Session());
+        this.store.delete(deleted);
+
+        DiskSessionStore reopened = reopen();
+
+        Session found = reopened.find(session.getUuid());
+        assertNotNull(found);
+        assertEquals(session.get_rev(), found.get_rev());
+        assertTrue(found.isLocked());
+        assertEquals(session.getUuid(), reopened.findByDevice(device.getUuid()).getUuid());
+        assertNull(reopened.find(deleted.getUuid()));
+        assertEquals(1, reopened.size());
+    }
+
+    @Test
+    public void testJournalIsCompacted() throws IOException {
+        Session session = this.store.create(new Session());
+        for (int i = 0; i < 3000; i++) {
+            this.store.update(session);
+        }
+        File journal = new File(this.directory, "sessions.journal");
+
+        assertTrue(Files.readAllLines(journal.toPath(), Charset.forName("UTF-8")).size() <= 1025);
+        assertEquals(session.get_rev(), reopen().find(session.getUuid()).get_rev());
+    }
+
+    @Test
+    public void testTruncatedEntriesAreSkipped() throws IOException {
+        Session session = this.store.create(new Session());
+        this.store.close();
+        try (FileOutputStream out = new FileOutputStream(new File(this.directory, "sessions.journal"), true)) {
+            out.write("{\"uuid\":\"".getBytes("UTF-8"));
+        }
+
+        assertNotNull(reopen().find(session.getUuid()));
+    }
+}
@@ -0,0 +1,157 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.lightcouch.DocumentConflictException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class InMemorySessionStoreTests {
+    private InMemorySessionStore store;
+
+    private Session session(String applicationId, long inserted, Device... devices) {
+        Session session = new Session();
+        session.setApplicationId(applicationId);
+        session.setInserted(inserted);
+        for (Device device : devices) {
+            session.addDevice(device);
+        }
+        return session;
+    }
+
+    @Before
+    public void setUp() {
+        this.store = new InMemorySessionStore();
+    }
+
+    @Test
+    public void testCreateFindAndQueries() {
+        Device device = new Device();
+        Session open = this.store.create(session("appOne", 1000, device));
+        Session locked = session("appOne", 5000);
+        locked.setLocked(true);
+        this.store.create(locked);
+
+        assertNotNull(open.get_id());
+        assertTrue(open.get_rev().startsWith("1-"));
+        assertEquals(open.getUuid(), this.store.find(open.getUuid()).getUuid());
+        assertEquals(open.getUuid(), this.store.findByDevice(device.getUuid()).getUuid());
+        assertNull(this.store.find(UUID.randomUUID()));
+        assertNull(this.store.findByDevice(UUID.randomUUID()));
+        assertEquals(1, this.store.findOpenByApplication("appOne").size());
+        assertEquals(0, this.store.findOpenByApplication("appTwo").size());
+        assertEquals(locked.getUuid(), this.store.findByLocked(true).get(0).getUuid());
+        assertEquals(1, this.store.findStale(2000, null, 10).size());
+        assertEquals(2, this.store.findAll().size());
+    }
+
+    @Test
+    public void testWritesBasedOnAStaleRevisionConflict() {
+        Session session = this.store.create(session("appOne", 1000));
+        Session stale = new Session(session);
+        session.addDevice(new Device());
+        this.store.update(session);
+        assertTrue(session.get_rev().startsWith("2-"));
+
+        try {
+            this.store.update(stale);
+            fail();
+        } catch (DocumentConflictException e) {
+            assertEquals(1, this.store.find(session.getUuid()).getDevices().size());
+        }
+        try {
+            this.store.create(stale);
+            fail();
+        } catch (DocumentConflictException e) {
+            // expected
+        }
+        try {
+            this.store.delete(stale);
+            fail();
+        } catch (DocumentConflictException e) {
+            // expected
+        }
+        this.store.delete(session);
+        assertNull(this.store.find(session.getUuid()));
+    }
+
+    @Test
+    public void testBulkWritesEachSessionOnItsOwn() {
+        Device moved = new Device();
+        Session existing = this.store.create(session("appOne", 1000, moved));
+        Session stale = new Session(existing);
+        existing.removeDeviceByUuid(moved.getUuid().toString());
+        Session created = session("appOne", 1000, moved);
+        Session deleted = this.store.create(session("appOne", 1000));
+        deleted.set_deleted(true);
+
+        List<String> errors = this.store.bulk(Arrays.asList(existing, created, deleted, stale));
+
+        assertNull(errors.get(0));
+        assertNull(errors.get(1));
+        assertNull(errors.get(2));
+        assertNotNull(errors.get(3));
+        assertTrue(existing.get_rev().startsWith("2-"));
+        assertNotNull(created.get_rev());
+        assertNull(this.store.find(deleted.getUuid()));
+        assertEquals(created.getUuid(), this.store.findByDevice(moved.getUuid()).getUuid());
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        Session session = this.store.create(session("appOne", 1000));
+        session.addDevice(new Device());
+        this.store.find(session.getUuid()).addDevice(new Device());
+
+        assertEquals(0, this.store.find(session.getUuid()).getDevices().size());
+    }
+
+    @Test
+    public void testFindStalePagesInInsertionOrder() {
+        for (int i = 0; i < 5; i++) {
+            this.store.create(session("appOne", 1000 + (i % 2)));
+        }
+        this.store.create(session("appOne", 3000));
+
+        List<Session> first = this.store.findStale(2000, null, 3);
+        List<Session> second = this.store.findStale(2000, first.get(2), 3);
+
+        assertEquals(3, first.size());
+        assertEquals(2, second.size());
+        assertEquals(1000, first.get(2).getInserted());
+        assertEquals(1001, second.get(0).getInserted());
+        assertTrue(first.get(0).get_id().compareTo(first.get(1).get_id()) < 0);
+        assertEquals(0, this.store.findStale(2000, second.get(1), 3).size());
+    }
+
+    @Test
+    public void testReplicateReturnsOnlyChangesNotYetHeld() {
+        Session session = session("appOne", 1000, new Device());
+        session.set_id("a");
+        session.set_rev("2-b");
+        assertEquals("2-b", this.store.replicate(session).get_rev());
+        assertNull(this.store.replicate(session));
+
+        Session older = new Session(session);
+        older.set_rev("1-a");
+        assertNull(this.store.replicate(older));
+
+        // a deletion read from the feed carries only the _id
+        Session deletion = new Session();
+        deletion.setUuid(null);
+        deletion.set_id("a");
+        deletion.set_rev("3-c");
+        deletion.set_deleted(true);
+        Session deleted = this.store.replicate(deletion);
+        assertEquals(session.getUuid(), deleted.getUuid());
+        assertTrue(deleted.is_deleted());
+        assertNull(this.store.find(session.getUuid()));
+        assertNull(this.store.replicate(deletion));
+    }
+}
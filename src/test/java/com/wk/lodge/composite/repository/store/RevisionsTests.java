@@ -0,0 +1,24 @@
+package com.wk.lodge.composite.repository.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RevisionsTests {
+
+    @Test
+    public void testGenerationIsTheNumberBeforeTheDash() {
+        assertEquals(3, Revisions.generation("3-917fa2381192822767f010b95b45325b"));
+        assertEquals(12, Revisions.generation("12"));
+        assertEquals(0, Revisions.generation(null));
+        assertEquals(0, Revisions.generation("abc-917fa238"));
+    }
+
+    @Test
+    public void testNewerComparesGenerationsNotHashes() {
+        assertTrue(Revisions.isNewer("10-000", "9-fff"));
+        assertFalse(Revisions.isNewer("2-fff", "2-000"));
+        assertFalse(Revisions.isNewer("1-abc", "2-abc"));
+        assertTrue(Revisions.isNewer("1-abc", null));
+    }
+}
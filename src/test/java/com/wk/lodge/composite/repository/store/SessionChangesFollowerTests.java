@@ -0,0 +1,271 @@
+package com.wk.lodge.composite.repository.store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lightcouch.CouchDbClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class SessionChangesFollowerTests {
+    private CouchDbStandIn couchDb;
+    private CouchDbClient client;
+    private File directory;
+    private ReplicatedSessionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.couchDb = new CouchDbStandIn();
+        this.client = new CouchDbClient("sessions", false, "http", "localhost", this.couchDb.getPort(), null, null);
+        this.directory = Files.createTempDirectory("replica").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (this.store != null) {
+            this.store.close();
+        }
+        if (this.client != null) {
+            this.client.shutdown();
+        }
+        this.couchDb.stop();
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private Session session(String id, String rev, Device device) {
+        Session session = new Session();
+        session.set_id(id);
+        session.set_rev(rev);
+        session.setApplicationId("appOne");
+        session.addDevice(device);
+        return session;
+    }
+
+    private void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    @Test
+    public void testReplicaFollowsCreatesUpdatesAndDeletes() throws Exception {
+        final Device device = new Device();
+        final Session session = session("a", "1-a", device);
+        this.couchDb.change("a", session);
+        this.couchDb.change("_design/app", new JsonObject());
+
+        this.store = new ReplicatedSessionStore(this.client, this.directory.getPath(), 1000);
+        await(new Condition() {
+            public boolean holds() {
+                return store.getFollower().isCurrent(1000);
+            }
+        });
+        // the stand-in has no views, so these can only be answered by the replica
+        assertEquals(session.getUuid(), this.store.find(session.getUuid()).getUuid());
+        assertEquals(session.getUuid(), this.store.findByDevice(device.getUuid()).getUuid());
+        assertEquals(1, this.store.findAll().size());
+
+        session.setLocked(true);
+        session.set_rev("2-a");
+        this.couchDb.change("a", session);
+        await(new Condition() {
+            public boolean holds() {
+                return store.find(session.getUuid()).isLocked();
+            }
+        });
+
+        this.couchDb.delete("a", "3-a");
+        await(new Condition() {
+            public boolean holds() {
+                return store.find(session.getUuid()) == null;
+            }
+        });
+        assertNull(this.store.findByDevice(device.getUuid()));
+    }
+
+    @Test
+    public void testFollowerResumesFromTheLastSequence() throws Exception {
+        final Session session = session("a", "1-a", new Device());
+        this.couchDb.change("a", session);
+        this.couchDb.change("b", session("b", "1-b", new Device()));
+        this.store = new ReplicatedSessionStore(this.client, this.directory.getPath(), 1000);
+        await(new Condition() {
+            public boolean holds() {
+                return store.getFollower().isCurrent(1000);
+            }
+        });
+        this.store.close();
+        this.store = null;
+
+        this.couchDb.requestedSequences.clear();
+        this.store = new ReplicatedSessionStore(this.client, this.directory.getPath(), 1000);
+        await(new Condition() {
+            public boolean holds() {
+                return store.getFollower().isCurrent(1000);
+            }
+        });
+
+        assertEquals("2", this.couchDb.requestedSequences.get(0));
+        assertEquals(session.getUuid(), this.store.find(session.getUuid()).getUuid());
+    }
+
+    @Test
+    public void testReplicaIsNotCurrentWhenTheFeedGoesQuiet() throws Exception {
+        this.store = new ReplicatedSessionStore(this.client, this.directory.getPath(), 200);
+        await(new Condition() {
+            public boolean holds() {
+                return store.getFollower().isCurrent(200);
+            }
+        });
+
+        this.couchDb.silent = true;
+        await(new Condition() {
+            public boolean holds() {
+                return !store.getFollower().isCurrent(200);
+            }
+        });
+    }
+
+    /**
+     * serves just enough of CouchDB's _changes API for a follower: the normal and continuous feeds, with documents
+     */
+    private static class CouchDbStandIn implements HttpHandler {
+        private final Gson gson = new Gson();
+        private final HttpServer server;
+        private final List<JsonObject> rows = new CopyOnWriteArrayList<JsonObject>();
+        final List<String> requestedSequences = new CopyOnWriteArrayList<String>();
+        volatile boolean silent;
+        private volatile boolean stopped;
+
+        CouchDbStandIn() throws IOException {
+            this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            this.server.createContext("/sessions/_changes", this);
+            // the client asks for the server version when it is constructed
+            this.server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] bytes = "{\"couchdb\":\"Welcome\",\"version\":\"1.6.1\"}".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                    exchange.close();
+                }
+            });
+            this.server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+            this.server.start();
+        }
+
+        int getPort() {
+            return this.server.getAddress().getPort();
+        }
+
+        void stop() {
+            this.stopped = true;
+            this.server.stop(0);
+        }
+
+        void change(String id, Object doc) {
+            JsonObject json = this.gson.toJsonTree(doc).getAsJsonObject();
+            json.addProperty("_id", id);
+            add(id, json, false);
+        }
+
+        void delete(String id, String rev) {
+            JsonObject json = new JsonObject();
+            json.addProperty("_id", id);
+            json.addProperty("_rev", rev);
+            json.addProperty("_deleted", true);
+            add(id, json, true);
+        }
+
+        private synchronized void add(String id, JsonObject doc, boolean deleted) {
+            JsonObject row = new JsonObject();
+            row.addProperty("seq", this.rows.size() + 1);
+            row.addProperty("id", id);
+            if (deleted) {
+                row.addProperty("deleted", true);
+            }
+            row.add("doc", doc);
+            this.rows.add(row);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String query = exchange.getRequestURI().getQuery();
+            int since = 0;
+            boolean continuous = false;
+            for (String param : query.split("&")) {
+                String[] pair = param.split("=", 2);
+                if (pair[0].equals("since")) {
+                    this.requestedSequences.add(pair[1]);
+                    since = Integer.parseInt(pair[1]);
+                } else if (pair[0].equals("feed")) {
+                    continuous = pair[1].equals("continuous");
+                }
+            }
+            if (continuous) {
+                stream(exchange, since);
+            } else {
+                List<JsonObject> results = new ArrayList<JsonObject>();
+                for (JsonObject row : this.rows) {
+                    if (row.get("seq").getAsInt() > since) {
+                        results.add(row);
+                    }
+                }
+                JsonObject body = new JsonObject();
+                body.add("results", this.gson.toJsonTree(results));
+                body.addProperty("last_seq", Math.max(since, this.rows.size()));
+                byte[] bytes = body.toString().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                exchange.close();
+            }
+        }
+
+        private void stream(HttpExchange exchange, int since) throws IOException {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            int sent = since;
+            try {
+                while (!this.stopped) {
+                    if (!this.silent) {
+                        while (sent < this.rows.size()) {
+                            out.write((this.rows.get(sent++).toString() + "\n").getBytes("UTF-8"));
+                        }
+                        out.write("\n".getBytes("UTF-8"));
+                        out.flush();
+                    }
+                    Thread.sleep(20);
+                }
+            } catch (IOException | InterruptedException e) {
+                // the follower hung up
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.wk.lodge.composite.service;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.SessionRepository;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.core.MessageSendingOperations;
+import org.springframework.messaging.simp.broker.BrokerAvailabilityEvent;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class DeviceServiceTests {
+    private CountingSessionStore store;
+    private SessionRepository repository;
+    private MessageSendingOperations<String> messagingTemplate;
+    private DeviceRegistry registry;
+    private DeviceService deviceService;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        HashMap<String, Integer> maxDevicesPerSession = new HashMap<>();
+        maxDevicesPerSession.put("appOne", 8);
+        this.store = new CountingSessionStore();
+        this.messagingTemplate = mock(MessageSendingOperations.class);
+        this.repository = new SessionRepository(this.store, new DeviceLimiter(maxDevicesPerSession, 3, 100),
+            new RoomService(new HashMap<String, String[]>()), this.messagingTemplate);
+        this.repository.onApplicationEvent(new BrokerAvailabilityEvent(true, this));
+        SessionService sessionService = new SessionService();
+        sessionService.setSessionRepository(this.repository);
+        this.registry = new DeviceRegistry(1, 1);
+        this.deviceService = new DeviceService();
+        this.deviceService.setDeviceRegistry(this.registry);
+        this.deviceService.setSessonService(sessionService);
+        ReflectionTestUtils.setField(this.deviceService, "runScheduledTask", true);
+    }
+
+    private Session session(int devices) {
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        for (int i = 0; i < devices; i++) {
+            session.addDevice(new Device());
+        }
+        return this.repository.create(session);
+    }
+
+    private void drop(Session session, int devices) {
+        for (int i = 0; i < devices; i++) {
+            this.registry.addHealthyDevice(session.getDevices().get(i).getUuid().toString());
+        }
+    }
+
+    private void sweep() throws InterruptedException {
+        Thread.sleep(10);
+        this.deviceService.deleteUnhealthyDevices();
+    }
+
+    @Test
+    public void testDroppedDevicesCostOneWritePerSweep() throws Exception {
+        Session emptied = session(4);
+        Session remaining = session(4);
+        drop(emptied, 4);
+        drop(remaining, 3);
+
+        sweep();
+
+        assertEquals(1, this.store.bulkWrites);
+        assertNull(this.store.find(emptied.getUuid()));
+        Session survivor = this.store.find(remaining.getUuid());
+        assertEquals(1, survivor.getDevices().size());
+        assertEquals(remaining.getDevices().get(3).getUuid(), survivor.getDevices().get(0).getUuid());
+        verify(this.messagingTemplate, times(1)).convertAndSend(eq("/topic/" + remaining.getUuid()), anyString());
+        verify(this.messagingTemplate, never()).convertAndSend(eq("/topic/" + emptied.getUuid()), anyString());
+        assertEquals(1, this.deviceService.getSweeps());
+    }
+
+    @Test
+    public void testDevicesOfSessionsThatFailToWriteAreRetried() throws Exception {
+        Session session = session(3);
+        drop(session, 3);
+        this.store.failBulkWrites = true;
+
+        sweep();
+        assertEquals(3, this.store.find(session.getUuid()).getDevices().size());
+        assertEquals(3, this.registry.size());
+
+        this.store.failBulkWrites = false;
+        sweep();
+        assertNull(this.store.find(session.getUuid()));
+        assertEquals(0, this.registry.size());
+    }
+
+    @Test
+    public void testDisconnectedDevicesAreEvictedAtOnceAndGroupedPerSession() throws Exception {
+        // a timeout long enough that no device turns unhealthy during the test
+        final DeviceRegistry registry = new DeviceRegistry(60000, 10);
+        this.deviceService.setDeviceRegistry(registry);
+        ReflectionTestUtils.setField(this.deviceService, "runScheduledTask", false);
+        Session session = session(5);
+        final List<Device> devices = session.getDevices();
+        for (Device device : devices) {
+            registry.addHealthyDevice(device.getUuid().toString());
+        }
+
+        // the first eviction is written at once, and held up in the store
+        this.store.entered = new CountDownLatch(1);
+        this.store.released = new CountDownLatch(1);
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deviceService.evictDevice(devices.get(0).getUuid().toString());
+            }
+        });
+        first.start();
+        assertTrue(this.store.entered.await(5, TimeUnit.SECONDS));
+
+        // devices disconnecting meanwhile are queued without waiting, and a device that reconnects is kept
+        String reconnecting = devices.get(3).getUuid().toString();
+        for (int i = 1; i < 4; i++) {
+            this.deviceService.evictDevice(devices.get(i).getUuid().toString());
+        }
+        registry.addHealthyDevice(reconnecting);
+        assertEquals(1, this.store.bulkWrites);
+
+        this.store.released.countDown();
+        first.join(5000);
+        assertEquals(2, this.store.bulkWrites);
+        Session survivor = this.store.find(session.getUuid());
+        assertEquals(2, survivor.getDevices().size());
+        assertTrue(survivor.deviceInSession(UUID.fromString(reconnecting)));
+        assertTrue(survivor.deviceInSession(devices.get(4).getUuid()));
+
+        // nothing is left for the sweep
+        this.deviceService.deleteUnhealthyDevices();
+        assertEquals(2, this.store.bulkWrites);
+    }
+
+    private static class CountingSessionStore extends InMemorySessionStore {
+        private int bulkWrites;
+        private boolean failBulkWrites;
+        private CountDownLatch entered;
+        private CountDownLatch released;
+
+        @Override
+        public synchronized List<String> bulk(List<Session> sessions) {
+            this.bulkWrites++;
+            if (this.entered != null && this.entered.getCount() > 0) {
+                this.entered.countDown();
+                try {
+                    this.released.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (this.failBulkWrites) {
+                for (Session session : sessions) {
+                    session.set_rev("0-conflict");
+                }
+            }
+            return super.bulk(sessions);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.wk.lodge.composite.service;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.SessionRepository;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.lightcouch.CouchDbException;
+import org.springframework.messaging.core.MessageSendingOperations;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class SessionReaperTests {
+    private static final long HOUR = 3600000;
+    private FailingSessionStore store;
+    private SessionReaper reaper;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        HashMap<String, Integer> maxDevicesPerSession = new HashMap<>();
+        maxDevicesPerSession.put("appOne", 8);
+        this.store = new FailingSessionStore();
+        SessionRepository repository = new SessionRepository(this.store, new DeviceLimiter(maxDevicesPerSession, 3, 100),
+            new RoomService(new HashMap<String, String[]>()), mock(MessageSendingOperations.class));
+        SessionService service = new SessionService();
+        service.setSessionRepository(repository);
+        this.reaper = new SessionReaper(service, 5, 100, 0);
+    }
+
+    private Session session(long inserted, long updated, boolean locked) {
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        session.setInserted(inserted);
+        session.setUpdated(updated);
+        session.setLocked(locked);
+        session.addDevice(new Device());
+        return this.store.create(session);
+    }
+
+    @Test
+    public void testReapsABacklogPageByPage() {
+        long now = new Date().getTime();
+        for (int i = 0; i < 250; i++) {
+            session(now - HOUR - i, now - HOUR, i % 2 == 0);
+        }
+        Session playing = session(now - HOUR, now, true);
+        Session fresh = session(now, now, false);
+
+        assertEquals(250, this.reaper.reap());
+        assertEquals(2, this.store.size());
+        assertNotNull(this.store.find(playing.getUuid()));
+        assertNotNull(this.store.find(fresh.getUuid()));
+        assertEquals(3, this.store.bulkWrites);
+
+        assertEquals(0, this.reaper.reap());
+        assertEquals(2, this.reaper.getRuns());
+        assertEquals(250, this.reaper.getReaped());
+        assertEquals(0, this.reaper.getLastReaped());
+    }
+
+    @Test
+    public void testStopsWhenABulkDeleteFails() {
+        long now = new Date().getTime();
+        for (int i = 0; i < 250; i++) {
+            session(now - HOUR - i, now - HOUR, false);
+        }
+        this.store.failOnWrite = 2;
+
+        assertEquals(100, this.reaper.reap());
+        assertEquals(150, this.store.size());
+        assertEquals(150, this.reaper.reap());
+        assertEquals(0, this.store.size());
+    }
+
+    @Test
+    public void testCountsOnlyTheSessionsDeleted() {
+        long now = new Date().getTime();
+        for (int i = 0; i < 250; i++) {
+            Session session = session(now - HOUR - i, now - HOUR, false);
+            if (i % 50 == 0) {
+                this.store.conflicting.add(session.getUuid());
+            }
+        }
+
+        assertEquals(245, this.reaper.reap());
+        assertEquals(5, this.store.size());
+        assertEquals(3, this.store.bulkWrites);
+
+        assertEquals(5, this.reaper.reap());
+        assertEquals(0, this.store.size());
+        assertEquals(250, this.reaper.getReaped());
+    }
+
+    @Test
+    public void testDisabledReaperDoesNothing() {
+        long now = new Date().getTime();
+        session(now - HOUR, now - HOUR, false);
+
+        this.reaper.run();
+
+        assertEquals(0, this.reaper.getRuns());
+        assertEquals(1, this.store.size());
+    }
+
+    private static class FailingSessionStore extends InMemorySessionStore {
+        private int bulkWrites;
+        private int failOnWrite;
+        private final Set<UUID> conflicting = new HashSet<>();
+
+        @Override
+        public synchronized List<String> bulk(List<Session> sessions) {
+            if (++this.bulkWrites == this.failOnWrite) {
+                throw new CouchDbException("unavailable");
+            }
+            for (Session session : sessions) {
+                // written by someone else since it was read, so this write conflicts once
+                if (this.conflicting.remove(session.getUuid())) {
+                    update(find(session.getUuid()));
+                }
+            }
+            return super.bulk(sessions);
+        }
+    }
+}
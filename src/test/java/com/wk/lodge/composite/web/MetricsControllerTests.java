@@ -0,0 +1,109 @@
+package com.wk.lodge.composite.web;
+
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.repository.DeviceLimiter;
+import com.wk.lodge.composite.repository.SessionRepository;
+import com.wk.lodge.composite.repository.store.InMemorySessionStore;
+import com.wk.lodge.composite.repository.store.MeteredSessionStore;
+import com.wk.lodge.composite.service.DeviceService;
+import com.wk.lodge.composite.service.RoomService;
+import com.wk.lodge.composite.service.SessionReaper;
+import com.wk.lodge.composite.service.SessionService;
+import com.wk.lodge.composite.web.socket.messaging.LatencyInterceptor;
+import org.junit.Before;
+import org.junit.Test;
+import org.lightcouch.DocumentConflictException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.messaging.core.MessageSendingOperations;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class MetricsControllerTests {
+    private MeteredSessionStore store;
+    private SessionRepository repository;
+    private DeviceRegistry deviceRegistry;
+    private MetricsController controller;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        HashMap<String, Integer> maxDevicesPerSession = new HashMap<>();
+        maxDevicesPerSession.put("appOne", 8);
+        this.store = new MeteredSessionStore(new InMemorySessionStore());
+        this.repository = new SessionRepository(this.store, new DeviceLimiter(maxDevicesPerSession, 3, 100),
+            new RoomService(new HashMap<String, String[]>()), mock(MessageSendingOperations.class));
+        SessionService sessionService = new SessionService();
+        sessionService.setSessionRepository(this.repository);
+        this.deviceRegistry = new DeviceRegistry(60000);
+
+        this.controller = new MetricsController();
+        this.controller.setSessionService(sessionService);
+        this.controller.setSessionStore(this.store);
+        this.controller.setDeviceRegistry(this.deviceRegistry);
+        this.controller.setDeviceService(new DeviceService());
+        this.controller.setSessionReaper(new SessionReaper(sessionService, 5, 100, 0));
+        this.controller.setEnabled(true);
+    }
+
+    private Session session(String room) {
+        Session session = new Session();
+        session.setApplicationId("appOne");
+        session.setRoom(room);
+        session.addDevice(new Device());
+        return this.repository.create(session);
+    }
+
+    @Test
+    public void testMetricsAreServedInThePrometheusFormat() {
+        session("lobby");
+        session("lobby");
+        Session quoted = session("the \"big\" room");
+        this.repository.find(quoted.getUuid().toString());
+        Session stale = new Session(quoted);
+        quoted.setLocked(true);
+        this.repository.update(quoted);
+        try {
+            this.store.update(stale);
+            fail();
+        } catch (DocumentConflictException e) {
+            // counted
+        }
+        this.deviceRegistry.addHealthyDevice(UUID.randomUUID().toString());
+
+        ResponseEntity<String> response = this.controller.metrics();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("text/plain;version=0.0.4;charset=utf-8", response.getHeaders().getContentType().toString());
+        String body = response.getBody();
+        assertTrue(body, body.contains("# TYPE composite_sessions gauge\n"));
+        assertTrue(body, body.contains("composite_sessions{application=\"appOne\",room=\"lobby\",state=\"open\"} 2\n"));
+        assertTrue(body, body.contains(
+            "composite_sessions{application=\"appOne\",room=\"the \\\"big\\\" room\",state=\"locked\"} 1\n"));
+        assertTrue(body, body.contains("composite_devices_connected 1\n"));
+        assertTrue(body, body.contains("composite_devices_healthy 1\n"));
+        assertTrue(body, body.contains("composite_store_call_seconds_count{call=\"create\",view=\"_doc\"} 3\n"));
+        assertTrue(body, body.contains("composite_store_call_seconds_count{call=\"update\",view=\"_doc\"} 2\n"));
+        assertTrue(body, body.contains("composite_store_call_seconds{call=\"update\",view=\"_doc\",quantile=\"0.99\"} "));
+        assertTrue(body, body.contains("composite_store_conflicts_total 1\n"));
+        assertTrue(body, body.contains("composite_conflict_sessions_total 0\n"));
+        assertTrue(body, body.contains("composite_reaper_run_seconds_count 0\n"));
+        assertFalse(body, body.contains("composite_message_seconds"));
+        assertEquals(body.indexOf("# TYPE composite_store_call_seconds "),
+            body.lastIndexOf("# TYPE composite_store_call_seconds "));
+
+        LatencyInterceptor latencyInterceptor = new LatencyInterceptor();
+        this.controller.setLatencyInterceptor(latencyInterceptor);
+        body = this.controller.metrics().getBody();
+        assertTrue(body, body.contains("composite_message_seconds_count{destination=\"/app/join\"} 0\n"));
+        assertTrue(body, body.contains("composite_message_seconds_count{destination=\"/app/{id} relayed\"} 0\n"));
+
+        this.controller.setEnabled(false);
+        assertEquals(HttpStatus.NOT_FOUND, this.controller.metrics().getStatusCode());
+    }
+}
@@ -0,0 +1,180 @@
+package com.wk.lodge.composite.web.socket.message.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.wk.lodge.composite.model.Device;
+import com.wk.lodge.composite.web.socket.message.inbound.JoinMessage;
+import com.wk.lodge.composite.web.socket.message.inbound.MapMessage;
+import com.wk.lodge.composite.web.socket.message.inbound.PairMessage;
+import com.wk.lodge.composite.web.socket.message.inbound.SyncMessage;
+import com.wk.lodge.composite.web.socket.message.outbound.*;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTests {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String DEVICE_UUID = UUID.randomUUID().toString();
+    private static final String JOIN = "{\"applicationId\":\"appOne\",\"ignored\":{\"nested\":[1,2,{}]}," +
+            "\"device\":{\"uuid\":\"" + DEVICE_UUID + "\",\"width\":1080,\"height\":1920,\"performance\":2}," +
+            "\"geo\":[45.5231,-122.6765],\"point\":[0,0],\"vector\":[1.0,1.5],\"type\":\"exit\"}";
+    private static final String UPDATE = "{\"type\":\"update\",\"data\":{\"tick\":1024,\"time\":1413500000000," +
+            "\"big\":123456789012345678901234567890,\"x\":12.5,\"alive\":true,\"id\":null,\"path\":[1,\"two\",3.0]}}";
+
+    private static ArrayList<Device> devices(int count) {
+        ArrayList<Device> devices = new ArrayList<Device>();
+        for (int i = 0; i < count; i++) {
+            Device device = new Device();
+            device.setWidth(1080);
+            device.setHeight(1920);
+            device.setPerformance(i);
+            if (i == 0) {
+                device.setLocation("Portland");
+                device.setCountry("US");
+            }
+            devices.add(device);
+        }
+        return devices;
+    }
+
+    private static void assertWritesWhatGsonWrote(Object response) throws IOException {
+        String json = new Gson().toJson(response);
+        assertEquals(json, new String(MessageCodec.write(response), UTF_8));
+        assertEquals(json, MessageCodec.toJson(response));
+    }
+
+    @Test
+    public void testResponsesAreWrittenAsGsonWroteThem() throws Exception {
+        String id = UUID.randomUUID().toString();
+        assertWritesWhatGsonWrote(new InitResponse(DEVICE_UUID));
+        assertWritesWhatGsonWrote(new SyncResponse(1413500000000L));
+        assertWritesWhatGsonWrote(new SyncResponse(null));
+        assertWritesWhatGsonWrote(new JoinResponse("appOne", id, devices(3), "lobby"));
+        assertWritesWhatGsonWrote(new JoinResponse("appOne", id, devices(1), null));
+        assertWritesWhatGsonWrote(new PairResponse("appTwo", id, devices(2)));
+        assertWritesWhatGsonWrote(new DevicesResponse(devices(2)));
+        assertWritesWhatGsonWrote(new DisconnectResponse(devices(1)));
+        assertWritesWhatGsonWrote(new StartResponse());
+        assertWritesWhatGsonWrote(new StopResponse());
+
+        Map<?, ?> update = new ObjectMapper().readValue(UPDATE, Map.class);
+        assertWritesWhatGsonWrote(new UpdateResponse(update.get("data")));
+        assertWritesWhatGsonWrote(new DataResponse("THIS IS SOME DATA"));
+
+        Map<String, Object> state = new LinkedHashMap<String, Object>();
+        state.put("score", 20);
+        state.put("level", "one");
+        state.put("cleared", null);
+        assertWritesWhatGsonWrote(new PatchResponse(2, state, Arrays.asList("lives")));
+        assertWritesWhatGsonWrote(new PatchResponse(3, state, null));
+        assertWritesWhatGsonWrote(new StateResponse(2, state));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValuesWithoutAJsonFormAreNotWritten() throws Exception {
+        MessageCodec.write(new UpdateResponse(new Object()));
+    }
+
+    @Test
+    public void testJoinIsRead() throws Exception {
+        JoinMessage join = MessageCodec.read(JOIN.getBytes(UTF_8), JoinMessage.class);
+        assertEquals("appOne", join.getApplicationId());
+        assertEquals(UUID.fromString(DEVICE_UUID), join.getDevice().getUuid());
+        assertEquals(1080, join.getDevice().getWidth());
+        assertEquals(1920, join.getDevice().getHeight());
+        assertEquals(2, join.getDevice().getPerformance());
+        assertNull(join.getDevice().getLocation());
+        assertArrayEquals(new float[]{45.5231f, -122.6765f}, join.getGeo(), 0);
+        assertArrayEquals(new int[]{0, 0}, join.getPoint());
+        assertArrayEquals(new float[]{1.0f, 1.5f}, join.getVector(), 0);
+        assertEquals(JoinMessage.Types.exit, join.getType());
+    }
+
+    @Test
+    public void testMessagesStringifiedTwiceAreRead() throws Exception {
+        String twice = new ObjectMapper().writeValueAsString(JOIN);
+        assertEquals(JoinMessage.Types.exit, MessageCodec.read(twice.getBytes(UTF_8), JoinMessage.class).getType());
+        assertEquals(JoinMessage.Types.exit, JoinMessage.parseJson(JOIN).getType());
+        assertEquals(PairMessage.Types.exit, PairMessage.parseJson(JOIN).getType());
+    }
+
+    @Test
+    public void testNullsAreRead() throws Exception {
+        assertNull(MessageCodec.read("null", JoinMessage.class));
+        JoinMessage join = MessageCodec.read("{\"device\":null,\"geo\":null,\"type\":null}", JoinMessage.class);
+        assertNull(join.getDevice());
+        assertNull(join.getGeo());
+        assertNull(join.getType());
+        assertNull(MessageCodec.read("{\"time\":null}", SyncMessage.class).getTime());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownTypesAreNotRead() throws Exception {
+        MessageCodec.read("{\"type\":\"sideways\"}", JoinMessage.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidDeviceUuidsAreNotRead() throws Exception {
+        MessageCodec.read("{\"device\":{\"uuid\":\"not-a-uuid\"}}", JoinMessage.class);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMismatchedMessagesAreNotRead() throws Exception {
+        MessageCodec.read("[1,2]", JoinMessage.class);
+    }
+
+    @Test
+    public void testSyncIsRead() throws Exception {
+        SyncMessage sync = MessageCodec.read("{\"type\":\"sync\",\"time\":1413500000000}", SyncMessage.class);
+        assertEquals("sync", sync.getType());
+        assertEquals(Long.valueOf(1413500000000L), sync.getTime());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMapsAreReadAsJacksonReadsThem() throws Exception {
+        Map<String, Object> update = MessageCodec.read(UPDATE.getBytes(UTF_8), Map.class);
+        assertEquals(new ObjectMapper().readValue(UPDATE, Map.class), update);
+        Map<String, Object> data = (Map<String, Object>) update.get("data");
+        assertEquals(Integer.class, data.get("tick").getClass());
+        assertEquals(Long.class, data.get("time").getClass());
+        assertEquals(Double.class, data.get("x").getClass());
+        assertTrue(data.containsKey("id"));
+        assertEquals(Arrays.asList(1, "two", 3.0), data.get("path"));
+
+        MapMessage message = MessageCodec.read(UPDATE.getBytes(UTF_8), MapMessage.class);
+        assertEquals("update", message.getType());
+        assertEquals(data, message.getData());
+    }
+
+    @Test
+    public void testConverterReadsAndWritesMessageClassesOnly() throws Exception {
+        CodecMessageConverter converter = new CodecMessageConverter();
+        Message<byte[]> join = MessageBuilder.withPayload(JOIN.getBytes(UTF_8)).build();
+        assertEquals("appOne", ((JoinMessage) converter.fromMessage(join, JoinMessage.class)).getApplicationId());
+        assertNull(converter.fromMessage(join, String.class));
+
+        SyncResponse sync = new SyncResponse(1413500000000L);
+        Message<?> reply = converter.toMessage(sync, null);
+        assertEquals(new Gson().toJson(sync), new String((byte[]) reply.getPayload(), UTF_8));
+        assertTrue(MimeTypeUtils.APPLICATION_JSON.isCompatibleWith(
+                (MimeType) reply.getHeaders().get(MessageHeaders.CONTENT_TYPE)));
+        assertNull(converter.toMessage("Handling exception", null));
+        List<String> notAMessage = new ArrayList<String>();
+        assertNull(converter.toMessage(notAMessage, null));
+    }
+}
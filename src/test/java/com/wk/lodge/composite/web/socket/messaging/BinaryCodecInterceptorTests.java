@@ -0,0 +1,95 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecInterceptorTests {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String UPDATE = "{\"type\":\"update\",\"serverTime\":1413500000000,\"data\":{\"tick\":1024," +
+            "\"entities\":[{\"id\":\"player-0\",\"x\":1.5,\"y\":2.25,\"alive\":true}," +
+            "{\"id\":\"player-1\",\"x\":3.0,\"y\":4.5,\"alive\":true}]}}";
+
+    private BinaryCodecInterceptor interceptor;
+    private Map<String, Object> attributes;
+
+    @Before
+    public void setUp() {
+        this.interceptor = new BinaryCodecInterceptor();
+        this.interceptor.setEnabled(true);
+        this.attributes = new HashMap<String, Object>();
+        this.attributes.put(BinaryCodecInterceptor.BINARY_FRAMES_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    private Message<byte[]> connect(String codec) {
+        StompHeaderAccessor headers = StompHeaderAccessor.create(StompCommand.CONNECT);
+        headers.setSessionId("s1");
+        headers.setSessionAttributes(this.attributes);
+        if (codec != null) {
+            headers.setNativeHeader(BinaryCodecInterceptor.CODEC_HEADER, codec);
+        }
+        return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+    }
+
+    private Message<byte[]> frame(StompCommand command, byte[] body, MimeType contentType) {
+        StompHeaderAccessor headers = StompHeaderAccessor.create(command);
+        headers.setSessionId("s1");
+        headers.setDestination("/topic/session");
+        headers.setContentType(contentType);
+        return MessageBuilder.createMessage(body, headers.getMessageHeaders());
+    }
+
+    @Test
+    public void testNegotiatedSessionsReceiveSmile() {
+        this.interceptor.preSend(connect(BinaryCodecInterceptor.SMILE_CODEC), null);
+        assertEquals(BinaryCodecInterceptor.SMILE_CODEC, this.attributes.get(BinaryCodecInterceptor.CODEC_ATTRIBUTE));
+
+        byte[] json = UPDATE.getBytes(UTF_8);
+        Message<?> sent = this.interceptor.preSend(frame(StompCommand.MESSAGE, json, MimeTypeUtils.TEXT_PLAIN), null);
+
+        byte[] smile = (byte[]) sent.getPayload();
+        assertEquals(BinaryCodecInterceptor.SMILE, sent.getHeaders().get(MessageHeaders.CONTENT_TYPE));
+        assertTrue(smile.length < json.length);
+        assertEquals(UPDATE, new String(BinaryCodecInterceptor.toJson(smile), UTF_8));
+
+        this.interceptor.onApplicationEvent(new SessionDisconnectEvent(this, "s1", CloseStatus.NORMAL));
+        Message<byte[]> after = frame(StompCommand.MESSAGE, json, MimeTypeUtils.TEXT_PLAIN);
+        assertSame(after, this.interceptor.preSend(after, null));
+    }
+
+    @Test
+    public void testSessionsThatCannotCarryBinaryFramesKeepJson() {
+        this.attributes.remove(BinaryCodecInterceptor.BINARY_FRAMES_ATTRIBUTE);
+        this.interceptor.preSend(connect(BinaryCodecInterceptor.SMILE_CODEC), null);
+        assertFalse(this.attributes.containsKey(BinaryCodecInterceptor.CODEC_ATTRIBUTE));
+
+        Message<byte[]> message = frame(StompCommand.MESSAGE, UPDATE.getBytes(UTF_8), MimeTypeUtils.TEXT_PLAIN);
+        assertSame(message, this.interceptor.preSend(message, null));
+    }
+
+    @Test
+    public void testSmileBodiesAreDecodedOnTheWayIn() {
+        byte[] smile = BinaryCodecInterceptor.toSmile(UPDATE.getBytes(UTF_8));
+        Message<?> received = this.interceptor.preSend(frame(StompCommand.SEND, smile, BinaryCodecInterceptor.SMILE), null);
+
+        assertEquals(MimeTypeUtils.APPLICATION_JSON, received.getHeaders().get(MessageHeaders.CONTENT_TYPE));
+        assertEquals(UPDATE, new String((byte[]) received.getPayload(), UTF_8));
+
+        Message<byte[]> json = frame(StompCommand.SEND, UPDATE.getBytes(UTF_8), MimeTypeUtils.APPLICATION_JSON);
+        assertSame(json, this.interceptor.preSend(json, null));
+    }
+}
@@ -0,0 +1,86 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.service.DeviceService;
+import com.wk.lodge.composite.web.support.TestPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DeviceLivenessInterceptorTests {
+    private DeviceRegistry registry;
+    private DeviceService deviceService;
+    private DeviceLivenessInterceptor interceptor;
+    private String device;
+
+    @Before
+    public void setUp() {
+        this.registry = new DeviceRegistry();
+        this.deviceService = mock(DeviceService.class);
+        this.interceptor = new DeviceLivenessInterceptor(this.registry);
+        this.interceptor.setDeviceService(this.deviceService);
+        this.interceptor.setEnabled(true);
+        this.device = UUID.randomUUID().toString();
+    }
+
+    private Message<byte[]> message(SimpMessageType type, String destination, String socket) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(type);
+        if (destination != null) {
+            headers.setDestination(destination);
+        }
+        headers.setSessionId(socket);
+        headers.setUser(new TestPrincipal(this.device));
+        return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+    }
+
+    @Test
+    public void testEveryFrameCountsAsAPingAndPingsAreDropped() {
+        assertNotNull(this.interceptor.preSend(message(SimpMessageType.HEARTBEAT, null, "s1"), null));
+        assertTrue(this.registry.isHealthyDevice(this.device));
+
+        assertNull(this.interceptor.preSend(message(SimpMessageType.MESSAGE, "/app/ping", "s1"), null));
+        assertNotNull(this.interceptor.preSend(message(SimpMessageType.MESSAGE, "/app/join", "s1"), null));
+    }
+
+    @Test
+    public void testDevicesAreEvictedWhenTheirLastSocketCloses() {
+        this.interceptor.onApplicationEvent(new SessionConnectEvent(this, message(SimpMessageType.CONNECT, null, "s1")));
+        this.interceptor.onApplicationEvent(new SessionConnectEvent(this, message(SimpMessageType.CONNECT, null, "s2")));
+        assertTrue(this.registry.isHealthyDevice(this.device));
+
+        this.interceptor.onApplicationEvent(new SessionDisconnectEvent(this, "s1", CloseStatus.NORMAL));
+        verify(this.deviceService, never()).evictDevice(anyString());
+
+        this.interceptor.onApplicationEvent(new SessionDisconnectEvent(this, "s2", CloseStatus.GOING_AWAY));
+        verify(this.deviceService, times(1)).evictDevice(this.device);
+
+        // the disconnect message that follows the event must not bring the device back
+        this.registry.removeDevice(this.device);
+        this.interceptor.preSend(message(SimpMessageType.DISCONNECT, null, "s2"), null);
+        assertFalse(this.registry.isHealthyDevice(this.device));
+    }
+
+    @Test
+    public void testDisabledInterceptorChangesNothing() {
+        this.interceptor.setEnabled(false);
+        Message<byte[]> ping = message(SimpMessageType.MESSAGE, "/app/ping", "s1");
+
+        assertSame(ping, this.interceptor.preSend(ping, null));
+        this.interceptor.onApplicationEvent(new SessionConnectEvent(this, message(SimpMessageType.CONNECT, null, "s1")));
+        this.interceptor.onApplicationEvent(new SessionDisconnectEvent(this, "s1", CloseStatus.NORMAL));
+
+        assertFalse(this.registry.isHealthyDevice(this.device));
+        verifyZeroInteractions(this.deviceService);
+    }
+}
@@ -0,0 +1,165 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.metrics.LatencyHistogram;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class LatencyInterceptorTests {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ThreadPoolTaskExecutor executor;
+    private LatencyInterceptor interceptor;
+    private RawRelayInterceptor relay;
+
+    @Before
+    public void setUp() {
+        this.executor = new ThreadPoolTaskExecutor();
+        this.executor.setCorePoolSize(1);
+        this.executor.afterPropertiesSet();
+        this.interceptor = new LatencyInterceptor();
+        this.interceptor.setEnabled(true);
+        this.interceptor.setExecutors(Collections.singletonMap("clientInboundChannelExecutor", this.executor));
+        this.relay = new RawRelayInterceptor();
+        MessageChannel brokerChannel = mock(MessageChannel.class);
+        when(brokerChannel.send(any(Message.class))).thenReturn(true);
+        this.relay.setBrokerTemplate(new SimpMessagingTemplate(brokerChannel));
+        this.relay.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    private static Message<byte[]> message(String destination, String json) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setDestination(destination);
+        headers.setSessionId("s1");
+        return MessageBuilder.createMessage(json.getBytes(UTF_8), headers.getMessageHeaders());
+    }
+
+    @Test
+    public void testMessagesAreTimedByDestinationAndType() throws Exception {
+        final CountDownLatch handled = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        SimpAnnotationMethodMessageHandler controller = mock(SimpAnnotationMethodMessageHandler.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                release.await(10, TimeUnit.SECONDS);
+                Thread.sleep(5);
+                handled.countDown();
+                return null;
+            }
+        }).when(controller).handleMessage(any(Message.class));
+        ExecutorSubscribableChannel channel = new ExecutorSubscribableChannel(this.executor);
+        channel.setInterceptors(Arrays.asList(this.interceptor.getArrivalInterceptor(), this.relay,
+                this.interceptor));
+        channel.subscribe(controller);
+        channel.subscribe(mock(MessageHandler.class));
+
+        String id = "/app/" + UUID.randomUUID();
+        channel.send(message("/app/join", "{\"type\":\"enter\"}"));
+        channel.send(message(id, "{\"data\":null, \"type\":\"state\"}"));
+        assertFalse(channel.send(message(id, "{\"type\":\"update\",\"data\":{\"x\":1}}")));
+        channel.send(message("/topic/" + id, "{}"));
+
+        while (this.interceptor.getExecutorGauges().get(0).getQueued() == 0) {
+            this.interceptor.sample();
+            Thread.sleep(1);
+        }
+        LatencyInterceptor.ExecutorGauge gauge = this.interceptor.getExecutorGauges().get(0);
+        assertEquals("clientInboundChannelExecutor", gauge.getName());
+        assertEquals(1, gauge.getActive());
+        assertTrue(gauge.getMaxQueued() >= 1);
+        release.countDown();
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+        this.executor.shutdown();
+        this.executor.getThreadPoolExecutor().awaitTermination(10, TimeUnit.SECONDS);
+
+        LatencyHistogram join = this.interceptor.getHistograms().get("/app/join");
+        assertEquals(1, join.getCount());
+        assertTrue(join.getMax() >= 5000);
+        LatencyHistogram state = this.interceptor.getHistograms().get("/app/{id} state");
+        assertEquals(1, state.getCount());
+        // the second message waited in the queue for the first to be handled
+        assertTrue(state.getMax() >= 10000);
+        assertEquals(1, this.interceptor.getHistograms().get("/app/{id} relayed").getCount());
+        assertEquals(0, this.interceptor.getHistograms().get("/app/{id} update").getCount());
+        assertEquals(2, this.interceptor.getQueueWait().getCount());
+        assertEquals(0, this.interceptor.getUntimed());
+        this.interceptor.report();
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        MessageChannel channel = mock(MessageChannel.class);
+        MessageHandler controller = mock(SimpAnnotationMethodMessageHandler.class);
+        Message<byte[]> sync = message("/app/sync", "{\"uuid\":\"1\"}");
+        Message<byte[]> start = message("/app/" + UUID.randomUUID(), "{\"type\":\"start\"}");
+
+        for (int i = 0; i < 20000; i++) {
+            record(channel, controller, sync, start);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10000; i++) {
+            record(channel, controller, sync, start);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(String.format("%d bytes allocated", allocated), allocated < 1024);
+        assertEquals(30000, this.interceptor.getHistograms().get("/app/sync").getCount());
+        assertEquals(30000, this.interceptor.getHistograms().get("/app/{id} start").getCount());
+        assertEquals(30000, this.interceptor.getHistograms().get("/app/{id} relayed").getCount());
+    }
+
+    /**
+     * runs the interceptor's hooks as the channel would for a handled sync message, a handled start message and a
+     * relayed start message
+     */
+    private void record(MessageChannel channel, MessageHandler controller, Message<byte[]> sync, Message<byte[]> start) {
+        handle(channel, controller, sync);
+        handle(channel, controller, start);
+        this.interceptor.getArrivalInterceptor().preSend(start, channel);
+        this.interceptor.getArrivalInterceptor().afterSendCompletion(null, channel, false, null);
+    }
+
+    private void handle(MessageChannel channel, MessageHandler controller, Message<byte[]> message) {
+        this.interceptor.getArrivalInterceptor().preSend(message, channel);
+        this.interceptor.preSend(message, channel);
+        this.interceptor.afterSendCompletion(message, channel, true, null);
+        this.interceptor.getArrivalInterceptor().afterSendCompletion(message, channel, true, null);
+        this.interceptor.beforeHandle(message, channel, controller);
+        this.interceptor.afterMessageHandled(message, channel, controller, null);
+    }
+}
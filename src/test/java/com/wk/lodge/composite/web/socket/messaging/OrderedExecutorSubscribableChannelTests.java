@@ -0,0 +1,158 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.config.ChannelExecutors;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OrderedExecutorSubscribableChannelTests {
+    private static final String KEY = SimpMessageHeaderAccessor.DESTINATION_HEADER;
+    private static final int KEYS = 4;
+    private static final int SENDERS = 8;
+    private static final int MESSAGES = 200;
+
+    private static Message<Integer> message(String key, int sequence) {
+        return MessageBuilder.withPayload(sequence).setHeader(KEY, key).build();
+    }
+
+    /**
+     * sends numbered messages for a few keys from several threads at once, each number sent under a lock on its key as
+     * a patch version would be, and checks that each key's messages were handled in order
+     */
+    private void assertOrderedPerKey(String mode, int maxPoolSize) throws Exception {
+        ThreadPoolTaskExecutor executor = ChannelExecutors.create("ordered-" + mode + "-", mode, 2, maxPoolSize);
+        executor.afterPropertiesSet();
+        try {
+            final OrderedExecutorSubscribableChannel channel = new OrderedExecutorSubscribableChannel(executor, KEY);
+            final Map<String, List<Integer>> handled = new HashMap<String, List<Integer>>();
+            final int[] sequences = new int[KEYS];
+            for (int k = 0; k < KEYS; k++) {
+                handled.put("/topic/" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+            final CountDownLatch done = new CountDownLatch(KEYS * SENDERS * MESSAGES);
+            channel.subscribe(new MessageHandler() {
+                @Override
+                public void handleMessage(Message<?> message) throws MessagingException {
+                    handled.get(SimpMessageHeaderAccessor.getDestination(message.getHeaders()))
+                        .add((Integer) message.getPayload());
+                    if ((Integer) message.getPayload() % 50 == 0) {
+                        // give a later message the chance to overtake this one
+                        Thread.yield();
+                    }
+                    done.countDown();
+                }
+            });
+            List<Thread> senders = new ArrayList<Thread>();
+            for (int t = 0; t < SENDERS; t++) {
+                Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < MESSAGES * KEYS; i++) {
+                            int k = i % KEYS;
+                            synchronized (sequences) {
+                                channel.send(message("/topic/" + k, ++sequences[k]));
+                            }
+                        }
+                    }
+                });
+                senders.add(sender);
+                sender.start();
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (List<Integer> sequence : handled.values()) {
+                assertEquals(SENDERS * MESSAGES, sequence.size());
+                for (int i = 0; i < sequence.size(); i++) {
+                    assertEquals(Integer.valueOf(i + 1), sequence.get(i));
+                }
+            }
+            // a lane is dropped just after its last message has been handled
+            long deadline = System.currentTimeMillis() + 5000;
+            while (channel.getLanes() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, channel.getLanes());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPoolModeHandlesEachKeyInOrder() throws Exception {
+        assertOrderedPerKey(ChannelExecutors.POOL, 2);
+    }
+
+    @Test
+    public void testElasticModeHandlesEachKeyInOrderOnceItIsFull() throws Exception {
+        // a maximum below the number of keys, so that senders handle messages themselves
+        assertOrderedPerKey(ChannelExecutors.ELASTIC, 2);
+    }
+
+    @Test
+    public void testVirtualModeHandlesEachKeyInOrder() throws Exception {
+        assertOrderedPerKey(ChannelExecutors.VIRTUAL, 2);
+    }
+
+    @Test
+    public void testDifferentKeysAreHandledInParallel() throws Exception {
+        ThreadPoolTaskExecutor executor = ChannelExecutors.create("ordered-", ChannelExecutors.POOL, 4, 4);
+        executor.afterPropertiesSet();
+        try {
+            OrderedExecutorSubscribableChannel channel = new OrderedExecutorSubscribableChannel(executor, KEY);
+            final CountDownLatch coldHandled = new CountDownLatch(1);
+            final AtomicInteger hotHandled = new AtomicInteger();
+            final Thread sender = Thread.currentThread();
+            final AtomicInteger ranBySender = new AtomicInteger();
+            channel.subscribe(new MessageHandler() {
+                @Override
+                public void handleMessage(Message<?> message) throws MessagingException {
+                    if (Thread.currentThread() == sender) {
+                        ranBySender.incrementAndGet();
+                    }
+                    if ("/topic/cold".equals(SimpMessageHeaderAccessor.getDestination(message.getHeaders()))) {
+                        coldHandled.countDown();
+                        return;
+                    }
+                    try {
+                        // the hot key's first message is held up until the cold key's message has been handled
+                        coldHandled.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    hotHandled.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 10; i++) {
+                channel.send(message("/topic/hot", i));
+            }
+            channel.send(message("/topic/cold", 0));
+
+            assertTrue(coldHandled.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (hotHandled.get() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(10, hotHandled.get());
+            assertEquals(0, ranBySender.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
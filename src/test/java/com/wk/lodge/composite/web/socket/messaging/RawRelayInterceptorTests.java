@@ -0,0 +1,121 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.web.support.TestPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.JsonPathExpectationsHelper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RawRelayInterceptorTests {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private List<Message<?>> relayed;
+    private RawRelayInterceptor interceptor;
+    private String sessionUuid;
+
+    @Before
+    public void setUp() {
+        this.relayed = new ArrayList<Message<?>>();
+        this.interceptor = new RawRelayInterceptor();
+        this.interceptor.setBrokerTemplate(new SimpMessagingTemplate(new MessageChannel() {
+            @Override
+            public boolean send(Message<?> message) {
+                return relayed.add(message);
+            }
+
+            @Override
+            public boolean send(Message<?> message, long timeout) {
+                return send(message);
+            }
+        }));
+        this.interceptor.setEnabled(true);
+        this.sessionUuid = UUID.randomUUID().toString();
+    }
+
+    private Message<byte[]> message(String destination, String json) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setDestination(destination);
+        headers.setSessionId("s1");
+        headers.setUser(new TestPrincipal(UUID.randomUUID().toString()));
+        return MessageBuilder.createMessage(json.getBytes(UTF_8), headers.getMessageHeaders());
+    }
+
+    @Test
+    public void testUpdatesAreRelayedWithTheirDataUntouched() throws Exception {
+        String data = "{\"x\": 1.50, \"tags\": [\"a\", \"}\\\"\"], \"nested\": {\"y\": null}}";
+        Message<byte[]> update = message("/app/" + this.sessionUuid,
+                "{ \"id\": 7, \"type\" : \"update\", \"data\": " + data + " }");
+
+        assertNull(this.interceptor.preSend(update, null));
+
+        assertEquals(1, this.relayed.size());
+        Message<?> reply = this.relayed.get(0);
+        assertEquals("/topic/" + this.sessionUuid, SimpMessageHeaderAccessor.getDestination(reply.getHeaders()));
+        String json = new String((byte[]) reply.getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("type").assertValue(json, "update");
+        new JsonPathExpectationsHelper("serverTime").exists(json);
+        new JsonPathExpectationsHelper("id").doesNotExist(json);
+        assertTrue(json.endsWith(",\"data\":" + data + "}"));
+    }
+
+    @Test
+    public void testDataMessagesAreRelayed() throws Exception {
+        assertNull(this.interceptor.preSend(message("/app/" + this.sessionUuid,
+                "{\"data\":\"THIS IS SOME DATA\",\"type\":\"data\"}"), null));
+
+        String json = new String((byte[]) this.relayed.get(0).getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("type").assertValue(json, "data");
+        new JsonPathExpectationsHelper("data").assertValue(json, "THIS IS SOME DATA");
+    }
+
+    @Test
+    public void testLiteralsAndNumbersAreRelayed() throws Exception {
+        String[] values = {"true", "false", "null", "0", "-12", "1.50", "-0.5e+3", "2E10", "[true, null, -1e-2]"};
+        for (String value : values) {
+            assertNull(value, this.interceptor.preSend(message("/app/" + this.sessionUuid,
+                    "{\"type\":\"update\",\"data\":" + value + "}"), null));
+        }
+        assertEquals(values.length, this.relayed.size());
+    }
+
+    @Test
+    public void testMalformedDataReachesTheController() {
+        String[] values = {"foo", "tru", "truex", "nul", "01", "1.", ".5", "-", "+1", "1e", "0x1F", "NaN", "{\"x\":bar}",
+                "{\"x\" 1}", "{\"x\":1,}", "{x:1}", "[1,,2]", "[1,]", "[1 2]"};
+        for (String value : values) {
+            Message<byte[]> message = message("/app/" + this.sessionUuid, "{\"type\":\"update\",\"data\":" + value + "}");
+            assertSame(value, message, this.interceptor.preSend(message, null));
+        }
+        assertTrue(this.relayed.isEmpty());
+    }
+
+    @Test
+    public void testOtherMessagesReachTheController() {
+        List<Message<byte[]>> messages = new ArrayList<Message<byte[]>>();
+        messages.add(message("/app/" + this.sessionUuid, "{\"type\":\"start\"}"));
+        messages.add(message("/app/" + this.sessionUuid, "{\"type\":\"upd\\u0061te\",\"data\":1}"));
+        messages.add(message("/app/" + this.sessionUuid, "{\"type\":\"update\",\"data\":[1,2}"));
+        messages.add(message("/app/not-a-session", "{\"type\":\"update\",\"data\":1}"));
+        messages.add(message("/app/join", "{\"type\":\"update\",\"data\":1}"));
+        for (Message<byte[]> message : messages) {
+            assertSame(message, this.interceptor.preSend(message, null));
+        }
+
+        this.interceptor.setEnabled(false);
+        Message<byte[]> update = message("/app/" + this.sessionUuid, "{\"type\":\"update\",\"data\":1}");
+        assertSame(update, this.interceptor.preSend(update, null));
+        assertTrue(this.relayed.isEmpty());
+    }
+}
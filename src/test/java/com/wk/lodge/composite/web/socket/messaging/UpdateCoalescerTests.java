@@ -0,0 +1,177 @@
+package com.wk.lodge.composite.web.socket.messaging;
+
+import com.wk.lodge.composite.model.Session;
+import com.wk.lodge.composite.service.SessionService;
+import com.wk.lodge.composite.web.support.TestPrincipal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.JsonPathExpectationsHelper;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UpdateCoalescerTests {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BlockingQueue<Message<?>> published;
+    private UpdateCoalescer coalescer;
+    private RawRelayInterceptor interceptor;
+    private String coalescedSession;
+    private String relayedSession;
+    private SessionService sessionService;
+
+    @Before
+    public void setUp() {
+        this.published = new LinkedBlockingQueue<Message<?>>();
+        SimpMessagingTemplate template = new SimpMessagingTemplate(new MessageChannel() {
+            @Override
+            public boolean send(Message<?> message) {
+                return published.add(message);
+            }
+
+            @Override
+            public boolean send(Message<?> message, long timeout) {
+                return send(message);
+            }
+        });
+        this.coalescedSession = UUID.randomUUID().toString();
+        this.relayedSession = UUID.randomUUID().toString();
+        this.sessionService = mock(SessionService.class);
+        when(this.sessionService.getApplicationId(this.coalescedSession)).thenReturn("appOne");
+        when(this.sessionService.getApplicationId(this.relayedSession)).thenReturn("appTwo");
+
+        Map<String, Long> tickMillis = new HashMap<String, Long>();
+        tickMillis.put("appOne", 50L);
+        tickMillis.put("appTwo", 0L);
+        this.coalescer = new UpdateCoalescer(tickMillis);
+        this.coalescer.setSessionService(this.sessionService);
+        this.coalescer.setBrokerTemplate(template);
+
+        this.interceptor = new RawRelayInterceptor();
+        this.interceptor.setBrokerTemplate(template);
+        this.interceptor.setUpdateCoalescer(this.coalescer);
+        this.interceptor.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        this.coalescer.shutdown();
+    }
+
+    private static Message<byte[]> message(String sessionId, String device, String json) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setDestination("/app/" + sessionId);
+        headers.setSessionId("s1");
+        headers.setUser(new TestPrincipal(device));
+        return MessageBuilder.createMessage(json.getBytes(UTF_8), headers.getMessageHeaders());
+    }
+
+    @Test
+    public void testUpdatesWithinATickArePublishedAsOneFrame() throws Exception {
+        String first = UUID.randomUUID().toString();
+        String second = UUID.randomUUID().toString();
+        for (int i = 1; i <= 5; i++) {
+            assertNull(this.interceptor.preSend(message(this.coalescedSession, first,
+                    "{\"type\":\"update\",\"data\":{\"x\":" + i + "}}"), null));
+        }
+        assertNull(this.interceptor.preSend(message(this.coalescedSession, second,
+                "{\"type\":\"update\",\"data\":[1, 2]}"), null));
+
+        Message<?> frame = this.published.poll(2, TimeUnit.SECONDS);
+        assertNotNull(frame);
+        assertEquals("/topic/" + this.coalescedSession, SimpMessageHeaderAccessor.getDestination(frame.getHeaders()));
+        String json = new String((byte[]) frame.getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("type").assertValue(json, "updates");
+        new JsonPathExpectationsHelper("serverTime").exists(json);
+        new JsonPathExpectationsHelper("updates['" + first + "'].x").assertValue(json, 5);
+        assertTrue(json.contains("\"" + second + "\":[1, 2]"));
+        assertNull(this.published.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(6, this.coalescer.getUpdates());
+        assertEquals(1, this.coalescer.getFrames());
+
+        assertNull(this.interceptor.preSend(message(this.coalescedSession, first,
+                "{\"type\":\"update\",\"data\":{\"x\":6}}"), null));
+        json = new String((byte[]) this.published.poll(2, TimeUnit.SECONDS).getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("updates['" + first + "'].x").assertValue(json, 6);
+        new JsonPathExpectationsHelper("updates['" + second + "']").doesNotExist(json);
+    }
+
+    @Test
+    public void testOtherMessagesAndApplicationsAreRelayedImmediately() throws Exception {
+        String device = UUID.randomUUID().toString();
+        assertNull(this.interceptor.preSend(message(this.coalescedSession, device,
+                "{\"type\":\"data\",\"data\":\"THIS IS SOME DATA\"}"), null));
+        String json = new String((byte[]) this.published.poll().getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("type").assertValue(json, "data");
+
+        assertNull(this.interceptor.preSend(message(this.relayedSession, device,
+                "{\"type\":\"update\",\"data\":1}"), null));
+        json = new String((byte[]) this.published.poll().getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("type").assertValue(json, "update");
+
+        assertFalse(this.coalescer.offer(UUID.randomUUID().toString(), device, "1".getBytes(UTF_8)));
+        assertEquals(0, this.coalescer.getUpdates());
+    }
+
+    @Test
+    public void testUnknownSessionsAreRelayedWhileTheyAreLookedUpInTheBackground() throws Exception {
+        final String unknownSession = UUID.randomUUID().toString();
+        final Thread sender = Thread.currentThread();
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean read = new AtomicBoolean();
+        when(this.sessionService.getApplicationId(unknownSession)).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return read.get() ? "appOne" : null;
+            }
+        });
+        when(this.sessionService.get(unknownSession)).thenAnswer(new Answer<Session>() {
+            @Override
+            public Session answer(InvocationOnMock invocation) throws Throwable {
+                assertNotSame(sender, Thread.currentThread());
+                lookups.incrementAndGet();
+                // a slow document store
+                release.await(5, TimeUnit.SECONDS);
+                read.set(true);
+                return new Session();
+            }
+        });
+        String device = UUID.randomUUID().toString();
+        for (int i = 0; i < 3; i++) {
+            assertNull(this.interceptor.preSend(message(unknownSession, device,
+                    "{\"type\":\"update\",\"data\":" + i + "}"), null));
+            String json = new String((byte[]) this.published.poll().getPayload(), UTF_8);
+            new JsonPathExpectationsHelper("type").assertValue(json, "update");
+        }
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!this.coalescer.offer(unknownSession, device, "3".getBytes(UTF_8))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        String json = new String((byte[]) this.published.poll(2, TimeUnit.SECONDS).getPayload(), UTF_8);
+        new JsonPathExpectationsHelper("type").assertValue(json, "updates");
+        assertEquals(1, lookups.get());
+    }
+}
@@ -5,8 +5,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wk.lodge.composite.model.Device;
 import com.wk.lodge.composite.model.Session;
 import com.wk.lodge.composite.registry.DeviceRegistry;
+import com.wk.lodge.composite.registry.SessionStateRegistry;
 import com.wk.lodge.composite.service.SessionService;
 import com.wk.lodge.composite.web.CompositeController;
+import com.wk.lodge.composite.web.socket.message.codec.CodecMessageConverter;
 import com.wk.lodge.composite.web.socket.message.inbound.*;
 import com.wk.lodge.composite.web.support.TestMessageChannel;
 import com.wk.lodge.composite.web.support.TestPrincipal;
@@ -19,7 +21,9 @@ import org.springframework.context.support.StaticApplicationContext;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.SubscribableChannel;
-import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
 import org.springframework.messaging.simp.SimpMessageSendingOperations;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
@@ -27,10 +31,20 @@ import org.springframework.messaging.simp.stomp.StompCommand;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.util.JsonPathExpectationsHelper;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -59,6 +73,7 @@ public class StandaloneCompositeTests {
     private DeviceRegistry deviceRegistry;
     private TestMessageChannel brokerTemplateChannel;
     private TestSimpAnnotationMethodMessageHandler annotationMethodMessageHandler;
+    private CompositeController controller;
     @Mock
     SessionService sessionService;
 
@@ -69,16 +84,22 @@ public class StandaloneCompositeTests {
 
         this.brokerTemplateChannel = new TestMessageChannel();
 
+        // the codec ahead of the String converter, as WebSocketConfig registers them
+        MessageConverter converter = new CompositeMessageConverter(Arrays.<MessageConverter>asList(
+                new CodecMessageConverter(), new StringMessageConverter()));
         this.template = new SimpMessagingTemplate(this.brokerTemplateChannel);
-        CompositeController controller = new CompositeController(sessionService,
+        this.template.setMessageConverter(converter);
+        this.controller = new CompositeController(sessionService,
                 template, deviceRegistry);
+        this.controller.setSessionStateRegistry(new SessionStateRegistry(60));
+        this.controller.setSessionStateEnabled(true);
 
         this.annotationMethodMessageHandler = new TestSimpAnnotationMethodMessageHandler(
                 new TestMessageChannel(), new TestMessageChannel(), this.template);
 
-        this.annotationMethodMessageHandler.registerHandler(controller);
+        this.annotationMethodMessageHandler.registerHandler(this.controller);
         this.annotationMethodMessageHandler.setDestinationPrefixes(Arrays.asList("/app"));
-        this.annotationMethodMessageHandler.setMessageConverter(new MappingJackson2MessageConverter());
+        this.annotationMethodMessageHandler.setMessageConverter(converter);
         this.annotationMethodMessageHandler.setApplicationContext(new StaticApplicationContext());
         this.annotationMethodMessageHandler.afterPropertiesSet();
 
@@ -119,8 +140,8 @@ public class StandaloneCompositeTests {
         //Make sure the message was sent to the correct user (uuid from above)
         assertEquals(String.format("/user/%s/queue/device", uuid), replyHeaders.getDestination());
         //Make sure the uuid from above is in the payload
-        new JsonPathExpectationsHelper("uuid").assertValue(reply.getPayload().toString(), uuid);
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "init");
+        new JsonPathExpectationsHelper("uuid").assertValue(json(reply), uuid);
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "init");
 
     }
 
@@ -175,12 +196,51 @@ public class StandaloneCompositeTests {
         //Make sure the message was sent to the correct user (uuid from above)
         assertEquals(String.format("/user/%s/queue/device", uuid), replyHeaders.getDestination());
         //Make sure the devices are in the payload
-        new JsonPathExpectationsHelper("id").exists(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("devices").exists(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("devices").assertValueIsArray(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "join");
-        new JsonPathExpectationsHelper("$devices.[0].uuid").assertValue(reply.getPayload().toString(), deviceA.getUuid().toString());
-        new JsonPathExpectationsHelper("$devices.[1].uuid").assertValue(reply.getPayload().toString(), deviceB.getUuid().toString());
+        new JsonPathExpectationsHelper("id").exists(json(reply));
+        new JsonPathExpectationsHelper("devices").exists(json(reply));
+        new JsonPathExpectationsHelper("devices").assertValueIsArray(json(reply));
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "join");
+        new JsonPathExpectationsHelper("$devices.[0].uuid").assertValue(json(reply), deviceA.getUuid().toString());
+        new JsonPathExpectationsHelper("$devices.[1].uuid").assertValue(json(reply), deviceB.getUuid().toString());
+    }
+
+    @Test
+    public void asyncJoin() throws Exception {
+        this.controller.setSessionAsyncEnabled(true);
+        StompHeaderAccessor headers = StompHeaderAccessor.create(StompCommand.SEND);
+        headers.setDestination("/app/join");
+        headers.setSessionId("0");
+        headers.setSessionAttributes(new HashMap<String, Object>());
+        String uuid = UUID.randomUUID().toString();
+        headers.setUser(new TestPrincipal(uuid));
+
+        Device device = new Device(uuid);
+        JoinMessage join = new JoinMessage();
+        join.setDevice(device);
+        join.setGeo(new float [] {45, 45});
+        join.setType(JoinMessage.Types.exit);
+        byte[] payload = new ObjectMapper().writeValueAsBytes(join);
+
+        //The session service places the join later, e.g. once its batch is placed
+        SettableListenableFuture<Session> placed = new SettableListenableFuture<Session>();
+        when(this.sessionService.getAsync(Mockito.any(Object.class))).thenReturn(placed);
+
+        Message<byte[]> message = MessageBuilder.withPayload(payload).setHeaders(headers).build();
+        this.annotationMethodMessageHandler.handleMessage(message);
+
+        //The handler has returned without a reply
+        assertEquals(0, this.brokerTemplateChannel.getMessages().size());
+
+        Session session = new Session();
+        session.addDevice(device);
+        placed.set(session);
+
+        assertEquals(1, this.brokerTemplateChannel.getMessages().size());
+        Message<?> reply = this.brokerTemplateChannel.getMessages().get(0);
+        StompHeaderAccessor replyHeaders = StompHeaderAccessor.wrap(reply);
+        assertEquals(String.format("/user/%s/queue/device", uuid), replyHeaders.getDestination());
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "join");
+        new JsonPathExpectationsHelper("id").assertValue(json(reply), session.getUuid().toString());
     }
 
     @Test
@@ -234,12 +294,12 @@ public class StandaloneCompositeTests {
         //Make sure the message was sent to the correct user (uuid from above)
         assertEquals(String.format("/user/%s/queue/device", uuid), replyHeaders.getDestination());
         //Make sure the devices are in the payload
-        new JsonPathExpectationsHelper("id").exists(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("devices").exists(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("devices").assertValueIsArray(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "pair");
-        new JsonPathExpectationsHelper("$devices.[0].uuid").assertValue(reply.getPayload().toString(), deviceA.getUuid().toString());
-        new JsonPathExpectationsHelper("$devices.[1].uuid").assertValue(reply.getPayload().toString(), deviceB.getUuid().toString());
+        new JsonPathExpectationsHelper("id").exists(json(reply));
+        new JsonPathExpectationsHelper("devices").exists(json(reply));
+        new JsonPathExpectationsHelper("devices").assertValueIsArray(json(reply));
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "pair");
+        new JsonPathExpectationsHelper("$devices.[0].uuid").assertValue(json(reply), deviceA.getUuid().toString());
+        new JsonPathExpectationsHelper("$devices.[1].uuid").assertValue(json(reply), deviceB.getUuid().toString());
     }
 
     @Test
@@ -293,11 +353,11 @@ public class StandaloneCompositeTests {
         //Make sure the message was sent to the correct topic (sessionUuid from above)
         assertEquals(String.format("/topic/%s", sessionUuid), replyHeaders.getDestination());
         //Make sure the devices are in the payload
-        new JsonPathExpectationsHelper("devices").exists(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("devices").assertValueIsArray(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "devices");
-        new JsonPathExpectationsHelper("$devices.[0].uuid").assertValue(reply.getPayload().toString(), deviceA.getUuid().toString());
-        new JsonPathExpectationsHelper("$devices.[1].uuid").assertValue(reply.getPayload().toString(), deviceB.getUuid().toString());
+        new JsonPathExpectationsHelper("devices").exists(json(reply));
+        new JsonPathExpectationsHelper("devices").assertValueIsArray(json(reply));
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "devices");
+        new JsonPathExpectationsHelper("$devices.[0].uuid").assertValue(json(reply), deviceA.getUuid().toString());
+        new JsonPathExpectationsHelper("$devices.[1].uuid").assertValue(json(reply), deviceB.getUuid().toString());
     }
 
     @Test
@@ -346,7 +406,7 @@ public class StandaloneCompositeTests {
         StompHeaderAccessor replyHeaders = StompHeaderAccessor.wrap(reply);
         //Make sure the message was sent to the correct topic (sessionUuid from above)
         assertEquals(String.format("/topic/%s", sessionUuid), replyHeaders.getDestination());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "start");
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "start");
 
     }
 
@@ -396,7 +456,7 @@ public class StandaloneCompositeTests {
         StompHeaderAccessor replyHeaders = StompHeaderAccessor.wrap(reply);
         //Make sure the message was sent to the correct topic (sessionUuid from above)
         assertEquals(String.format("/topic/%s", sessionUuid), replyHeaders.getDestination());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "stop");
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "stop");
 
     }
 
@@ -436,8 +496,8 @@ public class StandaloneCompositeTests {
         //Make sure the message was sent to the correct user (uuid from above)
         assertEquals(String.format("/user/%s/queue/device", uuid), replyHeaders.getDestination());
         //Make sure the server time is in the payload
-        new JsonPathExpectationsHelper("serverTime").exists(reply.getPayload().toString());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "sync");
+        new JsonPathExpectationsHelper("serverTime").exists(json(reply));
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "sync");
     }
 
     @Test
@@ -476,8 +536,8 @@ public class StandaloneCompositeTests {
         StompHeaderAccessor replyHeaders = StompHeaderAccessor.wrap(reply);
         //Make sure the message was sent to the correct topic (sessionUuid from above)
         assertEquals(String.format("/topic/%s", sessionUuid), replyHeaders.getDestination());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "update");
-        new JsonPathExpectationsHelper("data").assertValue(reply.getPayload().toString(), "THIS IS AN UPDATE");
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "update");
+        new JsonPathExpectationsHelper("data").assertValue(json(reply), "THIS IS AN UPDATE");
     }
 
     @Test
@@ -516,8 +576,106 @@ public class StandaloneCompositeTests {
         StompHeaderAccessor replyHeaders = StompHeaderAccessor.wrap(reply);
         //Make sure the message was sent to the correct topic (sessionUuid from above)
         assertEquals(String.format("/topic/%s", sessionUuid), replyHeaders.getDestination());
-        new JsonPathExpectationsHelper("type").assertValue(reply.getPayload().toString(), "data");
-        new JsonPathExpectationsHelper("data").assertValue(reply.getPayload().toString(), "THIS IS SOME DATA");
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "data");
+        new JsonPathExpectationsHelper("data").assertValue(json(reply), "THIS IS SOME DATA");
+    }
+
+    @Test
+    public void patchAndState() throws Exception {
+        UUID sessionUuid = UUID.randomUUID();
+        String uuid = UUID.randomUUID().toString();
+
+        HashMap<String, Object> state = new HashMap<String, Object>();
+        state.put("score", 10);
+        state.put("level", "one");
+        this.annotationMethodMessageHandler.handleMessage(mapMessage(sessionUuid, uuid, "patch", state));
+
+        //Patch only the score: only the score is broadcast
+        HashMap<String, Object> patch = new HashMap<String, Object>();
+        patch.put("score", 20);
+        patch.put("level", "one");
+        this.annotationMethodMessageHandler.handleMessage(mapMessage(sessionUuid, uuid, "patch", patch));
+
+        //A patch that changes nothing is not broadcast
+        this.annotationMethodMessageHandler.handleMessage(mapMessage(sessionUuid, uuid, "patch", patch));
+
+        assertEquals(2, this.brokerTemplateChannel.getMessages().size());
+        Message<?> reply = this.brokerTemplateChannel.getMessages().get(1);
+        assertEquals(String.format("/topic/%s", sessionUuid), StompHeaderAccessor.wrap(reply).getDestination());
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "patch");
+        new JsonPathExpectationsHelper("version").assertValue(json(reply), 2);
+        new JsonPathExpectationsHelper("data.score").assertValue(json(reply), 20);
+        new JsonPathExpectationsHelper("data.level").doesNotExist(json(reply));
+
+        //A late joiner asks for the whole state, which is sent to it alone
+        this.annotationMethodMessageHandler.handleMessage(mapMessage(sessionUuid, uuid, "state", null));
+        assertEquals(3, this.brokerTemplateChannel.getMessages().size());
+        reply = this.brokerTemplateChannel.getMessages().get(2);
+        assertEquals(String.format("/user/%s/queue/device", uuid), StompHeaderAccessor.wrap(reply).getDestination());
+        new JsonPathExpectationsHelper("type").assertValue(json(reply), "state");
+        new JsonPathExpectationsHelper("version").assertValue(json(reply), 2);
+        new JsonPathExpectationsHelper("data.score").assertValue(json(reply), 20);
+        new JsonPathExpectationsHelper("data.level").assertValue(json(reply), "one");
+    }
+
+    @Test
+    public void concurrentPatchesReachTheTopicInVersionOrder() throws Exception {
+        final UUID sessionUuid = UUID.randomUUID();
+        final String uuid = UUID.randomUUID().toString();
+        final int threads = 8;
+        final int patches = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for(int t = 0; t < threads; t++) {
+            final String key = String.format("device%d", t);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for(int i = 0; i < patches; i++) {
+                        //Every patch changes the state, so every patch is broadcast
+                        HashMap<String, Object> patch = new HashMap<String, Object>();
+                        patch.put(key, i);
+                        annotationMethodMessageHandler.handleMessage(mapMessage(sessionUuid, uuid, "patch", patch));
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for(Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        List<Message<?>> replies = this.brokerTemplateChannel.getMessages();
+        assertEquals(threads * patches, replies.size());
+        for(int i = 0; i < replies.size(); i++) {
+            Message<?> reply = replies.get(i);
+            assertEquals(String.format("/topic/%s", sessionUuid), StompHeaderAccessor.wrap(reply).getDestination());
+            new JsonPathExpectationsHelper("version").assertValue(json(reply), i + 1);
+        }
+    }
+
+    private static String json(Message<?> reply) {
+        return new String((byte[]) reply.getPayload(), Charset.forName("UTF-8"));
+    }
+
+    private Message<byte[]> mapMessage(UUID sessionUuid, String uuid, String type, Object data) throws Exception {
+        StompHeaderAccessor headers = StompHeaderAccessor.create(StompCommand.SEND);
+        headers.setDestination(String.format("/app/%s", sessionUuid));
+        headers.setSessionId("0");
+        headers.setSessionAttributes(new HashMap<String, Object>());
+        headers.setUser(new TestPrincipal(uuid));
+
+        MapMessage message = new MapMessage();
+        message.setType(type);
+        if(data != null) {
+            message.setData(data);
+        }
+        byte[] payload = new ObjectMapper().writeValueAsBytes(message);
+        return MessageBuilder.withPayload(payload).setHeaders(headers).build();
     }
 
     @Test
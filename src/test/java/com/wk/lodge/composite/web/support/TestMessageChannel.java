@@ -5,11 +5,12 @@ import org.springframework.messaging.Message;
 import org.springframework.messaging.support.AbstractSubscribableChannel;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class TestMessageChannel extends AbstractSubscribableChannel {
 
-    private final List<Message<?>> messages = new ArrayList<>();
+    private final List<Message<?>> messages = Collections.synchronizedList(new ArrayList<Message<?>>());
 
 
     public List<Message<?>> getMessages() {